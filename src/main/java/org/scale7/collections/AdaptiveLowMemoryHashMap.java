@@ -0,0 +1,396 @@
+package org.scale7.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A memory-efficient map for the common case of maps that hold only a handful
+ * of entries. While the map is small its keys and values are interleaved in a
+ * single <code>Object[]</code> that is scanned linearly, so that neither hash
+ * codes nor a second array are needed, and a map with no entries holds no
+ * array at all. Once the map holds more than {@link #SMALL_MAP_MAX_SIZE}
+ * entries it is promoted to a {@link LowMemoryHashMap}, and it is demoted
+ * again when removals leave it with {@link #SMALL_MAP_MAX_SIZE} / 2 entries or
+ * fewer, the gap preventing a map whose size oscillates around the threshold
+ * from converting on every change.
+ * <p>
+ * Lookups in a small map compare keys by <code>equals</code> alone. Supports
+ * <code>null</code> keys and values.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+@SuppressWarnings("serial")
+public class AdaptiveLowMemoryHashMap<K, V> extends AbstractMap<K, V> implements Serializable {
+
+	/**
+	 * The number of entries above which the map is promoted to a hashed table.
+	 */
+	public static final int SMALL_MAP_MAX_SIZE = 8;
+
+	private static final Object[] EMPTY = new Object[0];
+
+	private class SmallEntry implements Entry<K, V> {
+		private final int index;
+
+		SmallEntry(int index) {
+			this.index = index;
+		}
+
+		@SuppressWarnings("unchecked")
+		public K getKey() {
+			return (K) LowMemoryHashMap.unmaskNullKey(entries[index]);
+		}
+
+		@SuppressWarnings("unchecked")
+		public V getValue() {
+			return (V) entries[index + 1];
+		}
+
+		@SuppressWarnings("unchecked")
+		public V setValue(V value) {
+			V previous = (V) entries[index + 1];
+			entries[index + 1] = value;
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry<?, ?>)) {
+				return false;
+			}
+			Entry<?, ?> e = (Entry<?, ?>) o;
+			return FrozenLowMemoryHashMap.equal(getKey(), e.getKey())
+					&& FrozenLowMemoryHashMap.equal(getValue(), e.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			K k = getKey();
+			V v = getValue();
+			return ((k == null) ? 0 : k.hashCode()) ^ ((v == null) ? 0 : v.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+
+	private class SmallEntryIterator implements Iterator<Entry<K, V>> {
+		private int index;
+		private int last = -1;
+
+		SmallEntryIterator(int index) {
+			this.index = index;
+		}
+
+		public boolean hasNext() {
+			return index < size * 2;
+		}
+
+		public Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = index;
+			index += 2;
+			return new SmallEntry(last);
+		}
+
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			// the last entry is moved into the hole, so must be visited next
+			removeSmall(last);
+			index = last;
+			last = -1;
+		}
+	}
+
+	/**
+	 * Iterates over a promoted map, demoting it when removals through the
+	 * iterator leave it small enough, and then continuing over the entries not
+	 * yet returned in the interleaved array.
+	 */
+	private class PromotedEntryIterator implements Iterator<Entry<K, V>> {
+		private Iterator<Entry<K, V>> delegate = table.entrySet().iterator();
+		private boolean promoted = true;
+
+		public boolean hasNext() {
+			return delegate.hasNext();
+		}
+
+		public Entry<K, V> next() {
+			return delegate.next();
+		}
+
+		public void remove() {
+			delegate.remove();
+			if (promoted && table.size() <= SMALL_MAP_MAX_SIZE / 2) {
+				delegate = new SmallEntryIterator(demote(delegate));
+				promoted = false;
+			}
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Entry<K, V>> {
+		@Override
+		public void clear() {
+			AdaptiveLowMemoryHashMap.this.clear();
+		}
+
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			if (table != null) {
+				return new PromotedEntryIterator();
+			}
+			return new SmallEntryIterator(0);
+		}
+
+		@Override
+		public int size() {
+			return AdaptiveLowMemoryHashMap.this.size();
+		}
+	}
+
+	/**
+	 * The keys and values of a small map interleaved, or an empty array once
+	 * the map has been promoted.
+	 */
+	transient Object[] entries = EMPTY;
+
+	/**
+	 * The number of entries of a small map.
+	 */
+	transient int size;
+
+	/**
+	 * The hashed table of a promoted map, or <code>null</code> while the map is
+	 * small.
+	 */
+	transient LowMemoryHashMap<K, V> table;
+
+	public AdaptiveLowMemoryHashMap() {
+	}
+
+	public AdaptiveLowMemoryHashMap(Map<? extends K, ? extends V> m) {
+		putAll(m);
+	}
+
+	@Override
+	public void clear() {
+		entries = EMPTY;
+		size = 0;
+		table = null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (table != null) {
+			return table.containsKey(key);
+		}
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new EntrySet();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		if (table != null) {
+			return table.get(key);
+		}
+		int index = indexOf(key);
+		return (index < 0) ? null : (V) entries[index + 1];
+	}
+
+	/**
+	 * Returns whether the map is currently held in a hashed table rather than
+	 * scanned linearly.
+	 */
+	public boolean isPromoted() {
+		return table != null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V put(K key, V value) {
+		if (table != null) {
+			return table.put(key, value);
+		}
+		int index = indexOf(key);
+		if (index >= 0) {
+			V previous = (V) entries[index + 1];
+			entries[index + 1] = value;
+			return previous;
+		}
+		if (size == SMALL_MAP_MAX_SIZE) {
+			promote();
+			return table.put(key, value);
+		}
+		index = size * 2;
+		if (index == entries.length) {
+			Object[] grown = new Object[Math.max(4, entries.length * 2)];
+			System.arraycopy(entries, 0, grown, 0, entries.length);
+			entries = grown;
+		}
+		entries[index] = LowMemoryHashMap.maskNullKey(key);
+		entries[index + 1] = value;
+		++size;
+		return null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		if (table != null) {
+			V previous = table.remove(key);
+			if (table.size() <= SMALL_MAP_MAX_SIZE / 2) {
+				demote(null);
+			}
+			return previous;
+		}
+		int index = indexOf(key);
+		if (index < 0) {
+			return null;
+		}
+		V previous = (V) entries[index + 1];
+		removeSmall(index);
+		return previous;
+	}
+
+	@Override
+	public int size() {
+		return (table != null) ? table.size() : size;
+	}
+
+	/**
+	 * Returns the index in the interleaved array of a key of a small map, or
+	 * -1 if the key is not present.
+	 */
+	private int indexOf(Object key) {
+		Object masked = LowMemoryHashMap.maskNullKey(key);
+		Object[] entries = this.entries;
+		for (int i = 0, end = size * 2; i < end; i += 2) {
+			Object existing = entries[i];
+			if (existing == masked || masked.equals(existing)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes the entry at an index of a small map by moving the last entry
+	 * into its place.
+	 */
+	private void removeSmall(int index) {
+		int last = --size * 2;
+		entries[index] = entries[last];
+		entries[index + 1] = entries[last + 1];
+		entries[last] = null;
+		entries[last + 1] = null;
+		if (size == 0) {
+			entries = EMPTY;
+		}
+	}
+
+	/**
+	 * Moves the entries of a small map into a hashed table.
+	 */
+	@SuppressWarnings("unchecked")
+	private void promote() {
+		LowMemoryHashMap<K, V> promoted = new LowMemoryHashMap<K, V>(size * 2,
+				LowMemoryHashMap.DEFAULT_LOAD_FACTOR, false);
+		for (int i = 0; i < size * 2; i += 2) {
+			promoted.put((K) LowMemoryHashMap.unmaskNullKey(entries[i]), (V) entries[i + 1]);
+		}
+		table = promoted;
+		entries = EMPTY;
+		size = 0;
+	}
+
+	/**
+	 * Moves the entries of a hashed table into the interleaved array. The
+	 * entries an iterator over the table has yet to return are placed last, so
+	 * that iteration can continue over the array.
+	 * @param unvisited	An iterator over the table, or <code>null</code>
+	 * @return			The index in the array of the first entry not yet returned
+	 */
+	private int demote(Iterator<Entry<K, V>> unvisited) {
+		Object[] pending = new Object[SMALL_MAP_MAX_SIZE];
+		int pendingCount = 0;
+		if (unvisited != null) {
+			while (unvisited.hasNext()) {
+				Entry<K, V> entry = unvisited.next();
+				pending[pendingCount++] = LowMemoryHashMap.maskNullKey(entry.getKey());
+				pending[pendingCount++] = entry.getValue();
+			}
+		}
+		Object[] small = new Object[SMALL_MAP_MAX_SIZE];
+		int count = 0;
+		LowMemoryHashMap<K, V>.MapCursor cursor = table.cursor();
+		while (cursor.advance()) {
+			Object masked = LowMemoryHashMap.maskNullKey(cursor.key());
+			if (!containsMaskedKey(pending, pendingCount, masked)) {
+				small[count++] = masked;
+				small[count++] = cursor.value();
+			}
+		}
+		int visited = count;
+		System.arraycopy(pending, 0, small, count, pendingCount);
+		count += pendingCount;
+		table = null;
+		entries = (count == 0) ? EMPTY : small;
+		size = count / 2;
+		return visited;
+	}
+
+	private static boolean containsMaskedKey(Object[] interleaved, int length, Object masked) {
+		for (int i = 0; i < length; i += 2) {
+			Object existing = interleaved[i];
+			if (existing == masked || masked.equals(existing)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		entries = EMPTY;
+		int entryCount = in.readInt();
+		for (int i = 0; i < entryCount; i++) {
+			@SuppressWarnings("unchecked")
+			K key = (K) in.readObject();
+			@SuppressWarnings("unchecked")
+			V value = (V) in.readObject();
+			put(key, value);
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size());
+		for (Entry<K, V> entry : entrySet()) {
+			out.writeObject(entry.getKey());
+			out.writeObject(entry.getValue());
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package org.scale7.collections;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Standard implementations of {@link IBinaryCodec}. Apart from those returned by
+ * {@link #nullable(IBinaryCodec)}, codecs do not accept <code>null</code> values.
+ */
+public final class BinaryCodecs {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Strings as a variable length byte count followed by their UTF-8 encoding.
+	 */
+	public static final IBinaryCodec<String> STRING = new IBinaryCodec<String>() {
+		public void write(String value, DataOutput out) throws IOException {
+			byte[] bytes = value.getBytes(UTF8);
+			writeVarInt(out, bytes.length);
+			out.write(bytes);
+		}
+
+		public String read(DataInput in) throws IOException {
+			byte[] bytes = new byte[readLength(in)];
+			in.readFully(bytes);
+			return new String(bytes, UTF8);
+		}
+	};
+
+	/**
+	 * Byte arrays as a variable length byte count followed by their contents.
+	 */
+	public static final IBinaryCodec<byte[]> BYTE_ARRAY = new IBinaryCodec<byte[]>() {
+		public void write(byte[] value, DataOutput out) throws IOException {
+			writeVarInt(out, value.length);
+			out.write(value);
+		}
+
+		public byte[] read(DataInput in) throws IOException {
+			byte[] bytes = new byte[readLength(in)];
+			in.readFully(bytes);
+			return bytes;
+		}
+	};
+
+	public static final IBinaryCodec<Boolean> BOOLEAN = new IBinaryCodec<Boolean>() {
+		public void write(Boolean value, DataOutput out) throws IOException {
+			out.writeBoolean(value);
+		}
+
+		public Boolean read(DataInput in) throws IOException {
+			return in.readBoolean();
+		}
+	};
+
+	public static final IBinaryCodec<Byte> BYTE = new IBinaryCodec<Byte>() {
+		public void write(Byte value, DataOutput out) throws IOException {
+			out.writeByte(value);
+		}
+
+		public Byte read(DataInput in) throws IOException {
+			return in.readByte();
+		}
+	};
+
+	public static final IBinaryCodec<Character> CHARACTER = new IBinaryCodec<Character>() {
+		public void write(Character value, DataOutput out) throws IOException {
+			out.writeChar(value);
+		}
+
+		public Character read(DataInput in) throws IOException {
+			return in.readChar();
+		}
+	};
+
+	public static final IBinaryCodec<Short> SHORT = new IBinaryCodec<Short>() {
+		public void write(Short value, DataOutput out) throws IOException {
+			out.writeShort(value);
+		}
+
+		public Short read(DataInput in) throws IOException {
+			return in.readShort();
+		}
+	};
+
+	/**
+	 * Integers in a fixed four bytes.
+	 */
+	public static final IBinaryCodec<Integer> INTEGER = new IBinaryCodec<Integer>() {
+		public void write(Integer value, DataOutput out) throws IOException {
+			out.writeInt(value);
+		}
+
+		public Integer read(DataInput in) throws IOException {
+			return in.readInt();
+		}
+	};
+
+	/**
+	 * Integers in one to five bytes, using fewer bytes for values of smaller magnitude.
+	 */
+	public static final IBinaryCodec<Integer> VAR_INTEGER = new IBinaryCodec<Integer>() {
+		public void write(Integer value, DataOutput out) throws IOException {
+			int v = value;
+			writeVarInt(out, (v << 1) ^ (v >> 31));
+		}
+
+		public Integer read(DataInput in) throws IOException {
+			int v = readVarInt(in);
+			return (v >>> 1) ^ -(v & 1);
+		}
+	};
+
+	/**
+	 * Longs in a fixed eight bytes.
+	 */
+	public static final IBinaryCodec<Long> LONG = new IBinaryCodec<Long>() {
+		public void write(Long value, DataOutput out) throws IOException {
+			out.writeLong(value);
+		}
+
+		public Long read(DataInput in) throws IOException {
+			return in.readLong();
+		}
+	};
+
+	public static final IBinaryCodec<Float> FLOAT = new IBinaryCodec<Float>() {
+		public void write(Float value, DataOutput out) throws IOException {
+			out.writeFloat(value);
+		}
+
+		public Float read(DataInput in) throws IOException {
+			return in.readFloat();
+		}
+	};
+
+	public static final IBinaryCodec<Double> DOUBLE = new IBinaryCodec<Double>() {
+		public void write(Double value, DataOutput out) throws IOException {
+			out.writeDouble(value);
+		}
+
+		public Double read(DataInput in) throws IOException {
+			return in.readDouble();
+		}
+	};
+
+	private BinaryCodecs() {
+	}
+
+	/**
+	 * Wrap a codec so that it accepts <code>null</code>, at the cost of a leading byte per value.
+	 * @param codec		The codec used for non-null values
+	 * @return			The wrapping codec
+	 */
+	public static <T> IBinaryCodec<T> nullable(final IBinaryCodec<T> codec) {
+		return new IBinaryCodec<T>() {
+			public void write(T value, DataOutput out) throws IOException {
+				out.writeBoolean(value != null);
+				if (value != null)
+					codec.write(value, out);
+			}
+
+			public T read(DataInput in) throws IOException {
+				return in.readBoolean() ? codec.read(in) : null;
+			}
+		};
+	}
+
+	/**
+	 * Write a non-negative integer in one to five bytes, seven bits at a time.
+	 */
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Read an integer written by {@link #writeVarInt(DataOutput, int)}.
+	 */
+	public static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+
+	/**
+	 * Read a byte count written by {@link #writeVarInt(DataOutput, int)},
+	 * rejecting a negative count as a corrupt stream.
+	 */
+	private static int readLength(DataInput in) throws IOException {
+		int length = readVarInt(in);
+		if (length < 0)
+			throw new IOException("Negative length " + length);
+		return length;
+	}
+}
@@ -0,0 +1,57 @@
+package org.scale7.collections;
+
+import java.util.BitSet;
+
+/**
+ * A bit array over a <code>BitSet</code>, as used by Bloom filters
+ * constructed with <code>int</code> sizes, which expose their bits as a
+ * <code>BitSet</code>.
+ */
+final class BitSetBitArray implements IBitArray {
+
+	final BitSet bitset;
+	private final int bitSize;
+
+	BitSetBitArray(BitSet bitset, int bitSize) {
+		this.bitset = bitset;
+		this.bitSize = bitSize;
+	}
+
+	public long bitSize() {
+		return bitSize;
+	}
+
+	public long cardinality() {
+		return bitset.cardinality();
+	}
+
+	public void clear(long index) {
+		bitset.clear((int) index);
+	}
+
+	public void clearAll() {
+		bitset.clear();
+	}
+
+	public boolean get(long index) {
+		return bitset.get((int) index);
+	}
+
+	public long getWord(long wordIndex) {
+		int from = (int) (wordIndex << 6);
+		long to = (long) from + 64;
+		long word = 0;
+		for (int i = bitset.nextSetBit(from); i >= 0 && i < to; i = bitset.nextSetBit(i + 1)) {
+			word |= 1L << i;
+		}
+		return word;
+	}
+
+	public boolean set(long index) {
+		if (bitset.get((int) index)) {
+			return false;
+		}
+		bitset.set((int) index);
+		return true;
+	}
+}
@@ -0,0 +1,204 @@
+package org.scale7.collections;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter in which all k bits of an element lie within one small
+ * block, so that adding or testing an element touches one cache line rather
+ * than k of them, as described by Putze, Sanders and Singler in "Cache-,
+ * Hash- and Space-Efficient Bloom Filters". The first half of an element's
+ * 128-bit hash selects the block and the second half seeds a generator whose
+ * successive outputs select the k bits within it, since double hashing modulo
+ * a block this small would yield too few distinct patterns of bits. Blocks are
+ * {@link #DEFAULT_BLOCK_BYTES} long by default, the size of a cache line on
+ * most processors, though as the JVM aligns arrays only to 8 bytes a block
+ * may straddle two lines.
+ * <p>
+ * Because elements are not spread evenly between blocks, some blocks are
+ * fuller than others, which makes false positives slightly more likely than
+ * in a {@link BloomFilter} of the same size. The probability reported by
+ * {@link #getFalsePositiveProbability(double)} accounts for this, and
+ * approaches that of a plain filter as the blocks grow larger.
+ *
+ * @param <E>
+ *            the element type
+ */
+@SuppressWarnings("serial")
+public class BlockedBloomFilter<E> implements Serializable {
+
+	public static final int DEFAULT_BLOCK_BYTES = 64;
+
+	/**
+	 * The multiplier and increment of the linear congruential generator, seeded
+	 * with the second half of the hash, whose top bits give the bits within a
+	 * block.
+	 */
+	private static final long LCG_MULTIPLIER = 6364136223846793005L;
+	private static final long LCG_INCREMENT = 1442695040888963407L;
+
+	private final long[] words;
+	private final int blockWordShift; // log2 of the number of words per block
+	private final int blockBitMask;
+	private final int blockBitShift; // 64 - log2 of the number of bits per block
+	private final int blockCount;
+	private final long expectedElements;
+	private final int k;
+	private final IFunnel<? super E> funnel;
+
+	private long addedElements;
+
+	/**
+	 * Constructs an empty filter with blocks of the default size.
+	 * @param bitSize The number of bits in the filter, rounded up to a whole number of blocks
+	 * @param expectedElements The maximum number of elements the filter is expected to contain
+	 * @param funnel Puts the values of each element to be hashed
+	 */
+	public BlockedBloomFilter(long bitSize, long expectedElements, IFunnel<? super E> funnel) {
+		this(bitSize, expectedElements, funnel, DEFAULT_BLOCK_BYTES);
+	}
+
+	/**
+	 * Constructs an empty filter.
+	 * @param bitSize The number of bits in the filter, rounded up to a whole number of blocks
+	 * @param expectedElements The maximum number of elements the filter is expected to contain
+	 * @param funnel Puts the values of each element to be hashed
+	 * @param blockBytes The size of each block, a power of two from 8 to 4096
+	 */
+	public BlockedBloomFilter(long bitSize, long expectedElements, IFunnel<? super E> funnel, int blockBytes) {
+		if (blockBytes < 8 || blockBytes > 4096 || Integer.bitCount(blockBytes) != 1) {
+			throw new IllegalArgumentException("blockBytes must be a power of two from 8 to 4096");
+		}
+		if (funnel == null) {
+			throw new NullPointerException("funnel");
+		}
+		int blockBits = blockBytes * 8;
+		long blockCount = (bitSize + blockBits - 1) / blockBits;
+		if (bitSize <= 0 || blockCount * (blockBytes / 8) > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("bitSize must be positive and fit 2^31 words");
+		}
+		this.blockCount = (int) blockCount;
+		this.blockWordShift = Integer.numberOfTrailingZeros(blockBytes / 8);
+		this.blockBitMask = blockBits - 1;
+		this.blockBitShift = 64 - Integer.numberOfTrailingZeros(blockBits);
+		this.words = new long[this.blockCount << blockWordShift];
+		this.expectedElements = expectedElements;
+		this.k = BloomHashing.optimalK(bitSize(), expectedElements);
+		this.funnel = funnel;
+	}
+
+	/**
+	 * Adds an element to the filter.
+	 * @param element The element
+	 */
+	public void add(E element) {
+		Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+		int base = blockOf(h.h1) << blockWordShift;
+		long x = h.h2;
+		for (int i = 0; i < k; i++) {
+			int bit = (int) (x >>> blockBitShift);
+			words[base + (bit >>> 6)] |= 1L << bit;
+			x = x * LCG_MULTIPLIER + LCG_INCREMENT;
+		}
+		++addedElements;
+	}
+
+	/**
+	 * Returns the number of bits in the filter.
+	 */
+	public long bitSize() {
+		return (long) words.length << 6;
+	}
+
+	/**
+	 * Clears every bit.
+	 */
+	public void clear() {
+		Arrays.fill(words, 0L);
+		addedElements = 0;
+	}
+
+	/**
+	 * Returns whether an element might have been added to the filter.
+	 * @param element The element
+	 * @return <code>false</code> if the element has certainly not been added
+	 */
+	public boolean contains(E element) {
+		Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+		int base = blockOf(h.h1) << blockWordShift;
+		long x = h.h2;
+		for (int i = 0; i < k; i++) {
+			int bit = (int) (x >>> blockBitShift);
+			if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+			x = x * LCG_MULTIPLIER + LCG_INCREMENT;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of elements added since the filter was constructed or
+	 * cleared.
+	 */
+	public long elementCount() {
+		return addedElements;
+	}
+
+	/**
+	 * Returns the probability of a false positive once the expected number of
+	 * elements have been added.
+	 */
+	public double expectedFalsePositiveProbability() {
+		return getFalsePositiveProbability(expectedElements);
+	}
+
+	public int getBlockBytes() {
+		return (blockBitMask + 1) / 8;
+	}
+
+	/**
+	 * Returns the probability of a false positive given the specified number
+	 * of added elements. The number of elements in the block an element
+	 * hashes to is Poisson distributed, so this is the probability of a false
+	 * positive in a Bloom filter the size of a block, weighted by the
+	 * probability of the block holding each number of elements.
+	 *
+	 * @param numberOfElements The number of added elements
+	 */
+	public double getFalsePositiveProbability(double numberOfElements) {
+		int blockBits = blockBitMask + 1;
+		double lambda = numberOfElements / blockCount;
+		if (lambda == 0) {
+			return 0;
+		}
+		// sum the terms until well past the mean, where they become negligible
+		int last = (int) Math.ceil(lambda + 12 * Math.sqrt(lambda) + 12);
+		double logLambda = Math.log(lambda);
+		double logPoisson = -lambda;
+		double probability = 0;
+		for (int i = 0; i <= last; i++) {
+			if (i > 0) {
+				logPoisson += logLambda - Math.log(i);
+			}
+			probability += Math.exp(logPoisson) * BloomHashing.falsePositiveProbability(k, i, blockBits);
+		}
+		return Math.min(1, probability);
+	}
+
+	/**
+	 * Returns the probability of a false positive given the number of elements
+	 * added so far.
+	 */
+	public double getFalsePositiveProbability() {
+		return getFalsePositiveProbability(addedElements);
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	private int blockOf(long h1) {
+		return (int) ((h1 & Long.MAX_VALUE) % blockCount);
+	}
+}
@@ -15,6 +15,9 @@ package org.scale7.collections;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
@@ -32,16 +35,38 @@ import java.util.Collection;
  * were proposed in comments in his blog:
  * http://blog.locut.us/2008/01/12/a-decent-stand-alone-java-bloom-filter-implementation/
  *
+ * Filters constructed with an {@link IFunnel} hash each element once with
+ * {@link BloomHashScheme#MURMUR3_128}, putting its values through the funnel
+ * rather than converting it to a string, and derive all k bits from that one
+ * hash. Filters constructed without one use {@link BloomHashScheme#MD5} as they
+ * always have, so that existing filter data remains readable.
+ *
+ * Filters constructed with <code>int</code> sizes keep their bits in a
+ * {@link BitSet}, which limits them to 2^31 bits. Filters constructed with
+ * <code>long</code> sizes or an {@link IBitArray} can be far larger, keeping
+ * their bits in a {@link LongBitArray} by default or off the heap in a
+ * {@link BufferBitArray}.
+ *
+ * A filter may be queried by several threads at once, provided none adds to
+ * it meanwhile; {@link ConcurrentBloomFilter} may also be added to.
+ *
  * @param <E> Object type that is to be inserted into the Bloom filter, e.g. String or Integer.
  * @author Magnus Skjegstad <magnus@skjegstad.com>
  */
-@SuppressWarnings("serial")
 public class BloomFilter<E> implements Serializable {
-    private BitSet bitset;
-    private int bitSetSize;
-    private int expectedNumberOfFilterElements; // expected (maximum) number of elements to be added
-    private int numberOfAddedElements; // number of elements actually added to the Bloom filter
+    private static final long serialVersionUID = -8707437357807479270L;
+
+    private BitSet bitset; // null if the bits are not held in a BitSet
+    private int bitSetSize; // these three are copies of the long fields below as of serialization,
+    private int expectedNumberOfFilterElements; // kept so that the serialized form remains readable
+    private int numberOfAddedElements; // by versions that predate the long fields
     private int k;
+    private BloomHashScheme hashScheme; // null in filters serialized before the scheme was recorded
+    private IFunnel<? super E> funnel; // null unless the scheme is MURMUR3_128
+    private long bitSize; // zero in filters serialized before sizes were long
+    private long expectedElements; // expected (maximum) number of elements to be added
+    private long addedElements; // number of elements actually added to the Bloom filter
+    private transient IBitArray bits; // wraps bitset if there is one, else serialized as its words
     static Charset charset = Charset.forName("UTF-8"); // encoding used for storing hash values as strings
 
     static String hashName = "MD5"; // MD5 gives good enough accuracy in most circumstances. Change to SHA1 if it's needed
@@ -63,12 +88,32 @@ public class BloomFilter<E> implements Serializable {
      * @param expectedNumberOfFilterElements defines the maximum number of elements the filter is expected to contain.
      */
     public BloomFilter(int bitSetSize, int expectedNumberOfFilterElements) {
-        this.expectedNumberOfFilterElements = expectedNumberOfFilterElements;
+        this.expectedElements = expectedNumberOfFilterElements;
         this.k = (int) Math.round((bitSetSize / expectedNumberOfFilterElements) *
                 Math.log(2.0));
         bitset = new BitSet(bitSetSize);
-        this.bitSetSize = bitSetSize;
-        numberOfAddedElements = 0;
+        this.bitSize = bitSetSize;
+        bits = new BitSetBitArray(bitset, bitSetSize);
+        addedElements = 0;
+        hashScheme = BloomHashScheme.MD5;
+    }
+
+    /**
+     * Constructs an empty Bloom filter that hashes its elements with
+     * {@link BloomHashScheme#MURMUR3_128}. Unlike the constructor without a
+     * funnel, k is rounded from the exact ratio of bits to elements.
+     *
+     * @param bitSetSize defines how many bits should be used for the filter.
+     * @param expectedNumberOfFilterElements defines the maximum number of elements the filter is expected to contain.
+     * @param funnel puts the values of each element to be hashed.
+     */
+    public BloomFilter(int bitSetSize, int expectedNumberOfFilterElements, IFunnel<? super E> funnel) {
+        this(bitSetSize, expectedNumberOfFilterElements);
+        if (funnel == null)
+            throw new NullPointerException("funnel");
+        this.k = BloomHashing.optimalK(bitSetSize, expectedNumberOfFilterElements);
+        this.hashScheme = BloomHashScheme.MURMUR3_128;
+        this.funnel = funnel;
     }
 
     /**
@@ -82,7 +127,86 @@ public class BloomFilter<E> implements Serializable {
     public BloomFilter(int bitSetSize, int expectedNumberOfFilterElements, int actualNumberOfFilterElements, BitSet filterData) {
         this(bitSetSize, expectedNumberOfFilterElements);
         this.bitset = filterData;
-        this.numberOfAddedElements = actualNumberOfFilterElements;
+        this.bits = new BitSetBitArray(filterData, bitSetSize);
+        this.addedElements = actualNumberOfFilterElements;
+    }
+
+    /**
+     * Construct a new Bloom filter based on existing Bloom filter data that was
+     * hashed with {@link BloomHashScheme#MURMUR3_128}.
+     *
+     * @param bitSetSize defines how many bits should be used for the filter.
+     * @param expectedNumberOfFilterElements defines the maximum number of elements the filter is expected to contain.
+     * @param actualNumberOfFilterElements specifies how many elements have been inserted into the <code>filterData</code> BitSet.
+     * @param filterData a BitSet representing an existing Bloom filter.
+     * @param funnel the funnel with which the existing data was hashed.
+     */
+    public BloomFilter(int bitSetSize, int expectedNumberOfFilterElements, int actualNumberOfFilterElements, BitSet filterData, IFunnel<? super E> funnel) {
+        this(bitSetSize, expectedNumberOfFilterElements, funnel);
+        this.bitset = filterData;
+        this.bits = new BitSetBitArray(filterData, bitSetSize);
+        this.addedElements = actualNumberOfFilterElements;
+    }
+
+    /**
+     * Constructs an empty Bloom filter of any size that hashes its elements
+     * with {@link BloomHashScheme#MURMUR3_128}, keeping its bits in a
+     * {@link LongBitArray}.
+     *
+     * @param bitSize defines how many bits should be used for the filter.
+     * @param expectedNumberOfFilterElements defines the maximum number of elements the filter is expected to contain.
+     * @param funnel puts the values of each element to be hashed.
+     */
+    public BloomFilter(long bitSize, long expectedNumberOfFilterElements, IFunnel<? super E> funnel) {
+        this(new LongBitArray(bitSize), expectedNumberOfFilterElements, 0, funnel);
+    }
+
+    /**
+     * Constructs a Bloom filter that hashes its elements with
+     * {@link BloomHashScheme#MURMUR3_128} and keeps its bits in the specified
+     * array, whose existing bits are kept. A filter over any array can be
+     * serialized, and is read back with its bits in a {@link LongBitArray}.
+     *
+     * @param bits the array in which to keep the bits of the filter.
+     * @param expectedNumberOfFilterElements defines the maximum number of elements the filter is expected to contain.
+     * @param actualNumberOfFilterElements specifies how many elements have been inserted into <code>bits</code>.
+     * @param funnel puts the values of each element to be hashed.
+     */
+    public BloomFilter(IBitArray bits, long expectedNumberOfFilterElements, long actualNumberOfFilterElements, IFunnel<? super E> funnel) {
+        this(bits, expectedNumberOfFilterElements, actualNumberOfFilterElements,
+                BloomHashing.optimalK(bits.bitSize(), expectedNumberOfFilterElements), BloomHashScheme.MURMUR3_128, funnel);
+    }
+
+    /**
+     * Constructs a Bloom filter over existing data with every property
+     * specified, as when it was read from a file.
+     */
+    BloomFilter(IBitArray bits, long expectedNumberOfFilterElements, long actualNumberOfFilterElements, int k, BloomHashScheme hashScheme, IFunnel<? super E> funnel) {
+        if (hashScheme == BloomHashScheme.MURMUR3_128 && funnel == null)
+            throw new NullPointerException("funnel");
+        this.bits = bits;
+        this.bitSize = bits.bitSize();
+        this.expectedElements = expectedNumberOfFilterElements;
+        this.addedElements = actualNumberOfFilterElements;
+        this.k = k;
+        this.hashScheme = hashScheme;
+        this.funnel = (hashScheme == BloomHashScheme.MURMUR3_128) ? funnel : null;
+    }
+
+    /**
+     * Creates an empty Bloom filter with the fewest bits that keep the
+     * probability of false positives below the specified value once the
+     * expected number of elements have been added, and the optimal k for that
+     * size. Elements are hashed with {@link BloomHashScheme#MURMUR3_128}.
+     *
+     * @param funnel puts the values of each element to be hashed.
+     * @param expectedNumberOfFilterElements defines the maximum number of elements the filter is expected to contain.
+     * @param falsePositiveProbability the desired probability of false positives, between 0 and 1.
+     * @return an empty Bloom filter.
+     */
+    public static <E> BloomFilter<E> create(IFunnel<? super E> funnel, long expectedNumberOfFilterElements, double falsePositiveProbability) {
+        return new BloomFilter<E>(BloomHashing.optimalBitSize(expectedNumberOfFilterElements, falsePositiveProbability),
+                expectedNumberOfFilterElements, funnel);
     }
 
     /**
@@ -145,7 +269,7 @@ public class BloomFilter<E> implements Serializable {
             return false;
         }
         final BloomFilter<E> other = (BloomFilter<E>) obj;        
-        if (this.expectedNumberOfFilterElements != other.expectedNumberOfFilterElements) {
+        if (this.expectedElements != other.expectedElements) {
             System.err.println("exp");
             return false;
         }
@@ -153,14 +277,21 @@ public class BloomFilter<E> implements Serializable {
             System.err.println("k");
             return false;
         }
-        if (this.bitSetSize != other.bitSetSize) {
+        if (this.bitSize != other.bitSize) {
             System.err.println("size");
             return false;
         }
-        if (this.bitset != other.bitset && (this.bitset == null || !this.bitset.equals(other.bitset))) {
-            System.err.println("bitset" + this.bitset.equals(other.bitset) +
-                   "\n" + other.bitset.toString() +
-                   "\n" + this.bitset.toString());
+        if (this.getHashScheme() != other.getHashScheme()) {
+            return false;
+        }
+        if (this.bitset != null && other.bitset != null) {
+            if (this.bitset != other.bitset && !this.bitset.equals(other.bitset)) {
+                System.err.println("bitset" + this.bitset.equals(other.bitset) +
+                       "\n" + other.bitset.toString() +
+                       "\n" + this.bitset.toString());
+                return false;
+            }
+        } else if (!BloomHashing.equalBits(this.bits, other.bits)) {
             return false;
         }
         return true;
@@ -173,9 +304,9 @@ public class BloomFilter<E> implements Serializable {
     @Override
     public int hashCode() {
         int hash = 7;
-        hash = 61 * hash + (this.bitset != null ? this.bitset.hashCode() : 0);
-        hash = 61 * hash + this.expectedNumberOfFilterElements;
-        hash = 61 * hash + this.bitSetSize;
+        hash = 61 * hash + (this.bitset != null ? this.bitset.hashCode() : BloomHashing.hashBits(this.bits));
+        hash = 61 * hash + (int) (this.expectedElements ^ (this.expectedElements >>> 32));
+        hash = 61 * hash + (int) (this.bitSize ^ (this.bitSize >>> 32));
         hash = 61 * hash + this.k;
         return hash;
     }
@@ -193,7 +324,7 @@ public class BloomFilter<E> implements Serializable {
      * @return expected probability of false positives.
      */
     public double expectedFalsePositiveProbability() {
-        return getFalsePositiveProbability(expectedNumberOfFilterElements);
+        return getFalsePositiveProbability(expectedElements);
     }
 
     /**
@@ -206,7 +337,7 @@ public class BloomFilter<E> implements Serializable {
     public double getFalsePositiveProbability(double numberOfElements) {
         // (1 - e^(-k * n / m)) ^ k
         return Math.pow((1 - Math.exp(-k * (double) numberOfElements
-                        / (double) bitSetSize)), k);
+                        / (double) bitSize)), k);
 
     }
 
@@ -217,7 +348,7 @@ public class BloomFilter<E> implements Serializable {
      * @return probability of false positives.
      */
     public double getFalsePositiveProbability() {
-        return getFalsePositiveProbability(numberOfAddedElements);
+        return getFalsePositiveProbability(addedElements);
     }
 
 
@@ -233,29 +364,44 @@ public class BloomFilter<E> implements Serializable {
         return k;
     }
 
+    /**
+     * Returns the scheme with which elements are hashed.
+     *
+     * @return the hash scheme.
+     */
+    public BloomHashScheme getHashScheme() {
+        return hashScheme;
+    }
+
     /**
      * Sets all bits to false in the Bloom filter.
      */
     public void clear() {
-        bitset.clear();
-        numberOfAddedElements = 0;
+        bits.clearAll();
+        addedElements = 0;
     }
 
     /**
-     * Adds an object to the Bloom filter. The output from the object's
-     * toString() method is used as input to the hash functions.
+     * Adds an object to the Bloom filter. The values put by the funnel, or
+     * without one the output from the object's toString() method, are used as
+     * input to the hash functions.
      *
      * @param element is an element to register in the Bloom filter.
      */
     public void add(E element) {
+       if (hashScheme == BloomHashScheme.MURMUR3_128) {
+           Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+           addHash(h.h1, h.h2);
+           return;
+       }
+       addedElements ++;
        long hash;
        String valString = element.toString();
        for (int x = 0; x < k; x++) {
            hash = createHash(valString + Integer.toString(x));
-           hash = hash % (long)bitSetSize;
-           bitset.set(Math.abs((int)hash), true);
+           hash = hash % bitSize;
+           bits.set(Math.abs((int)hash));
        }
-       numberOfAddedElements ++;
     }
 
     /**
@@ -276,12 +422,16 @@ public class BloomFilter<E> implements Serializable {
      * @return true if the element could have been inserted into the Bloom filter.
      */
     public boolean contains(E element) {
+       if (hashScheme == BloomHashScheme.MURMUR3_128) {
+           Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+           return containsHash(h.h1, h.h2);
+       }
        long hash;
        String valString = element.toString();
        for (int x = 0; x < k; x++) {
            hash = createHash(valString + Integer.toString(x));
-           hash = hash % (long)bitSetSize;
-           if (!bitset.get(Math.abs((int)hash)))
+           hash = hash % bitSize;
+           if (!bits.get(Math.abs((int)hash)))
                return false;
        }
        return true;
@@ -307,7 +457,16 @@ public class BloomFilter<E> implements Serializable {
      * @return true if the bit is set, false if it is not.
      */
     public boolean getBit(int bit) {
-        return bitset.get(bit);
+        return bits.get(bit);
+    }
+
+    /**
+     * Read a single bit from the Bloom filter.
+     * @param bit the bit to read.
+     * @return true if the bit is set, false if it is not.
+     */
+    public boolean getBit(long bit) {
+        return bits.get(bit);
     }
 
     /**
@@ -316,35 +475,78 @@ public class BloomFilter<E> implements Serializable {
      * @param value If true, the bit is set. If false, the bit is cleared.
      */
     public void setBit(int bit, boolean value) {
-        bitset.set(bit, value);
+        setBit((long) bit, value);
+    }
+
+    /**
+     * Set a single bit in the Bloom filter.
+     * @param bit is the bit to set.
+     * @param value If true, the bit is set. If false, the bit is cleared.
+     */
+    public void setBit(long bit, boolean value) {
+        if (value)
+            bits.set(bit);
+        else
+            bits.clear(bit);
     }
 
     /**
      * Return the bit set used to store the Bloom filter.
-     * @return bit set representing the Bloom filter.
+     * @return bit set representing the Bloom filter, or null if the filter was
+     * not constructed with <code>int</code> sizes.
      */
     public BitSet getBitSet() {
         return bitset;
     }
 
+    /**
+     * Return the bit array used to store the Bloom filter, which for filters
+     * constructed with <code>int</code> sizes is a view of the bit set.
+     * @return bit array representing the Bloom filter.
+     */
+    public IBitArray getBitArray() {
+        return bits;
+    }
+
     /**
      * Returns the number of bits in the Bloom filter. Use count() to retrieve
      * the number of inserted elements.
      *
-     * @return the size of the bitset used by the Bloom filter.
+     * @return the size of the bitset used by the Bloom filter, or Integer.MAX_VALUE
+     * if it has more bits than that.
      */
     public int size() {
-        return this.bitSetSize;
+        return (int) Math.min(bitSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of bits in the Bloom filter.
+     *
+     * @return the size of the bit array used by the Bloom filter.
+     */
+    public long bitSize() {
+        return bitSize;
     }
 
     /**
      * Returns the number of elements added to the Bloom filter after it
      * was constructed or after clear() was called.
      *
-     * @return number of elements added to the Bloom filter.
+     * @return number of elements added to the Bloom filter, or Integer.MAX_VALUE
+     * if more have been added than that.
      */
     public int count() {
-        return this.numberOfAddedElements;
+        return (int) Math.min(addedElements, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of elements added to the Bloom filter after it
+     * was constructed or after clear() was called.
+     *
+     * @return number of elements added to the Bloom filter.
+     */
+    public long elementCount() {
+        return addedElements;
     }
 
     /**
@@ -354,6 +556,69 @@ public class BloomFilter<E> implements Serializable {
      * @return expected number of elements.
      */
     public int getExpectedNumberOfElements() {
-        return expectedNumberOfFilterElements;
+        return (int) Math.min(expectedElements, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the expected number of elements to be inserted into the filter.
+     * This value is the same value as the one passed to the constructor.
+     *
+     * @return expected number of elements.
+     */
+    public long expectedElementCount() {
+        return expectedElements;
+    }
+
+    /**
+     * Adds an element by its {@link BloomHashScheme#MURMUR3_128} hash, so that
+     * filters hashing in the same way can share one hash of the element.
+     */
+    void addHash(long h1, long h2) {
+        for (int x = 0; x < k; x++)
+            bits.set(BloomHashing.index(h1, h2, x, bitSize));
+        addedElements ++;
+    }
+
+    /**
+     * Tests an element by its {@link BloomHashScheme#MURMUR3_128} hash.
+     */
+    boolean containsHash(long h1, long h2) {
+        for (int x = 0; x < k; x++)
+            if (!bits.get(BloomHashing.index(h1, h2, x, bitSize)))
+                return false;
+        return true;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (hashScheme == null)
+            hashScheme = BloomHashScheme.MD5;
+        if (bitSize == 0) {
+            bitSize = bitSetSize;
+            expectedElements = expectedNumberOfFilterElements;
+            addedElements = numberOfAddedElements;
+        }
+        if (bitset != null) {
+            bits = new BitSetBitArray(bitset, bitSetSize);
+        } else {
+            LongBitArray array = new LongBitArray(bitSize);
+            long words = (bitSize + 63) >>> 6;
+            for (long i = 0; i < words; i++)
+                array.setWord(i, in.readLong());
+            bits = array;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        bitSetSize = (int) Math.min(bitSize, Integer.MAX_VALUE);
+        expectedNumberOfFilterElements = (int) Math.min(expectedElements, Integer.MAX_VALUE);
+        numberOfAddedElements = (int) Math.min(addedElements, Integer.MAX_VALUE);
+        out.defaultWriteObject();
+        if (bitset == null) {
+            // written word by word, since the array may be off the heap
+            long words = (bitSize + 63) >>> 6;
+            for (long i = 0; i < words; i++)
+                out.writeLong(bits.getWord(i));
+        }
     }
-}
\ No newline at end of file
+}
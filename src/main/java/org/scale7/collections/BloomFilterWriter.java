@@ -0,0 +1,109 @@
+package org.scale7.collections;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes Bloom filters to files that {@link MappedBloomFilter} can query in
+ * place. A file holds a header of {@link #HEADER_BYTES} bytes followed
+ * immediately by the words of the filter, all little-endian:
+ *
+ * <pre>
+ * offset  size  field
+ *      0     4  magic number, {@link #MAGIC}
+ *      4     4  format version, {@link #VERSION}
+ *      8     4  hash scheme: 0 for MD5, 1 for MURMUR3_128
+ *     12     4  k, the number of bits per element
+ *     16     8  the number of bits m
+ *     24     8  the number of elements added
+ *     32     8  the expected number of elements
+ *     40     8  reserved, zero
+ *     48  8 * ceil(m / 64)  the words, bit i being bit i % 64 of word i / 64
+ * </pre>
+ *
+ * The words start on an 8 byte boundary, so that they can be viewed as a
+ * <code>LongBuffer</code> of the mapped file. The funnel of the filter is not
+ * written, and must be supplied again when the file is opened.
+ */
+public final class BloomFilterWriter {
+
+	public static final int MAGIC = 0x46423753; // "S7BF" when read as bytes
+
+	public static final int VERSION = 1;
+
+	public static final int HEADER_BYTES = 48;
+
+	static final int SCHEME_MD5 = 0;
+	static final int SCHEME_MURMUR3_128 = 1;
+
+	/**
+	 * The size of the buffer through which words are written.
+	 */
+	private static final int CHUNK_BYTES = 64 * 1024;
+
+	private BloomFilterWriter() {
+	}
+
+	/**
+	 * Writes a filter to a file, replacing its contents.
+	 * @param filter The filter
+	 * @param file The file
+	 * @throws IOException
+	 */
+	public static void write(BloomFilter<?> filter, File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			write(filter, channel);
+			channel.force(false);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes a filter to a channel. The words are read from the filter's bit
+	 * array into a small reusable buffer and written from there, so no copy
+	 * of the whole filter is made.
+	 * @param filter The filter, which must not be modified while it is written
+	 * @param channel The channel
+	 * @throws IOException
+	 */
+	public static void write(BloomFilter<?> filter, WritableByteChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(filter.getHashScheme() == BloomHashScheme.MURMUR3_128 ? SCHEME_MURMUR3_128 : SCHEME_MD5);
+		header.putInt(filter.getK());
+		header.putLong(filter.bitSize());
+		header.putLong(filter.elementCount());
+		header.putLong(filter.expectedElementCount());
+		header.putLong(0);
+		header.flip();
+		writeFully(header, channel);
+
+		IBitArray bits = filter.getBitArray();
+		ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		for (long i = 0, n = BloomHashing.wordCount(filter.bitSize()); i < n; i++) {
+			if (!chunk.hasRemaining()) {
+				chunk.flip();
+				writeFully(chunk, channel);
+				chunk.clear();
+			}
+			chunk.putLong(bits.getWord(i));
+		}
+		chunk.flip();
+		writeFully(chunk, channel);
+	}
+
+	private static void writeFully(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.scale7.collections;
+
+/**
+ * The ways in which a Bloom filter can derive the bits of an element.
+ */
+public enum BloomHashScheme {
+	/**
+	 * An MD5 digest of the element's string form concatenated with the index
+	 * of each bit, as used by filters created before other schemes existed.
+	 * Costs a digest and several string allocations per bit.
+	 */
+	MD5,
+
+	/**
+	 * A single 128-bit MurmurHash3 of the element's funnelled values, from
+	 * whose two halves every bit index is derived by double hashing.
+	 */
+	MURMUR3_128
+}
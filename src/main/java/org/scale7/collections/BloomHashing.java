@@ -0,0 +1,107 @@
+package org.scale7.collections;
+
+/**
+ * Functions shared by the Bloom filters.
+ */
+final class BloomHashing {
+
+	private BloomHashing() {
+	}
+
+	/**
+	 * Hashes an element with the hasher of the calling thread, so that filters
+	 * may be queried by several threads at once. The result is valid until the
+	 * thread hashes another element.
+	 */
+	static <E> Murmur3Hash128 hash(IFunnel<? super E> funnel, E element) {
+		Murmur3Hash128 h = Murmur3Hash128.forCurrentThread();
+		h.reset();
+		funnel.funnel(element, h);
+		h.finish();
+		return h;
+	}
+
+	/**
+	 * Returns the i-th bit index of an element from the two halves of its
+	 * 128-bit hash, using the double hashing of Kirsch and Mitzenmacher, which
+	 * derives any number of indices from two hashes without a measurable loss
+	 * of accuracy.
+	 *
+	 * @param h1 The first half of the hash
+	 * @param h2 The second half of the hash
+	 * @param i The index of the bit, from zero to k - 1
+	 * @param bits The number of bits in the filter
+	 */
+	static long index(long h1, long h2, int i, long bits) {
+		return ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+	}
+
+	/**
+	 * Returns the number of hash functions that minimizes the false positive
+	 * probability of a filter of the specified size and number of elements,
+	 * which is at least one.
+	 */
+	static int optimalK(long bits, long expectedElements) {
+		return Math.max(1, (int) Math.round((double) bits / expectedElements * Math.log(2.0)));
+	}
+
+	/**
+	 * Returns the number of bits a filter needs to hold the specified number
+	 * of elements with the specified probability of false positives at the
+	 * optimal k, which is <code>-n * ln(p) / ln(2)^2</code>.
+	 */
+	static long optimalBitSize(long expectedElements, double falsePositiveProbability) {
+		if (expectedElements <= 0) {
+			throw new IllegalArgumentException("expectedElements must be positive");
+		}
+		if (!(falsePositiveProbability > 0 && falsePositiveProbability < 1)) {
+			throw new IllegalArgumentException("falsePositiveProbability must be between 0 and 1");
+		}
+		return Math.max(64, (long) Math.ceil(-expectedElements * Math.log(falsePositiveProbability)
+				/ (Math.log(2) * Math.log(2))));
+	}
+
+	/**
+	 * Returns the probability of a false positive in a filter of the specified
+	 * size holding the specified number of elements, which is
+	 * <code>(1 - e^(-k * n / m)) ^ k</code>.
+	 */
+	static double falsePositiveProbability(int k, double elements, long bits) {
+		return Math.pow(1 - Math.exp(-k * elements / bits), k);
+	}
+
+	/**
+	 * Returns the number of 64-bit words holding the specified number of bits.
+	 */
+	static long wordCount(long bitSize) {
+		return (bitSize + 63) >>> 6;
+	}
+
+	/**
+	 * Returns whether two bit arrays are the same size and have the same bits
+	 * set.
+	 */
+	static boolean equalBits(IBitArray a, IBitArray b) {
+		if (a.bitSize() != b.bitSize()) {
+			return false;
+		}
+		for (long i = 0, n = wordCount(a.bitSize()); i < n; i++) {
+			if (a.getWord(i) != b.getWord(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a hash code of the bits of an array, equal to that of a
+	 * <code>BitSet</code> with the same bits set.
+	 */
+	static int hashBits(IBitArray bits) {
+		long h = 1234;
+		for (long i = wordCount(bits.bitSize()); --i >= 0;) {
+			h ^= bits.getWord(i) * (i + 1);
+		}
+		return (int) ((h >> 32) ^ h);
+	}
+}
@@ -0,0 +1,99 @@
+package org.scale7.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A bit array held in a <code>LongBuffer</code>, which may be a view of direct
+ * or memory-mapped memory outside the heap. Word <code>i</code> of the array
+ * is element <code>i</code> of the buffer, counted from index zero regardless
+ * of the buffer's position. Not serializable, as the memory is not owned by
+ * the array.
+ */
+public class BufferBitArray implements IBitArray {
+
+	private final LongBuffer words;
+	private final long bitSize;
+
+	/**
+	 * Constructs an array over the words of a buffer, whose existing bits are
+	 * kept.
+	 * @param words The buffer holding the words
+	 * @param bitSize The number of bits in the array
+	 */
+	public BufferBitArray(LongBuffer words, long bitSize) {
+		if (bitSize <= 0 || (bitSize + 63) >>> 6 > words.capacity()) {
+			throw new IllegalArgumentException("bitSize must be positive and fit the buffer");
+		}
+		this.words = words;
+		this.bitSize = bitSize;
+	}
+
+	/**
+	 * Returns an array with every bit clear, held in newly allocated direct
+	 * memory in the native byte order.
+	 * @param bitSize The number of bits in the array, at most 2^34
+	 */
+	public static BufferBitArray allocateDirect(long bitSize) {
+		long bytes = ((bitSize + 63) >>> 6) << 3;
+		if (bitSize <= 0 || bytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("bitSize must be positive and at most 2^34");
+		}
+		LongBuffer words = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()).asLongBuffer();
+		return new BufferBitArray(words, bitSize);
+	}
+
+	public long bitSize() {
+		return bitSize;
+	}
+
+	public long cardinality() {
+		long cardinality = 0;
+		for (int i = 0, n = wordCount(); i < n; i++) {
+			cardinality += Long.bitCount(words.get(i));
+		}
+		return cardinality;
+	}
+
+	public void clear(long index) {
+		int word = (int) (index >>> 6);
+		words.put(word, words.get(word) & ~(1L << index));
+	}
+
+	public void clearAll() {
+		for (int i = 0, n = wordCount(); i < n; i++) {
+			words.put(i, 0L);
+		}
+	}
+
+	public boolean get(long index) {
+		return (words.get((int) (index >>> 6)) & (1L << index)) != 0;
+	}
+
+	public long getWord(long wordIndex) {
+		return words.get((int) wordIndex);
+	}
+
+	public boolean set(long index) {
+		int word = (int) (index >>> 6);
+		long mask = 1L << index;
+		long previous = words.get(word);
+		if ((previous & mask) != 0) {
+			return false;
+		}
+		words.put(word, previous | mask);
+		return true;
+	}
+
+	/**
+	 * Returns the buffer holding the words.
+	 */
+	public LongBuffer words() {
+		return words;
+	}
+
+	private int wordCount() {
+		return (int) ((bitSize + 63) >>> 6);
+	}
+}
@@ -0,0 +1,39 @@
+package org.scale7.collections;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream reading the bytes between the position and limit of a
+ * buffer, which may be replaced so that the stream can be reused.
+ */
+final class ByteBufferInputStream extends InputStream {
+	private ByteBuffer buffer;
+
+	void setBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		len = Math.min(len, buffer.remaining());
+		buffer.get(b, off, len);
+		return len;
+	}
+}
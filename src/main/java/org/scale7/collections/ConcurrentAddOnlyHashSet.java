@@ -0,0 +1,248 @@
+package org.scale7.collections;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A memory-efficient hash set to which many threads may add items without
+ * locking, for tracking which items have been seen. Items can be added but
+ * never removed, which allows the table to be open addressed with linear
+ * probing like {@link LowMemoryHashSet}: a thread claims an empty slot by
+ * compare-and-set, and since occupied slots never change, two threads adding
+ * the same item always contend for the same slot and exactly one of them
+ * reports the item as new.
+ * <p>
+ * When the table fills up it is replaced by one twice the size. The old table
+ * is divided into chunks, and every thread that tries to add an item during the
+ * resize claims chunks and migrates them until none are left, then waits for
+ * any chunks still being migrated by other threads before adding its item to
+ * the new table. Each migrated slot is marked so that lookups know to continue
+ * in the new table. Lookups never wait.
+ * <p>
+ * The number of items is kept in a striped counter so that threads adding
+ * different items do not contend on a single shared variable. Supports
+ * <code>null</code> items.
+ *
+ * @param <E>
+ *            the element type
+ */
+public class ConcurrentAddOnlyHashSet<E> {
+
+	/**
+	 * The number of slots migrated at a time by a thread helping a resize.
+	 */
+	static final int MIGRATION_CHUNK_SIZE = 1024;
+
+	/**
+	 * The probe length beyond which an add checks whether the table should
+	 * grow.
+	 */
+	static final int RESIZE_CHECK_PROBES = 8;
+
+	/**
+	 * Marks a slot whose contents have been migrated to the next table.
+	 */
+	private static final Object MOVED = new Object();
+
+	/**
+	 * One generation of the table.
+	 */
+	private static final class Table {
+		final AtomicReferenceArray<Object> slots;
+		final AtomicReference<Table> next = new AtomicReference<Table>();
+		final AtomicInteger chunksClaimed = new AtomicInteger();
+		final AtomicInteger chunksMigrated = new AtomicInteger();
+
+		Table(int capacity) {
+			slots = new AtomicReferenceArray<Object>(capacity);
+		}
+
+		int chunks() {
+			return (slots.length() + MIGRATION_CHUNK_SIZE - 1) / MIGRATION_CHUNK_SIZE;
+		}
+	}
+
+	private final AtomicReference<Table> table;
+
+	private final StripedCounter size = new StripedCounter();
+
+	public ConcurrentAddOnlyHashSet() {
+		this(0);
+	}
+
+	/**
+	 * Constructs a set that can hold the specified number of items without
+	 * resizing.
+	 * @param expectedSize The number of items the set is expected to hold
+	 */
+	public ConcurrentAddOnlyHashSet(int expectedSize) {
+		table = new AtomicReference<Table>(new Table(
+				LowMemoryHashing.capacityFor(expectedSize)));
+	}
+
+	/**
+	 * Adds an item to the set if it is not already present.
+	 * @param item The item
+	 * @return <code>true</code> if the item was new, <code>false</code> if it was already present
+	 */
+	public boolean addIfAbsent(E item) {
+		Object masked = LowMemoryHashSet.maskNull(item);
+		int hash = LowMemoryHashing.spread(itemHashCode(item));
+		retry: while (true) {
+			Table t = table.get();
+			if (t.next.get() != null) {
+				helpResize(t);
+				continue;
+			}
+			AtomicReferenceArray<Object> slots = t.slots;
+			int mask = slots.length() - 1;
+			int index = hash & mask;
+			for (int probes = 0; probes <= mask; probes++) {
+				Object existing = slots.get(index);
+				if (existing == null) {
+					if (slots.compareAndSet(index, null, masked)) {
+						size.increment();
+						return true;
+					}
+					existing = slots.get(index);
+				}
+				if (existing == MOVED) {
+					helpResize(t);
+					continue retry;
+				}
+				if (existing == masked || itemEquals(item, LowMemoryHashSet.unmaskNull(existing))) {
+					return false;
+				}
+				if (probes == RESIZE_CHECK_PROBES
+						&& !LowMemoryHashing.canHold(slots.length(), (int) Math.min(Integer.MAX_VALUE, size.sum() + 1))) {
+					startResize(t);
+					continue retry;
+				}
+				index = (index + 1) & mask;
+			}
+			// every slot is occupied
+			startResize(t);
+		}
+	}
+
+	/**
+	 * Returns whether the set contains an item. Never waits for a resize.
+	 * @param item The item
+	 * @return Whether the item is present
+	 */
+	public boolean contains(Object item) {
+		Object masked = LowMemoryHashSet.maskNull(item);
+		int hash = LowMemoryHashing.spread(itemHashCode(item));
+		for (Table t = table.get(); t != null; t = t.next.get()) {
+			AtomicReferenceArray<Object> slots = t.slots;
+			int mask = slots.length() - 1;
+			int index = hash & mask;
+			boolean sawMoved = false;
+			for (int probes = 0; probes <= mask; probes++) {
+				Object existing = slots.get(index);
+				if (existing == null) {
+					break;
+				}
+				if (existing == MOVED) {
+					// an item migrated from here is already in the next table
+					sawMoved = true;
+				} else if (existing == masked || itemEquals(item, LowMemoryHashSet.unmaskNull(existing))) {
+					return true;
+				}
+				index = (index + 1) & mask;
+			}
+			if (!sawMoved) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return size.sum() == 0;
+	}
+
+	/**
+	 * Returns the number of items in the set, which is exact only when no
+	 * items are being added.
+	 */
+	public int size() {
+		return (int) Math.min(Integer.MAX_VALUE, size.sum());
+	}
+
+	/**
+	 * Returns whether two items are equal for the purposes of this set.
+	 */
+	protected boolean itemEquals(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	/**
+	 * Return the hashCode for an item.
+	 */
+	protected int itemHashCode(Object o) {
+		return (o == null) ? 0 : o.hashCode();
+	}
+
+	/**
+	 * Migrates chunks of a table that is being resized until none are left,
+	 * waits for the other threads migrating chunks, and then makes the next
+	 * table current.
+	 */
+	private void helpResize(Table t) {
+		Table next = t.next.get();
+		int chunks = t.chunks();
+		int chunk;
+		while ((chunk = t.chunksClaimed.getAndIncrement()) < chunks) {
+			migrate(t, next, chunk);
+			t.chunksMigrated.incrementAndGet();
+		}
+		while (t.chunksMigrated.get() < chunks) {
+			Thread.yield();
+		}
+		table.compareAndSet(t, next);
+	}
+
+	/**
+	 * Copies the items in one chunk of a table to the next table, marking each
+	 * slot as moved. Empty slots are marked by compare-and-set so that a
+	 * racing add either lands before the slot is migrated or sees the mark and
+	 * retries in the next table.
+	 */
+	private void migrate(Table t, Table next, int chunk) {
+		AtomicReferenceArray<Object> slots = t.slots;
+		int end = Math.min(slots.length(), (chunk + 1) * MIGRATION_CHUNK_SIZE);
+		for (int i = chunk * MIGRATION_CHUNK_SIZE; i < end; i++) {
+			if (slots.get(i) == null && slots.compareAndSet(i, null, MOVED)) {
+				continue;
+			}
+			Object item = slots.get(i);
+			insertMigrated(next.slots, item);
+			slots.set(i, MOVED);
+		}
+	}
+
+	/**
+	 * Inserts an item known to be absent into a table that is only being
+	 * written by migrating threads.
+	 */
+	private void insertMigrated(AtomicReferenceArray<Object> slots, Object masked) {
+		int mask = slots.length() - 1;
+		int index = LowMemoryHashing.spread(itemHashCode(LowMemoryHashSet.unmaskNull(masked))) & mask;
+		while (!slots.compareAndSet(index, null, masked)) {
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Installs a table twice the size as the successor of a full table, if no
+	 * other thread has done so, and helps migrate to it.
+	 */
+	private void startResize(Table t) {
+		if (t.next.get() == null) {
+			t.next.compareAndSet(null, new Table(t.slots.length() << 1));
+		}
+		helpResize(t);
+	}
+}
@@ -0,0 +1,226 @@
+package org.scale7.collections;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A set of primitive <code>long</code> values to which many threads may add
+ * without locking, in exactly the same way as {@link ConcurrentAddOnlyHashSet}
+ * but with the items held in an {@link AtomicLongArray} so that no boxing takes
+ * place. Zero marks an empty slot and {@link Long#MIN_VALUE} a migrated one, so
+ * those two items, if present, are recorded outside of the table.
+ */
+public class ConcurrentAddOnlyLongHashSet {
+
+	/**
+	 * Marks a slot whose contents have been migrated to the next table.
+	 */
+	private static final long MOVED = Long.MIN_VALUE;
+
+	/**
+	 * The bits of {@link #specials} recording the items that cannot be stored
+	 * in the table.
+	 */
+	private static final int HAS_ZERO = 1;
+	private static final int HAS_MOVED = 2;
+
+	/**
+	 * One generation of the table.
+	 */
+	private static final class Table {
+		final AtomicLongArray slots;
+		final AtomicReference<Table> next = new AtomicReference<Table>();
+		final AtomicInteger chunksClaimed = new AtomicInteger();
+		final AtomicInteger chunksMigrated = new AtomicInteger();
+
+		Table(int capacity) {
+			slots = new AtomicLongArray(capacity);
+		}
+
+		int chunks() {
+			return (slots.length() + ConcurrentAddOnlyHashSet.MIGRATION_CHUNK_SIZE - 1)
+					/ ConcurrentAddOnlyHashSet.MIGRATION_CHUNK_SIZE;
+		}
+	}
+
+	private final AtomicReference<Table> table;
+
+	private final StripedCounter size = new StripedCounter();
+
+	private final AtomicInteger specials = new AtomicInteger();
+
+	public ConcurrentAddOnlyLongHashSet() {
+		this(0);
+	}
+
+	/**
+	 * Constructs a set that can hold the specified number of items without
+	 * resizing.
+	 * @param expectedSize The number of items the set is expected to hold
+	 */
+	public ConcurrentAddOnlyLongHashSet(int expectedSize) {
+		table = new AtomicReference<Table>(new Table(
+				LowMemoryHashing.capacityFor(expectedSize)));
+	}
+
+	/**
+	 * Adds an item to the set if it is not already present.
+	 * @param item The item
+	 * @return <code>true</code> if the item was new, <code>false</code> if it was already present
+	 */
+	public boolean addIfAbsent(long item) {
+		if (item == 0 || item == MOVED) {
+			int bit = (item == 0) ? HAS_ZERO : HAS_MOVED;
+			while (true) {
+				int current = specials.get();
+				if ((current & bit) != 0) {
+					return false;
+				}
+				if (specials.compareAndSet(current, current | bit)) {
+					size.increment();
+					return true;
+				}
+			}
+		}
+		int hash = LowMemoryHashing.spread(item);
+		retry: while (true) {
+			Table t = table.get();
+			if (t.next.get() != null) {
+				helpResize(t);
+				continue;
+			}
+			AtomicLongArray slots = t.slots;
+			int mask = slots.length() - 1;
+			int index = hash & mask;
+			for (int probes = 0; probes <= mask; probes++) {
+				long existing = slots.get(index);
+				if (existing == 0) {
+					if (slots.compareAndSet(index, 0, item)) {
+						size.increment();
+						return true;
+					}
+					existing = slots.get(index);
+				}
+				if (existing == MOVED) {
+					helpResize(t);
+					continue retry;
+				}
+				if (existing == item) {
+					return false;
+				}
+				if (probes == ConcurrentAddOnlyHashSet.RESIZE_CHECK_PROBES
+						&& !LowMemoryHashing.canHold(slots.length(), (int) Math.min(Integer.MAX_VALUE, size.sum() + 1))) {
+					startResize(t);
+					continue retry;
+				}
+				index = (index + 1) & mask;
+			}
+			// every slot is occupied
+			startResize(t);
+		}
+	}
+
+	/**
+	 * Returns whether the set contains an item. Never waits for a resize.
+	 * @param item The item
+	 * @return Whether the item is present
+	 */
+	public boolean contains(long item) {
+		if (item == 0) {
+			return (specials.get() & HAS_ZERO) != 0;
+		}
+		if (item == MOVED) {
+			return (specials.get() & HAS_MOVED) != 0;
+		}
+		int hash = LowMemoryHashing.spread(item);
+		for (Table t = table.get(); t != null; t = t.next.get()) {
+			AtomicLongArray slots = t.slots;
+			int mask = slots.length() - 1;
+			int index = hash & mask;
+			boolean sawMoved = false;
+			for (int probes = 0; probes <= mask; probes++) {
+				long existing = slots.get(index);
+				if (existing == 0) {
+					break;
+				}
+				if (existing == MOVED) {
+					// an item migrated from here is already in the next table
+					sawMoved = true;
+				} else if (existing == item) {
+					return true;
+				}
+				index = (index + 1) & mask;
+			}
+			if (!sawMoved) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return size.sum() == 0;
+	}
+
+	/**
+	 * Returns the number of items in the set, which is exact only when no
+	 * items are being added.
+	 */
+	public int size() {
+		return (int) Math.min(Integer.MAX_VALUE, size.sum());
+	}
+
+	/**
+	 * Migrates chunks of a table that is being resized until none are left,
+	 * waits for the other threads migrating chunks, and then makes the next
+	 * table current.
+	 */
+	private void helpResize(Table t) {
+		Table next = t.next.get();
+		int chunks = t.chunks();
+		int chunk;
+		while ((chunk = t.chunksClaimed.getAndIncrement()) < chunks) {
+			migrate(t, next, chunk);
+			t.chunksMigrated.incrementAndGet();
+		}
+		while (t.chunksMigrated.get() < chunks) {
+			Thread.yield();
+		}
+		table.compareAndSet(t, next);
+	}
+
+	/**
+	 * Copies the items in one chunk of a table to the next table, marking each
+	 * slot as moved.
+	 */
+	private void migrate(Table t, Table next, int chunk) {
+		AtomicLongArray slots = t.slots;
+		int chunkSize = ConcurrentAddOnlyHashSet.MIGRATION_CHUNK_SIZE;
+		int end = Math.min(slots.length(), (chunk + 1) * chunkSize);
+		for (int i = chunk * chunkSize; i < end; i++) {
+			if (slots.get(i) == 0 && slots.compareAndSet(i, 0, MOVED)) {
+				continue;
+			}
+			long item = slots.get(i);
+			AtomicLongArray nextSlots = next.slots;
+			int mask = nextSlots.length() - 1;
+			int index = LowMemoryHashing.spread(item) & mask;
+			while (!nextSlots.compareAndSet(index, 0, item)) {
+				index = (index + 1) & mask;
+			}
+			slots.set(i, MOVED);
+		}
+	}
+
+	/**
+	 * Installs a table twice the size as the successor of a full table, if no
+	 * other thread has done so, and helps migrate to it.
+	 */
+	private void startResize(Table t) {
+		if (t.next.get() == null) {
+			t.next.compareAndSet(null, new Table(t.slots.length() << 1));
+		}
+		helpResize(t);
+	}
+}
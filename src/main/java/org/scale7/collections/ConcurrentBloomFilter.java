@@ -0,0 +1,167 @@
+package org.scale7.collections;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter to which many threads may add, and which many threads may
+ * query, without locking. The bits are held in an {@link AtomicLongArray} and
+ * each is set by a compare-and-set of its word, which is retried only when
+ * another thread changed the same word in the meantime, and queries simply
+ * read the words, so are wait free. Elements are hashed in the same way as a
+ * {@link BloomFilter} constructed with the same funnel, using a hasher of the
+ * calling thread, and the number of elements added is kept in a
+ * {@link StripedCounter} so that adding threads do not contend on it.
+ * <p>
+ * The filter can hold up to 2^37 bits. {@link #toBloomFilter()} takes a copy
+ * of it that can be serialized or shipped to other nodes.
+ *
+ * @param <E>
+ *            the element type
+ */
+public class ConcurrentBloomFilter<E> {
+
+	private final AtomicLongArray words;
+	private final long bitSize;
+	private final long expectedElements;
+	private final int k;
+	private final IFunnel<? super E> funnel;
+	private final StripedCounter addedElements = new StripedCounter();
+
+	/**
+	 * Constructs an empty filter.
+	 * @param bitSize The number of bits in the filter
+	 * @param expectedElements The maximum number of elements the filter is expected to contain
+	 * @param funnel Puts the values of each element to be hashed
+	 */
+	public ConcurrentBloomFilter(long bitSize, long expectedElements, IFunnel<? super E> funnel) {
+		long wordCount = BloomHashing.wordCount(bitSize);
+		if (bitSize <= 0 || wordCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("bitSize must be positive and at most 2^37");
+		}
+		if (funnel == null) {
+			throw new NullPointerException("funnel");
+		}
+		this.words = new AtomicLongArray((int) wordCount);
+		this.bitSize = bitSize;
+		this.expectedElements = expectedElements;
+		this.k = BloomHashing.optimalK(bitSize, expectedElements);
+		this.funnel = funnel;
+	}
+
+	/**
+	 * Adds an element to the filter.
+	 * @param element The element
+	 * @return <code>true</code> if any bit was set, meaning that the element
+	 *         was certainly not present before
+	 */
+	public boolean add(E element) {
+		Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+		long h1 = h.h1;
+		long h2 = h.h2;
+		boolean changed = false;
+		for (int i = 0; i < k; i++) {
+			long index = BloomHashing.index(h1, h2, i, bitSize);
+			int word = (int) (index >>> 6);
+			long mask = 1L << index;
+			while (true) {
+				long current = words.get(word);
+				if ((current & mask) != 0) {
+					break;
+				}
+				if (words.compareAndSet(word, current, current | mask)) {
+					changed = true;
+					break;
+				}
+			}
+		}
+		addedElements.increment();
+		return changed;
+	}
+
+	/**
+	 * Returns the number of bits in the filter.
+	 */
+	public long bitSize() {
+		return bitSize;
+	}
+
+	/**
+	 * Clears every bit. Elements added concurrently may be partly cleared.
+	 */
+	public void clear() {
+		for (int i = 0; i < words.length(); i++) {
+			words.set(i, 0);
+		}
+		addedElements.add(-addedElements.sum());
+	}
+
+	/**
+	 * Returns whether an element might have been added to the filter.
+	 * @param element The element
+	 * @return <code>false</code> if the element has certainly not been added
+	 */
+	public boolean contains(E element) {
+		Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+		long h1 = h.h1;
+		long h2 = h.h2;
+		for (int i = 0; i < k; i++) {
+			long index = BloomHashing.index(h1, h2, i, bitSize);
+			if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of elements added since the filter was constructed or
+	 * cleared, which is exact only while no element is being added.
+	 */
+	public long elementCount() {
+		return addedElements.sum();
+	}
+
+	/**
+	 * Returns the probability of a false positive once the expected number of
+	 * elements have been added.
+	 */
+	public double expectedFalsePositiveProbability() {
+		return getFalsePositiveProbability(expectedElements);
+	}
+
+	/**
+	 * Returns the probability of a false positive given the specified number
+	 * of added elements.
+	 */
+	public double getFalsePositiveProbability(double numberOfElements) {
+		return BloomHashing.falsePositiveProbability(k, numberOfElements, bitSize);
+	}
+
+	/**
+	 * Returns the probability of a false positive given the number of elements
+	 * added so far.
+	 */
+	public double getFalsePositiveProbability() {
+		return getFalsePositiveProbability(elementCount());
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * Returns a copy of the filter, which is consistent if no element is being
+	 * added. The copy has the same bits and hashes elements in the same way.
+	 */
+	public BloomFilter<E> toBloomFilter() {
+		LongBitArray copy = new LongBitArray(bitSize);
+		for (int i = 0; i < words.length(); i++) {
+			long word = words.get(i);
+			while (word != 0) {
+				copy.set(((long) i << 6) + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+		return new BloomFilter<E>(copy, expectedElements, elementCount(), funnel);
+	}
+}
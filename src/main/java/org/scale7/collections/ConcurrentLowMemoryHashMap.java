@@ -0,0 +1,630 @@
+package org.scale7.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A memory-efficient hash map that may be shared between threads. The key space
+ * is partitioned into a power-of-two number of segments, each of which is an
+ * independent open addressed table using the same linear probing and hole
+ * plugging scheme as {@link LowMemoryHashMap}. Keys and values of a segment are
+ * interleaved in a single array so that no per-entry objects are created.
+ * <p>
+ * Writes lock only the segment that owns the key. Reads do not lock: a reader
+ * notes the segment's stamp, probes the current table and then checks that the
+ * stamp has not changed, retrying if a write was in progress. A reader that
+ * keeps losing the race against writers falls back to taking the segment lock,
+ * so that reads cannot be starved.
+ * <p>
+ * Iterators are weakly consistent. Each segment is copied under its lock when
+ * the iterator reaches it, so an iterator never returns the same key twice, but
+ * may or may not reflect modifications made after it was created.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+@SuppressWarnings("serial")
+public class ConcurrentLowMemoryHashMap<K, V> extends AbstractMap<K, V>
+		implements ConcurrentMap<K, V>, Serializable {
+
+	/**
+	 * The number of segments used by the default constructor.
+	 */
+	public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+	/**
+	 * The number of times a reader will retry without locking when it detects
+	 * that a write raced with its probe.
+	 */
+	private static final int MAX_OPTIMISTIC_READS = 4;
+
+	/**
+	 * Returned by internal lookups when a key is not present.
+	 */
+	private static final Object NOT_FOUND = new Object();
+
+	private class EntryIterator implements Iterator<Entry<K, V>> {
+		private int segmentIndex = 0;
+		private Object[] snapshot;
+		private int index;
+		private Object lastKey = NOT_FOUND;
+
+		{
+			advanceToItem();
+		}
+
+		public boolean hasNext() {
+			return snapshot != null;
+		}
+
+		@SuppressWarnings("unchecked")
+		public Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			K key = (K) LowMemoryHashMap.unmaskNullKey(snapshot[index]);
+			V value = (V) snapshot[index + 1];
+			lastKey = key;
+			index += 2;
+			advanceToItem();
+			return new WriteThroughEntry(key, value);
+		}
+
+		public void remove() {
+			if (lastKey == NOT_FOUND) {
+				throw new IllegalStateException();
+			}
+			ConcurrentLowMemoryHashMap.this.remove(lastKey);
+			lastKey = NOT_FOUND;
+		}
+
+		private void advanceToItem() {
+			while (true) {
+				if (snapshot != null) {
+					for (; index < snapshot.length; index += 2) {
+						if (snapshot[index] != null) {
+							return;
+						}
+					}
+				}
+				if (segmentIndex == segments.length) {
+					snapshot = null;
+					return;
+				}
+				snapshot = segments[segmentIndex++].snapshot();
+				index = 0;
+			}
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Entry<K, V>> {
+		@Override
+		public void clear() {
+			ConcurrentLowMemoryHashMap.this.clear();
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean contains(Object o) {
+			if (!(o instanceof Entry)) {
+				return false;
+			}
+			Entry<K, V> entry = (Entry<K, V>) o;
+			Object key = entry.getKey();
+			Object value = lookup(key, hash(key));
+			return value != NOT_FOUND
+					&& valueEquals(value, entry.getValue());
+		}
+
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			return new EntryIterator();
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean remove(Object o) {
+			if (!(o instanceof Entry)) {
+				return false;
+			}
+			Entry<K, V> entry = (Entry<K, V>) o;
+			return ConcurrentLowMemoryHashMap.this.remove(entry.getKey(),
+					entry.getValue());
+		}
+
+		@Override
+		public int size() {
+			return ConcurrentLowMemoryHashMap.this.size();
+		}
+	}
+
+	/**
+	 * An independent open addressed table guarded by its own lock. Keys are
+	 * held at even indices of the table and their values at the following odd
+	 * index.
+	 */
+	private final class Segment {
+		/**
+		 * Incremented before and after every modification, so that it is odd
+		 * while a write is in progress.
+		 */
+		volatile int stamp;
+
+		/**
+		 * Interleaved keys and values. Replaced wholesale when the segment
+		 * grows, so that readers of the old table still see a consistent view.
+		 */
+		volatile AtomicReferenceArray<Object> table = new AtomicReferenceArray<Object>(
+				LowMemoryHashing.INITIAL_TABLE_SIZE * 2);
+
+		/**
+		 * Number of pairs in this segment. Only written under the lock.
+		 */
+		volatile int size;
+
+		/**
+		 * Returns the value mapped to a key, or {@link #NOT_FOUND}.
+		 */
+		Object get(Object key, int hash) {
+			for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+				int s = stamp;
+				if ((s & 1) == 0) {
+					AtomicReferenceArray<Object> t = table;
+					int index = findKey(t, key, hash);
+					Object value = (index < 0) ? NOT_FOUND : t.get(index + 1);
+					if (stamp == s) {
+						return value;
+					}
+				}
+				Thread.yield();
+			}
+			synchronized (this) {
+				AtomicReferenceArray<Object> t = table;
+				int index = findKey(t, key, hash);
+				return (index < 0) ? NOT_FOUND : t.get(index + 1);
+			}
+		}
+
+		synchronized void clear() {
+			beginWrite();
+			table = new AtomicReferenceArray<Object>(
+					LowMemoryHashing.INITIAL_TABLE_SIZE * 2);
+			size = 0;
+			endWrite();
+		}
+
+		/**
+		 * Maps a key to a value, returning the previous value or
+		 * {@link #NOT_FOUND}. If <code>onlyIfAbsent</code> is set an existing
+		 * mapping is left unchanged.
+		 */
+		synchronized Object put(Object key, int hash, Object value,
+				boolean onlyIfAbsent) {
+			AtomicReferenceArray<Object> t = table;
+			int index = findKeyOrEmpty(t, key, hash);
+			Object existing = t.get(index);
+			if (existing != null) {
+				Object previousValue = t.get(index + 1);
+				if (!onlyIfAbsent) {
+					beginWrite();
+					t.set(index + 1, value);
+					endWrite();
+				}
+				return previousValue;
+			}
+			if (!LowMemoryHashing.canHold(t.length() >> 1, size + 1)) {
+				// the old table is left untouched, so readers may carry on
+				// using it while we rehash
+				t = rehash(t, LowMemoryHashing.capacityFor(size + 1));
+				index = findKeyOrEmpty(t, key, hash);
+			}
+			beginWrite();
+			// the value is written first so that the key is never visible
+			// without it
+			t.set(index + 1, value);
+			t.set(index, LowMemoryHashMap.maskNullKey(key));
+			table = t;
+			size = size + 1;
+			endWrite();
+			return NOT_FOUND;
+		}
+
+		/**
+		 * Removes the mapping for a key, optionally only if it is currently
+		 * mapped to <code>expectedValue</code>. Returns the removed value or
+		 * {@link #NOT_FOUND}.
+		 */
+		synchronized Object remove(Object key, int hash, Object expectedValue) {
+			AtomicReferenceArray<Object> t = table;
+			int index = findKey(t, key, hash);
+			if (index < 0) {
+				return NOT_FOUND;
+			}
+			Object previousValue = t.get(index + 1);
+			if (expectedValue != NOT_FOUND
+					&& !valueEquals(previousValue, expectedValue)) {
+				return NOT_FOUND;
+			}
+			beginWrite();
+			t.set(index, null);
+			t.set(index + 1, null);
+			size = size - 1;
+			plugHole(t, index);
+			endWrite();
+			return previousValue;
+		}
+
+		/**
+		 * Replaces the value of an existing mapping, optionally only if it is
+		 * currently mapped to <code>expectedValue</code>. Returns the replaced
+		 * value or {@link #NOT_FOUND}.
+		 */
+		synchronized Object replace(Object key, int hash, Object expectedValue,
+				Object value) {
+			AtomicReferenceArray<Object> t = table;
+			int index = findKey(t, key, hash);
+			if (index < 0) {
+				return NOT_FOUND;
+			}
+			Object previousValue = t.get(index + 1);
+			if (expectedValue != NOT_FOUND
+					&& !valueEquals(previousValue, expectedValue)) {
+				return NOT_FOUND;
+			}
+			beginWrite();
+			t.set(index + 1, value);
+			endWrite();
+			return previousValue;
+		}
+
+		/**
+		 * Copies the interleaved keys and values of this segment.
+		 */
+		synchronized Object[] snapshot() {
+			AtomicReferenceArray<Object> t = table;
+			Object[] copy = new Object[t.length()];
+			for (int i = 0; i < copy.length; i++) {
+				copy[i] = t.get(i);
+			}
+			return copy;
+		}
+
+		private void beginWrite() {
+			stamp = stamp + 1;
+		}
+
+		private void endWrite() {
+			stamp = stamp + 1;
+		}
+
+		private AtomicReferenceArray<Object> rehash(
+				AtomicReferenceArray<Object> oldTable, int newCapacity) {
+			AtomicReferenceArray<Object> newTable = new AtomicReferenceArray<Object>(
+					newCapacity * 2);
+			for (int i = 0; i < oldTable.length(); i += 2) {
+				Object k = oldTable.get(i);
+				if (k != null) {
+					int newIndex = slotIndex(newTable,
+							hash(LowMemoryHashMap.unmaskNullKey(k)));
+					while (newTable.get(newIndex) != null) {
+						newIndex = nextIndex(newTable, newIndex);
+					}
+					newTable.set(newIndex, k);
+					newTable.set(newIndex + 1, oldTable.get(i + 1));
+				}
+			}
+			return newTable;
+		}
+	}
+
+	private class WriteThroughEntry extends AbstractMap.SimpleEntry<K, V> {
+		WriteThroughEntry(K key, V value) {
+			super(key, value);
+		}
+
+		@Override
+		public V setValue(V value) {
+			ConcurrentLowMemoryHashMap.this.put(getKey(), value);
+			return super.setValue(value);
+		}
+	}
+
+	/**
+	 * The segments; transient due to custom serialization.
+	 */
+	transient Segment[] segments;
+
+	/**
+	 * Mask and shift that select the segment index from the top bits of a
+	 * mixed hash.
+	 */
+	transient int segmentMask;
+	transient int segmentShift;
+
+	public ConcurrentLowMemoryHashMap() {
+		this(DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * Constructs a map with a given number of segments.
+	 * @param concurrencyLevel The expected number of concurrently writing threads. This is
+	 * rounded up to a power of two, which becomes the number of segments.
+	 */
+	public ConcurrentLowMemoryHashMap(int concurrencyLevel) {
+		if (concurrencyLevel < 1)
+			throw new IllegalArgumentException("Minimum concurrency level is 1");
+		initSegments(concurrencyLevel);
+	}
+
+	public ConcurrentLowMemoryHashMap(Map<? extends K, ? extends V> m) {
+		this(DEFAULT_CONCURRENCY_LEVEL);
+		putAll(m);
+	}
+
+	@Override
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return lookup(key, hash(key)) != NOT_FOUND;
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new EntrySet();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		Object value = lookup(key, hash(key));
+		return (value == NOT_FOUND) ? null : (V) value;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (Segment segment : segments) {
+			if (segment.size != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V put(K key, V value) {
+		int hash = hash(key);
+		Object previousValue = segmentFor(hash).put(key, hash, value, false);
+		return (previousValue == NOT_FOUND) ? null : (V) previousValue;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(K key, V value) {
+		int hash = hash(key);
+		Object previousValue = segmentFor(hash).put(key, hash, value, true);
+		return (previousValue == NOT_FOUND) ? null : (V) previousValue;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		int hash = hash(key);
+		Object previousValue = segmentFor(hash).remove(key, hash, NOT_FOUND);
+		return (previousValue == NOT_FOUND) ? null : (V) previousValue;
+	}
+
+	public boolean remove(Object key, Object value) {
+		int hash = hash(key);
+		return segmentFor(hash).remove(key, hash, value) != NOT_FOUND;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V replace(K key, V value) {
+		int hash = hash(key);
+		Object previousValue = segmentFor(hash).replace(key, hash, NOT_FOUND, value);
+		return (previousValue == NOT_FOUND) ? null : (V) previousValue;
+	}
+
+	public boolean replace(K key, V oldValue, V newValue) {
+		int hash = hash(key);
+		return segmentFor(hash).replace(key, hash, oldValue, newValue) != NOT_FOUND;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns whether two keys are equal for the purposes of this map.
+	 */
+	protected boolean keyEquals(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	/**
+	 * Returns the hashCode for a key.
+	 */
+	protected int keyHashCode(Object k) {
+		return (k == null) ? 0 : k.hashCode();
+	}
+
+	/**
+	 * Returns whether two values are equal for the purposes of this map.
+	 */
+	protected boolean valueEquals(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	/**
+	 * Returns the value mapped to a key, or {@link #NOT_FOUND}. Default access
+	 * to avoid synthetic accessors from inner classes.
+	 */
+	Object lookup(Object key, int hash) {
+		return segmentFor(hash).get(key, hash);
+	}
+
+	/**
+	 * Returns the spread hash code of a key. Default access to avoid synthetic
+	 * accessors from inner classes.
+	 */
+	int hash(Object key) {
+		return LowMemoryHashing.spread(keyHashCode(key));
+	}
+
+	/**
+	 * Returns the index in a segment table at which a particular key resides,
+	 * or -1 if the key is not in the table. The probe is bounded so that a
+	 * reader racing with a writer cannot loop forever; the stamp check then
+	 * discards its result.
+	 */
+	int findKey(AtomicReferenceArray<Object> t, Object k, int hash) {
+		int index = slotIndex(t, hash);
+		for (int probes = t.length() >> 1; probes > 0; probes--) {
+			Object existing = t.get(index);
+			if (existing == null) {
+				return -1;
+			}
+			if (keyEquals(k, LowMemoryHashMap.unmaskNullKey(existing))) {
+				return index;
+			}
+			index = nextIndex(t, index);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index in a segment table at which a particular key resides,
+	 * or the index of an empty slot where it should be inserted. Only called
+	 * under the segment lock.
+	 */
+	int findKeyOrEmpty(AtomicReferenceArray<Object> t, Object k, int hash) {
+		int index = slotIndex(t, hash);
+		while (true) {
+			Object existing = t.get(index);
+			if (existing == null) {
+				return index;
+			}
+			if (keyEquals(k, LowMemoryHashMap.unmaskNullKey(existing))) {
+				return index;
+			}
+			index = nextIndex(t, index);
+		}
+	}
+
+	/**
+	 * Fills the hole left by a removal in the same way as
+	 * {@link LowMemoryHashMap}. Only called under the segment lock.
+	 */
+	void plugHole(AtomicReferenceArray<Object> t, int hole) {
+		int index = nextIndex(t, hole);
+		Object k;
+		while ((k = t.get(index)) != null) {
+			int targetIndex = slotIndex(t, hash(LowMemoryHashMap.unmaskNullKey(k)));
+			boolean plug;
+			if (hole < index) {
+				plug = !(hole < targetIndex && targetIndex <= index);
+			} else {
+				plug = index < targetIndex && targetIndex <= hole;
+			}
+			if (plug) {
+				t.set(hole + 1, t.get(index + 1));
+				t.set(hole, k);
+				t.set(index, null);
+				t.set(index + 1, null);
+				hole = index;
+			}
+			index = nextIndex(t, index);
+		}
+	}
+
+	/**
+	 * Returns the segment owning a hash. The segment is chosen from the top
+	 * bits of a multiplicative mix, so that it is independent of the low bits
+	 * that select a slot within the segment.
+	 */
+	Segment segmentFor(int hash) {
+		return segments[((hash * 0x9E3779B9) >>> segmentShift) & segmentMask];
+	}
+
+	private static int nextIndex(AtomicReferenceArray<Object> t, int index) {
+		index += 2;
+		return (index == t.length()) ? 0 : index;
+	}
+
+	private static int slotIndex(AtomicReferenceArray<Object> t, int hash) {
+		return (hash & ((t.length() >> 1) - 1)) << 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void initSegments(int concurrencyLevel) {
+		int segmentBits = 0;
+		while ((1 << segmentBits) < concurrencyLevel && segmentBits < 16) {
+			segmentBits++;
+		}
+		segmentShift = 32 - segmentBits;
+		segmentMask = (1 << segmentBits) - 1;
+		segments = (Segment[]) new ConcurrentLowMemoryHashMap<?, ?>.Segment[1 << segmentBits];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		initSegments(in.readInt());
+		int items = in.readInt();
+		for (int i = 0; i < items; i++) {
+			Object key = in.readObject();
+			Object value = in.readObject();
+			put((K) key, (V) value);
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		Object[][] snapshots = new Object[segments.length][];
+		int items = 0;
+		for (int i = 0; i < segments.length; i++) {
+			snapshots[i] = segments[i].snapshot();
+			for (int j = 0; j < snapshots[i].length; j += 2) {
+				if (snapshots[i][j] != null) {
+					items++;
+				}
+			}
+		}
+		out.writeInt(segments.length);
+		out.writeInt(items);
+		for (Object[] snapshot : snapshots) {
+			for (int j = 0; j < snapshot.length; j += 2) {
+				if (snapshot[j] != null) {
+					out.writeObject(LowMemoryHashMap.unmaskNullKey(snapshot[j]));
+					out.writeObject(snapshot[j + 1]);
+				}
+			}
+		}
+	}
+}
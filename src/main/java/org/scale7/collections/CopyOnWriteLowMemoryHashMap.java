@@ -0,0 +1,555 @@
+package org.scale7.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A memory-efficient hash map for data that is read far more often than it is
+ * written, in the manner of {@link ShortCopyOnWriteArraySet}. The entries live
+ * in an immutable open addressed table, with keys and values interleaved in a
+ * single array and the same linear probing scheme as {@link LowMemoryHashMap}.
+ * Reads go against whichever table is current, without locking or creating any
+ * objects. Writes are serialized, and each one copies the table, modifies the
+ * copy and then publishes it atomically, so readers never see a partial
+ * update.
+ * <p>
+ * Since every write copies the table, many changes should be made together
+ * with {@link #mutate(IMutation)} or {@link #putAll(Map)}, which copy it only
+ * once. Iterators traverse the table that was current when they were created,
+ * and removing through an iterator removes the key from the map without
+ * affecting the iteration.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+@SuppressWarnings("serial")
+public class CopyOnWriteLowMemoryHashMap<K, V> extends AbstractMap<K, V>
+		implements ConcurrentMap<K, V>, Serializable {
+
+	/**
+	 * An immutable table and the number of entries in it.
+	 */
+	private static final class Snapshot {
+		final Object[] table;
+		final int size;
+
+		Snapshot(Object[] table, int size) {
+			this.table = table;
+			this.size = size;
+		}
+	}
+
+	private static final Snapshot EMPTY = new Snapshot(
+			new Object[LowMemoryHashing.INITIAL_TABLE_SIZE * 2], 0);
+
+	/**
+	 * The fraction of the table below which a write shrinks it.
+	 */
+	private static final float SHRINK_LOAD_FACTOR = LowMemoryHashMap.DEFAULT_LOAD_FACTOR / 8;
+
+	/**
+	 * A private working copy of a snapshot, which copies its table on the
+	 * first modification. Like those of the map, the views of a draft traverse
+	 * the table as it was when they were created, so the draft copies its table
+	 * again before modifying it once a view has been taken.
+	 */
+	private class Draft extends AbstractMap<K, V> {
+		private Object[] table;
+		private int size;
+
+		/**
+		 * Whether the table belongs to this draft alone and may be modified.
+		 */
+		private boolean copied;
+
+		/**
+		 * Whether the contents differ from the snapshot.
+		 */
+		private boolean changed;
+
+		Draft(Snapshot snapshot) {
+			table = snapshot.table;
+			size = snapshot.size;
+		}
+
+		@Override
+		public void clear() {
+			table = EMPTY.table.clone();
+			size = 0;
+			copied = true;
+			changed = true;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return findKey(table, key, hash(key)) >= 0;
+		}
+
+		@Override
+		public Set<Entry<K, V>> entrySet() {
+			// the view's table is shared from now on
+			copied = false;
+			return new EntrySet(this, table, size);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V get(Object key) {
+			int index = findKey(table, key, hash(key));
+			return (index < 0) ? null : (V) table[index + 1];
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V put(K key, V value) {
+			int hash = hash(key);
+			ensureWritable(size + 1);
+			int index = findKeyOrEmpty(table, key, hash);
+			Object previousValue = table[index + 1];
+			if (table[index] == null) {
+				++size;
+				table[index] = LowMemoryHashMap.maskNullKey(key);
+			}
+			table[index + 1] = value;
+			return (V) previousValue;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V remove(Object key) {
+			int hash = hash(key);
+			if (findKey(table, key, hash) < 0) {
+				return null;
+			}
+			ensureWritable(size);
+			int index = findKey(table, key, hash);
+			Object previousValue = table[index + 1];
+			table[index] = null;
+			table[index + 1] = null;
+			plugHole(table, index);
+			--size;
+			return (V) previousValue;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns a snapshot of the current contents, shrinking the table if
+		 * removals have left it sparse.
+		 */
+		Snapshot publish(Snapshot original) {
+			if (!changed) {
+				return original;
+			}
+			int capacity = table.length >> 1;
+			int newCapacity = LowMemoryHashing.shrunkCapacity(capacity, size,
+					LowMemoryHashMap.DEFAULT_LOAD_FACTOR, SHRINK_LOAD_FACTOR);
+			if (newCapacity < capacity) {
+				table = rehash(table, newCapacity);
+			}
+			return new Snapshot(table, size);
+		}
+
+		private void ensureWritable(int expectedSize) {
+			int capacity = table.length >> 1;
+			if (!LowMemoryHashing.canHold(capacity, expectedSize)) {
+				table = rehash(table, LowMemoryHashing.capacityFor(expectedSize));
+			} else if (!copied) {
+				table = table.clone();
+			}
+			copied = true;
+			changed = true;
+		}
+	}
+
+	private class EntryIterator implements Iterator<Entry<K, V>> {
+		private final Map<K, V> owner;
+		private final Object[] table;
+		private int index = 0;
+		private int last = -1;
+
+		EntryIterator(Map<K, V> owner, Object[] table) {
+			this.owner = owner;
+			this.table = table;
+			advanceToItem();
+		}
+
+		public boolean hasNext() {
+			return index < table.length;
+		}
+
+		@SuppressWarnings("unchecked")
+		public Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entry<K, V> toReturn = new SimpleImmutableEntry<K, V>(
+					(K) LowMemoryHashMap.unmaskNullKey(table[index]),
+					(V) table[index + 1]);
+			last = index;
+			index += 2;
+			advanceToItem();
+			return toReturn;
+		}
+
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			// the owner copies the table before changing it
+			owner.remove(LowMemoryHashMap.unmaskNullKey(table[last]));
+			last = -1;
+		}
+
+		private void advanceToItem() {
+			for (; index < table.length; index += 2) {
+				if (table[index] != null) {
+					return;
+				}
+			}
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Entry<K, V>> {
+		private final Map<K, V> owner;
+		private final Object[] table;
+		private final int size;
+
+		EntrySet(Map<K, V> owner, Object[] table, int size) {
+			this.owner = owner;
+			this.table = table;
+			this.size = size;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Entry)) {
+				return false;
+			}
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			int index = findKey(table, entry.getKey(), hash(entry.getKey()));
+			return index >= 0 && valueEquals(table[index + 1], entry.getValue());
+		}
+
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			return new EntryIterator(owner, table);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * The current snapshot; transient due to custom serialization.
+	 */
+	private transient volatile Snapshot snapshot = EMPTY;
+
+	public CopyOnWriteLowMemoryHashMap() {
+	}
+
+	public CopyOnWriteLowMemoryHashMap(Map<? extends K, ? extends V> m) {
+		putAll(m);
+	}
+
+	@Override
+	public synchronized void clear() {
+		snapshot = EMPTY;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return findKey(snapshot.table, key, hash(key)) >= 0;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		Object[] table = snapshot.table;
+		for (int i = 0; i < table.length; i += 2) {
+			if (table[i] != null && valueEquals(table[i + 1], value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a view of the entries in the current snapshot, which does not
+	 * change when the map is modified. Removing entries through the view
+	 * removes them from the map.
+	 */
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		Snapshot current = snapshot;
+		return new EntrySet(this, current.table, current.size);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		Object[] table = snapshot.table;
+		int index = findKey(table, key, hash(key));
+		return (index < 0) ? null : (V) table[index + 1];
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return snapshot.size == 0;
+	}
+
+	/**
+	 * Applies a batch of changes with a single copy of the table. The
+	 * mutation is given a private working copy of the map, which it may read
+	 * and modify through {@link Map#get(Object)}, {@link Map#put(Object, Object)},
+	 * {@link Map#remove(Object)} and {@link Map#clear()}; when it returns, the
+	 * working copy replaces the contents of this map. Readers see either all of
+	 * the changes or none of them. If the mutation throws an exception, this
+	 * map is left unchanged.
+	 * @param mutation The changes to apply
+	 */
+	public synchronized void mutate(IMutation<K, V> mutation) {
+		Snapshot original = snapshot;
+		Draft draft = new Draft(original);
+		mutation.apply(draft);
+		snapshot = draft.publish(original);
+	}
+
+	@Override
+	public synchronized V put(K key, V value) {
+		Snapshot original = snapshot;
+		Draft draft = new Draft(original);
+		V previousValue = draft.put(key, value);
+		snapshot = draft.publish(original);
+		return previousValue;
+	}
+
+	@Override
+	public synchronized void putAll(Map<? extends K, ? extends V> m) {
+		Snapshot original = snapshot;
+		Draft draft = new Draft(original);
+		draft.ensureWritable(original.size + m.size());
+		for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+			draft.put(entry.getKey(), entry.getValue());
+		}
+		snapshot = draft.publish(original);
+	}
+
+	@SuppressWarnings("unchecked")
+	public synchronized V putIfAbsent(K key, V value) {
+		Object[] table = snapshot.table;
+		int index = findKey(table, key, hash(key));
+		if (index >= 0) {
+			return (V) table[index + 1];
+		}
+		return put(key, value);
+	}
+
+	@Override
+	public synchronized V remove(Object key) {
+		Snapshot original = snapshot;
+		Draft draft = new Draft(original);
+		V previousValue = draft.remove(key);
+		snapshot = draft.publish(original);
+		return previousValue;
+	}
+
+	public synchronized boolean remove(Object key, Object value) {
+		Object[] table = snapshot.table;
+		int index = findKey(table, key, hash(key));
+		if (index < 0 || !valueEquals(table[index + 1], value)) {
+			return false;
+		}
+		remove(key);
+		return true;
+	}
+
+	public synchronized V replace(K key, V value) {
+		Object[] table = snapshot.table;
+		int index = findKey(table, key, hash(key));
+		if (index < 0) {
+			return null;
+		}
+		return put(key, value);
+	}
+
+	public synchronized boolean replace(K key, V oldValue, V newValue) {
+		Object[] table = snapshot.table;
+		int index = findKey(table, key, hash(key));
+		if (index < 0 || !valueEquals(table[index + 1], oldValue)) {
+			return false;
+		}
+		put(key, newValue);
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return snapshot.size;
+	}
+
+	/**
+	 * Returns whether two keys are equal for the purposes of this map.
+	 */
+	protected boolean keyEquals(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	/**
+	 * Returns the hashCode for a key.
+	 */
+	protected int keyHashCode(Object k) {
+		return (k == null) ? 0 : k.hashCode();
+	}
+
+	/**
+	 * Returns whether two values are equal for the purposes of this map.
+	 */
+	protected boolean valueEquals(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	/**
+	 * Returns the index in a table at which a particular key resides, or -1
+	 * if the key is not in the table. Default access to avoid synthetic
+	 * accessors from inner classes.
+	 */
+	int findKey(Object[] t, Object k, int hash) {
+		int index = slotIndex(t, hash);
+		while (true) {
+			Object existing = t[index];
+			if (existing == null) {
+				return -1;
+			}
+			if (keyEquals(k, LowMemoryHashMap.unmaskNullKey(existing))) {
+				return index;
+			}
+			index = nextIndex(t, index);
+		}
+	}
+
+	/**
+	 * Returns the index in a table at which a particular key resides, or the
+	 * index of an empty slot where it should be inserted. Default access to
+	 * avoid synthetic accessors from inner classes.
+	 */
+	int findKeyOrEmpty(Object[] t, Object k, int hash) {
+		int index = slotIndex(t, hash);
+		while (true) {
+			Object existing = t[index];
+			if (existing == null) {
+				return index;
+			}
+			if (keyEquals(k, LowMemoryHashMap.unmaskNullKey(existing))) {
+				return index;
+			}
+			index = nextIndex(t, index);
+		}
+	}
+
+	/**
+	 * Returns the spread hash code of a key. Default access to avoid synthetic
+	 * accessors from inner classes.
+	 */
+	int hash(Object key) {
+		return LowMemoryHashing.spread(keyHashCode(key));
+	}
+
+	/**
+	 * Fills the hole left by a removal in the same way as
+	 * {@link LowMemoryHashMap}. Default access to avoid synthetic accessors
+	 * from inner classes.
+	 */
+	void plugHole(Object[] t, int hole) {
+		int index = nextIndex(t, hole);
+		Object k;
+		while ((k = t[index]) != null) {
+			int targetIndex = slotIndex(t, hash(LowMemoryHashMap.unmaskNullKey(k)));
+			boolean plug;
+			if (hole < index) {
+				plug = !(hole < targetIndex && targetIndex <= index);
+			} else {
+				plug = index < targetIndex && targetIndex <= hole;
+			}
+			if (plug) {
+				t[hole] = k;
+				t[hole + 1] = t[index + 1];
+				t[index] = null;
+				t[index + 1] = null;
+				hole = index;
+			}
+			index = nextIndex(t, index);
+		}
+	}
+
+	/**
+	 * Returns a copy of a table with a different capacity. Default access to
+	 * avoid synthetic accessors from inner classes.
+	 */
+	Object[] rehash(Object[] oldTable, int newCapacity) {
+		Object[] newTable = new Object[newCapacity * 2];
+		for (int i = 0; i < oldTable.length; i += 2) {
+			Object k = oldTable[i];
+			if (k != null) {
+				int newIndex = slotIndex(newTable,
+						hash(LowMemoryHashMap.unmaskNullKey(k)));
+				while (newTable[newIndex] != null) {
+					newIndex = nextIndex(newTable, newIndex);
+				}
+				newTable[newIndex] = k;
+				newTable[newIndex + 1] = oldTable[i + 1];
+			}
+		}
+		return newTable;
+	}
+
+	private static int nextIndex(Object[] t, int index) {
+		index += 2;
+		return (index == t.length) ? 0 : index;
+	}
+
+	private static int slotIndex(Object[] t, int hash) {
+		return (hash & ((t.length >> 1) - 1)) << 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		Draft draft = new Draft(EMPTY);
+		int items = in.readInt();
+		for (int i = 0; i < items; i++) {
+			Object key = in.readObject();
+			Object value = in.readObject();
+			draft.put((K) key, (V) value);
+		}
+		snapshot = draft.publish(EMPTY);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		Snapshot current = snapshot;
+		out.writeInt(current.size);
+		for (int i = 0; i < current.table.length; i += 2) {
+			if (current.table[i] != null) {
+				out.writeObject(LowMemoryHashMap.unmaskNullKey(current.table[i]));
+				out.writeObject(current.table[i + 1]);
+			}
+		}
+	}
+}
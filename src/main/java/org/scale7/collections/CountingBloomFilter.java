@@ -0,0 +1,247 @@
+package org.scale7.collections;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter from which elements can be removed, which keeps a small
+ * counter in place of each bit. Adding an element increments its k counters
+ * and removing it decrements them, and an element might be present while all
+ * of its counters are non-zero. The counters are packed into a
+ * <code>long[]</code>, {@link #DEFAULT_BITS_PER_COUNTER} bits each by default,
+ * and elements are hashed in the same way as a {@link BloomFilter} constructed
+ * with the same funnel.
+ * <p>
+ * A counter that reaches its maximum value saturates: further increments are
+ * counted as overflows, and it is never decremented again, since its true
+ * count is no longer known and decrementing it could later make present
+ * elements appear absent. An element that was never added must not be
+ * removed, as that could do the same, so {@link #remove(Object)} removes only
+ * elements that might be present.
+ *
+ * @param <E>
+ *            the element type
+ */
+@SuppressWarnings("serial")
+public class CountingBloomFilter<E> implements Serializable {
+
+	/**
+	 * The size of each counter unless another is specified, which is ample
+	 * for the counts that occur in a filter of optimal k.
+	 */
+	public static final int DEFAULT_BITS_PER_COUNTER = 4;
+
+	private final long[] words;
+	private final long counterCount;
+	private final long expectedElements;
+	private final int k;
+	private final IFunnel<? super E> funnel;
+
+	private final int bitsPerCounter;
+	private final int counterShift; // log2 of the number of counters per word
+	private final long counterMax;
+
+	private long addedElements;
+	private long overflows;
+
+	/**
+	 * Constructs an empty filter with counters of the default size.
+	 * @param counterCount The number of counters in the filter
+	 * @param expectedElements The maximum number of elements the filter is expected to contain
+	 * @param funnel Puts the values of each element to be hashed
+	 */
+	public CountingBloomFilter(long counterCount, long expectedElements, IFunnel<? super E> funnel) {
+		this(counterCount, expectedElements, funnel, DEFAULT_BITS_PER_COUNTER);
+	}
+
+	/**
+	 * Constructs an empty filter.
+	 * @param counterCount The number of counters in the filter
+	 * @param expectedElements The maximum number of elements the filter is expected to contain
+	 * @param funnel Puts the values of each element to be hashed
+	 * @param bitsPerCounter The size of each counter, which is 2, 4, 8 or 16
+	 */
+	public CountingBloomFilter(long counterCount, long expectedElements, IFunnel<? super E> funnel,
+			int bitsPerCounter) {
+		if (bitsPerCounter != 2 && bitsPerCounter != 4 && bitsPerCounter != 8 && bitsPerCounter != 16) {
+			throw new IllegalArgumentException("bitsPerCounter must be 2, 4, 8 or 16");
+		}
+		if (funnel == null) {
+			throw new NullPointerException("funnel");
+		}
+		this.bitsPerCounter = bitsPerCounter;
+		this.counterShift = Integer.numberOfTrailingZeros(64 / bitsPerCounter);
+		this.counterMax = (1L << bitsPerCounter) - 1;
+		long wordCount = (counterCount + (1L << counterShift) - 1) >>> counterShift;
+		if (counterCount <= 0 || wordCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("counterCount must be positive and fit 2^31 words");
+		}
+		this.words = new long[(int) wordCount];
+		this.counterCount = counterCount;
+		this.expectedElements = expectedElements;
+		this.k = BloomHashing.optimalK(counterCount, expectedElements);
+		this.funnel = funnel;
+	}
+
+	/**
+	 * Adds an element to the filter.
+	 * @param element The element
+	 */
+	public void add(E element) {
+		Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+		for (int i = 0; i < k; i++) {
+			long index = BloomHashing.index(h.h1, h.h2, i, counterCount);
+			int word = (int) (index >>> counterShift);
+			int shift = counterOffset(index);
+			if (((words[word] >>> shift) & counterMax) == counterMax) {
+				++overflows;
+			} else {
+				words[word] += 1L << shift;
+			}
+		}
+		++addedElements;
+	}
+
+	/**
+	 * Clears every counter and the statistics.
+	 */
+	public void clear() {
+		Arrays.fill(words, 0L);
+		addedElements = 0;
+		overflows = 0;
+	}
+
+	/**
+	 * Returns whether an element might be present in the filter.
+	 * @param element The element
+	 * @return <code>false</code> if the element is certainly not present
+	 */
+	public boolean contains(E element) {
+		Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+		for (int i = 0; i < k; i++) {
+			if (counter(BloomHashing.index(h.h1, h.h2, i, counterCount)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of counters in the filter.
+	 */
+	public long counterCount() {
+		return counterCount;
+	}
+
+	/**
+	 * Returns the number of elements added and not removed since the filter
+	 * was constructed or cleared.
+	 */
+	public long elementCount() {
+		return addedElements;
+	}
+
+	/**
+	 * Returns the probability of a false positive once the expected number of
+	 * elements have been added.
+	 */
+	public double expectedFalsePositiveProbability() {
+		return getFalsePositiveProbability(expectedElements);
+	}
+
+	public int getBitsPerCounter() {
+		return bitsPerCounter;
+	}
+
+	/**
+	 * Returns the probability of a false positive given the specified number
+	 * of elements present.
+	 */
+	public double getFalsePositiveProbability(double numberOfElements) {
+		return BloomHashing.falsePositiveProbability(k, numberOfElements, counterCount);
+	}
+
+	/**
+	 * Returns the probability of a false positive given the number of elements
+	 * present.
+	 */
+	public double getFalsePositiveProbability() {
+		return getFalsePositiveProbability(addedElements);
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * Returns the number of increments lost because a counter was saturated.
+	 */
+	public long overflows() {
+		return overflows;
+	}
+
+	/**
+	 * Removes an element from the filter, if it might be present.
+	 * @param element The element
+	 * @return <code>true</code> if the element might have been present and
+	 *         its counters were decremented, <code>false</code> if it was
+	 *         certainly not present
+	 */
+	public boolean remove(E element) {
+		Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+		for (int i = 0; i < k; i++) {
+			if (counter(BloomHashing.index(h.h1, h.h2, i, counterCount)) == 0) {
+				return false;
+			}
+		}
+		for (int i = 0; i < k; i++) {
+			long index = BloomHashing.index(h.h1, h.h2, i, counterCount);
+			int word = (int) (index >>> counterShift);
+			int shift = counterOffset(index);
+			long counter = (words[word] >>> shift) & counterMax;
+			// an element that was never added may repeat an index whose
+			// counter it has just emptied
+			if (counter != counterMax && counter != 0) {
+				words[word] -= 1L << shift;
+			}
+		}
+		--addedElements;
+		return true;
+	}
+
+	/**
+	 * Returns the number of counters that have saturated.
+	 */
+	public long saturatedCounters() {
+		long saturated = 0;
+		for (long index = 0; index < counterCount; index++) {
+			if (counter(index) == counterMax) {
+				++saturated;
+			}
+		}
+		return saturated;
+	}
+
+	/**
+	 * Returns a plain Bloom filter of the elements present, with a bit set for
+	 * each non-zero counter, for shipping to nodes that only query. It hashes
+	 * elements in the same way as this filter.
+	 */
+	public BloomFilter<E> toBloomFilter() {
+		LongBitArray bits = new LongBitArray(counterCount);
+		for (long index = 0; index < counterCount; index++) {
+			if (counter(index) != 0) {
+				bits.set(index);
+			}
+		}
+		return new BloomFilter<E>(bits, expectedElements, addedElements, funnel);
+	}
+
+	private long counter(long index) {
+		return (words[(int) (index >>> counterShift)] >>> counterOffset(index)) & counterMax;
+	}
+
+	private int counterOffset(long index) {
+		return ((int) index & ((1 << counterShift) - 1)) * bitsPerCounter;
+	}
+}
@@ -0,0 +1,200 @@
+package org.scale7.collections;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map for data that is built once and then read many times. The
+ * entries are packed densely into a pair of arrays with no empty slots, and are
+ * located with a {@link MinimalPerfectHash} over their keys' hash codes, so
+ * that looking up a key costs one probe of the arrays and one call to
+ * {@link Object#equals(Object)}. Keys whose hash code is shared with an
+ * earlier key cannot be told apart by the function; they are found instead
+ * through a small secondary index, which is only consulted when the probe
+ * misses.
+ * <p>
+ * Every method that would modify the map throws
+ * {@link UnsupportedOperationException}. Supports <code>null</code> keys and
+ * values.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+@SuppressWarnings("serial")
+public final class FrozenLowMemoryHashMap<K, V> extends AbstractMap<K, V>
+		implements Serializable {
+
+	private class EntryIterator implements Iterator<Entry<K, V>> {
+		private int index = 0;
+
+		public boolean hasNext() {
+			return index < keys.length;
+		}
+
+		@SuppressWarnings("unchecked")
+		public Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entry<K, V> toReturn = new SimpleImmutableEntry<K, V>((K) keys[index],
+					(V) values[index]);
+			++index;
+			return toReturn;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Entry<K, V>> {
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Entry)) {
+				return false;
+			}
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			int index = indexOf(entry.getKey());
+			return index >= 0 && equal(values[index], entry.getValue());
+		}
+
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size() {
+			return keys.length;
+		}
+	}
+
+	/**
+	 * The keys, at the indices given by {@link #hash}, followed by any keys
+	 * whose hash codes it does not distinguish. Default access to avoid
+	 * synthetic accessors from inner classes.
+	 */
+	final Object[] keys;
+
+	/**
+	 * The values, at the same indices as their keys. Default access to avoid
+	 * synthetic accessors from inner classes.
+	 */
+	final Object[] values;
+
+	private final MinimalPerfectHash hash;
+
+	/**
+	 * The indices of the keys that share a hash code with an earlier key, or
+	 * <code>null</code> if there are none.
+	 */
+	private final ObjectIntLowMemoryHashMap<Object> collisions;
+
+	/**
+	 * Constructs a frozen copy of a map.
+	 * @param m The map to copy
+	 * @see LowMemoryHashMap#freeze()
+	 */
+	public FrozenLowMemoryHashMap(Map<? extends K, ? extends V> m) {
+		int n = m.size();
+		Object[] sourceKeys = new Object[n];
+		Object[] sourceValues = new Object[n];
+		int[] hashCodes = new int[n];
+		int i = 0;
+		for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+			sourceKeys[i] = entry.getKey();
+			sourceValues[i] = entry.getValue();
+			hashCodes[i] = keyHashCode(sourceKeys[i]);
+			++i;
+		}
+
+		int[] indices = new int[n];
+		hash = MinimalPerfectHash.build(hashCodes, indices);
+		keys = new Object[n];
+		values = new Object[n];
+		for (i = 0; i < n; i++) {
+			keys[indices[i]] = sourceKeys[i];
+			values[indices[i]] = sourceValues[i];
+		}
+		if (hash.size() == n) {
+			collisions = null;
+		} else {
+			collisions = new ObjectIntLowMemoryHashMap<Object>(n - hash.size());
+			for (i = hash.size(); i < n; i++) {
+				collisions.put(keys[i], i);
+			}
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		for (Object existing : values) {
+			if (equal(existing, value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new EntrySet();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		int index = indexOf(key);
+		return (index < 0) ? null : (V) values[index];
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return keys.length == 0;
+	}
+
+	@Override
+	public int size() {
+		return keys.length;
+	}
+
+	/**
+	 * Returns the index at which a particular key resides, or -1 if the key
+	 * is not in the map. Default access to avoid synthetic accessors from
+	 * inner classes.
+	 */
+	int indexOf(Object key) {
+		if (keys.length == 0) {
+			return -1;
+		}
+		int index = hash.indexOf(keyHashCode(key));
+		if (equal(key, keys[index])) {
+			return index;
+		}
+		return (collisions == null) ? -1 : collisions.getOrDefault(key, -1);
+	}
+
+	/**
+	 * Returns whether two keys or values are equal. Default access to avoid
+	 * synthetic accessors from inner classes.
+	 */
+	static boolean equal(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	private static int keyHashCode(Object o) {
+		return (o == null) ? 0 : o.hashCode();
+	}
+}
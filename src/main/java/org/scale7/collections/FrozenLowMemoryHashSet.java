@@ -0,0 +1,121 @@
+package org.scale7.collections;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable set for data that is built once and then read many times. The
+ * items are packed densely into an array with no empty slots and located with
+ * a {@link MinimalPerfectHash}, in the same way as the entries of a
+ * {@link FrozenLowMemoryHashMap}, so that a membership test costs one probe of
+ * the array and one call to {@link Object#equals(Object)}.
+ * <p>
+ * Every method that would modify the set throws
+ * {@link UnsupportedOperationException}. Supports <code>null</code> items.
+ *
+ * @param <E>
+ *            the element type
+ */
+@SuppressWarnings("serial")
+public final class FrozenLowMemoryHashSet<E> extends AbstractSet<E> implements
+		Serializable {
+
+	private class SetIterator implements Iterator<E> {
+		private int index = 0;
+
+		public boolean hasNext() {
+			return index < items.length;
+		}
+
+		@SuppressWarnings("unchecked")
+		public E next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return (E) items[index++];
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * The items, at the indices given by {@link #hash}, followed by any items
+	 * whose hash codes it does not distinguish. Default access to avoid
+	 * synthetic accessors from inner classes.
+	 */
+	final Object[] items;
+
+	private final MinimalPerfectHash hash;
+
+	/**
+	 * The indices of the items that share a hash code with an earlier item,
+	 * or <code>null</code> if there are none.
+	 */
+	private final ObjectIntLowMemoryHashMap<Object> collisions;
+
+	/**
+	 * Constructs a frozen copy of a collection, ignoring duplicate items.
+	 * @param c The collection to copy
+	 * @see LowMemoryHashSet#freeze()
+	 */
+	public FrozenLowMemoryHashSet(Collection<? extends E> c) {
+		Object[] sourceItems = (c instanceof Set<?>) ? c.toArray()
+				: new LowMemoryHashSet<E>(c).toArray();
+		int n = sourceItems.length;
+		int[] hashCodes = new int[n];
+		for (int i = 0; i < n; i++) {
+			hashCodes[i] = itemHashCode(sourceItems[i]);
+		}
+
+		int[] indices = new int[n];
+		hash = MinimalPerfectHash.build(hashCodes, indices);
+		items = new Object[n];
+		for (int i = 0; i < n; i++) {
+			items[indices[i]] = sourceItems[i];
+		}
+		if (hash.size() == n) {
+			collisions = null;
+		} else {
+			collisions = new ObjectIntLowMemoryHashMap<Object>(n - hash.size());
+			for (int i = hash.size(); i < n; i++) {
+				collisions.put(items[i], i);
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (items.length == 0) {
+			return false;
+		}
+		if (FrozenLowMemoryHashMap.equal(o, items[hash.indexOf(itemHashCode(o))])) {
+			return true;
+		}
+		return collisions != null && collisions.containsKey(o);
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		return new SetIterator();
+	}
+
+	@Override
+	public int size() {
+		return items.length;
+	}
+
+	@Override
+	public Object[] toArray() {
+		return items.clone();
+	}
+
+	private static int itemHashCode(Object o) {
+		return (o == null) ? 0 : o.hashCode();
+	}
+}
@@ -0,0 +1,120 @@
+package org.scale7.collections;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Funnels for common element types. Each is a serializable singleton that
+ * puts its element's primitive values directly, so that elements of these
+ * types are hashed without allocating.
+ */
+public final class Funnels {
+
+	/**
+	 * Puts a <code>long</code> as a single 8 byte value.
+	 */
+	public static final IFunnel<Long> LONG = new LongFunnel();
+
+	/**
+	 * Puts an <code>int</code> as a single 4 byte value.
+	 */
+	public static final IFunnel<Integer> INTEGER = new IntegerFunnel();
+
+	/**
+	 * Puts the contents of a <code>byte[]</code>.
+	 */
+	public static final IFunnel<byte[]> BYTE_ARRAY = new ByteArrayFunnel();
+
+	/**
+	 * Puts the characters of a <code>CharSequence</code>, so that a
+	 * <code>String</code>, <code>StringBuilder</code> or <code>CharBuffer</code>
+	 * holding the same characters are hashed alike.
+	 */
+	public static final IFunnel<CharSequence> CHAR_SEQUENCE = new CharSequenceFunnel();
+
+	/**
+	 * Puts the remaining bytes of a <code>ByteBuffer</code> without changing its
+	 * position.
+	 */
+	public static final IFunnel<ByteBuffer> BYTE_BUFFER = new ByteBufferFunnel();
+
+	/**
+	 * Puts the characters of the element's <code>toString()</code>, for element
+	 * types that have no better funnel.
+	 */
+	public static final IFunnel<Object> TO_STRING = new ToStringFunnel();
+
+	private Funnels() {
+	}
+
+	private static final class LongFunnel implements IFunnel<Long> {
+		private static final long serialVersionUID = 1L;
+
+		public void funnel(Long element, IHashSink sink) {
+			sink.putLong(element.longValue());
+		}
+
+		private Object readResolve() {
+			return LONG;
+		}
+	}
+
+	private static final class IntegerFunnel implements IFunnel<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		public void funnel(Integer element, IHashSink sink) {
+			sink.putInt(element.intValue());
+		}
+
+		private Object readResolve() {
+			return INTEGER;
+		}
+	}
+
+	private static final class ByteArrayFunnel implements IFunnel<byte[]> {
+		private static final long serialVersionUID = 1L;
+
+		public void funnel(byte[] element, IHashSink sink) {
+			sink.putBytes(element, 0, element.length);
+		}
+
+		private Object readResolve() {
+			return BYTE_ARRAY;
+		}
+	}
+
+	private static final class CharSequenceFunnel implements IFunnel<CharSequence> {
+		private static final long serialVersionUID = 1L;
+
+		public void funnel(CharSequence element, IHashSink sink) {
+			sink.putChars(element);
+		}
+
+		private Object readResolve() {
+			return CHAR_SEQUENCE;
+		}
+	}
+
+	private static final class ByteBufferFunnel implements IFunnel<ByteBuffer> {
+		private static final long serialVersionUID = 1L;
+
+		public void funnel(ByteBuffer element, IHashSink sink) {
+			sink.putBuffer(element);
+		}
+
+		private Object readResolve() {
+			return BYTE_BUFFER;
+		}
+	}
+
+	private static final class ToStringFunnel implements IFunnel<Object> {
+		private static final long serialVersionUID = 1L;
+
+		public void funnel(Object element, IHashSink sink) {
+			sink.putChars(element.toString());
+		}
+
+		private Object readResolve() {
+			return TO_STRING;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package org.scale7.collections;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A snapshot of the statistics of a {@link LowMemoryHashMap} or
+ * {@link LowMemoryHashSet}. The occupancy of the table is measured whenever a
+ * snapshot is taken, but the counts of probes, resizes and removals are only
+ * kept by a table constructed to collect statistics, and are otherwise zero.
+ * <p>
+ * Element <code>i</code> of the probe length histogram is the number of
+ * lookups that examined <code>i + 1</code> slots, except that the last
+ * element counts every lookup that examined at least as many slots as there
+ * are elements.
+ */
+@SuppressWarnings("serial")
+public final class HashTableStatistics implements Serializable {
+
+	private final int size;
+	private final int capacity;
+	private final long[] probeLengthHistogram;
+	private final int maxClusterLength;
+	private final double meanDisplacement;
+	private final long resizeCount;
+	private final long resizeTimeNanos;
+	private final long plugHoleTimeNanos;
+
+	HashTableStatistics(int size, int capacity, long[] probeLengthHistogram,
+			int maxClusterLength, double meanDisplacement, long resizeCount,
+			long resizeTimeNanos, long plugHoleTimeNanos) {
+		this.size = size;
+		this.capacity = capacity;
+		this.probeLengthHistogram = probeLengthHistogram;
+		this.maxClusterLength = maxClusterLength;
+		this.meanDisplacement = meanDisplacement;
+		this.resizeCount = resizeCount;
+		this.resizeTimeNanos = resizeTimeNanos;
+		this.plugHoleTimeNanos = plugHoleTimeNanos;
+	}
+
+	/**
+	 * The number of entries in the table.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * The number of slots in the table.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * The number of lookups recorded in the probe length histogram.
+	 */
+	public long getLookups() {
+		long lookups = 0;
+		for (long count : probeLengthHistogram) {
+			lookups += count;
+		}
+		return lookups;
+	}
+
+	/**
+	 * The number of lookups by the number of slots they examined.
+	 */
+	public long[] getProbeLengthHistogram() {
+		return probeLengthHistogram.clone();
+	}
+
+	/**
+	 * The mean number of slots examined by a lookup, counting those in the
+	 * last element of the histogram as examining that many slots.
+	 */
+	public double getMeanProbeLength() {
+		long lookups = 0, probes = 0;
+		for (int i = 0; i < probeLengthHistogram.length; ++i) {
+			lookups += probeLengthHistogram[i];
+			probes += probeLengthHistogram[i] * (i + 1);
+		}
+		return (lookups == 0) ? 0 : (double) probes / lookups;
+	}
+
+	/**
+	 * The length of the longest run of occupied slots.
+	 */
+	public int getMaxClusterLength() {
+		return maxClusterLength;
+	}
+
+	/**
+	 * The mean distance of an entry from its home slot.
+	 */
+	public double getMeanDisplacement() {
+		return meanDisplacement;
+	}
+
+	/**
+	 * The number of times the table has grown or shrunk.
+	 */
+	public long getResizeCount() {
+		return resizeCount;
+	}
+
+	/**
+	 * The total time spent growing or shrinking the table.
+	 */
+	public long getResizeTimeNanos() {
+		return resizeTimeNanos;
+	}
+
+	/**
+	 * The total time spent reorganizing the table after removals.
+	 */
+	public long getPlugHoleTimeNanos() {
+		return plugHoleTimeNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "HashTableStatistics[size=" + size + ", capacity=" + capacity
+				+ ", lookups=" + getLookups() + ", meanProbeLength=" + getMeanProbeLength()
+				+ ", maxClusterLength=" + maxClusterLength + ", meanDisplacement="
+				+ meanDisplacement + ", resizeCount=" + resizeCount
+				+ ", resizeTimeNanos=" + resizeTimeNanos + ", plugHoleTimeNanos="
+				+ plugHoleTimeNanos + ", probeLengthHistogram="
+				+ Arrays.toString(probeLengthHistogram) + "]";
+	}
+}
@@ -0,0 +1,33 @@
+package org.scale7.collections;
+
+/**
+ * Exposes the probe and occupancy statistics of a hash table over JMX. Every
+ * attribute is read from a fresh {@link HashTableStatistics} snapshot, so the
+ * table should be quiescent for the attributes to be consistent with each
+ * other. For example:
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(map.statisticsMBean(),
+ *         new ObjectName("org.scale7:type=LowMemoryHashMap,name=sessions"));
+ * </pre>
+ */
+public interface HashTableStatisticsMXBean {
+	public int getSize();
+
+	public int getCapacity();
+
+	public long getLookups();
+
+	public long[] getProbeLengthHistogram();
+
+	public double getMeanProbeLength();
+
+	public int getMaxClusterLength();
+
+	public double getMeanDisplacement();
+
+	public long getResizeCount();
+
+	public long getResizeTimeNanos();
+
+	public long getPlugHoleTimeNanos();
+}
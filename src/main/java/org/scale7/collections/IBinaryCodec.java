@@ -0,0 +1,20 @@
+package org.scale7.collections;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encodes and decodes values of a given type in a compact binary form, without the class
+ * descriptors and headers written by Java serialization. Codecs are used to write the keys and
+ * values of collections such as {@link LowMemoryHashMap} using
+ * {@link LowMemoryHashMap#writeBinary(DataOutput, IBinaryCodec, IBinaryCodec)}. Standard codecs
+ * are provided by {@link BinaryCodecs}.
+ *
+ * @param <T>	The type of value encoded
+ */
+public interface IBinaryCodec<T> {
+	public void write(T value, DataOutput out) throws IOException;
+
+	public T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,38 @@
+package org.scale7.collections;
+
+/**
+ * A fixed-size array of bits addressed by <code>long</code> indices, in which
+ * a Bloom filter keeps its bits. Bits are grouped into 64-bit words, bit
+ * <code>i</code> being bit <code>i % 64</code> of word <code>i / 64</code>.
+ */
+public interface IBitArray {
+	/**
+	 * Returns the number of bits in the array.
+	 */
+	public long bitSize();
+
+	public boolean get(long index);
+
+	/**
+	 * Sets a bit, returning whether it was previously clear.
+	 */
+	public boolean set(long index);
+
+	public void clear(long index);
+
+	/**
+	 * Clears every bit.
+	 */
+	public void clearAll();
+
+	/**
+	 * Returns the number of bits that are set.
+	 */
+	public long cardinality();
+
+	/**
+	 * Returns the word holding bits <code>64 * wordIndex</code> to
+	 * <code>64 * wordIndex + 63</code>.
+	 */
+	public long getWord(long wordIndex);
+}
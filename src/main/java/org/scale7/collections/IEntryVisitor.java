@@ -0,0 +1,12 @@
+package org.scale7.collections;
+
+/**
+ * Receives the entries of a map one at a time, as an allocation-free
+ * alternative to iterating over its entry set.
+ *
+ * @param <K>	The key type
+ * @param <V>	The value type
+ */
+public interface IEntryVisitor<K, V> {
+	public void visit(K key, V value);
+}
@@ -0,0 +1,14 @@
+package org.scale7.collections;
+
+import java.io.Serializable;
+
+/**
+ * Decomposes an element into primitive values for hashing. A funnel is
+ * serialized along with the Bloom filter that uses it, and must put the same
+ * values for elements that are equal.
+ *
+ * @param <T>	The element type
+ */
+public interface IFunnel<T> extends Serializable {
+	public void funnel(T element, IHashSink sink);
+}
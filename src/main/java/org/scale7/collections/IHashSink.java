@@ -0,0 +1,27 @@
+package org.scale7.collections;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the primitive values that make up an element, so that the element
+ * can be hashed without first being converted to a string or byte array.
+ */
+public interface IHashSink {
+	public void putByte(byte b);
+
+	public void putInt(int i);
+
+	public void putLong(long l);
+
+	public void putBytes(byte[] bytes, int offset, int length);
+
+	/**
+	 * Puts each character as a 16-bit code unit.
+	 */
+	public void putChars(CharSequence chars);
+
+	/**
+	 * Puts the remaining bytes of a buffer without changing its position.
+	 */
+	public void putBuffer(ByteBuffer buffer);
+}
@@ -0,0 +1,11 @@
+package org.scale7.collections;
+
+/**
+ * Computes the value to be mapped to a key that is not yet present.
+ *
+ * @param <K>	The key type
+ * @param <V>	The value type
+ */
+public interface IKeyFunction<K, V> {
+	public V apply(K key);
+}
@@ -0,0 +1,11 @@
+package org.scale7.collections;
+
+/**
+ * Computes the value for a key that is missing from a cache.
+ *
+ * @param <K>	The key type
+ * @param <V>	The value type
+ */
+public interface ILoader<K, V> {
+	public V load(K key) throws Exception;
+}
@@ -0,0 +1,10 @@
+package org.scale7.collections;
+
+/**
+ * Combines the value currently mapped to a key with a value being merged in.
+ *
+ * @param <V>	The value type
+ */
+public interface IMergeFunction<V> {
+	public V apply(V oldValue, V value);
+}
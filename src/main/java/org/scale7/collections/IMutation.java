@@ -0,0 +1,13 @@
+package org.scale7.collections;
+
+import java.util.Map;
+
+/**
+ * A batch of changes to be applied to a map as a single update.
+ *
+ * @param <K>	The key type
+ * @param <V>	The value type
+ */
+public interface IMutation<K, V> {
+	public void apply(Map<K, V> map);
+}
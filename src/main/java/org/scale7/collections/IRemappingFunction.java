@@ -0,0 +1,12 @@
+package org.scale7.collections;
+
+/**
+ * Computes a new value for a key from the value currently mapped to it, which
+ * is <code>null</code> if the key is not present.
+ *
+ * @param <K>	The key type
+ * @param <V>	The value type
+ */
+public interface IRemappingFunction<K, V> {
+	public V apply(K key, V value);
+}
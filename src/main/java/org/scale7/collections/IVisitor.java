@@ -0,0 +1,11 @@
+package org.scale7.collections;
+
+/**
+ * Receives the items of a collection one at a time, as an allocation-free
+ * alternative to iterating over it.
+ *
+ * @param <T>	The item type
+ */
+public interface IVisitor<T> {
+	public void visit(T item);
+}
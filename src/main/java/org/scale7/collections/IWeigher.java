@@ -0,0 +1,12 @@
+package org.scale7.collections;
+
+/**
+ * Calculates the weight of a cache entry, such as its approximate size in
+ * bytes, for caches bounded by total weight rather than number of entries.
+ *
+ * @param <K>	The key type
+ * @param <V>	The value type
+ */
+public interface IWeigher<K, V> {
+	public int weigh(K key, V value);
+}
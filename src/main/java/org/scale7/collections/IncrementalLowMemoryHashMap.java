@@ -0,0 +1,440 @@
+package org.scale7.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A memory-efficient hash map that grows without ever rehashing its whole
+ * table at once, for maps so large that the pause of a full rehash would be
+ * unacceptable. The table is open addressed with linear probing like
+ * {@link LowMemoryHashMap}, but when it must grow the new table is allocated
+ * and the old one is kept, and each subsequent <code>get</code>,
+ * <code>put</code> and <code>remove</code> migrates the next
+ * {@link #MIGRATION_STEP} slots of the old table to the new one. Until
+ * migration completes, new entries go to the new table and lookups consult the
+ * new table and then the old one. Migrated and removed slots of the old table
+ * are marked rather than emptied, so that its probe sequences stay intact
+ * without moving any entries.
+ * <p>
+ * At {@link #MIGRATION_STEP} slots per operation the old table is always
+ * drained long before the new one fills up, so the cost of any single
+ * operation is bounded regardless of the size of the map. The only operations
+ * that finish a migration at once are those that visit every entry anyway,
+ * such as iteration, which would otherwise have to cope with entries moving
+ * between the tables. Supports <code>null</code> keys and values.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+@SuppressWarnings("serial")
+public class IncrementalLowMemoryHashMap<K, V> extends AbstractMap<K, V> implements Serializable {
+
+	/**
+	 * The number of old slots migrated by each operation during a resize.
+	 */
+	public static final int MIGRATION_STEP = 16;
+
+	/**
+	 * Marks a slot of the old table whose entry has been migrated or removed.
+	 */
+	private static final Object MOVED = new Object();
+
+	private class SlotEntry implements Entry<K, V> {
+		private final int index;
+
+		SlotEntry(int index) {
+			this.index = index;
+		}
+
+		@SuppressWarnings("unchecked")
+		public K getKey() {
+			return (K) LowMemoryHashMap.unmaskNullKey(keys[index]);
+		}
+
+		@SuppressWarnings("unchecked")
+		public V getValue() {
+			return (V) values[index];
+		}
+
+		@SuppressWarnings("unchecked")
+		public V setValue(V value) {
+			V previous = (V) values[index];
+			values[index] = value;
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry<?, ?>)) {
+				return false;
+			}
+			Entry<?, ?> e = (Entry<?, ?>) o;
+			return FrozenLowMemoryHashMap.equal(getKey(), e.getKey())
+					&& FrozenLowMemoryHashMap.equal(getValue(), e.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			K k = getKey();
+			V v = getValue();
+			return ((k == null) ? 0 : k.hashCode()) ^ ((v == null) ? 0 : v.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+
+	private class EntryIterator implements Iterator<Entry<K, V>> {
+		private int index = 0;
+		private int last = -1;
+
+		EntryIterator() {
+			finishResize();
+			advanceToItem();
+		}
+
+		public boolean hasNext() {
+			return index < keys.length;
+		}
+
+		public Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = index;
+			Entry<K, V> toReturn = new SlotEntry(index++);
+			advanceToItem();
+			return toReturn;
+		}
+
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			removeAt(last);
+			if (keys[last] != null) {
+				index = last;
+			}
+			last = -1;
+		}
+
+		private void advanceToItem() {
+			for (; index < keys.length; ++index) {
+				if (keys[index] != null) {
+					return;
+				}
+			}
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Entry<K, V>> {
+		@Override
+		public void clear() {
+			IncrementalLowMemoryHashMap.this.clear();
+		}
+
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * The current table, to which every new entry is added; transient due to
+	 * custom serialization.
+	 */
+	transient Object[] keys;
+	transient Object[] values;
+
+	/**
+	 * The table being drained by a resize, or <code>null</code> if no resize
+	 * is in progress.
+	 */
+	transient Object[] oldKeys;
+	transient Object[] oldValues;
+
+	/**
+	 * The index of the next slot of the old table to migrate.
+	 */
+	transient int migrated;
+
+	/**
+	 * Number of entries in both tables; transient due to custom
+	 * serialization.
+	 */
+	transient int size;
+
+	public IncrementalLowMemoryHashMap() {
+		initTable(LowMemoryHashing.INITIAL_TABLE_SIZE);
+	}
+
+	/**
+	 * Constructs a map that can hold the specified number of entries without
+	 * resizing.
+	 * @param expectedSize The number of entries the map is expected to hold
+	 */
+	public IncrementalLowMemoryHashMap(int expectedSize) {
+		initTable(LowMemoryHashing.capacityFor(expectedSize));
+	}
+
+	@Override
+	public void clear() {
+		initTable(LowMemoryHashing.INITIAL_TABLE_SIZE);
+		oldKeys = oldValues = null;
+		size = 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		migrateStep();
+		return find(keys, key) >= 0 || (oldKeys != null && find(oldKeys, key) >= 0);
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new EntrySet();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		migrateStep();
+		int index = find(keys, key);
+		if (index >= 0) {
+			return (V) values[index];
+		}
+		if (oldKeys != null) {
+			index = find(oldKeys, key);
+			if (index >= 0) {
+				return (V) oldValues[index];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns whether a resize is in progress, with entries still to be
+	 * migrated from the old table.
+	 */
+	public boolean isResizing() {
+		return oldKeys != null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V put(K key, V value) {
+		migrateStep();
+		int index = find(keys, key);
+		if (index >= 0) {
+			V previous = (V) values[index];
+			values[index] = value;
+			return previous;
+		}
+		if (oldKeys != null) {
+			index = find(oldKeys, key);
+			if (index >= 0) {
+				V previous = (V) oldValues[index];
+				oldValues[index] = value;
+				return previous;
+			}
+		}
+		ensureSizeFor(size + 1);
+		insert(LowMemoryHashMap.maskNullKey(key), value);
+		++size;
+		return null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		migrateStep();
+		int index = find(keys, key);
+		if (index >= 0) {
+			V previous = (V) values[index];
+			removeAt(index);
+			return previous;
+		}
+		if (oldKeys != null) {
+			index = find(oldKeys, key);
+			if (index >= 0) {
+				V previous = (V) oldValues[index];
+				oldKeys[index] = MOVED;
+				oldValues[index] = null;
+				--size;
+				return previous;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Ensures the current table is large enough to contain the specified
+	 * number of entries, starting a resize if it is not. A resize that is
+	 * still in progress is finished first, which cannot happen when entries
+	 * are added one at a time.
+	 */
+	void ensureSizeFor(int expectedSize) {
+		if (LowMemoryHashing.canHold(keys.length, expectedSize)) {
+			return;
+		}
+		finishResize();
+		int newCapacity = keys.length << 1;
+		while (!LowMemoryHashing.canHold(newCapacity, expectedSize)) {
+			newCapacity <<= 1;
+		}
+		oldKeys = keys;
+		oldValues = values;
+		migrated = 0;
+		initTable(newCapacity);
+	}
+
+	/**
+	 * Migrates every remaining slot of the old table.
+	 */
+	void finishResize() {
+		if (oldKeys != null) {
+			migrate(oldKeys.length - migrated);
+		}
+	}
+
+	/**
+	 * Returns the index in a table at which a key resides, or -1 if it is not
+	 * there. Probes pass over the marks left in the old table.
+	 */
+	private int find(Object[] table, Object key) {
+		Object masked = LowMemoryHashMap.maskNullKey(key);
+		int mask = table.length - 1;
+		int index = LowMemoryHashing.spread(masked.hashCode()) & mask;
+		while (true) {
+			Object existing = table[index];
+			if (existing == null) {
+				return -1;
+			}
+			if (existing == masked || (existing != MOVED && masked.equals(existing))) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	private int getIndex(Object maskedKey) {
+		return LowMemoryHashing.spread(maskedKey.hashCode()) & (keys.length - 1);
+	}
+
+	private void initTable(int capacity) {
+		keys = new Object[capacity];
+		values = new Object[capacity];
+	}
+
+	/**
+	 * Inserts an entry whose key is known not to be present into the current
+	 * table.
+	 */
+	private void insert(Object maskedKey, Object value) {
+		int mask = keys.length - 1;
+		int index = getIndex(maskedKey);
+		while (keys[index] != null) {
+			index = (index + 1) & mask;
+		}
+		keys[index] = maskedKey;
+		values[index] = value;
+	}
+
+	/**
+	 * Migrates up to the specified number of slots of the old table, and
+	 * discards the old table once every slot has been migrated.
+	 */
+	private void migrate(int slots) {
+		Object[] oldKeys = this.oldKeys;
+		Object[] oldValues = this.oldValues;
+		int end = Math.min(oldKeys.length, migrated + slots);
+		for (int i = migrated; i < end; ++i) {
+			Object k = oldKeys[i];
+			if (k != null && k != MOVED) {
+				insert(k, oldValues[i]);
+				oldKeys[i] = MOVED;
+				oldValues[i] = null;
+			}
+		}
+		migrated = end;
+		if (end == oldKeys.length) {
+			this.oldKeys = null;
+			this.oldValues = null;
+		}
+	}
+
+	private void migrateStep() {
+		if (oldKeys != null) {
+			migrate(MIGRATION_STEP);
+		}
+	}
+
+	/**
+	 * Removes the entry at an index of the current table, shuffling back any
+	 * entries that belong before the hole in the same way as
+	 * {@link LowMemoryHashMap}.
+	 */
+	private void removeAt(int hole) {
+		--size;
+		keys[hole] = null;
+		values[hole] = null;
+		int mask = keys.length - 1;
+		int index = (hole + 1) & mask;
+		while (keys[index] != null) {
+			int targetIndex = getIndex(keys[index]);
+			boolean movable = (hole < index) ? !(hole < targetIndex && targetIndex <= index)
+					: (index < targetIndex && targetIndex <= hole);
+			if (movable) {
+				keys[hole] = keys[index];
+				values[hole] = values[index];
+				keys[index] = null;
+				values[index] = null;
+				hole = index;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		int entries = in.readInt();
+		initTable(LowMemoryHashing.capacityFor(entries));
+		for (int i = 0; i < entries; i++) {
+			Object key = in.readObject();
+			Object value = in.readObject();
+			insert(LowMemoryHashMap.maskNullKey(key), value);
+		}
+		size = entries;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size);
+		for (Entry<K, V> entry : entrySet()) {
+			out.writeObject(entry.getKey());
+			out.writeObject(entry.getValue());
+		}
+	}
+}
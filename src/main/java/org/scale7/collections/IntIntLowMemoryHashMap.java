@@ -0,0 +1,372 @@
+package org.scale7.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * A memory-efficient hash map from primitive <code>int</code> keys to
+ * primitive <code>int</code> values. The table is open addressed in exactly
+ * the same way as {@link LowMemoryHashMap}, but keys and values are held in
+ * <code>int[]</code> arrays so that no boxing takes place. An empty slot is
+ * marked by a zero key, and so a mapping for the key zero, if present, is held
+ * outside of the table. Since there is no <code>null</code> with which to
+ * signal a missing key, the caller supplies the value that should be returned
+ * when a key is not present.
+ */
+@SuppressWarnings("serial")
+public class IntIntLowMemoryHashMap implements Serializable {
+
+	/**
+	 * Whether the key zero is present, which cannot be stored in the table.
+	 */
+	transient boolean hasZeroKey;
+
+	/**
+	 * Backing store for all the non-zero keys; transient due to custom
+	 * serialization.
+	 */
+	transient int[] keys;
+
+	/**
+	 * Number of pairs in this map, including any mapping for the key zero;
+	 * transient due to custom serialization.
+	 */
+	transient int size = 0;
+
+	/**
+	 * Backing store for all the values; transient due to custom serialization.
+	 */
+	transient int[] values;
+
+	/**
+	 * The value mapped to the key zero, if present.
+	 */
+	transient int zeroValue;
+
+	public IntIntLowMemoryHashMap() {
+		initTable(LowMemoryHashing.INITIAL_TABLE_SIZE);
+	}
+
+	/**
+	 * Constructs a map that can hold the specified number of entries without
+	 * rehashing.
+	 * @param expectedSize The number of entries the map is expected to hold
+	 */
+	public IntIntLowMemoryHashMap(int expectedSize) {
+		initTable(LowMemoryHashing.capacityFor(expectedSize));
+	}
+
+	/**
+	 * Adds to the value mapped to a key, mapping the key to the delta if it is
+	 * absent. The key is located only once, and the table grows only if a new
+	 * mapping is made.
+	 * @param key The key
+	 * @param delta The amount to add
+	 * @return The new value mapped to the key
+	 */
+	public int addTo(int key, int delta) {
+		if (key == 0) {
+			if (!hasZeroKey) {
+				hasZeroKey = true;
+				zeroValue = 0;
+				++size;
+			}
+			return zeroValue += delta;
+		}
+		int index = findKeyOrEmpty(key);
+		if (keys[index] != 0) {
+			return values[index] += delta;
+		}
+		if (!LowMemoryHashing.canHold(keys.length, size + 1)) {
+			ensureSizeFor(size + 1);
+			index = findKeyOrEmpty(key);
+		}
+		++size;
+		keys[index] = key;
+		values[index] = delta;
+		return delta;
+	}
+
+	public void clear() {
+		initTable(LowMemoryHashing.INITIAL_TABLE_SIZE);
+		hasZeroKey = false;
+		zeroValue = 0;
+		size = 0;
+	}
+
+	public boolean containsKey(int key) {
+		return (key == 0) ? hasZeroKey : findKey(key) >= 0;
+	}
+
+	/**
+	 * Gets the value mapped to a key.
+	 * @param key The key to look up
+	 * @param missing The value to return if the key is not present
+	 * @return The value mapped to the key, or <code>missing</code>
+	 */
+	public int getOrDefault(int key, int missing) {
+		if (key == 0) {
+			return hasZeroKey ? zeroValue : missing;
+		}
+		int index = findKey(key);
+		return (index < 0) ? missing : values[index];
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Maps a key to a value, replacing any existing mapping.
+	 * @param key The key
+	 * @param value The value
+	 * @return <code>true</code> if the key was not already present, <code>false</code> otherwise
+	 */
+	public boolean put(int key, int value) {
+		if (key == 0) {
+			zeroValue = value;
+			if (hasZeroKey) {
+				return false;
+			}
+			hasZeroKey = true;
+			++size;
+			return true;
+		}
+		ensureSizeFor(size + 1);
+		int index = findKeyOrEmpty(key);
+		if (keys[index] == 0) {
+			++size;
+			keys[index] = key;
+			values[index] = value;
+			return true;
+		} else {
+			values[index] = value;
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the mapping for a key.
+	 * @param key The key
+	 * @return <code>true</code> if a mapping was removed, <code>false</code> otherwise
+	 */
+	public boolean remove(int key) {
+		if (key == 0) {
+			if (!hasZeroKey) {
+				return false;
+			}
+			hasZeroKey = false;
+			zeroValue = 0;
+			--size;
+			return true;
+		}
+		int index = findKey(key);
+		if (index < 0) {
+			return false;
+		}
+		internalRemove(index);
+		return true;
+	}
+
+	/**
+	 * Removes the mapping for a key and returns the value it held.
+	 * @param key The key
+	 * @param missing The value to return if the key is not present
+	 * @return The value that was mapped to the key, or <code>missing</code>
+	 */
+	public int removeOrDefault(int key, int missing) {
+		if (key == 0) {
+			int previousValue = hasZeroKey ? zeroValue : missing;
+			remove(key);
+			return previousValue;
+		}
+		int index = findKey(key);
+		if (index < 0) {
+			return missing;
+		}
+		int previousValue = values[index];
+		internalRemove(index);
+		return previousValue;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		if (size == 0) {
+			return "{}";
+		}
+		StringBuilder buf = new StringBuilder(16 * size());
+		buf.append('{');
+
+		boolean needComma = false;
+		if (hasZeroKey) {
+			buf.append(0).append('=').append(zeroValue);
+			needComma = true;
+		}
+		for (int i = 0; i < keys.length; ++i) {
+			int key = keys[i];
+			if (key != 0) {
+				if (needComma) {
+					buf.append(',').append(' ');
+				}
+				buf.append(key).append('=').append(values[i]);
+				needComma = true;
+			}
+		}
+		buf.append('}');
+		return buf.toString();
+	}
+
+	/**
+	 * Ensures the map is large enough to contain the specified number of
+	 * entries.
+	 */
+	void ensureSizeFor(int expectedSize) {
+		if (LowMemoryHashing.canHold(keys.length, expectedSize)) {
+			return;
+		}
+
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		initTable(LowMemoryHashing.capacityFor(expectedSize));
+		for (int i = 0; i < oldKeys.length; ++i) {
+			int k = oldKeys[i];
+			if (k != 0) {
+				int newIndex = getKeyIndex(k);
+				while (keys[newIndex] != 0) {
+					if (++newIndex == keys.length) {
+						newIndex = 0;
+					}
+				}
+				keys[newIndex] = k;
+				values[newIndex] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the index in the key table at which a particular non-zero key
+	 * resides, or -1 if the key is not in the table.
+	 */
+	int findKey(int k) {
+		int index = getKeyIndex(k);
+		while (true) {
+			int existing = keys[index];
+			if (existing == 0) {
+				return -1;
+			}
+			if (existing == k) {
+				return index;
+			}
+			if (++index == keys.length) {
+				index = 0;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index in the key table at which a particular non-zero key
+	 * resides, or the index of an empty slot in the table where this key should
+	 * be inserted if it is not already in the table.
+	 */
+	int findKeyOrEmpty(int k) {
+		int index = getKeyIndex(k);
+		while (true) {
+			int existing = keys[index];
+			if (existing == 0 || existing == k) {
+				return index;
+			}
+			if (++index == keys.length) {
+				index = 0;
+			}
+		}
+	}
+
+	/**
+	 * Removes the entry at the specified index, and performs internal
+	 * management to make sure we don't wind up with a hole in the table.
+	 */
+	void internalRemove(int index) {
+		keys[index] = 0;
+		values[index] = 0;
+		--size;
+		plugHole(index);
+	}
+
+	private int getKeyIndex(int k) {
+		return LowMemoryHashing.spread(k) & (keys.length - 1);
+	}
+
+	private void initTable(int capacity) {
+		keys = new int[capacity];
+		values = new int[capacity];
+	}
+
+	/**
+	 * Fills the hole left by a removal in the same way as
+	 * {@link LowMemoryHashMap}, by shuffling back entries that belong before
+	 * the hole until we hit an empty slot.
+	 */
+	private void plugHole(int hole) {
+		int index = hole + 1;
+		if (index == keys.length) {
+			index = 0;
+		}
+		while (keys[index] != 0) {
+			int targetIndex = getKeyIndex(keys[index]);
+			if (hole < index) {
+				if (!(hole < targetIndex && targetIndex <= index)) {
+					keys[hole] = keys[index];
+					values[hole] = values[index];
+					keys[index] = 0;
+					values[index] = 0;
+					hole = index;
+				}
+			} else {
+				if (index < targetIndex && targetIndex <= hole) {
+					keys[hole] = keys[index];
+					values[hole] = values[index];
+					keys[index] = 0;
+					values[index] = 0;
+					hole = index;
+				}
+			}
+			if (++index == keys.length) {
+				index = 0;
+			}
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		initTable(in.readInt());
+		int items = in.readInt();
+		for (int i = 0; i < items; i++) {
+			int key = in.readInt();
+			put(key, in.readInt());
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(keys.length);
+		out.writeInt(size);
+		if (hasZeroKey) {
+			out.writeInt(0);
+			out.writeInt(zeroValue);
+		}
+		for (int i = 0; i < keys.length; ++i) {
+			int key = keys[i];
+			if (key != 0) {
+				out.writeInt(key);
+				out.writeInt(values[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package org.scale7.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * A memory-efficient hash set of primitive <code>int</code> values. The table
+ * is open addressed in exactly the same way as {@link LowMemoryHashSet}, but
+ * the items are held in a <code>int[]</code> so that no boxing takes place
+ * and probes compare values directly. An empty slot is marked by zero, and so
+ * the item zero, if present, is recorded outside of the table.
+ */
+@SuppressWarnings("serial")
+public class IntLowMemoryHashSet implements Serializable {
+
+	/**
+	 * Whether the item zero is present, which cannot be stored in the table.
+	 */
+	transient boolean hasZero;
+
+	/**
+	 * Number of items in this set, including any zero; transient due to custom
+	 * serialization.
+	 */
+	transient int size = 0;
+
+	/**
+	 * Backing store for all the non-zero items; transient due to custom
+	 * serialization.
+	 */
+	transient int[] table;
+
+	public IntLowMemoryHashSet() {
+		initTable(LowMemoryHashing.INITIAL_TABLE_SIZE);
+	}
+
+	/**
+	 * Constructs a set that can hold the specified number of items without
+	 * rehashing.
+	 * @param expectedSize The number of items the set is expected to hold
+	 */
+	public IntLowMemoryHashSet(int expectedSize) {
+		initTable(LowMemoryHashing.capacityFor(expectedSize));
+	}
+
+	/**
+	 * Adds an item to the set.
+	 * @param item The item
+	 * @return <code>true</code> if the item was not already present, <code>false</code> otherwise
+	 */
+	public boolean add(int item) {
+		if (item == 0) {
+			if (hasZero) {
+				return false;
+			}
+			hasZero = true;
+			++size;
+			return true;
+		}
+		ensureSizeFor(size + 1);
+		int index = findOrEmpty(item);
+		if (table[index] == 0) {
+			++size;
+			table[index] = item;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds every item of an array to the set, growing the table at most once.
+	 * @param items The items
+	 * @return <code>true</code> if some items were not already present, <code>false</code> otherwise
+	 */
+	public boolean addAll(int[] items) {
+		ensureSizeFor(size + items.length);
+		int oldSize = size;
+		for (int item : items) {
+			add(item);
+		}
+		return size != oldSize;
+	}
+
+	public void clear() {
+		initTable(LowMemoryHashing.INITIAL_TABLE_SIZE);
+		hasZero = false;
+		size = 0;
+	}
+
+	public boolean contains(int item) {
+		return (item == 0) ? hasZero : find(item) >= 0;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Removes an item from the set.
+	 * @param item The item
+	 * @return <code>true</code> if the item was present, <code>false</code> otherwise
+	 */
+	public boolean remove(int item) {
+		if (item == 0) {
+			if (!hasZero) {
+				return false;
+			}
+			hasZero = false;
+			--size;
+			return true;
+		}
+		int index = find(item);
+		if (index < 0) {
+			return false;
+		}
+		table[index] = 0;
+		--size;
+		plugHole(index);
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The contents of the set as a new array, in no particular order.
+	 * @return The items of the set
+	 */
+	public int[] toArray() {
+		int[] result = new int[size];
+		int i = 0;
+		if (hasZero) {
+			// the array is already zeroed
+			i++;
+		}
+		for (int item : table) {
+			if (item != 0) {
+				result[i++] = item;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		if (size == 0) {
+			return "[]";
+		}
+		StringBuilder buf = new StringBuilder(8 * size());
+		buf.append('[');
+
+		boolean needComma = false;
+		if (hasZero) {
+			buf.append(0);
+			needComma = true;
+		}
+		for (int item : table) {
+			if (item != 0) {
+				if (needComma) {
+					buf.append(',').append(' ');
+				}
+				buf.append(item);
+				needComma = true;
+			}
+		}
+		buf.append(']');
+		return buf.toString();
+	}
+
+	/**
+	 * Ensures the set is large enough to contain the specified number of
+	 * items.
+	 */
+	void ensureSizeFor(int expectedSize) {
+		if (LowMemoryHashing.canHold(table.length, expectedSize)) {
+			return;
+		}
+
+		int[] oldTable = table;
+		initTable(LowMemoryHashing.capacityFor(expectedSize));
+		for (int item : oldTable) {
+			if (item != 0) {
+				int newIndex = getIndex(item);
+				while (table[newIndex] != 0) {
+					if (++newIndex == table.length) {
+						newIndex = 0;
+					}
+				}
+				table[newIndex] = item;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index in the table at which a particular non-zero item
+	 * resides, or -1 if the item is not in the table.
+	 */
+	int find(int item) {
+		int index = getIndex(item);
+		while (true) {
+			int existing = table[index];
+			if (existing == 0) {
+				return -1;
+			}
+			if (existing == item) {
+				return index;
+			}
+			if (++index == table.length) {
+				index = 0;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index in the table at which a particular non-zero item
+	 * resides, or the index of an empty slot in the table where this item
+	 * should be inserted if it is not already in the table.
+	 */
+	int findOrEmpty(int item) {
+		int index = getIndex(item);
+		while (true) {
+			int existing = table[index];
+			if (existing == 0 || existing == item) {
+				return index;
+			}
+			if (++index == table.length) {
+				index = 0;
+			}
+		}
+	}
+
+	private int getIndex(int item) {
+		return LowMemoryHashing.spread(item) & (table.length - 1);
+	}
+
+	private void initTable(int capacity) {
+		table = new int[capacity];
+	}
+
+	/**
+	 * Fills the hole left by a removal in the same way as
+	 * {@link LowMemoryHashSet}, by shuffling back items that belong before the
+	 * hole until we hit an empty slot.
+	 */
+	private void plugHole(int hole) {
+		int index = hole + 1;
+		if (index == table.length) {
+			index = 0;
+		}
+		while (table[index] != 0) {
+			int targetIndex = getIndex(table[index]);
+			if (hole < index) {
+				if (!(hole < targetIndex && targetIndex <= index)) {
+					table[hole] = table[index];
+					table[index] = 0;
+					hole = index;
+				}
+			} else {
+				if (index < targetIndex && targetIndex <= hole) {
+					table[hole] = table[index];
+					table[index] = 0;
+					hole = index;
+				}
+			}
+			if (++index == table.length) {
+				index = 0;
+			}
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		initTable(in.readInt());
+		int items = in.readInt();
+		for (int i = 0; i < items; i++) {
+			add(in.readInt());
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(table.length);
+		out.writeInt(size);
+		if (hasZero) {
+			out.writeInt(0);
+		}
+		for (int item : table) {
+			if (item != 0) {
+				out.writeInt(item);
+			}
+		}
+	}
+}
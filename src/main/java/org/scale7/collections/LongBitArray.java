@@ -0,0 +1,100 @@
+package org.scale7.collections;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A bit array held on the heap in segments of <code>long</code> words, so
+ * that it can hold far more than the 2^31 bits a single array or
+ * <code>BitSet</code> can address. A bit is located by shifting and masking
+ * its index, and every segment but the last has {@link #SEGMENT_WORDS} words.
+ */
+@SuppressWarnings("serial")
+public class LongBitArray implements IBitArray, Serializable {
+
+	private static final int SEGMENT_SHIFT = 20;
+
+	/**
+	 * The number of words in a full segment, which is 8 MB.
+	 */
+	public static final int SEGMENT_WORDS = 1 << SEGMENT_SHIFT;
+
+	private static final int SEGMENT_MASK = SEGMENT_WORDS - 1;
+
+	private final long bitSize;
+	private final long[][] segments;
+
+	/**
+	 * Constructs an array with every bit clear.
+	 * @param bitSize The number of bits in the array
+	 */
+	public LongBitArray(long bitSize) {
+		if (bitSize <= 0) {
+			throw new IllegalArgumentException("bitSize must be positive");
+		}
+		long words = (bitSize + 63) >>> 6;
+		long segmentCount = (words + SEGMENT_MASK) >>> SEGMENT_SHIFT;
+		if (segmentCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("bitSize too large");
+		}
+		this.bitSize = bitSize;
+		segments = new long[(int) segmentCount][];
+		for (int s = 0; s < segments.length; s++) {
+			segments[s] = new long[(int) Math.min(SEGMENT_WORDS, words - ((long) s << SEGMENT_SHIFT))];
+		}
+	}
+
+	public long bitSize() {
+		return bitSize;
+	}
+
+	public long cardinality() {
+		long cardinality = 0;
+		for (long[] segment : segments) {
+			for (long word : segment) {
+				cardinality += Long.bitCount(word);
+			}
+		}
+		return cardinality;
+	}
+
+	public void clear(long index) {
+		long word = index >>> 6;
+		segments[(int) (word >>> SEGMENT_SHIFT)][(int) word & SEGMENT_MASK] &= ~(1L << index);
+	}
+
+	public void clearAll() {
+		for (long[] segment : segments) {
+			Arrays.fill(segment, 0L);
+		}
+	}
+
+	public boolean get(long index) {
+		long word = index >>> 6;
+		return (segments[(int) (word >>> SEGMENT_SHIFT)][(int) word & SEGMENT_MASK] & (1L << index)) != 0;
+	}
+
+	public long getWord(long wordIndex) {
+		return segments[(int) (wordIndex >>> SEGMENT_SHIFT)][(int) wordIndex & SEGMENT_MASK];
+	}
+
+	/**
+	 * Replaces a word, as when a serialized filter is read back.
+	 */
+	void setWord(long wordIndex, long word) {
+		segments[(int) (wordIndex >>> SEGMENT_SHIFT)][(int) wordIndex & SEGMENT_MASK] = word;
+	}
+
+	public boolean set(long index) {
+		long word = index >>> 6;
+		long[] segment = segments[(int) (word >>> SEGMENT_SHIFT)];
+		int offset = (int) word & SEGMENT_MASK;
+		long mask = 1L << index;
+		long previous = segment[offset];
+		if ((previous & mask) != 0) {
+			return false;
+		}
+		segment[offset] = previous | mask;
+		return true;
+	}
+}
@@ -0,0 +1,341 @@
+package org.scale7.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * A memory-efficient hash map from primitive <code>long</code> keys, such as
+ * the identifiers generated by
+ * {@link org.scale7.networking.clustering.PrimitiveUUID#getUuid64()}, to
+ * objects. The table is open addressed in exactly the same way as
+ * {@link LowMemoryHashMap}, but the keys are held in a <code>long[]</code> so
+ * that no <code>Long</code> objects are created by lookups. An empty slot is
+ * marked by a zero key, and so a mapping for the key zero, if present, is held
+ * outside of the table.
+ *
+ * @param <V>
+ *            the value type
+ */
+@SuppressWarnings("serial")
+public class LongObjectLowMemoryHashMap<V> implements Serializable {
+
+	/**
+	 * Whether the key zero is present, which cannot be stored in the table.
+	 */
+	transient boolean hasZeroKey;
+
+	/**
+	 * Backing store for all the non-zero keys; transient due to custom
+	 * serialization.
+	 */
+	transient long[] keys;
+
+	/**
+	 * Number of pairs in this map, including any mapping for the key zero;
+	 * transient due to custom serialization.
+	 */
+	transient int size = 0;
+
+	/**
+	 * Backing store for all the values; transient due to custom serialization.
+	 */
+	transient Object[] values;
+
+	/**
+	 * The value mapped to the key zero, if present.
+	 */
+	transient Object zeroValue;
+
+	public LongObjectLowMemoryHashMap() {
+		initTable(LowMemoryHashing.INITIAL_TABLE_SIZE);
+	}
+
+	/**
+	 * Constructs a map that can hold the specified number of entries without
+	 * rehashing.
+	 * @param expectedSize The number of entries the map is expected to hold
+	 */
+	public LongObjectLowMemoryHashMap(int expectedSize) {
+		initTable(LowMemoryHashing.capacityFor(expectedSize));
+	}
+
+	public void clear() {
+		initTable(LowMemoryHashing.INITIAL_TABLE_SIZE);
+		hasZeroKey = false;
+		zeroValue = null;
+		size = 0;
+	}
+
+	public boolean containsKey(long key) {
+		return (key == 0) ? hasZeroKey : findKey(key) >= 0;
+	}
+
+	/**
+	 * Gets the value mapped to a key.
+	 * @param key The key to look up
+	 * @return The value mapped to the key, or <code>null</code> if the key is not present
+	 */
+	public V get(long key) {
+		return getOrDefault(key, null);
+	}
+
+	/**
+	 * Gets the value mapped to a key.
+	 * @param key The key to look up
+	 * @param missing The value to return if the key is not present
+	 * @return The value mapped to the key, or <code>missing</code>
+	 */
+	@SuppressWarnings("unchecked")
+	public V getOrDefault(long key, V missing) {
+		if (key == 0) {
+			return hasZeroKey ? (V) zeroValue : missing;
+		}
+		int index = findKey(key);
+		return (index < 0) ? missing : (V) values[index];
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Maps a key to a value, replacing any existing mapping.
+	 * @param key The key
+	 * @param value The value
+	 * @return The value previously mapped to the key, or <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (key == 0) {
+			Object previousValue = zeroValue;
+			zeroValue = value;
+			if (!hasZeroKey) {
+				hasZeroKey = true;
+				++size;
+			}
+			return (V) previousValue;
+		}
+		ensureSizeFor(size + 1);
+		int index = findKeyOrEmpty(key);
+		if (keys[index] == 0) {
+			++size;
+			keys[index] = key;
+			values[index] = value;
+			return null;
+		} else {
+			Object previousValue = values[index];
+			values[index] = value;
+			return (V) previousValue;
+		}
+	}
+
+	/**
+	 * Removes the mapping for a key.
+	 * @param key The key
+	 * @return The value previously mapped to the key, or <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		if (key == 0) {
+			Object previousValue = zeroValue;
+			if (hasZeroKey) {
+				hasZeroKey = false;
+				zeroValue = null;
+				--size;
+			}
+			return (V) previousValue;
+		}
+		int index = findKey(key);
+		if (index < 0) {
+			return null;
+		}
+		Object previousValue = values[index];
+		internalRemove(index);
+		return (V) previousValue;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		if (size == 0) {
+			return "{}";
+		}
+		StringBuilder buf = new StringBuilder(32 * size());
+		buf.append('{');
+
+		boolean needComma = false;
+		if (hasZeroKey) {
+			buf.append(0).append('=')
+					.append(zeroValue == this ? "(this Map)" : zeroValue);
+			needComma = true;
+		}
+		for (int i = 0; i < keys.length; ++i) {
+			long key = keys[i];
+			if (key != 0) {
+				if (needComma) {
+					buf.append(',').append(' ');
+				}
+				Object value = values[i];
+				buf.append(key).append('=')
+						.append(value == this ? "(this Map)" : value);
+				needComma = true;
+			}
+		}
+		buf.append('}');
+		return buf.toString();
+	}
+
+	/**
+	 * Ensures the map is large enough to contain the specified number of
+	 * entries.
+	 */
+	void ensureSizeFor(int expectedSize) {
+		if (LowMemoryHashing.canHold(keys.length, expectedSize)) {
+			return;
+		}
+
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		initTable(LowMemoryHashing.capacityFor(expectedSize));
+		for (int i = 0; i < oldKeys.length; ++i) {
+			long k = oldKeys[i];
+			if (k != 0) {
+				int newIndex = getKeyIndex(k);
+				while (keys[newIndex] != 0) {
+					if (++newIndex == keys.length) {
+						newIndex = 0;
+					}
+				}
+				keys[newIndex] = k;
+				values[newIndex] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the index in the key table at which a particular non-zero key
+	 * resides, or -1 if the key is not in the table.
+	 */
+	int findKey(long k) {
+		int index = getKeyIndex(k);
+		while (true) {
+			long existing = keys[index];
+			if (existing == 0) {
+				return -1;
+			}
+			if (existing == k) {
+				return index;
+			}
+			if (++index == keys.length) {
+				index = 0;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index in the key table at which a particular non-zero key
+	 * resides, or the index of an empty slot in the table where this key should
+	 * be inserted if it is not already in the table.
+	 */
+	int findKeyOrEmpty(long k) {
+		int index = getKeyIndex(k);
+		while (true) {
+			long existing = keys[index];
+			if (existing == 0 || existing == k) {
+				return index;
+			}
+			if (++index == keys.length) {
+				index = 0;
+			}
+		}
+	}
+
+	/**
+	 * Removes the entry at the specified index, and performs internal
+	 * management to make sure we don't wind up with a hole in the table.
+	 */
+	void internalRemove(int index) {
+		keys[index] = 0;
+		values[index] = null;
+		--size;
+		plugHole(index);
+	}
+
+	private int getKeyIndex(long k) {
+		return LowMemoryHashing.spread(k) & (keys.length - 1);
+	}
+
+	private void initTable(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+	}
+
+	/**
+	 * Fills the hole left by a removal in the same way as
+	 * {@link LowMemoryHashMap}, by shuffling back entries that belong before
+	 * the hole until we hit an empty slot.
+	 */
+	private void plugHole(int hole) {
+		int index = hole + 1;
+		if (index == keys.length) {
+			index = 0;
+		}
+		while (keys[index] != 0) {
+			int targetIndex = getKeyIndex(keys[index]);
+			if (hole < index) {
+				if (!(hole < targetIndex && targetIndex <= index)) {
+					keys[hole] = keys[index];
+					values[hole] = values[index];
+					keys[index] = 0;
+					values[index] = null;
+					hole = index;
+				}
+			} else {
+				if (index < targetIndex && targetIndex <= hole) {
+					keys[hole] = keys[index];
+					values[hole] = values[index];
+					keys[index] = 0;
+					values[index] = null;
+					hole = index;
+				}
+			}
+			if (++index == keys.length) {
+				index = 0;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		initTable(in.readInt());
+		int items = in.readInt();
+		for (int i = 0; i < items; i++) {
+			long key = in.readLong();
+			put(key, (V) in.readObject());
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(keys.length);
+		out.writeInt(size);
+		if (hasZeroKey) {
+			out.writeLong(0);
+			out.writeObject(zeroValue);
+		}
+		for (int i = 0; i < keys.length; ++i) {
+			long key = keys[i];
+			if (key != 0) {
+				out.writeLong(key);
+				out.writeObject(values[i]);
+			}
+		}
+	}
+}
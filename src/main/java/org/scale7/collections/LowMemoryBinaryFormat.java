@@ -0,0 +1,124 @@
+package org.scale7.collections;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The compact binary format written by
+ * {@link LowMemoryHashMap#writeBinary(DataOutput, IBinaryCodec, IBinaryCodec)}
+ * and {@link LowMemoryHashSet#writeBinary(DataOutput, IBinaryCodec)}. It
+ * consists of a fixed header:
+ * 
+ * <pre>
+ * byte  version
+ * byte  flags (bit 0 set if hash codes are cached)
+ * float load factor
+ * int   table capacity
+ * int   number of entries
+ * </pre>
+ * 
+ * followed by each entry as a variable length byte count and then the
+ * encoded key and, for maps, the encoded value. The byte count lets a
+ * {@link LowMemoryBinaryReader} tell whether it has received a whole entry
+ * before decoding it.
+ */
+final class LowMemoryBinaryFormat {
+
+	static final byte VERSION = 1;
+
+	static final int FLAG_CACHED_HASHES = 1;
+
+	static final int HEADER_SIZE = 14;
+
+	static final class Header {
+		boolean cachedHashes;
+		float loadFactor;
+		int capacity;
+		int size;
+	}
+
+	/**
+	 * Buffers the encoding of a single entry so that it can be written after
+	 * its length. A single instance is reused for all the entries written.
+	 */
+	static final class EntryWriter {
+		private final Scratch bytes = new Scratch();
+
+		final DataOutputStream data = new DataOutputStream(bytes);
+
+		void begin() {
+			bytes.reset();
+		}
+
+		void finish(DataOutput out) throws IOException {
+			data.flush();
+			BinaryCodecs.writeVarInt(out, bytes.size());
+			out.write(bytes.buffer(), 0, bytes.size());
+		}
+	}
+
+	private static final class Scratch extends ByteArrayOutputStream {
+		Scratch() {
+			super(64);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	private LowMemoryBinaryFormat() {
+	}
+
+	static void writeHeader(DataOutput out, boolean cachedHashes,
+			float loadFactor, int capacity, int size) throws IOException {
+		out.writeByte(VERSION);
+		out.writeByte(cachedHashes ? FLAG_CACHED_HASHES : 0);
+		out.writeFloat(loadFactor);
+		out.writeInt(capacity);
+		out.writeInt(size);
+	}
+
+	static Header readHeader(DataInput in) throws IOException {
+		byte version = in.readByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary format version " + version);
+		Header header = new Header();
+		header.cachedHashes = (in.readByte() & FLAG_CACHED_HASHES) != 0;
+		header.loadFactor = in.readFloat();
+		header.capacity = in.readInt();
+		header.size = in.readInt();
+		if (!(header.loadFactor > 0 && header.loadFactor < 1)
+				|| header.capacity < LowMemoryHashing.INITIAL_TABLE_SIZE
+				|| (header.capacity & (header.capacity - 1)) != 0
+				|| header.size < 0
+				|| !LowMemoryHashing.canHold(header.capacity, header.size, header.loadFactor))
+			throw new IOException("Corrupt binary header");
+		return header;
+	}
+
+	/**
+	 * Reads a variable length integer from a buffer, returning -1 and leaving
+	 * the position unspecified if the buffer does not yet hold all of it.
+	 */
+	static int readVarInt(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				if (value < 0)
+					throw new IOException("Malformed variable length integer");
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+}
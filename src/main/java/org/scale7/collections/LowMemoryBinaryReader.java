@@ -0,0 +1,140 @@
+package org.scale7.collections;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Rebuilds a collection from the binary form described by
+ * {@link LowMemoryBinaryFormat} as its bytes arrive, without ever holding the whole payload.
+ * Bytes may be pulled from a channel, which may be non-blocking, or pushed in chunks as they are
+ * received. Each entry is decoded and inserted into the pre-sized collection as soon as all of
+ * its bytes are available, so only a single entry need be buffered. See
+ * {@link LowMemoryHashMapReader} and {@link LowMemoryHashSetReader}.
+ */
+public abstract class LowMemoryBinaryReader {
+
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private final ByteBufferInputStream source = new ByteBufferInputStream();
+	private final DataInputStream in = new DataInputStream(source);
+	private ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+	private boolean started;
+	private int remaining;
+
+	LowMemoryBinaryReader() {
+	}
+
+	/**
+	 * Decode bytes pushed by the caller. Bytes beyond the end of the collection are not consumed.
+	 * @param chunk			The bytes between the chunk's position and limit, which is advanced
+	 * @return				Whether the collection is now complete
+	 * @throws IOException	If the bytes are not a valid encoding of a collection
+	 */
+	public boolean feed(ByteBuffer chunk) throws IOException {
+		while (chunk.hasRemaining() && !isComplete()) {
+			int n = Math.min(chunk.remaining(), buffer.remaining());
+			ByteBuffer part = chunk.duplicate();
+			part.limit(part.position() + n);
+			buffer.put(part);
+			chunk.position(chunk.position() + n);
+			decode();
+		}
+		if (isComplete() && buffer.position() > 0) {
+			// return the bytes copied beyond the end of the collection to the chunk
+			chunk.position(chunk.position() - buffer.position());
+			buffer.clear();
+		}
+		return isComplete();
+	}
+
+	public boolean isComplete() {
+		return started && remaining == 0;
+	}
+
+	/**
+	 * Decode as many bytes as are available from a channel. A blocking channel is read until the
+	 * collection is complete, whereas a non-blocking channel is read only until no more bytes are
+	 * immediately available. The channel is read in blocks, so bytes following the collection may
+	 * also be read from it and are then discarded; where the collection is followed by other data,
+	 * read the channel into a buffer and {@link #feed(ByteBuffer)} it instead.
+	 * @param channel		The channel
+	 * @return				Whether the collection is now complete
+	 * @throws IOException	If the channel fails or ends early, or the bytes are not a valid encoding of a collection
+	 */
+	public boolean read(ReadableByteChannel channel) throws IOException {
+		while (!isComplete()) {
+			if (!buffer.hasRemaining()) {
+				decode();
+				continue;
+			}
+			int read = channel.read(buffer);
+			if (read < 0)
+				throw new EOFException("Channel ended before the collection was complete");
+			if (read == 0)
+				return false;
+			decode();
+		}
+		return true;
+	}
+
+	/**
+	 * Throws if the collection is not yet complete.
+	 */
+	void checkComplete() {
+		if (!isComplete())
+			throw new IllegalStateException("The collection has not been completely read");
+	}
+
+	/**
+	 * Creates the empty collection laid out as described by a header.
+	 */
+	abstract void create(LowMemoryBinaryFormat.Header header);
+
+	/**
+	 * Decodes a single entry and inserts it into the collection.
+	 */
+	abstract void readEntry(DataInput in) throws IOException;
+
+	private void decode() throws IOException {
+		buffer.flip();
+		source.setBuffer(buffer);
+		int needed = 0;
+		if (!started) {
+			if (buffer.remaining() < LowMemoryBinaryFormat.HEADER_SIZE) {
+				buffer.compact();
+				return;
+			}
+			LowMemoryBinaryFormat.Header header = LowMemoryBinaryFormat.readHeader(in);
+			create(header);
+			started = true;
+			remaining = header.size;
+		}
+		while (remaining > 0) {
+			int start = buffer.position();
+			int length = LowMemoryBinaryFormat.readVarInt(buffer);
+			if (length < 0 || buffer.remaining() < length) {
+				if (length >= 0) {
+					needed = buffer.position() - start + length;
+				}
+				buffer.position(start);
+				break;
+			}
+			int end = buffer.position() + length;
+			readEntry(in);
+			if (buffer.position() != end)
+				throw new IOException("Entry length does not match its encoding");
+			--remaining;
+		}
+		buffer.compact();
+		if (needed > buffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+}
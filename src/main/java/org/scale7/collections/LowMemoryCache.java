@@ -0,0 +1,441 @@
+package org.scale7.collections;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A memory-efficient cache that evicts its least recently used entries once it
+ * holds more than a maximum number of entries or a maximum total weight, and
+ * that can expire entries a fixed time after they were stored.
+ * <p>
+ * Entries live in slots of parallel arrays and are threaded onto a most
+ * recently used list by <code>prevRef</code> and <code>nextRef</code> arrays of
+ * slot numbers, in the same way as the window of
+ * {@link org.scale7.networking.compression.MruBackRefWindowCodec}, so no node
+ * object is created per entry. An {@link ObjectIntLowMemoryHashMap} maps each
+ * key to its slot. Expired entries are not swept: an entry found to have
+ * expired when it is accessed is removed then, and otherwise it is eventually
+ * evicted as the least recently used.
+ * <p>
+ * All methods are synchronized on the cache. When
+ * {@link #get(Object, ILoader)} misses, the loader runs outside the lock, and
+ * other threads that miss on the same key while it runs wait for its result
+ * rather than loading the value again. Supports <code>null</code> keys but not
+ * <code>null</code> values, since <code>null</code> signals a miss.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+public class LowMemoryCache<K, V> {
+
+	/**
+	 * A time to live meaning that entries never expire.
+	 */
+	public static final long NO_EXPIRY = 0;
+
+	/**
+	 * The number of slots allocated initially, which grow in the same way as a
+	 * table up to the maximum number of entries.
+	 */
+	private static final int INITIAL_SLOTS = 16;
+
+	private final int maxEntries;
+	private final long maxWeight;
+	private final IWeigher<? super K, ? super V> weigher;
+	private final long defaultTtlMillis;
+
+	private final ObjectIntLowMemoryHashMap<Object> keyToRef = new ObjectIntLowMemoryHashMap<Object>();
+	private final LowMemoryHashMap<Object, FutureTask<V>> loading = new LowMemoryHashMap<Object, FutureTask<V>>();
+
+	private Object[] keys;
+	private Object[] values;
+	private long[] expiryTimes;
+	private int[] weights;
+	private int[] prevRef;
+	private int[] nextRef;
+
+	/**
+	 * The most and least recently used slots, the head of the list of free
+	 * slots linked through <code>nextRef</code>, and the number of slots that
+	 * have ever been used.
+	 */
+	private int headRef = -1, tailRef = -1, freeRef = -1, usedRefs = 0;
+
+	private int size;
+	private long weight;
+
+	private long hits, misses, evictions, expirations;
+
+	/**
+	 * Constructs a cache bounded by number of entries, whose entries never
+	 * expire unless stored with a time to live.
+	 * @param maxEntries The maximum number of entries
+	 */
+	public LowMemoryCache(int maxEntries) {
+		this(maxEntries, Long.MAX_VALUE, null, NO_EXPIRY);
+	}
+
+	/**
+	 * Constructs a cache.
+	 * @param maxEntries The maximum number of entries
+	 * @param maxWeight The maximum total weight of the entries
+	 * @param weigher Calculates the weight of each entry, or <code>null</code> if every entry weighs 1
+	 * @param defaultTtlMillis The time in milliseconds for which an entry lives after it is stored, unless stored with a time to live of its own, or {@link #NO_EXPIRY}
+	 */
+	public LowMemoryCache(int maxEntries, long maxWeight, IWeigher<? super K, ? super V> weigher,
+			long defaultTtlMillis) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("Minimum number of entries is 1: " + maxEntries);
+		if (maxWeight < 1)
+			throw new IllegalArgumentException("Minimum weight is 1: " + maxWeight);
+		if (defaultTtlMillis < 0)
+			throw new IllegalArgumentException("Time to live cannot be negative: " + defaultTtlMillis);
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		this.defaultTtlMillis = defaultTtlMillis;
+		initSlots(Math.min(maxEntries, INITIAL_SLOTS));
+	}
+
+	public synchronized void clear() {
+		keyToRef.clear();
+		initSlots(Math.min(maxEntries, INITIAL_SLOTS));
+		headRef = tailRef = freeRef = -1;
+		usedRefs = 0;
+		size = 0;
+		weight = 0;
+	}
+
+	/**
+	 * Returns whether the cache holds an unexpired entry for a key, without
+	 * counting a hit or miss or making the entry the most recently used.
+	 */
+	public synchronized boolean containsKey(Object key) {
+		return findLive(key) >= 0;
+	}
+
+	/**
+	 * Returns the value cached for a key, making it the most recently used
+	 * entry.
+	 * @param key The key
+	 * @return The value, or <code>null</code> if there is no unexpired entry for the key
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V get(Object key) {
+		int ref = findLive(key);
+		if (ref < 0) {
+			misses++;
+			return null;
+		}
+		hits++;
+		touchRef(ref);
+		return (V) values[ref];
+	}
+
+	/**
+	 * Returns the value cached for a key, loading and caching it if it is
+	 * missing. If other threads miss on the same key while the value is being
+	 * loaded, they wait for the value rather than loading it themselves.
+	 * @param key The key
+	 * @param loader Loads the value, which it must not return as <code>null</code>
+	 * @return The value
+	 * @throws ExecutionException If the loader threw an exception, which is the cause
+	 */
+	public V get(final K key, final ILoader<? super K, ? extends V> loader) throws ExecutionException {
+		FutureTask<V> task;
+		boolean isLoader;
+		synchronized (this) {
+			V value = get(key);
+			if (value != null)
+				return value;
+			task = loading.get(key);
+			isLoader = (task == null);
+			if (isLoader) {
+				task = new FutureTask<V>(new Callable<V>() {
+					public V call() throws Exception {
+						V value = null;
+						try {
+							value = loader.load(key);
+							if (value == null)
+								throw new NullPointerException("Loader returned null for key " + key);
+							return value;
+						} finally {
+							synchronized (LowMemoryCache.this) {
+								loading.remove(key);
+								// a value stored while loading is at least as fresh as the loaded one
+								if (value != null && findLive(key) < 0)
+									put(key, value);
+							}
+						}
+					}
+				});
+				loading.put(key, task);
+			}
+		}
+		if (isLoader)
+			task.run();
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExecutionException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of milliseconds until the entry for a key expires, in
+	 * the same form as
+	 * {@link org.scale7.networking.utility.NetworkAlgorithms#getExpiryMillisecondsFromNow(long)}.
+	 * @param key The key
+	 * @return The time to live remaining, or -1 if there is no unexpired entry for the key or it never expires
+	 */
+	public synchronized int getExpiryMillisecondsFromNow(Object key) {
+		int ref = findLive(key);
+		if (ref < 0 || expiryTimes[ref] == Long.MAX_VALUE)
+			return -1;
+		return (int) Math.min(Integer.MAX_VALUE, expiryTimes[ref] - currentTimeMillis());
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Caches a value for a key with the default time to live, making it the
+	 * most recently used entry and evicting the least recently used entries if
+	 * the cache is then too large.
+	 * @param key The key
+	 * @param value The value
+	 * @return The value previously cached for the key, or <code>null</code> if there was none
+	 */
+	public V put(K key, V value) {
+		return put(key, value, defaultTtlMillis);
+	}
+
+	/**
+	 * Caches a value for a key, making it the most recently used entry and
+	 * evicting the least recently used entries if the cache is then too large.
+	 * A value heavier than the maximum weight on its own is not cached, and
+	 * any entry for the key is removed instead, so that one oversized value
+	 * does not flush the rest of the cache.
+	 * @param key The key
+	 * @param value The value
+	 * @param ttlMillis The time in milliseconds for which the entry lives, or {@link #NO_EXPIRY}
+	 * @return The value previously cached for the key, or <code>null</code> if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V put(K key, V value, long ttlMillis) {
+		if (value == null)
+			throw new NullPointerException("Cannot cache a null value");
+		if (ttlMillis < 0)
+			throw new IllegalArgumentException("Time to live cannot be negative: " + ttlMillis);
+		int entryWeight = (weigher == null) ? 1 : weigher.weigh(key, value);
+		if (entryWeight < 0)
+			throw new IllegalArgumentException("Weight cannot be negative: " + entryWeight);
+		long expiryTime = Long.MAX_VALUE;
+		if (ttlMillis != NO_EXPIRY)
+			expiryTime = Math.min(Long.MAX_VALUE - 1, currentTimeMillis() + Math.min(ttlMillis, Long.MAX_VALUE >> 1));
+
+		V previous = null;
+		int ref = findLive(key);
+		if (entryWeight > maxWeight) {
+			if (ref >= 0) {
+				previous = (V) values[ref];
+				releaseRef(ref);
+			}
+			return previous;
+		}
+		if (ref >= 0) {
+			previous = (V) values[ref];
+			weight -= weights[ref];
+		} else {
+			ref = allocateRef();
+			keys[ref] = key;
+			keyToRef.put(key, ref);
+			++size;
+		}
+		values[ref] = value;
+		expiryTimes[ref] = expiryTime;
+		weights[ref] = entryWeight;
+		weight += entryWeight;
+		if (previous == null)
+			linkRef(ref);
+		else
+			touchRef(ref);
+
+		while (size > maxEntries || weight > maxWeight) {
+			releaseRef(tailRef);
+			evictions++;
+		}
+		return previous;
+	}
+
+	/**
+	 * Removes the entry for a key.
+	 * @param key The key
+	 * @return The value that was cached for the key, or <code>null</code> if there was no unexpired entry
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(Object key) {
+		int ref = findLive(key);
+		if (ref < 0)
+			return null;
+		V value = (V) values[ref];
+		releaseRef(ref);
+		return value;
+	}
+
+	/**
+	 * Returns the number of entries in the cache, which includes any that have
+	 * expired but not yet been accessed.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the total weight of the entries in the cache.
+	 */
+	public synchronized long weight() {
+		return weight;
+	}
+
+	/**
+	 * Returns the number of lookups that found an unexpired entry.
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of lookups that did not find an unexpired entry.
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of entries removed to keep the cache within its
+	 * bounds.
+	 */
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the number of entries removed because they were found to have
+	 * expired.
+	 */
+	public synchronized long expirations() {
+		return expirations;
+	}
+
+	/**
+	 * Returns the current time in milliseconds, against which entries expire.
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the slot holding the entry for a key, or -1 if there is none,
+	 * removing the entry if it has expired.
+	 */
+	private int findLive(Object key) {
+		int ref = keyToRef.getOrDefault(key, -1);
+		if (ref >= 0 && expiryTimes[ref] != Long.MAX_VALUE && currentTimeMillis() >= expiryTimes[ref]) {
+			releaseRef(ref);
+			expirations++;
+			return -1;
+		}
+		return ref;
+	}
+
+	private void initSlots(int capacity) {
+		keys = new Object[capacity];
+		values = new Object[capacity];
+		expiryTimes = new long[capacity];
+		weights = new int[capacity];
+		prevRef = new int[capacity];
+		nextRef = new int[capacity];
+	}
+
+	/**
+	 * Takes a slot from the free list, or failing that one that has never been
+	 * used, growing the slot arrays if every slot is in use.
+	 */
+	private int allocateRef() {
+		if (freeRef != -1) {
+			int ref = freeRef;
+			freeRef = nextRef[ref];
+			return ref;
+		}
+		if (usedRefs == keys.length) {
+			int capacity = (int) Math.min((long) keys.length << 1, Math.max(maxEntries, keys.length + 1L));
+			Object[] oldKeys = keys, oldValues = values;
+			long[] oldExpiryTimes = expiryTimes;
+			int[] oldWeights = weights, oldPrevRef = prevRef, oldNextRef = nextRef;
+			initSlots(capacity);
+			System.arraycopy(oldKeys, 0, keys, 0, usedRefs);
+			System.arraycopy(oldValues, 0, values, 0, usedRefs);
+			System.arraycopy(oldExpiryTimes, 0, expiryTimes, 0, usedRefs);
+			System.arraycopy(oldWeights, 0, weights, 0, usedRefs);
+			System.arraycopy(oldPrevRef, 0, prevRef, 0, usedRefs);
+			System.arraycopy(oldNextRef, 0, nextRef, 0, usedRefs);
+		}
+		return usedRefs++;
+	}
+
+	/**
+	 * Removes the entry in a slot and returns the slot to the free list.
+	 */
+	private void releaseRef(int ref) {
+		unlinkRef(ref);
+		keyToRef.remove(keys[ref]);
+		keys[ref] = null;
+		values[ref] = null;
+		weight -= weights[ref];
+		--size;
+		nextRef[ref] = freeRef;
+		freeRef = ref;
+	}
+
+	/**
+	 * Makes a linked slot the most recently used.
+	 */
+	private void touchRef(int ref) {
+		if (headRef != ref) {
+			unlinkRef(ref);
+			linkRef(ref);
+		}
+	}
+
+	/**
+	 * Links a slot into the list as the most recently used.
+	 */
+	private void linkRef(int ref) {
+		prevRef[ref] = -1;
+		nextRef[ref] = headRef;
+		if (headRef != -1)
+			prevRef[headRef] = ref;
+		else
+			tailRef = ref;
+		headRef = ref;
+	}
+
+	private void unlinkRef(int ref) {
+		int prev = prevRef[ref], next = nextRef[ref];
+		if (prev != -1)
+			nextRef[prev] = next;
+		else
+			headRef = next;
+		if (next != -1)
+			prevRef[next] = prev;
+		else
+			tailRef = prev;
+		prevRef[ref] = nextRef[ref] = -1;
+	}
+}
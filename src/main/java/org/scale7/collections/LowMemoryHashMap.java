@@ -16,6 +16,8 @@ package org.scale7.collections;
  * the License.
  */
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -27,18 +29,41 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A memory-efficient hash map.
+ * <p>
+ * By default the table is linearly probed and grows once three quarters of
+ * its slots are occupied. Alternatively the map can be constructed to cache
+ * the spread hash code of each key in a parallel <code>int[]</code> and to
+ * use Robin Hood probing. Cached hash codes let probes reject mismatching
+ * slots without calling <code>equals</code>, and mean that keys never need to
+ * be rehashed when the table grows or entries are moved after a removal.
+ * Robin Hood probing bounds the variance of probe lengths, so that the table
+ * may be filled to a higher load factor without lookups degrading.
+ * <p>
+ * To diagnose keys with poor hash codes, the map can also be constructed to
+ * collect statistics on the number of slots its lookups probe and the time it
+ * spends reorganizing its table, which are reported by {@link #statistics()}
+ * together with measurements of how clustered the table is.
  * 
  * @param <K>
  *            the key type
  * @param <V>
  *            the value type
  */
-@SuppressWarnings("serial")
 public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 
+	/**
+	 * The identifier computed for the class before any field was serialized
+	 * by default, pinned so that existing streams remain readable.
+	 */
+	private static final long serialVersionUID = -384962791452951175L;
+
 	/**
 	 * In the interest of memory-savings, we start with the smallest feasible
 	 * power-of-two table size that can hold three items without rehashing. If
@@ -47,6 +72,18 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 	 */
 	private static final int INITIAL_TABLE_SIZE = 4;
 
+	/**
+	 * The load factor used unless another is specified.
+	 */
+	public static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+	/**
+	 * Below this many entries or slots {@link #bulkLoad(Object[], Object[])}
+	 * and {@link #parallelForEach(IEntryVisitor, int)} do not bother to start
+	 * any threads.
+	 */
+	static final int PARALLEL_THRESHOLD = 1 << 14;
+
 	private class EntryIterator implements Iterator<Entry<K, V>> {
 		private int index = 0;
 		private int last = -1;
@@ -139,6 +176,7 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 			int index = findKey(entry.getKey());
 			if (index >= 0 && valueEquals(values[index], entry.getValue())) {
 				internalRemove(index);
+				shrinkIfSparse();
 				return true;
 			}
 			return false;
@@ -281,6 +319,7 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 			int index = findKey(o);
 			if (index >= 0) {
 				internalRemove(index);
+				shrinkIfSparse();
 				return true;
 			}
 			return false;
@@ -301,6 +340,107 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		}
 	}
 
+	/**
+	 * Walks the slots of the table directly, without creating an object per
+	 * entry. A cursor starts before the first entry; each call to
+	 * {@link #advance()} moves it to the next entry. A cursor may be
+	 * {@link #reset()} and reused for another sweep, so that repeated sweeps
+	 * allocate nothing at all. As with the iterators, the effect of modifying
+	 * the map other than through the cursor during a sweep is undefined.
+	 */
+	public final class MapCursor {
+		private final int fromSlot;
+		/**
+		 * The slot after the last slot of the range, or {@link LowMemoryHashing#WHOLE_TABLE}
+		 * to sweep however many slots the table has at the time.
+		 */
+		private final int toSlot;
+		private int index;
+		private boolean positioned = false;
+
+		MapCursor(int fromSlot, int toSlot) {
+			this.fromSlot = fromSlot;
+			this.toSlot = toSlot;
+			index = fromSlot - 1;
+		}
+
+		/**
+		 * Move to the next entry
+		 * @return <code>true</code> if the cursor is positioned on an entry, <code>false</code> if
+		 * there are no more entries
+		 */
+		public boolean advance() {
+			int end = (toSlot == LowMemoryHashing.WHOLE_TABLE) ? keys.length : toSlot;
+			while (++index < end) {
+				if (keys[index] != null) {
+					positioned = true;
+					return true;
+				}
+			}
+			positioned = false;
+			return false;
+		}
+
+		/**
+		 * The key of the current entry
+		 */
+		@SuppressWarnings("unchecked")
+		public K key() {
+			checkPositioned();
+			return (K) unmaskNullKey(keys[index]);
+		}
+
+		/**
+		 * Remove the current entry. The cursor is left between entries, so that the next call to
+		 * {@link #advance()} moves to the entry that followed it.
+		 */
+		public void remove() {
+			checkPositioned();
+			internalRemove(index);
+			if (keys[index] != null) {
+				// an entry was moved back into the slot we just emptied
+				--index;
+			}
+			positioned = false;
+		}
+
+		/**
+		 * Move the cursor back before the first entry so that it can be reused
+		 */
+		public void reset() {
+			index = fromSlot - 1;
+			positioned = false;
+		}
+
+		/**
+		 * Replace the value of the current entry
+		 * @param value The new value
+		 * @return The previous value
+		 */
+		@SuppressWarnings("unchecked")
+		public V setValue(V value) {
+			checkPositioned();
+			Object previous = values[index];
+			values[index] = value;
+			return (V) previous;
+		}
+
+		/**
+		 * The value of the current entry
+		 */
+		@SuppressWarnings("unchecked")
+		public V value() {
+			checkPositioned();
+			return (V) values[index];
+		}
+
+		private void checkPositioned() {
+			if (!positioned) {
+				throw new IllegalStateException();
+			}
+		}
+	}
+
 	private class ValueIterator implements Iterator<V> {
 		private int index = 0;
 		private int last = -1;
@@ -377,6 +517,7 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 				for (int i = 0; i < keys.length; ++i) {
 					if (keys[i] != null && values[i] == null) {
 						internalRemove(i);
+						shrinkIfSparse();
 						return true;
 					}
 				}
@@ -384,6 +525,7 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 				for (int i = 0; i < keys.length; ++i) {
 					if (valueEquals(values[i], o)) {
 						internalRemove(i);
+						shrinkIfSparse();
 						return true;
 					}
 				}
@@ -420,12 +562,38 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		return (k == NULL_KEY) ? null : k;
 	}
 
+	/**
+	 * The spread hash codes of the keys, or <code>null</code> unless hash codes
+	 * are cached; transient due to custom serialization. Default access to
+	 * avoid synthetic accessors from inner classes.
+	 */
+	transient int[] hashes;
+
 	/**
 	 * Backing store for all the keys; transient due to custom serialization.
 	 * Default access to avoid synthetic accessors from inner classes.
 	 */
 	transient Object[] keys;
 
+	/**
+	 * The maximum fraction of the table that may be occupied before it grows;
+	 * transient due to custom serialization.
+	 */
+	transient float loadFactor;
+
+	/**
+	 * The counters updated by probes and table reorganizations, or
+	 * <code>null</code> unless statistics are collected; not serialized.
+	 */
+	final transient ProbeStatistics statistics;
+
+	/**
+	 * The fraction of the table below which it shrinks when entries are
+	 * removed, or zero if it never shrinks automatically; transient due to
+	 * custom serialization.
+	 */
+	transient float shrinkLoadFactor;
+
 	/**
 	 * Number of pairs in this set; transient due to custom serialization.
 	 * Default access to avoid synthetic accessors from inner classes.
@@ -439,9 +607,43 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 	transient Object[] values;
 
 	public LowMemoryHashMap() {
+		loadFactor = DEFAULT_LOAD_FACTOR;
+		shrinkLoadFactor = loadFactor / 8;
+		statistics = null;
 		initTable(INITIAL_TABLE_SIZE);
 	}
 
+	/**
+	 * Constructs a map with a choice of table layout.
+	 * @param expectedSize The number of entries the map should hold without rehashing
+	 * @param loadFactor The maximum fraction of the table that may be occupied before it grows,
+	 * which must be less than one
+	 * @param cacheHashes Whether to cache the hash code of each key and use Robin Hood probing
+	 */
+	public LowMemoryHashMap(int expectedSize, float loadFactor, boolean cacheHashes) {
+		this(expectedSize, loadFactor, cacheHashes, false);
+	}
+
+	/**
+	 * Constructs a map with a choice of table layout, which may collect
+	 * statistics.
+	 * @param expectedSize The number of entries the map should hold without rehashing
+	 * @param loadFactor The maximum fraction of the table that may be occupied before it grows,
+	 * which must be less than one
+	 * @param cacheHashes Whether to cache the hash code of each key and use Robin Hood probing
+	 * @param collectStatistics Whether to count probe lengths and time table reorganizations
+	 */
+	public LowMemoryHashMap(int expectedSize, float loadFactor, boolean cacheHashes,
+			boolean collectStatistics) {
+		this.loadFactor = LowMemoryHashing.checkLoadFactor(loadFactor);
+		shrinkLoadFactor = loadFactor / 8;
+		statistics = collectStatistics ? new ProbeStatistics() : null;
+		if (cacheHashes) {
+			hashes = new int[0];
+		}
+		initTable(LowMemoryHashing.capacityFor(expectedSize, loadFactor));
+	}
+
 	public LowMemoryHashMap(Map<? extends K, ? extends V> m) {
 		int newCapacity = INITIAL_TABLE_SIZE;
 		int expectedSize = m.size();
@@ -449,15 +651,80 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 			newCapacity <<= 1;
 		}
 
+		loadFactor = DEFAULT_LOAD_FACTOR;
+		shrinkLoadFactor = loadFactor / 8;
+		statistics = null;
 		initTable(newCapacity);
 		internalPutAll(m);
 	}
 
+	/**
+	 * Returns the number of slots in the table.
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
 	public void clear() {
 		initTable(INITIAL_TABLE_SIZE);
 		size = 0;
 	}
 
+	/**
+	 * Computes a new value for a key from its current value, locating the
+	 * key only once. If the new value is <code>null</code> the key is removed.
+	 * The function must not modify the map.
+	 * @param key The key
+	 * @param function Computes the new value from the key and its current value, or <code>null</code>
+	 * @return The new value
+	 */
+	@SuppressWarnings("unchecked")
+	public V computeValue(K key, IRemappingFunction<? super K, V> function) {
+		int index = locate(key);
+		if (isOccupied(index)) {
+			V value = function.apply(key, (V) values[index]);
+			if (value == null) {
+				internalRemove(index);
+				shrinkIfSparse();
+			} else {
+				values[index] = value;
+			}
+			return value;
+		}
+		V value = function.apply(key, null);
+		if (value != null) {
+			insertAt(index, key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the value mapped to a key, first mapping it to a computed value
+	 * if it is absent or mapped to <code>null</code>, locating the key only
+	 * once. Nothing is mapped if the computed value is <code>null</code>. The
+	 * function must not modify the map.
+	 * @param key The key
+	 * @param function Computes the value for the key
+	 * @return The existing or computed value
+	 */
+	@SuppressWarnings("unchecked")
+	public V getOrCompute(K key, IKeyFunction<? super K, ? extends V> function) {
+		int index = locate(key);
+		if (isOccupied(index)) {
+			V value = (V) values[index];
+			if (value == null) {
+				value = function.apply(key);
+				values[index] = value;
+			}
+			return value;
+		}
+		V value = function.apply(key);
+		if (value != null) {
+			insertAt(index, key, value);
+		}
+		return value;
+	}
+
 	public boolean containsKey(Object key) {
 		return findKey(key) >= 0;
 	}
@@ -479,6 +746,27 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		return false;
 	}
 
+	/**
+	 * Returns a cursor over the entries of this map.
+	 */
+	public MapCursor cursor() {
+		return new MapCursor(0, LowMemoryHashing.WHOLE_TABLE);
+	}
+
+	/**
+	 * Returns a cursor over the entries in a range of slots of the table, which
+	 * can be used to divide the work of traversing the map between threads.
+	 * The ranges <code>[0, n)</code> and <code>[n, {@link #capacity()})</code>
+	 * together cover every entry exactly once, provided the map is not
+	 * modified while they are traversed.
+	 * @param fromSlot The first slot of the range
+	 * @param toSlot The slot after the last slot of the range
+	 */
+	public MapCursor cursor(int fromSlot, int toSlot) {
+		LowMemoryHashing.checkSlotRange(fromSlot, toSlot, keys.length);
+		return new MapCursor(fromSlot, toSlot);
+	}
+
 	public Set<Entry<K, V>> entrySet() {
 		return new EntrySet();
 	}
@@ -493,12 +781,75 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		return entrySet().equals(other.entrySet());
 	}
 
+	/**
+	 * Passes every entry of this map to a visitor, without creating any
+	 * objects. The visitor must not modify the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEachEntry(IEntryVisitor<? super K, ? super V> visitor) {
+		Object[] keys = this.keys;
+		Object[] values = this.values;
+		for (int i = 0; i < keys.length; ++i) {
+			Object key = keys[i];
+			if (key != null) {
+				visitor.visit((K) unmaskNullKey(key), (V) values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Passes every key of this map to a visitor, without creating any objects.
+	 * The visitor must not modify the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEachKey(IVisitor<? super K> visitor) {
+		Object[] keys = this.keys;
+		for (int i = 0; i < keys.length; ++i) {
+			Object key = keys[i];
+			if (key != null) {
+				visitor.visit((K) unmaskNullKey(key));
+			}
+		}
+	}
+
+	/**
+	 * Passes every value of this map to a visitor, without creating any
+	 * objects. The visitor must not modify the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEachValue(IVisitor<? super V> visitor) {
+		Object[] keys = this.keys;
+		Object[] values = this.values;
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] != null) {
+				visitor.visit((V) values[i]);
+			}
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	public V get(Object key) {
 		int index = findKey(key);
 		return (index < 0) ? null : (V) values[index];
 	}
 
+	/**
+	 * Returns the value mapped to a key, first mapping it to a default value
+	 * if it is absent, locating the key only once.
+	 * @param key The key
+	 * @param defaultValue The value to map to the key if it is absent
+	 * @return The existing value, or <code>defaultValue</code>
+	 */
+	@SuppressWarnings("unchecked")
+	public V getOrPut(K key, V defaultValue) {
+		int index = locate(key);
+		if (isOccupied(index)) {
+			return (V) values[index];
+		}
+		insertAt(index, key, defaultValue);
+		return defaultValue;
+	}
+
 	@Override
 	public int hashCode() {
 		int result = 0;
@@ -512,6 +863,27 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		return result;
 	}
 
+	/**
+	 * Returns an immutable copy of this map that uses a minimal perfect hash
+	 * function to find each key with a single probe.
+	 */
+	public FrozenLowMemoryHashMap<K, V> freeze() {
+		return new FrozenLowMemoryHashMap<K, V>(this);
+	}
+
+	/**
+	 * Returns the approximate number of bytes retained by the table of this
+	 * map, not counting the keys and values themselves.
+	 */
+	public long estimatedRetainedBytes() {
+		long bytes = 2 * LowMemoryHashing.arrayBytes(keys.length,
+				LowMemoryHashing.REFERENCE_BYTES);
+		if (hashes != null) {
+			bytes += LowMemoryHashing.arrayBytes(hashes.length, 4);
+		}
+		return bytes;
+	}
+
 	public boolean isEmpty() {
 		return size == 0;
 	}
@@ -520,9 +892,86 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		return new KeySet();
 	}
 
+	/**
+	 * Returns the maximum fraction of the table that may be occupied before it
+	 * grows.
+	 */
+	public float loadFactor() {
+		return loadFactor;
+	}
+
+	/**
+	 * Maps a key to a value if it is absent or mapped to <code>null</code>,
+	 * and otherwise to the result of combining its current value with the
+	 * value, locating the key only once. If the result is <code>null</code> the
+	 * key is removed. The function must not modify the map.
+	 * @param key The key
+	 * @param value The value to merge, which must not be <code>null</code>
+	 * @param function Combines the current value with <code>value</code>
+	 * @return The new value, or <code>null</code> if the key was removed
+	 */
+	@SuppressWarnings("unchecked")
+	public V mergeValue(K key, V value, IMergeFunction<V> function) {
+		if (value == null) {
+			throw new NullPointerException("Cannot merge a null value");
+		}
+		int index = locate(key);
+		if (!isOccupied(index)) {
+			insertAt(index, key, value);
+			return value;
+		}
+		V oldValue = (V) values[index];
+		V newValue = (oldValue == null) ? value : function.apply(oldValue, value);
+		if (newValue == null) {
+			internalRemove(index);
+			shrinkIfSparse();
+		} else {
+			values[index] = newValue;
+		}
+		return newValue;
+	}
+
+	/**
+	 * Passes every entry of this map to a visitor, dividing the table between
+	 * the specified number of threads. The visitor must be safe to call from
+	 * several threads at once, and must not modify the map.
+	 * @param visitor The visitor
+	 * @param parallelism The number of threads to use
+	 */
+	public void parallelForEach(final IEntryVisitor<? super K, ? super V> visitor,
+			int parallelism) {
+		final Object[] keys = this.keys;
+		final Object[] values = this.values;
+		if (parallelism < 2 || keys.length < PARALLEL_THRESHOLD) {
+			forEachEntry(visitor);
+			return;
+		}
+		int ranges = parallelism * 4;
+		Runnable[] tasks = new Runnable[ranges];
+		for (int r = 0; r < ranges; r++) {
+			final int from = (int) ((long) keys.length * r / ranges);
+			final int to = (int) ((long) keys.length * (r + 1) / ranges);
+			tasks[r] = new Runnable() {
+				@SuppressWarnings("unchecked")
+				public void run() {
+					for (int i = from; i < to; ++i) {
+						Object key = keys[i];
+						if (key != null) {
+							visitor.visit((K) unmaskNullKey(key), (V) values[i]);
+						}
+					}
+				}
+			};
+		}
+		LowMemoryHashing.runAll(tasks, parallelism);
+	}
+
 	@SuppressWarnings("unchecked")
 	public V put(K key, V value) {
 		ensureSizeFor(size + 1);
+		if (hashes != null) {
+			return (V) robinHoodPut(key, value);
+		}
 		int index = findKeyOrEmpty(key);
 		if (keys[index] == null) {
 			++size;
@@ -541,6 +990,27 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		internalPutAll(m);
 	}
 
+	/**
+	 * Maps a key to a value if it is absent or mapped to <code>null</code>,
+	 * locating the key only once.
+	 * @param key The key
+	 * @param value The value
+	 * @return The value that was mapped to the key, or <code>null</code> if the value was put
+	 */
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(K key, V value) {
+		int index = locate(key);
+		if (!isOccupied(index)) {
+			insertAt(index, key, value);
+			return null;
+		}
+		V existing = (V) values[index];
+		if (existing == null) {
+			values[index] = value;
+		}
+		return existing;
+	}
+
 	@SuppressWarnings("unchecked")
 	public V remove(Object key) {
 		int index = findKey(key);
@@ -549,13 +1019,85 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		}
 		Object previousValue = values[index];
 		internalRemove(index);
+		shrinkIfSparse();
 		return (V) previousValue;
 	}
 
+	/**
+	 * Sets the fraction of the table below which it shrinks when entries are
+	 * removed. A shrunk table is at most half full relative to the load
+	 * factor, so it must double in size before growing again; to keep the
+	 * shrunk table from being shrunk again at once, the shrink load factor may
+	 * be at most a quarter of the load factor. It defaults to an eighth of the
+	 * load factor, and zero disables automatic shrinking.
+	 */
+	public void setShrinkLoadFactor(float shrinkLoadFactor) {
+		this.shrinkLoadFactor = LowMemoryHashing.checkShrinkLoadFactor(
+				shrinkLoadFactor, loadFactor);
+	}
+
+	/**
+	 * Returns the fraction of the table below which it shrinks when entries
+	 * are removed, or zero if it never shrinks automatically.
+	 */
+	public float shrinkLoadFactor() {
+		return shrinkLoadFactor;
+	}
+
 	public int size() {
 		return size;
 	}
 
+	/**
+	 * Returns a snapshot of the statistics of this map. The probe, resize and
+	 * removal counters are zero unless the map was constructed to collect
+	 * statistics. This may be called from another thread, such as one polling
+	 * the {@link #statisticsMBean()}, while the map is in use: the occupancy is
+	 * then measured over whichever table the map held when the call began, and
+	 * is only approximate. Synchronize with the writers for exact figures.
+	 */
+	public HashTableStatistics statistics() {
+		Object[] keys = this.keys;
+		int[] hashes = this.hashes;
+		boolean cachedHashes = hashes != null;
+		if (cachedHashes && hashes.length != keys.length) {
+			// the table was replaced between reading the two arrays
+			hashes = null;
+		}
+		int mask = keys.length - 1;
+		long displacement = 0;
+		for (int i = 0; i < keys.length; ++i) {
+			Object k = keys[i];
+			if (k != null) {
+				int home;
+				if (hashes != null) {
+					home = hashes[i] & mask;
+				} else if (cachedHashes) {
+					home = LowMemoryHashing.spread(keyHashCode(unmaskNullKey(k))) & mask;
+				} else {
+					home = getKeyIndex(unmaskNullKey(k), mask);
+				}
+				displacement += (i - home) & mask;
+			}
+		}
+		return ProbeStatistics.snapshot(statistics, size, keys.length,
+				ProbeStatistics.maxClusterLength(keys),
+				(size == 0) ? 0 : (double) displacement / size);
+	}
+
+	/**
+	 * Returns an MBean through which the statistics of this map can be
+	 * monitored over JMX. Its attributes are read without synchronizing with
+	 * the map, as described for {@link #statistics()}.
+	 */
+	public HashTableStatisticsMXBean statisticsMBean() {
+		return new ProbeStatistics.Live() {
+			HashTableStatistics snapshot() {
+				return statistics();
+			}
+		};
+	}
+
 	@Override
 	public String toString() {
 		if (size == 0) {
@@ -582,10 +1124,219 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		return buf.toString();
 	}
 
+	/**
+	 * Shrinks the table to the smallest capacity that holds the current
+	 * entries within the load factor.
+	 */
+	public void trimToSize() {
+		int capacity = LowMemoryHashing.capacityFor(size, loadFactor);
+		if (capacity < keys.length) {
+			rehash(capacity);
+		}
+	}
+
 	public Collection<V> values() {
 		return new Values();
 	}
 
+	/**
+	 * Builds a map from parallel arrays of keys and values, using all
+	 * available processors for large inputs. Later duplicates of a key replace
+	 * earlier ones, just as if the entries had been put in order.
+	 * 
+	 * @param keys
+	 *            the keys
+	 * @param values
+	 *            the values, which must be the same length as the keys
+	 */
+	public static <K, V> LowMemoryHashMap<K, V> bulkLoad(K[] keys, V[] values) {
+		LowMemoryHashMap<K, V> map = new LowMemoryHashMap<K, V>();
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		if (keys.length < PARALLEL_THRESHOLD || parallelism < 2) {
+			map.bulkLoad(keys, values, null, 1);
+			return map;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			map.bulkLoad(keys, values, executor, parallelism);
+		} finally {
+			executor.shutdown();
+		}
+		return map;
+	}
+
+	/**
+	 * Puts the entries of parallel arrays of keys and values into this map.
+	 * The table is sized once for the final number of entries. If the map is
+	 * empty and uses linear probing, the entries are then hashed in parallel,
+	 * partitioned by the range of slots in which their probe sequences start,
+	 * and each partition is filled by its own task. Entries whose probe runs
+	 * off the end of their partition are placed in a final sequential pass.
+	 * Later duplicates of a key replace earlier ones, just as if the entries
+	 * had been put in order.
+	 * 
+	 * @param keys
+	 *            the keys
+	 * @param values
+	 *            the values, which must be the same length as the keys
+	 * @param executor
+	 *            the executor on which to run tasks, or <code>null</code> to
+	 *            load sequentially
+	 * @param parallelism
+	 *            the number of tasks to run at once
+	 */
+	public void bulkLoad(final K[] keys, final V[] values,
+			ExecutorService executor, int parallelism) {
+		if (keys.length != values.length)
+			throw new IllegalArgumentException("There must be a value for every key");
+		ensureSizeFor(size + keys.length);
+		final int n = keys.length;
+		if (size != 0 || executor == null || parallelism < 2 || n < 2) {
+			for (int i = 0; i < n; i++) {
+				put(keys[i], values[i]);
+			}
+			return;
+		}
+
+		// hash every key in parallel
+		final int[] keyHashes = new int[n];
+		final int chunk = (n + parallelism - 1) / parallelism;
+		Future<?>[] hashing = new Future<?>[parallelism];
+		for (int t = 0; t < parallelism; t++) {
+			final int from = Math.min(n, t * chunk);
+			final int to = Math.min(n, from + chunk);
+			hashing[t] = executor.submit(new Runnable() {
+				public void run() {
+					for (int i = from; i < to; i++) {
+						keyHashes[i] = LowMemoryHashing.spread(keyHashCode(keys[i]));
+					}
+				}
+			});
+		}
+		LowMemoryHashing.awaitAll(hashing);
+
+		if (hashes != null) {
+			// Robin Hood displacement crosses partition boundaries freely, so
+			// only the hashing is done in parallel
+			for (int i = 0; i < n; i++) {
+				robinHoodPut(keys[i], values[i], keyHashes[i]);
+			}
+			return;
+		}
+
+		// counting sort of the entries by partition, stable so that
+		// duplicates of a key stay in order
+		final int capacity = this.keys.length;
+		int partitions = Math.min(Integer.highestOneBit(parallelism) * 4, capacity);
+		final int partitionShift = Integer.numberOfTrailingZeros(capacity)
+				- Integer.numberOfTrailingZeros(partitions);
+		final int[] starts = new int[partitions + 1];
+		for (int i = 0; i < n; i++) {
+			++starts[((keyHashes[i] & (capacity - 1)) >>> partitionShift) + 1];
+		}
+		for (int p = 0; p < partitions; p++) {
+			starts[p + 1] += starts[p];
+		}
+		final int[] order = new int[n];
+		int[] next = starts.clone();
+		for (int i = 0; i < n; i++) {
+			order[next[(keyHashes[i] & (capacity - 1)) >>> partitionShift]++] = i;
+		}
+
+		// fill each partition's range of slots independently
+		Future<?>[] filling = new Future<?>[partitions];
+		for (int p = 0; p < partitions; p++) {
+			final int partition = p;
+			filling[p] = executor.submit(new Callable<int[]>() {
+				public int[] call() {
+					return fillPartition(keys, values, keyHashes, order,
+							starts[partition], starts[partition + 1],
+							(partition + 1) << partitionShift);
+				}
+			});
+		}
+		// every partition must be complete before any overflow is put, as a
+		// put may probe into the range of any later partition
+		LowMemoryHashing.awaitAll(filling);
+		for (Future<?> f : filling) {
+			int[] overflow = (int[]) LowMemoryHashing.await(f);
+			size += overflow[0];
+			for (int i = 1; i < overflow.length; i++) {
+				put(keys[overflow[i]], values[overflow[i]]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a map written by
+	 * {@link #writeBinary(DataOutput, IBinaryCodec, IBinaryCodec)}. The table
+	 * is allocated once at its original capacity, and since the keys are known
+	 * to be distinct each entry is placed directly into a free slot without
+	 * comparing keys. To rebuild a map from a channel as its bytes arrive, use
+	 * a {@link LowMemoryHashMapReader}.
+	 * 
+	 * @param in
+	 *            the input
+	 * @param keyCodec
+	 *            the codec with which the keys were written
+	 * @param valueCodec
+	 *            the codec with which the values were written
+	 */
+	public static <K, V> LowMemoryHashMap<K, V> readBinary(DataInput in,
+			IBinaryCodec<? extends K> keyCodec,
+			IBinaryCodec<? extends V> valueCodec) throws IOException {
+		LowMemoryBinaryFormat.Header header = LowMemoryBinaryFormat.readHeader(in);
+		LowMemoryHashMap<K, V> map = newForLoad(header);
+		for (int i = 0; i < header.size; i++) {
+			BinaryCodecs.readVarInt(in);
+			K key = keyCodec.read(in);
+			V value = valueCodec.read(in);
+			map.insertAbsent(key, value);
+		}
+		return map;
+	}
+
+	/**
+	 * Writes this map in a compact binary form, encoding keys and values with
+	 * the given codecs rather than Java serialization. The table capacity and
+	 * layout are written once so that the map can be rebuilt without resizing.
+	 * 
+	 * @param out
+	 *            the output
+	 * @param keyCodec
+	 *            the codec for keys
+	 * @param valueCodec
+	 *            the codec for values
+	 */
+	@SuppressWarnings("unchecked")
+	public void writeBinary(DataOutput out, IBinaryCodec<? super K> keyCodec,
+			IBinaryCodec<? super V> valueCodec) throws IOException {
+		LowMemoryBinaryFormat.writeHeader(out, hashes != null, loadFactor,
+				keys.length, size);
+		LowMemoryBinaryFormat.EntryWriter entry = new LowMemoryBinaryFormat.EntryWriter();
+		for (int i = 0; i < keys.length; ++i) {
+			Object key = keys[i];
+			if (key != null) {
+				entry.begin();
+				keyCodec.write((K) unmaskNullKey(key), entry.data);
+				valueCodec.write((V) values[i], entry.data);
+				entry.finish(out);
+			}
+		}
+	}
+
+	/**
+	 * Creates an empty map laid out as described by a binary header. Default
+	 * access for use by {@link LowMemoryHashMapReader}.
+	 */
+	static <K, V> LowMemoryHashMap<K, V> newForLoad(
+			LowMemoryBinaryFormat.Header header) {
+		LowMemoryHashMap<K, V> map = new LowMemoryHashMap<K, V>(0,
+				header.loadFactor, header.cachedHashes);
+		map.initTable(header.capacity);
+		return map;
+	}
+
 	/**
 	 * Adapted from {@link org.apache.commons.collections.map.AbstractHashedMap}
 	 * .
@@ -594,6 +1345,17 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 	protected void doReadObject(ObjectInputStream in) throws IOException,
 			ClassNotFoundException {
 		int capacity = in.readInt();
+		loadFactor = DEFAULT_LOAD_FACTOR;
+		shrinkLoadFactor = loadFactor / 8;
+		if (capacity < 0) {
+			// the settings follow, as written by writeSettings
+			capacity = -capacity;
+			if (in.readBoolean()) {
+				hashes = new int[0];
+			}
+			loadFactor = LowMemoryHashing.checkLoadFactor(in.readFloat());
+			shrinkLoadFactor = LowMemoryHashing.checkShrinkLoadFactor(in.readFloat(), loadFactor);
+		}
 		initTable(capacity);
 		int items = in.readInt();
 		for (int i = 0; i < items; i++) {
@@ -608,7 +1370,7 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 	 * .
 	 */
 	protected void doWriteObject(ObjectOutputStream out) throws IOException {
-		out.writeInt(keys.length);
+		writeSettings(out, keys.length);
 		out.writeInt(size);
 		for (int i = 0; i < keys.length; ++i) {
 			Object key = keys[i];
@@ -619,6 +1381,24 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		}
 	}
 
+	/**
+	 * Writes the capacity of the table, followed by the layout and load
+	 * factors if any differs from the default. Streams written before those
+	 * settings existed hold only the capacity, so the presence of the settings
+	 * is marked by negating the capacity.
+	 */
+	private void writeSettings(ObjectOutputStream out, int capacity) throws IOException {
+		if (hashes == null && loadFactor == DEFAULT_LOAD_FACTOR
+				&& shrinkLoadFactor == loadFactor / 8) {
+			out.writeInt(capacity);
+			return;
+		}
+		out.writeInt(-capacity);
+		out.writeBoolean(hashes != null);
+		out.writeFloat(loadFactor);
+		out.writeFloat(shrinkLoadFactor);
+	}
+
 	/**
 	 * Returns whether two keys are equal for the purposes of this set.
 	 */
@@ -652,18 +1432,57 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 	 * entries. Default access to avoid synthetic accessors from inner classes.
 	 */
 	void ensureSizeFor(int expectedSize) {
-		if (keys.length * 3 >= expectedSize * 4) {
+		if (LowMemoryHashing.canHold(keys.length, expectedSize, loadFactor)) {
 			return;
 		}
 
 		int newCapacity = keys.length << 1;
-		while (newCapacity * 3 < expectedSize * 4) {
+		while (!LowMemoryHashing.canHold(newCapacity, expectedSize, loadFactor)) {
 			newCapacity <<= 1;
 		}
+		rehash(newCapacity);
+	}
+
+	/**
+	 * Shrinks the table if removals have left it sparse enough. Default access
+	 * to avoid synthetic accessors from inner classes.
+	 */
+	void shrinkIfSparse() {
+		int newCapacity = LowMemoryHashing.shrunkCapacity(keys.length, size,
+				loadFactor, shrinkLoadFactor);
+		if (newCapacity < keys.length) {
+			rehash(newCapacity);
+		}
+	}
+
+	/**
+	 * Moves every entry into a new table of the specified capacity.
+	 */
+	private void rehash(int newCapacity) {
+		if (statistics == null) {
+			moveEntries(newCapacity);
+			return;
+		}
+		long start = System.nanoTime();
+		moveEntries(newCapacity);
+		statistics.recordResize(System.nanoTime() - start);
+	}
 
+	private void moveEntries(int newCapacity) {
 		Object[] oldKeys = keys;
 		Object[] oldValues = values;
+		int[] oldHashes = hashes;
 		initTable(newCapacity);
+		if (oldHashes != null) {
+			for (int i = 0; i < oldKeys.length; ++i) {
+				if (oldKeys[i] != null) {
+					int h = oldHashes[i];
+					robinHoodInsert(h & (keys.length - 1), 0, oldKeys[i],
+							oldValues[i], h);
+				}
+			}
+			return;
+		}
 		for (int i = 0; i < oldKeys.length; ++i) {
 			Object k = oldKeys[i];
 			if (k != null) {
@@ -685,6 +1504,12 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 	 * accessors from inner classes.
 	 */
 	int findKey(Object k) {
+		if (statistics != null) {
+			return countedFindKey(k, false);
+		}
+		if (hashes != null) {
+			return robinHoodFindKey(k);
+		}
 		int index = getKeyIndex(k);
 		while (true) {
 			Object existing = keys[index];
@@ -703,10 +1528,14 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 	/**
 	 * Returns the index in the key table at which a particular key resides, or
 	 * the index of an empty slot in the table where this key should be inserted
-	 * if it is not already in the table. Default access to avoid synthetic
-	 * accessors from inner classes.
+	 * if it is not already in the table. Only valid when hash codes are not
+	 * cached, since Robin Hood insertion may displace existing entries. Default
+	 * access to avoid synthetic accessors from inner classes.
 	 */
 	int findKeyOrEmpty(Object k) {
+		if (statistics != null) {
+			return countedFindKey(k, true);
+		}
 		int index = getKeyIndex(k);
 		while (true) {
 			Object existing = keys[index];
@@ -722,19 +1551,199 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		}
 	}
 
+	/**
+	 * Inserts the entries of one partition of a parallel bulk load into the
+	 * slots before <code>end</code>, returning the number of new entries
+	 * followed by the indices of any entries whose probe ran past the end of
+	 * the partition. Default access to avoid synthetic accessors from inner
+	 * classes.
+	 */
+	int[] fillPartition(Object[] newKeys, Object[] newValues, int[] keyHashes,
+			int[] order, int from, int to, int end) {
+		int mask = keys.length - 1;
+		int added = 0;
+		int[] overflow = new int[1];
+		int overflowCount = 1;
+		for (int o = from; o < to; o++) {
+			int i = order[o];
+			Object key = newKeys[i];
+			int index = keyHashes[i] & mask;
+			while (true) {
+				if (index == end) {
+					if (overflowCount == overflow.length) {
+						int[] larger = new int[overflowCount * 2];
+						System.arraycopy(overflow, 0, larger, 0, overflowCount);
+						overflow = larger;
+					}
+					overflow[overflowCount++] = i;
+					break;
+				}
+				Object existing = keys[index];
+				if (existing == null) {
+					keys[index] = maskNullKey(key);
+					values[index] = newValues[i];
+					++added;
+					break;
+				}
+				if (keyEquals(key, unmaskNullKey(existing))) {
+					values[index] = newValues[i];
+					break;
+				}
+				++index;
+			}
+		}
+		overflow[0] = added;
+		if (overflowCount < overflow.length) {
+			int[] exact = new int[overflowCount];
+			System.arraycopy(overflow, 0, exact, 0, overflowCount);
+			overflow = exact;
+		}
+		return overflow;
+	}
+
+	/**
+	 * Inserts an entry whose key is known not to be present, without comparing
+	 * it against the keys already in the table. Default access for use by
+	 * {@link LowMemoryHashMapReader}.
+	 */
+	void insertAbsent(Object key, Object value) {
+		ensureSizeFor(size + 1);
+		if (hashes != null) {
+			int h = LowMemoryHashing.spread(keyHashCode(key));
+			robinHoodInsert(h & (keys.length - 1), 0, maskNullKey(key), value, h);
+		} else {
+			int index = getKeyIndex(key);
+			while (keys[index] != null) {
+				if (++index == keys.length) {
+					index = 0;
+				}
+			}
+			keys[index] = maskNullKey(key);
+			values[index] = value;
+		}
+		++size;
+	}
+
 	/**
 	 * Removes the entry at the specified index, and performs internal
 	 * management to make sure we don't wind up with a hole in the table.
 	 * Default access to avoid synthetic accessors from inner classes.
 	 */
 	void internalRemove(int index) {
-		keys[index] = null;
-		values[index] = null;
 		--size;
-		plugHole(index);
+		long start = (statistics != null) ? System.nanoTime() : 0;
+		if (hashes != null) {
+			robinHoodRemove(index);
+		} else {
+			keys[index] = null;
+			values[index] = null;
+			plugHole(index);
+		}
+		if (statistics != null) {
+			statistics.recordPlugHole(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Locates a key for a compound operation: with linear probing, the index
+	 * returned by {@link #findKeyOrEmpty(Object)}, and when hash codes are
+	 * cached, the index of the key or, if it is absent, the bitwise complement
+	 * of the slot at which Robin Hood insertion would place it.
+	 */
+	private int locate(Object key) {
+		if (hashes == null) {
+			return findKeyOrEmpty(key);
+		}
+		if (statistics != null) {
+			return countedFindKey(key, true);
+		}
+		return robinHoodLocate(key);
+	}
+
+	/**
+	 * Returns whether an index returned by {@link #locate(Object)} holds the
+	 * key.
+	 */
+	private boolean isOccupied(int index) {
+		return index >= 0 && keys[index] != null;
+	}
+
+	/**
+	 * Inserts an entry for a key that {@link #locate(Object)} found to be
+	 * absent, growing the table only now that a slot is to be consumed. The
+	 * located slot is used unless the table grows, and when hash codes are
+	 * cached, insertion continues from it at the key's distance from home.
+	 */
+	private void insertAt(int index, K key, V value) {
+		if (!LowMemoryHashing.canHold(keys.length, size + 1, loadFactor)) {
+			ensureSizeFor(size + 1);
+			if (hashes != null) {
+				robinHoodPut(key, value);
+				return;
+			}
+			index = findKeyOrEmpty(key);
+		} else if (hashes != null) {
+			int slot = ~index;
+			int hash = LowMemoryHashing.spread(keyHashCode(key));
+			++size;
+			robinHoodInsert(slot, (slot - hash) & (keys.length - 1),
+					maskNullKey(key), value, hash);
+			return;
+		}
+		++size;
+		keys[index] = maskNullKey(key);
+		values[index] = value;
+	}
+
+	/**
+	 * Probes in the same way as {@link #findKey(Object)}, or as
+	 * {@link #locate(Object)} if <code>orEmpty</code> is set, and records the
+	 * number of slots examined.
+	 */
+	private int countedFindKey(Object k, boolean orEmpty) {
+		int mask = keys.length - 1;
+		int probes = 1;
+		int result;
+		if (hashes != null) {
+			int hash = LowMemoryHashing.spread(keyHashCode(k));
+			int index = hash & mask;
+			for (int distance = 0;; ++distance, ++probes) {
+				Object existing = keys[index];
+				if (existing == null || ((index - hashes[index]) & mask) < distance) {
+					result = orEmpty ? ~index : -1;
+					break;
+				}
+				if (hashes[index] == hash
+						&& keyEquals(k, unmaskNullKey(existing))) {
+					result = index;
+					break;
+				}
+				index = (index + 1) & mask;
+			}
+		} else {
+			int index = getKeyIndex(k);
+			for (;; ++probes) {
+				Object existing = keys[index];
+				if (existing == null) {
+					result = orEmpty ? index : -1;
+					break;
+				}
+				if (keyEquals(k, unmaskNullKey(existing))) {
+					result = index;
+					break;
+				}
+				index = (index + 1) & mask;
+			}
+		}
+		statistics.recordProbe(probes);
+		return result;
 	}
 
 	private int getKeyIndex(Object k) {
+		return getKeyIndex(k, keys.length - 1);
+	}
+
+	private int getKeyIndex(Object k, int mask) {
 		int h = keyHashCode(k);
 		// Copied from Apache's AbstractHashedMap; prevents power-of-two
 		// collisions.
@@ -743,18 +1752,25 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		h += (h << 4);
 		h ^= (h >>> 10);
 		// Power of two trick.
-		return h & (keys.length - 1);
+		return h & mask;
 	}
 
 	private void initTable(int capacity) {
 		keys = new Object[capacity];
 		values = new Object[capacity];
+		if (hashes != null) {
+			hashes = new int[capacity];
+		}
 	}
 
 	private void internalPutAll(Map<? extends K, ? extends V> m) {
 		for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
 			K key = entry.getKey();
 			V value = entry.getValue();
+			if (hashes != null) {
+				robinHoodPut(key, value);
+				continue;
+			}
 			int index = findKeyOrEmpty(key);
 			if (keys[index] == null) {
 				++size;
@@ -818,6 +1834,132 @@ public class LowMemoryHashMap<K, V> implements Map<K, V>, Serializable {
 		doReadObject(in);
 	}
 
+	/**
+	 * Returns the index at which a key resides when hash codes are cached, or
+	 * -1.
+	 */
+	private int robinHoodFindKey(Object k) {
+		int index = robinHoodLocate(k);
+		return (index < 0) ? -1 : index;
+	}
+
+	/**
+	 * Returns the index at which a key resides when hash codes are cached, or
+	 * if it is absent, the bitwise complement of the slot at which it would be
+	 * inserted. The probe stops as soon as it meets an entry that is closer to
+	 * its home slot than the key would be, since Robin Hood insertion would
+	 * have placed the key there.
+	 */
+	private int robinHoodLocate(Object k) {
+		int hash = LowMemoryHashing.spread(keyHashCode(k));
+		int mask = keys.length - 1;
+		int index = hash & mask;
+		for (int distance = 0;; ++distance) {
+			Object existing = keys[index];
+			if (existing == null) {
+				return ~index;
+			}
+			int existingHash = hashes[index];
+			if (((index - existingHash) & mask) < distance) {
+				return ~index;
+			}
+			if (existingHash == hash
+					&& keyEquals(k, unmaskNullKey(existing))) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Inserts an entry that is known not to be present, starting at the given
+	 * slot and distance from the entry's home slot. Whenever the entry being
+	 * placed is further from home than the occupant of a slot, they swap and
+	 * the displaced occupant continues the probe.
+	 */
+	private void robinHoodInsert(int index, int distance, Object maskedKey,
+			Object value, int hash) {
+		int mask = keys.length - 1;
+		while (true) {
+			Object existing = keys[index];
+			if (existing == null) {
+				keys[index] = maskedKey;
+				values[index] = value;
+				hashes[index] = hash;
+				return;
+			}
+			int existingDistance = (index - hashes[index]) & mask;
+			if (existingDistance < distance) {
+				Object existingValue = values[index];
+				int existingHash = hashes[index];
+				keys[index] = maskedKey;
+				values[index] = value;
+				hashes[index] = hash;
+				maskedKey = existing;
+				value = existingValue;
+				hash = existingHash;
+				distance = existingDistance;
+			}
+			index = (index + 1) & mask;
+			++distance;
+		}
+	}
+
+	/**
+	 * Maps a key to a value when hash codes are cached, returning the previous
+	 * value. The table must already be large enough for a new entry.
+	 */
+	private Object robinHoodPut(Object key, Object value) {
+		return robinHoodPut(key, value,
+				LowMemoryHashing.spread(keyHashCode(key)));
+	}
+
+	/**
+	 * Maps a key with a known spread hash code to a value when hash codes are
+	 * cached.
+	 */
+	private Object robinHoodPut(Object key, Object value, int hash) {
+		int mask = keys.length - 1;
+		int index = hash & mask;
+		for (int distance = 0;; ++distance) {
+			Object existing = keys[index];
+			if (existing == null
+					|| ((index - hashes[index]) & mask) < distance) {
+				++size;
+				robinHoodInsert(index, distance, maskNullKey(key), value, hash);
+				return null;
+			}
+			if (hashes[index] == hash
+					&& keyEquals(key, unmaskNullKey(existing))) {
+				Object previousValue = values[index];
+				values[index] = value;
+				return previousValue;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Removes the entry at the specified index when hash codes are cached, by
+	 * shifting back the following entries until one is found that is empty or
+	 * already in its home slot. This keeps every probe sequence intact without
+	 * leaving tombstones.
+	 */
+	private void robinHoodRemove(int index) {
+		int mask = keys.length - 1;
+		int next = (index + 1) & mask;
+		while (keys[next] != null && ((next - hashes[next]) & mask) != 0) {
+			keys[index] = keys[next];
+			values[index] = values[next];
+			hashes[index] = hashes[next];
+			index = next;
+			next = (next + 1) & mask;
+		}
+		keys[index] = null;
+		values[index] = null;
+		hashes[index] = 0;
+	}
+
 	private void writeObject(ObjectOutputStream out) throws IOException {
 		out.defaultWriteObject();
 		doWriteObject(out);
@@ -0,0 +1,53 @@
+package org.scale7.collections;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * Rebuilds a {@link LowMemoryHashMap} from the binary form written by
+ * {@link LowMemoryHashMap#writeBinary(java.io.DataOutput, IBinaryCodec, IBinaryCodec)} as its
+ * bytes arrive, without ever holding the whole payload. Bytes may be pulled from a channel,
+ * which may be non-blocking, or pushed in chunks as they are received. Each entry is decoded and
+ * inserted into the pre-sized map as soon as all of its bytes are available, so only a single
+ * entry need be buffered.
+ *
+ * @param <K>	The key type
+ * @param <V>	The value type
+ */
+public class LowMemoryHashMapReader<K, V> extends LowMemoryBinaryReader {
+
+	private final IBinaryCodec<? extends K> keyCodec;
+	private final IBinaryCodec<? extends V> valueCodec;
+	private LowMemoryHashMap<K, V> map;
+
+	/**
+	 * Constructor
+	 * @param keyCodec		The codec with which the keys were written
+	 * @param valueCodec	The codec with which the values were written
+	 */
+	public LowMemoryHashMapReader(IBinaryCodec<? extends K> keyCodec, IBinaryCodec<? extends V> valueCodec) {
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+	}
+
+	/**
+	 * Returns the map once all of its entries have been read.
+	 * @throws IllegalStateException If the map is not yet complete
+	 */
+	public LowMemoryHashMap<K, V> getMap() {
+		checkComplete();
+		return map;
+	}
+
+	@Override
+	void create(LowMemoryBinaryFormat.Header header) {
+		map = LowMemoryHashMap.newForLoad(header);
+	}
+
+	@Override
+	void readEntry(DataInput in) throws IOException {
+		K key = keyCodec.read(in);
+		V value = valueCodec.read(in);
+		map.insertAbsent(key, value);
+	}
+}
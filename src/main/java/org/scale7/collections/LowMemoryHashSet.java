@@ -15,6 +15,8 @@ package org.scale7.collections;
  * License for the specific language governing permissions and limitations under
  * the License.
  */
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -27,13 +29,25 @@ import java.util.NoSuchElementException;
 
 /**
  * A memory-efficient hash set.
+ * <p>
+ * Like {@link LowMemoryHashMap}, the set may optionally be constructed to
+ * cache the spread hash code of each item and use Robin Hood probing, which
+ * avoids calls to <code>equals</code> on mismatching slots and to
+ * <code>hashCode</code> when the table is reorganized, and allows a higher
+ * load factor. It may also be constructed to collect the same statistics
+ * as a map, which are reported by {@link #statistics()}.
  * 
  * @param <E>
  *            the element type
  */
-@SuppressWarnings("serial")
 public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable {
 
+	/**
+	 * The identifier computed for the class before any field was serialized
+	 * by default, pinned so that existing streams remain readable.
+	 */
+	private static final long serialVersionUID = -8159878036472669484L;
+
 	private class SetIterator implements Iterator<E> {
 		private int index = 0;
 		private int last = -1;
@@ -77,6 +91,63 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 		}
 	}
 
+	/**
+	 * A reusable position in the table, for traversing the items of the set
+	 * without creating any objects.
+	 */
+	public final class SetCursor {
+		private final int fromSlot;
+		/**
+		 * The slot after the last slot of the range, or {@link LowMemoryHashing#WHOLE_TABLE}
+		 * to sweep however many slots the table has at the time.
+		 */
+		private final int toSlot;
+		private int index;
+		private boolean positioned = false;
+
+		SetCursor(int fromSlot, int toSlot) {
+			this.fromSlot = fromSlot;
+			this.toSlot = toSlot;
+			index = fromSlot - 1;
+		}
+
+		/**
+		 * Move to the next item
+		 * @return <code>true</code> if the cursor is positioned on an item, <code>false</code> if
+		 * there are no more items
+		 */
+		public boolean advance() {
+			int end = (toSlot == LowMemoryHashing.WHOLE_TABLE) ? table.length : toSlot;
+			while (++index < end) {
+				if (table[index] != null) {
+					positioned = true;
+					return true;
+				}
+			}
+			positioned = false;
+			return false;
+		}
+
+		/**
+		 * The current item
+		 */
+		@SuppressWarnings("unchecked")
+		public E item() {
+			if (!positioned) {
+				throw new IllegalStateException();
+			}
+			return (E) unmaskNull(table[index]);
+		}
+
+		/**
+		 * Move the cursor back before the first item so that it can be reused
+		 */
+		public void reset() {
+			index = fromSlot - 1;
+			positioned = false;
+		}
+	}
+
 	/**
 	 * In the interest of memory-savings, we start with the smallest feasible
 	 * power-of-two table size that can hold three items without rehashing. If
@@ -99,6 +170,31 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 		return (o == NULL_ITEM) ? null : o;
 	}
 
+	/**
+	 * The spread hash codes of the items, or <code>null</code> unless hash
+	 * codes are cached; transient due to custom serialization.
+	 */
+	transient int[] hashes;
+
+	/**
+	 * The maximum fraction of the table that may be occupied before it grows;
+	 * transient due to custom serialization.
+	 */
+	transient float loadFactor;
+
+	/**
+	 * The counters updated by probes and table reorganizations, or
+	 * <code>null</code> unless statistics are collected; not serialized.
+	 */
+	final transient ProbeStatistics statistics;
+
+	/**
+	 * The fraction of the table below which it shrinks when items are
+	 * removed, or zero if it never shrinks automatically; transient due to
+	 * custom serialization.
+	 */
+	transient float shrinkLoadFactor;
+
 	/**
 	 * Number of objects in this set; transient due to custom serialization.
 	 * Default access to avoid synthetic accessors from inner classes.
@@ -112,7 +208,41 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 	transient Object[] table;
 
 	public LowMemoryHashSet() {
-		table = new Object[INITIAL_TABLE_SIZE];
+		loadFactor = LowMemoryHashMap.DEFAULT_LOAD_FACTOR;
+		shrinkLoadFactor = loadFactor / 8;
+		statistics = null;
+		initTable(INITIAL_TABLE_SIZE);
+	}
+
+	/**
+	 * Constructs a set with a choice of table layout.
+	 * @param expectedSize The number of items the set should hold without rehashing
+	 * @param loadFactor The maximum fraction of the table that may be occupied before it grows,
+	 * which must be less than one
+	 * @param cacheHashes Whether to cache the hash code of each item and use Robin Hood probing
+	 */
+	public LowMemoryHashSet(int expectedSize, float loadFactor, boolean cacheHashes) {
+		this(expectedSize, loadFactor, cacheHashes, false);
+	}
+
+	/**
+	 * Constructs a set with a choice of table layout, which may collect
+	 * statistics.
+	 * @param expectedSize The number of items the set should hold without rehashing
+	 * @param loadFactor The maximum fraction of the table that may be occupied before it grows,
+	 * which must be less than one
+	 * @param cacheHashes Whether to cache the hash code of each item and use Robin Hood probing
+	 * @param collectStatistics Whether to count probe lengths and time table reorganizations
+	 */
+	public LowMemoryHashSet(int expectedSize, float loadFactor, boolean cacheHashes,
+			boolean collectStatistics) {
+		this.loadFactor = LowMemoryHashing.checkLoadFactor(loadFactor);
+		shrinkLoadFactor = loadFactor / 8;
+		statistics = collectStatistics ? new ProbeStatistics() : null;
+		if (cacheHashes) {
+			hashes = new int[0];
+		}
+		initTable(LowMemoryHashing.capacityFor(expectedSize, loadFactor));
 	}
 
 	public LowMemoryHashSet(Collection<? extends E> c) {
@@ -122,13 +252,19 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 			newCapacity <<= 1;
 		}
 
-		table = new Object[newCapacity];
+		loadFactor = LowMemoryHashMap.DEFAULT_LOAD_FACTOR;
+		shrinkLoadFactor = loadFactor / 8;
+		statistics = null;
+		initTable(newCapacity);
 		super.addAll(c);
 	}
 
 	@Override
 	public boolean add(E e) {
 		ensureSizeFor(size + 1);
+		if (hashes != null) {
+			return robinHoodAdd(e);
+		}
 		int index = findOrEmpty(e);
 		if (table[index] == null) {
 			++size;
@@ -144,9 +280,16 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 		return super.addAll(c);
 	}
 
+	/**
+	 * Returns the number of slots in the table.
+	 */
+	public int capacity() {
+		return table.length;
+	}
+
 	@Override
 	public void clear() {
-		table = new Object[INITIAL_TABLE_SIZE];
+		initTable(INITIAL_TABLE_SIZE);
 		size = 0;
 	}
 
@@ -155,11 +298,107 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 		return find(o) >= 0;
 	}
 
+	/**
+	 * Returns a cursor over the items of this set.
+	 */
+	public SetCursor cursor() {
+		return new SetCursor(0, LowMemoryHashing.WHOLE_TABLE);
+	}
+
+	/**
+	 * Returns a cursor over the items in a range of slots of the table, which
+	 * can be used to divide the work of traversing the set between threads.
+	 * @param fromSlot The first slot of the range
+	 * @param toSlot The slot after the last slot of the range
+	 * @see LowMemoryHashMap#cursor(int, int)
+	 */
+	public SetCursor cursor(int fromSlot, int toSlot) {
+		LowMemoryHashing.checkSlotRange(fromSlot, toSlot, table.length);
+		return new SetCursor(fromSlot, toSlot);
+	}
+
+	/**
+	 * Passes every item of this set to a visitor, without creating any
+	 * objects. The visitor must not modify the set.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEachItem(IVisitor<? super E> visitor) {
+		Object[] table = this.table;
+		for (int i = 0; i < table.length; ++i) {
+			Object e = table[i];
+			if (e != null) {
+				visitor.visit((E) unmaskNull(e));
+			}
+		}
+	}
+
+	/**
+	 * Returns the approximate number of bytes retained by the table of this
+	 * set, not counting the items themselves.
+	 */
+	public long estimatedRetainedBytes() {
+		long bytes = LowMemoryHashing.arrayBytes(table.length,
+				LowMemoryHashing.REFERENCE_BYTES);
+		if (hashes != null) {
+			bytes += LowMemoryHashing.arrayBytes(hashes.length, 4);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns an immutable copy of this set that uses a minimal perfect hash
+	 * function to find each item with a single probe.
+	 */
+	public FrozenLowMemoryHashSet<E> freeze() {
+		return new FrozenLowMemoryHashSet<E>(this);
+	}
+
 	@Override
 	public Iterator<E> iterator() {
 		return new SetIterator();
 	}
 
+	/**
+	 * Returns the maximum fraction of the table that may be occupied before it
+	 * grows.
+	 */
+	public float loadFactor() {
+		return loadFactor;
+	}
+
+	/**
+	 * Passes every item of this set to a visitor, dividing the table between
+	 * the specified number of threads. The visitor must be safe to call from
+	 * several threads at once, and must not modify the set.
+	 * @param visitor The visitor
+	 * @param parallelism The number of threads to use
+	 */
+	public void parallelForEach(final IVisitor<? super E> visitor, int parallelism) {
+		final Object[] table = this.table;
+		if (parallelism < 2 || table.length < LowMemoryHashMap.PARALLEL_THRESHOLD) {
+			forEachItem(visitor);
+			return;
+		}
+		int ranges = parallelism * 4;
+		Runnable[] tasks = new Runnable[ranges];
+		for (int r = 0; r < ranges; r++) {
+			final int from = (int) ((long) table.length * r / ranges);
+			final int to = (int) ((long) table.length * (r + 1) / ranges);
+			tasks[r] = new Runnable() {
+				@SuppressWarnings("unchecked")
+				public void run() {
+					for (int i = from; i < to; ++i) {
+						Object e = table[i];
+						if (e != null) {
+							visitor.visit((E) unmaskNull(e));
+						}
+					}
+				}
+			};
+		}
+		LowMemoryHashing.runAll(tasks, parallelism);
+	}
+
 	@Override
 	public boolean remove(Object o) {
 		int index = find(o);
@@ -167,14 +406,96 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 			return false;
 		}
 		internalRemove(index);
+		shrinkIfSparse();
 		return true;
 	}
 
+	/**
+	 * Sets the fraction of the table below which it shrinks when items are
+	 * removed, which may be at most a quarter of the load factor. It defaults
+	 * to an eighth of the load factor, and zero disables automatic shrinking.
+	 * 
+	 * @see LowMemoryHashMap#setShrinkLoadFactor(float)
+	 */
+	public void setShrinkLoadFactor(float shrinkLoadFactor) {
+		this.shrinkLoadFactor = LowMemoryHashing.checkShrinkLoadFactor(
+				shrinkLoadFactor, loadFactor);
+	}
+
+	/**
+	 * Returns the fraction of the table below which it shrinks when items are
+	 * removed, or zero if it never shrinks automatically.
+	 */
+	public float shrinkLoadFactor() {
+		return shrinkLoadFactor;
+	}
+
 	@Override
 	public int size() {
 		return size;
 	}
 
+	/**
+	 * Returns a snapshot of the statistics of this set. The probe, resize and
+	 * removal counters are zero unless the set was constructed to collect
+	 * statistics. This may be called from another thread, such as one polling
+	 * the {@link #statisticsMBean()}, while the set is in use: the occupancy is
+	 * then measured over whichever table the set held when the call began, and
+	 * is only approximate. Synchronize with the writers for exact figures.
+	 */
+	public HashTableStatistics statistics() {
+		Object[] table = this.table;
+		int[] hashes = this.hashes;
+		boolean cachedHashes = hashes != null;
+		if (cachedHashes && hashes.length != table.length) {
+			// the table was replaced between reading the two arrays
+			hashes = null;
+		}
+		int mask = table.length - 1;
+		long displacement = 0;
+		for (int i = 0; i < table.length; ++i) {
+			Object o = table[i];
+			if (o != null) {
+				int home;
+				if (hashes != null) {
+					home = hashes[i] & mask;
+				} else if (cachedHashes) {
+					home = LowMemoryHashing.spread(itemHashCode(unmaskNull(o))) & mask;
+				} else {
+					home = getIndex(unmaskNull(o), mask);
+				}
+				displacement += (i - home) & mask;
+			}
+		}
+		return ProbeStatistics.snapshot(statistics, size, table.length,
+				ProbeStatistics.maxClusterLength(table),
+				(size == 0) ? 0 : (double) displacement / size);
+	}
+
+	/**
+	 * Returns an MBean through which the statistics of this set can be
+	 * monitored over JMX. Its attributes are read without synchronizing with
+	 * the set, as described for {@link #statistics()}.
+	 */
+	public HashTableStatisticsMXBean statisticsMBean() {
+		return new ProbeStatistics.Live() {
+			HashTableStatistics snapshot() {
+				return statistics();
+			}
+		};
+	}
+
+	/**
+	 * Shrinks the table to the smallest capacity that holds the current items
+	 * within the load factor.
+	 */
+	public void trimToSize() {
+		int capacity = LowMemoryHashing.capacityFor(size, loadFactor);
+		if (capacity < table.length) {
+			rehash(capacity);
+		}
+	}
+
 	@Override
 	public Object[] toArray() {
 		return toArray(new Object[size]);
@@ -199,6 +520,65 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 		return a;
 	}
 
+	/**
+	 * Reads a set written by {@link #writeBinary(DataOutput, IBinaryCodec)},
+	 * allocating the table once at its original capacity and placing each item
+	 * directly into a free slot without comparing items. To rebuild a set from
+	 * a channel as its bytes arrive, use a {@link LowMemoryHashSetReader}.
+	 * 
+	 * @param in
+	 *            the input
+	 * @param codec
+	 *            the codec with which the items were written
+	 */
+	public static <E> LowMemoryHashSet<E> readBinary(DataInput in,
+			IBinaryCodec<? extends E> codec) throws IOException {
+		LowMemoryBinaryFormat.Header header = LowMemoryBinaryFormat.readHeader(in);
+		LowMemoryHashSet<E> set = newForLoad(header);
+		for (int i = 0; i < header.size; i++) {
+			BinaryCodecs.readVarInt(in);
+			set.insertAbsent(codec.read(in));
+		}
+		return set;
+	}
+
+	/**
+	 * Creates an empty set laid out as described by a binary header. Default
+	 * access for use by {@link LowMemoryHashSetReader}.
+	 */
+	static <E> LowMemoryHashSet<E> newForLoad(
+			LowMemoryBinaryFormat.Header header) {
+		LowMemoryHashSet<E> set = new LowMemoryHashSet<E>(0,
+				header.loadFactor, header.cachedHashes);
+		set.initTable(header.capacity);
+		return set;
+	}
+
+	/**
+	 * Writes this set in a compact binary form, encoding items with the given
+	 * codec rather than Java serialization.
+	 * 
+	 * @param out
+	 *            the output
+	 * @param codec
+	 *            the codec for items
+	 */
+	@SuppressWarnings("unchecked")
+	public void writeBinary(DataOutput out, IBinaryCodec<? super E> codec)
+			throws IOException {
+		LowMemoryBinaryFormat.writeHeader(out, hashes != null, loadFactor,
+				table.length, size);
+		LowMemoryBinaryFormat.EntryWriter entry = new LowMemoryBinaryFormat.EntryWriter();
+		for (int i = 0; i < table.length; ++i) {
+			Object e = table[i];
+			if (e != null) {
+				entry.begin();
+				codec.write((E) unmaskNull(e), entry.data);
+				entry.finish(out);
+			}
+		}
+	}
+
 	/**
 	 * Adapted from {@link org.apache.commons.collections.map.AbstractHashedMap}
 	 * .
@@ -206,7 +586,19 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 	@SuppressWarnings("unchecked")
 	protected void doReadObject(ObjectInputStream in) throws IOException,
 			ClassNotFoundException {
-		table = new Object[in.readInt()];
+		int capacity = in.readInt();
+		loadFactor = LowMemoryHashMap.DEFAULT_LOAD_FACTOR;
+		shrinkLoadFactor = loadFactor / 8;
+		if (capacity < 0) {
+			// the settings follow, as written by writeSettings
+			capacity = -capacity;
+			if (in.readBoolean()) {
+				hashes = new int[0];
+			}
+			loadFactor = LowMemoryHashing.checkLoadFactor(in.readFloat());
+			shrinkLoadFactor = LowMemoryHashing.checkShrinkLoadFactor(in.readFloat(), loadFactor);
+		}
+		initTable(capacity);
 		int items = in.readInt();
 		for (int i = 0; i < items; i++) {
 			add((E) in.readObject());
@@ -218,7 +610,7 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 	 * .
 	 */
 	protected void doWriteObject(ObjectOutputStream out) throws IOException {
-		out.writeInt(table.length);
+		writeSettings(out, table.length);
 		out.writeInt(size);
 		for (int i = 0; i < table.length; ++i) {
 			Object e = table[i];
@@ -228,6 +620,24 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 		}
 	}
 
+	/**
+	 * Writes the capacity of the table, followed by the layout and load
+	 * factors if any differs from the default. Streams written before those
+	 * settings existed hold only the capacity, so the presence of the settings
+	 * is marked by negating the capacity.
+	 */
+	private void writeSettings(ObjectOutputStream out, int capacity) throws IOException {
+		if (hashes == null && loadFactor == LowMemoryHashMap.DEFAULT_LOAD_FACTOR
+				&& shrinkLoadFactor == loadFactor / 8) {
+			out.writeInt(capacity);
+			return;
+		}
+		out.writeInt(-capacity);
+		out.writeBoolean(hashes != null);
+		out.writeFloat(loadFactor);
+		out.writeFloat(shrinkLoadFactor);
+	}
+
 	/**
 	 * Returns whether two items are equal for the purposes of this set.
 	 */
@@ -249,6 +659,10 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 	void addAll(E[] elements) {
 		ensureSizeFor(size + elements.length);
 		for (E e : elements) {
+			if (hashes != null) {
+				robinHoodAdd(e);
+				continue;
+			}
 			int index = findOrEmpty(e);
 			if (table[index] == null) {
 				++size;
@@ -257,15 +671,88 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 		}
 	}
 
+	/**
+	 * Inserts an item known not to be present, without comparing it against
+	 * the items already in the table. Default access for use by
+	 * {@link LowMemoryHashSetReader}.
+	 */
+	void insertAbsent(Object o) {
+		ensureSizeFor(size + 1);
+		if (hashes != null) {
+			int h = LowMemoryHashing.spread(itemHashCode(o));
+			robinHoodInsert(h & (table.length - 1), 0, maskNull(o), h);
+		} else {
+			int index = getIndex(o);
+			while (table[index] != null) {
+				if (++index == table.length) {
+					index = 0;
+				}
+			}
+			table[index] = maskNull(o);
+		}
+		++size;
+	}
+
 	/**
 	 * Removes the item at the specified index, and performs internal management
 	 * to make sure we don't wind up with a hole in the table. Default access to
 	 * avoid synthetic accessors from inner classes.
 	 */
 	void internalRemove(int index) {
-		table[index] = null;
 		--size;
-		plugHole(index);
+		long start = (statistics != null) ? System.nanoTime() : 0;
+		if (hashes != null) {
+			robinHoodRemove(index);
+		} else {
+			table[index] = null;
+			plugHole(index);
+		}
+		if (statistics != null) {
+			statistics.recordPlugHole(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Probes in the same way as {@link #find(Object)}, or as
+	 * {@link #findOrEmpty(Object)} if <code>orEmpty</code> is set, and records
+	 * the number of slots examined.
+	 */
+	private int countedFind(Object o, boolean orEmpty) {
+		int mask = table.length - 1;
+		int probes = 1;
+		int result;
+		if (hashes != null) {
+			int hash = LowMemoryHashing.spread(itemHashCode(o));
+			int index = hash & mask;
+			for (int distance = 0;; ++distance, ++probes) {
+				Object existing = table[index];
+				if (existing == null || ((index - hashes[index]) & mask) < distance) {
+					result = -1;
+					break;
+				}
+				if (hashes[index] == hash && itemEquals(o, unmaskNull(existing))) {
+					result = index;
+					break;
+				}
+				index = (index + 1) & mask;
+			}
+		} else {
+			int index = getIndex(o);
+			for (;; ++probes) {
+				Object existing = table[index];
+				if (existing == null) {
+					result = orEmpty ? index : -1;
+					break;
+				}
+				if (itemEquals(o, unmaskNull(existing))) {
+					result = index;
+					break;
+				}
+				index = (index + 1) & mask;
+			}
+		}
+		statistics.recordProbe(probes);
+		return result;
 	}
 
 	/**
@@ -273,17 +760,43 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 	 * entries.
 	 */
 	private void ensureSizeFor(int expectedSize) {
-		if (table.length * 3 >= expectedSize * 4) {
+		if (LowMemoryHashing.canHold(table.length, expectedSize, loadFactor)) {
 			return;
 		}
 
 		int newCapacity = table.length << 1;
-		while (newCapacity * 3 < expectedSize * 4) {
+		while (!LowMemoryHashing.canHold(newCapacity, expectedSize, loadFactor)) {
 			newCapacity <<= 1;
 		}
+		rehash(newCapacity);
+	}
+
+	/**
+	 * Moves every item into a new table of the specified capacity.
+	 */
+	private void rehash(int newCapacity) {
+		if (statistics == null) {
+			moveItems(newCapacity);
+			return;
+		}
+		long start = System.nanoTime();
+		moveItems(newCapacity);
+		statistics.recordResize(System.nanoTime() - start);
+	}
 
+	private void moveItems(int newCapacity) {
 		Object[] oldTable = table;
-		table = new Object[newCapacity];
+		int[] oldHashes = hashes;
+		initTable(newCapacity);
+		if (oldHashes != null) {
+			for (int i = 0; i < oldTable.length; ++i) {
+				if (oldTable[i] != null) {
+					robinHoodInsert(oldHashes[i] & (table.length - 1), 0,
+							oldTable[i], oldHashes[i]);
+				}
+			}
+			return;
+		}
 		for (Object o : oldTable) {
 			if (o != null) {
 				int newIndex = getIndex(unmaskNull(o));
@@ -302,6 +815,12 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 	 * if the item is not in the table.
 	 */
 	private int find(Object o) {
+		if (statistics != null) {
+			return countedFind(o, false);
+		}
+		if (hashes != null) {
+			return robinHoodFind(o);
+		}
 		int index = getIndex(o);
 		while (true) {
 			Object existing = table[index];
@@ -320,9 +839,12 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 	/**
 	 * Returns the index in the table at which a particular item resides, or the
 	 * index of an empty slot in the table where this item should be inserted if
-	 * it is not already in the table.
+	 * it is not already in the table. Only valid when hash codes are not cached.
 	 */
 	private int findOrEmpty(Object o) {
+		if (statistics != null) {
+			return countedFind(o, true);
+		}
 		int index = getIndex(o);
 		while (true) {
 			Object existing = table[index];
@@ -338,7 +860,18 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 		}
 	}
 
+	private void initTable(int capacity) {
+		table = new Object[capacity];
+		if (hashes != null) {
+			hashes = new int[capacity];
+		}
+	}
+
 	private int getIndex(Object o) {
+		return getIndex(o, table.length - 1);
+	}
+
+	private int getIndex(Object o, int mask) {
 		int h = itemHashCode(o);
 		// Copied from Apache's AbstractHashedMap; prevents power-of-two
 		// collisions.
@@ -347,7 +880,7 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 		h += (h << 4);
 		h ^= (h >>> 10);
 		// Power of two trick.
-		return h & (table.length - 1);
+		return h & mask;
 	}
 
 	/**
@@ -398,6 +931,110 @@ public class LowMemoryHashSet<E> extends AbstractSet<E> implements Serializable
 		doReadObject(in);
 	}
 
+	/**
+	 * Adds an item when hash codes are cached. The table must already be large
+	 * enough for a new item.
+	 */
+	private boolean robinHoodAdd(Object o) {
+		int hash = LowMemoryHashing.spread(itemHashCode(o));
+		int mask = table.length - 1;
+		int index = hash & mask;
+		for (int distance = 0;; ++distance) {
+			Object existing = table[index];
+			if (existing == null
+					|| ((index - hashes[index]) & mask) < distance) {
+				++size;
+				robinHoodInsert(index, distance, maskNull(o), hash);
+				return true;
+			}
+			if (hashes[index] == hash && itemEquals(o, unmaskNull(existing))) {
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Returns the index at which an item resides when hash codes are cached,
+	 * or -1. See {@link LowMemoryHashMap} for how the probe terminates early.
+	 */
+	private int robinHoodFind(Object o) {
+		int hash = LowMemoryHashing.spread(itemHashCode(o));
+		int mask = table.length - 1;
+		int index = hash & mask;
+		for (int distance = 0;; ++distance) {
+			Object existing = table[index];
+			if (existing == null) {
+				return -1;
+			}
+			int existingHash = hashes[index];
+			if (((index - existingHash) & mask) < distance) {
+				return -1;
+			}
+			if (existingHash == hash && itemEquals(o, unmaskNull(existing))) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Inserts an item that is known not to be present, displacing items that
+	 * are closer to their home slots.
+	 */
+	private void robinHoodInsert(int index, int distance, Object maskedItem,
+			int hash) {
+		int mask = table.length - 1;
+		while (true) {
+			Object existing = table[index];
+			if (existing == null) {
+				table[index] = maskedItem;
+				hashes[index] = hash;
+				return;
+			}
+			int existingDistance = (index - hashes[index]) & mask;
+			if (existingDistance < distance) {
+				int existingHash = hashes[index];
+				table[index] = maskedItem;
+				hashes[index] = hash;
+				maskedItem = existing;
+				hash = existingHash;
+				distance = existingDistance;
+			}
+			index = (index + 1) & mask;
+			++distance;
+		}
+	}
+
+	/**
+	 * Removes the item at the specified index when hash codes are cached, by
+	 * shifting back the following items until one is empty or in its home
+	 * slot.
+	 */
+	private void robinHoodRemove(int index) {
+		int mask = table.length - 1;
+		int next = (index + 1) & mask;
+		while (table[next] != null && ((next - hashes[next]) & mask) != 0) {
+			table[index] = table[next];
+			hashes[index] = hashes[next];
+			index = next;
+			next = (next + 1) & mask;
+		}
+		table[index] = null;
+		hashes[index] = 0;
+	}
+
+	/**
+	 * Shrinks the table if removals have left it sparse enough.
+	 */
+	private void shrinkIfSparse() {
+		int newCapacity = LowMemoryHashing.shrunkCapacity(table.length, size,
+				loadFactor, shrinkLoadFactor);
+		if (newCapacity < table.length) {
+			rehash(newCapacity);
+		}
+	}
+
 	private void writeObject(ObjectOutputStream out) throws IOException {
 		out.defaultWriteObject();
 		doWriteObject(out);
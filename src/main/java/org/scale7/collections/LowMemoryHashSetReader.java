@@ -0,0 +1,44 @@
+package org.scale7.collections;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * Rebuilds a {@link LowMemoryHashSet} from the binary form written by
+ * {@link LowMemoryHashSet#writeBinary(java.io.DataOutput, IBinaryCodec)} as its bytes arrive,
+ * in the same way as {@link LowMemoryHashMapReader} does for maps.
+ *
+ * @param <E>	The item type
+ */
+public class LowMemoryHashSetReader<E> extends LowMemoryBinaryReader {
+
+	private final IBinaryCodec<? extends E> codec;
+	private LowMemoryHashSet<E> set;
+
+	/**
+	 * Constructor
+	 * @param codec		The codec with which the items were written
+	 */
+	public LowMemoryHashSetReader(IBinaryCodec<? extends E> codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns the set once all of its items have been read.
+	 * @throws IllegalStateException If the set is not yet complete
+	 */
+	public LowMemoryHashSet<E> getSet() {
+		checkComplete();
+		return set;
+	}
+
+	@Override
+	void create(LowMemoryBinaryFormat.Header header) {
+		set = LowMemoryHashSet.newForLoad(header);
+	}
+
+	@Override
+	void readEntry(DataInput in) throws IOException {
+		set.insertAbsent(codec.read(in));
+	}
+}
@@ -0,0 +1,202 @@
+package org.scale7.collections;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hashing and sizing routines shared by the open addressed hash tables in this
+ * package. All of the tables use power-of-two capacities, linear probing and a
+ * maximum load factor of 3/4, so that they can share the same behaviour as
+ * {@link LowMemoryHashMap} and {@link LowMemoryHashSet}.
+ */
+final class LowMemoryHashing {
+
+	/**
+	 * In the interest of memory-savings, we start with the smallest feasible
+	 * power-of-two table size that can hold three items without rehashing.
+	 */
+	static final int INITIAL_TABLE_SIZE = 4;
+
+	/**
+	 * The upper bound of a cursor that sweeps the whole table, whatever its
+	 * capacity when the cursor advances, so that a cursor can be reset and
+	 * reused after the table has grown or shrunk.
+	 */
+	static final int WHOLE_TABLE = -1;
+
+	/**
+	 * The approximate size of an array header, in bytes.
+	 */
+	static final int ARRAY_HEADER_BYTES = 16;
+
+	/**
+	 * The approximate size of an object reference, in bytes.
+	 */
+	static final int REFERENCE_BYTES = 4;
+
+	private LowMemoryHashing() {
+	}
+
+	/**
+	 * Spreads the bits of a hash code so that the low bits used to index a
+	 * power-of-two table depend on all of the bits of the input.
+	 */
+	static int spread(int h) {
+		// Copied from Apache's AbstractHashedMap; prevents power-of-two
+		// collisions.
+		h += ~(h << 9);
+		h ^= (h >>> 14);
+		h += (h << 4);
+		h ^= (h >>> 10);
+		return h;
+	}
+
+	/**
+	 * Returns the spread hash code of a primitive <code>long</code> key.
+	 */
+	static int spread(long k) {
+		return spread((int) (k ^ (k >>> 32)));
+	}
+
+	/**
+	 * Returns the smallest power-of-two table capacity that can hold the
+	 * specified number of entries without exceeding the maximum load factor.
+	 */
+	static int capacityFor(int expectedSize) {
+		int newCapacity = INITIAL_TABLE_SIZE;
+		while (newCapacity * 3L < expectedSize * 4L) {
+			newCapacity <<= 1;
+		}
+		return newCapacity;
+	}
+
+	/**
+	 * Returns whether a table of the specified capacity can hold the specified
+	 * number of entries without exceeding the maximum load factor.
+	 */
+	static boolean canHold(int capacity, int expectedSize) {
+		return capacity * 3L >= expectedSize * 4L;
+	}
+
+	/**
+	 * Returns the smallest power-of-two table capacity that can hold the
+	 * specified number of entries without exceeding a given load factor.
+	 */
+	static int capacityFor(int expectedSize, float loadFactor) {
+		int newCapacity = INITIAL_TABLE_SIZE;
+		while (!canHold(newCapacity, expectedSize, loadFactor)) {
+			newCapacity <<= 1;
+		}
+		return newCapacity;
+	}
+
+	/**
+	 * Returns whether a table of the specified capacity can hold the specified
+	 * number of entries without exceeding a given load factor. Since the load
+	 * factor is less than one, this always leaves at least one empty slot to
+	 * terminate probes.
+	 */
+	static boolean canHold(int capacity, int expectedSize, float loadFactor) {
+		return expectedSize <= (long) (capacity * (double) loadFactor);
+	}
+
+	/**
+	 * Checks that a shrink load factor is low enough that a table which has
+	 * just been shrunk to half its load factor is not immediately shrunk again.
+	 * Zero disables shrinking.
+	 */
+	static float checkShrinkLoadFactor(float shrinkLoadFactor, float loadFactor) {
+		if (!(shrinkLoadFactor >= 0 && shrinkLoadFactor <= loadFactor / 4))
+			throw new IllegalArgumentException("Shrink load factor must be between 0 and a quarter of the load factor: "
+					+ shrinkLoadFactor);
+		return shrinkLoadFactor;
+	}
+
+	/**
+	 * Returns the capacity to which a table should shrink after the removal of
+	 * an entry, or its current capacity if it should keep it. Shrinking leaves
+	 * the table at most half full relative to its load factor, so that it has
+	 * to at least double in size before growing again.
+	 */
+	static int shrunkCapacity(int capacity, int size, float loadFactor,
+			float shrinkLoadFactor) {
+		if (shrinkLoadFactor == 0 || capacity <= INITIAL_TABLE_SIZE
+				|| size >= capacity * (double) shrinkLoadFactor) {
+			return capacity;
+		}
+		return Math.min(capacity, capacityFor(size, loadFactor / 2));
+	}
+
+	/**
+	 * Returns the approximate number of bytes retained by an array, assuming a
+	 * 64-bit virtual machine with compressed references.
+	 */
+	static long arrayBytes(int length, int elementBytes) {
+		return (ARRAY_HEADER_BYTES + (long) length * elementBytes + 7) & ~7L;
+	}
+
+	/**
+	 * Checks that a load factor leaves room for at least one empty slot.
+	 */
+	static float checkLoadFactor(float loadFactor) {
+		if (!(loadFactor > 0 && loadFactor < 1))
+			throw new IllegalArgumentException("Load factor must be between 0 and 1 exclusive: " + loadFactor);
+		return loadFactor;
+	}
+
+	/**
+	 * Waits for a task, rethrowing any unchecked exception it threw.
+	 */
+	static <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Waits for every one of a number of tasks.
+	 */
+	static void awaitAll(Future<?>[] futures) {
+		for (Future<?> future : futures) {
+			await(future);
+		}
+	}
+
+	/**
+	 * Runs tasks on a temporary pool of the specified number of threads, and
+	 * waits for them all to finish.
+	 */
+	static void runAll(Runnable[] tasks, int parallelism) {
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			Future<?>[] futures = new Future<?>[tasks.length];
+			for (int i = 0; i < tasks.length; i++) {
+				futures[i] = executor.submit(tasks[i]);
+			}
+			awaitAll(futures);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Checks that a range of slots lies within a table.
+	 */
+	static void checkSlotRange(int fromSlot, int toSlot, int capacity) {
+		if (fromSlot < 0 || toSlot > capacity || fromSlot > toSlot)
+			throw new IndexOutOfBoundsException("Slot range [" + fromSlot + ", " + toSlot
+					+ ") is not within a table of " + capacity + " slots");
+	}
+}
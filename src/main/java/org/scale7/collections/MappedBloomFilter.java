@@ -0,0 +1,217 @@
+package org.scale7.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only Bloom filter queried in place in a memory-mapped file written by
+ * {@link BloomFilterWriter}. Opening a file reads only its header, so takes
+ * the same time however large the filter, and the pages of the file are
+ * shared by every process that maps it and loaded by the operating system as
+ * they are touched.
+ * <p>
+ * The filter may be queried by many threads at once. The words are mapped in
+ * segments of 1 GB, as a single mapping can cover at most 2 GB. The file must
+ * not be modified while it is mapped.
+ *
+ * @param <E>
+ *            the element type
+ */
+public class MappedBloomFilter<E> {
+
+	private static final int SEGMENT_BYTE_SHIFT = 30;
+
+	/**
+	 * The bits of a file mapped as a sequence of buffers.
+	 */
+	private static final class MappedBitArray implements IBitArray {
+		private static final int SEGMENT_BIT_SHIFT = SEGMENT_BYTE_SHIFT + 3;
+		private static final long SEGMENT_BIT_MASK = (1L << SEGMENT_BIT_SHIFT) - 1;
+
+		private final BufferBitArray[] segments;
+		private final long bitSize;
+
+		MappedBitArray(BufferBitArray[] segments, long bitSize) {
+			this.segments = segments;
+			this.bitSize = bitSize;
+		}
+
+		public long bitSize() {
+			return bitSize;
+		}
+
+		public long cardinality() {
+			long cardinality = 0;
+			for (BufferBitArray segment : segments) {
+				cardinality += segment.cardinality();
+			}
+			return cardinality;
+		}
+
+		public void clear(long index) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void clearAll() {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean get(long index) {
+			return segments[(int) (index >>> SEGMENT_BIT_SHIFT)].get(index & SEGMENT_BIT_MASK);
+		}
+
+		public long getWord(long wordIndex) {
+			return segments[(int) (wordIndex >>> (SEGMENT_BIT_SHIFT - 6))].getWord(
+					wordIndex & (SEGMENT_BIT_MASK >>> 6));
+		}
+
+		public boolean set(long index) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private final BloomFilter<E> filter;
+	private final IFunnel<? super E> funnel; // null if the scheme is MD5
+	private final MappedByteBuffer[] mappings;
+
+	private MappedBloomFilter(BloomFilter<E> filter, IFunnel<? super E> funnel, MappedByteBuffer[] mappings) {
+		this.filter = filter;
+		this.funnel = funnel;
+		this.mappings = mappings;
+	}
+
+	/**
+	 * Maps a file written by {@link BloomFilterWriter}.
+	 * @param file The file
+	 * @param funnel The funnel with which the filter hashed its elements, or
+	 *            <code>null</code> if it used {@link BloomHashScheme#MD5}
+	 * @return The filter
+	 * @throws IOException If the file cannot be read or is not a Bloom filter file
+	 */
+	public static <E> MappedBloomFilter<E> open(File file, IFunnel<? super E> funnel) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(BloomFilterWriter.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					throw new IOException("Truncated Bloom filter header in " + file);
+				}
+			}
+			header.flip();
+			if (header.getInt() != BloomFilterWriter.MAGIC) {
+				throw new IOException("Not a Bloom filter file: " + file);
+			}
+			int version = header.getInt();
+			if (version != BloomFilterWriter.VERSION) {
+				throw new IOException("Unsupported Bloom filter file version " + version + " in " + file);
+			}
+			int scheme = header.getInt();
+			int k = header.getInt();
+			long bitSize = header.getLong();
+			long elementCount = header.getLong();
+			long expectedElements = header.getLong();
+			BloomHashScheme hashScheme;
+			if (scheme == BloomFilterWriter.SCHEME_MURMUR3_128) {
+				hashScheme = BloomHashScheme.MURMUR3_128;
+			} else if (scheme == BloomFilterWriter.SCHEME_MD5) {
+				hashScheme = BloomHashScheme.MD5;
+			} else {
+				throw new IOException("Unknown hash scheme " + scheme + " in " + file);
+			}
+			long wordBytes = BloomHashing.wordCount(bitSize) << 3;
+			if (k <= 0 || bitSize <= 0 || channel.size() < BloomFilterWriter.HEADER_BYTES + wordBytes) {
+				throw new IOException("Corrupt Bloom filter header in " + file);
+			}
+
+			int segmentCount = (int) ((wordBytes + (1L << SEGMENT_BYTE_SHIFT) - 1) >>> SEGMENT_BYTE_SHIFT);
+			MappedByteBuffer[] mappings = new MappedByteBuffer[segmentCount];
+			BufferBitArray[] segments = new BufferBitArray[segmentCount];
+			for (int s = 0; s < segmentCount; s++) {
+				long offset = (long) s << SEGMENT_BYTE_SHIFT;
+				long bytes = Math.min(1L << SEGMENT_BYTE_SHIFT, wordBytes - offset);
+				mappings[s] = channel.map(FileChannel.MapMode.READ_ONLY, BloomFilterWriter.HEADER_BYTES + offset, bytes);
+				long segmentBits = Math.min(bytes << 3, bitSize - (offset << 3));
+				segments[s] = new BufferBitArray(mappings[s].order(ByteOrder.LITTLE_ENDIAN).asLongBuffer(), segmentBits);
+			}
+			BloomFilter<E> filter = new BloomFilter<E>(new MappedBitArray(segments, bitSize), expectedElements,
+					elementCount, k, hashScheme, funnel);
+			return new MappedBloomFilter<E>(filter,
+					(hashScheme == BloomHashScheme.MURMUR3_128) ? funnel : null, mappings);
+		} finally {
+			// the mappings remain valid once the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the number of bits in the filter.
+	 */
+	public long bitSize() {
+		return filter.bitSize();
+	}
+
+	/**
+	 * Returns whether an element might have been added to the filter.
+	 * @param element The element
+	 * @return <code>false</code> if the element has certainly not been added
+	 */
+	public boolean contains(E element) {
+		if (funnel == null) {
+			return filter.contains(element);
+		}
+		Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+		return filter.containsHash(h.h1, h.h2);
+	}
+
+	/**
+	 * Returns the number of elements that had been added when the filter was
+	 * written.
+	 */
+	public long elementCount() {
+		return filter.elementCount();
+	}
+
+	/**
+	 * Returns the probability of a false positive once the expected number of
+	 * elements have been added.
+	 */
+	public double expectedFalsePositiveProbability() {
+		return filter.expectedFalsePositiveProbability();
+	}
+
+	public long expectedElementCount() {
+		return filter.expectedElementCount();
+	}
+
+	/**
+	 * Returns the probability of a false positive given the number of elements
+	 * added.
+	 */
+	public double getFalsePositiveProbability() {
+		return filter.getFalsePositiveProbability();
+	}
+
+	public BloomHashScheme getHashScheme() {
+		return filter.getHashScheme();
+	}
+
+	public int getK() {
+		return filter.getK();
+	}
+
+	/**
+	 * Loads the whole file into physical memory, so that later queries do not
+	 * wait for pages to be read.
+	 */
+	public void load() {
+		for (MappedByteBuffer mapping : mappings) {
+			mapping.load();
+		}
+	}
+}
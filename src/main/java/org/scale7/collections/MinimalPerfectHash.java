@@ -0,0 +1,228 @@
+package org.scale7.collections;
+
+import java.io.Serializable;
+
+/**
+ * A minimal perfect hash function over a fixed set of distinct
+ * <code>int</code> hash codes, built with the hash-and-displace method of
+ * Belazzougui, Botelho and Dietzfelbinger (CHD). Each of the <i>n</i> hash
+ * codes is mapped to a distinct index in <code>[0, n)</code> by first choosing
+ * a bucket, then applying the displacement recorded for that bucket, so that
+ * evaluating the function costs two mixing steps and one array read. Hash codes
+ * outside the set are mapped to arbitrary indices, so callers must check that
+ * the entry at the index is the one they want.
+ * <p>
+ * Buckets are placed in decreasing order of size, each with the first
+ * displacement that sends all of its hash codes to free indices. Buckets of a
+ * single hash code are simply given one of the indices that remain, encoded as
+ * a negative displacement.
+ */
+@SuppressWarnings("serial")
+final class MinimalPerfectHash implements Serializable {
+
+	/**
+	 * The average number of hash codes per bucket.
+	 */
+	private static final int BUCKET_SIZE = 4;
+
+	/**
+	 * The number of displacements tried for a bucket before choosing a new
+	 * seed and starting again.
+	 */
+	private static final int MAX_DISPLACEMENT = 1 << 20;
+
+	/**
+	 * The number of seeds tried before giving up.
+	 */
+	private static final int MAX_SEEDS = 32;
+
+	private final int seed;
+
+	/**
+	 * The displacement of each bucket, or <code>-(index + 1)</code> for a
+	 * bucket holding a single hash code.
+	 */
+	private final int[] displacements;
+
+	private final int size;
+
+	private MinimalPerfectHash(int seed, int[] displacements, int size) {
+		this.seed = seed;
+		this.displacements = displacements;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the index of a hash code, which is only meaningful if the hash
+	 * code was one of those the function was built over. Must not be called
+	 * on a function over no hash codes.
+	 */
+	int indexOf(int hashCode) {
+		int primary = mix(hashCode ^ seed);
+		int d = displacements[reduce(primary, displacements.length)];
+		return (d < 0) ? -d - 1 : slot(primary, d, size);
+	}
+
+	/**
+	 * Returns the number of hash codes the function was built over.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Builds a minimal perfect hash function over the distinct values of some
+	 * hash codes. The first occurrence of each value is assigned its index
+	 * under the function, and later occurrences are assigned the indices from
+	 * {@link #size()} upward in order, so that <code>indices</code> is a
+	 * permutation of <code>[0, hashCodes.length)</code>.
+	 *
+	 * @param hashCodes
+	 *            the hash codes
+	 * @param indices
+	 *            receives the index of each hash code, and must be the same
+	 *            length
+	 */
+	static MinimalPerfectHash build(int[] hashCodes, int[] indices) {
+		// find the distinct hash codes
+		IntIntLowMemoryHashMap firstOccurrence = new IntIntLowMemoryHashMap(hashCodes.length);
+		int[] distinct = new int[hashCodes.length];
+		int n = 0;
+		for (int i = 0; i < hashCodes.length; i++) {
+			if (firstOccurrence.getOrDefault(hashCodes[i], -1) < 0) {
+				firstOccurrence.put(hashCodes[i], i);
+				distinct[n++] = hashCodes[i];
+			}
+		}
+
+		MinimalPerfectHash function = null;
+		for (int seed = 0; function == null; seed++) {
+			if (seed == MAX_SEEDS)
+				throw new IllegalStateException("Could not build a perfect hash function over " + n + " hash codes");
+			function = tryBuild(distinct, n, seed * 0x9E3779B9);
+		}
+
+		int duplicate = n;
+		for (int i = 0; i < hashCodes.length; i++) {
+			indices[i] = (firstOccurrence.getOrDefault(hashCodes[i], -1) == i) ? function
+					.indexOf(hashCodes[i]) : duplicate++;
+		}
+		return function;
+	}
+
+	/**
+	 * Attempts to build a function with a particular seed, returning
+	 * <code>null</code> if some bucket cannot be placed.
+	 */
+	private static MinimalPerfectHash tryBuild(int[] distinct, int n, int seed) {
+		int buckets = n / BUCKET_SIZE + 1;
+		int[] primaries = new int[n];
+		int[] bucketStarts = new int[buckets + 1];
+		for (int i = 0; i < n; i++) {
+			primaries[i] = mix(distinct[i] ^ seed);
+			++bucketStarts[reduce(primaries[i], buckets) + 1];
+		}
+		int maxBucketSize = 0;
+		for (int b = 0; b < buckets; b++) {
+			maxBucketSize = Math.max(maxBucketSize, bucketStarts[b + 1]);
+			bucketStarts[b + 1] += bucketStarts[b];
+		}
+		int[] members = new int[n];
+		int[] next = bucketStarts.clone();
+		for (int i = 0; i < n; i++) {
+			members[next[reduce(primaries[i], buckets)]++] = primaries[i];
+		}
+
+		// order the buckets by decreasing size
+		int[] sizeStarts = new int[maxBucketSize + 2];
+		for (int b = 0; b < buckets; b++) {
+			++sizeStarts[maxBucketSize - (bucketStarts[b + 1] - bucketStarts[b]) + 1];
+		}
+		for (int s = 0; s <= maxBucketSize; s++) {
+			sizeStarts[s + 1] += sizeStarts[s];
+		}
+		int[] order = new int[buckets];
+		for (int b = 0; b < buckets; b++) {
+			order[sizeStarts[maxBucketSize - (bucketStarts[b + 1] - bucketStarts[b])]++] = b;
+		}
+
+		int[] displacements = new int[buckets];
+		boolean[] taken = new boolean[n];
+		int[] slots = new int[maxBucketSize];
+		int nextFree = 0;
+		for (int b : order) {
+			int from = bucketStarts[b];
+			int count = bucketStarts[b + 1] - from;
+			if (count == 0) {
+				break;
+			}
+			if (count == 1) {
+				while (taken[nextFree]) {
+					++nextFree;
+				}
+				taken[nextFree] = true;
+				displacements[b] = -nextFree - 1;
+				continue;
+			}
+			int d = 0;
+			while (!fits(members, from, count, d, n, taken, slots)) {
+				if (++d == MAX_DISPLACEMENT) {
+					return null;
+				}
+			}
+			for (int k = 0; k < count; k++) {
+				taken[slots[k]] = true;
+			}
+			displacements[b] = d;
+		}
+		return new MinimalPerfectHash(seed, displacements, n);
+	}
+
+	/**
+	 * Returns whether a displacement sends every member of a bucket to a
+	 * distinct free index, leaving the indices in <code>slots</code>.
+	 */
+	private static boolean fits(int[] members, int from, int count, int d,
+			int n, boolean[] taken, int[] slots) {
+		for (int k = 0; k < count; k++) {
+			int slot = slot(members[from + k], d, n);
+			if (taken[slot]) {
+				return false;
+			}
+			for (int j = 0; j < k; j++) {
+				if (slots[j] == slot) {
+					return false;
+				}
+			}
+			slots[k] = slot;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the index of a mixed hash code under a displacement.
+	 */
+	private static int slot(int primary, int d, int n) {
+		return reduce(mix(primary + (d + 1) * 0x9E3779B9), n);
+	}
+
+	/**
+	 * The finalization step of MurmurHash3, a bijection that mixes every bit
+	 * of its input into every bit of its output.
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Maps a mixed hash code to <code>[0, n)</code> using its high bits.
+	 */
+	private static int reduce(int h, int n) {
+		return (int) (((h & 0xFFFFFFFFL) * n) >>> 32);
+	}
+}
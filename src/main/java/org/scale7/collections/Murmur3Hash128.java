@@ -0,0 +1,232 @@
+package org.scale7.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A streaming implementation of the x64 128-bit variant of MurmurHash3. Values
+ * are put in little-endian byte order and mixed 16 bytes at a time as they
+ * arrive, so nothing is buffered beyond the current block, and an instance is
+ * reused for every element by calling {@link #reset()} before and
+ * {@link #finish()} after putting it. The result is the pair of 64-bit halves
+ * {@link #h1} and {@link #h2}, and matches the reference implementation for
+ * the same sequence of bytes.
+ * <p>
+ * Instances are not thread safe, but {@link #forCurrentThread()} provides one
+ * per thread.
+ */
+final class Murmur3Hash128 implements IHashSink {
+
+	private static final ThreadLocal<Murmur3Hash128> HASHERS = new ThreadLocal<Murmur3Hash128>() {
+		@Override
+		protected Murmur3Hash128 initialValue() {
+			return new Murmur3Hash128();
+		}
+	};
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final long seed;
+
+	/**
+	 * The halves of the hash, valid after {@link #finish()}.
+	 */
+	long h1;
+	long h2;
+
+	/**
+	 * The current block, of which <code>buffered</code> bytes have been put.
+	 */
+	private long k1;
+	private long k2;
+	private int buffered;
+
+	private long length;
+
+	Murmur3Hash128() {
+		this(0);
+	}
+
+	Murmur3Hash128(int seed) {
+		this.seed = seed & 0xffffffffL;
+		reset();
+	}
+
+	/**
+	 * Returns a hasher owned by the calling thread, for classes whose instances
+	 * are used by many threads.
+	 */
+	static Murmur3Hash128 forCurrentThread() {
+		return HASHERS.get();
+	}
+
+	/**
+	 * Discards everything put so far, ready for a new element.
+	 */
+	void reset() {
+		h1 = h2 = seed;
+		k1 = k2 = 0;
+		buffered = 0;
+		length = 0;
+	}
+
+	/**
+	 * Mixes in the partial block and the length to complete the hash.
+	 */
+	void finish() {
+		if (buffered > 8) {
+			h2 ^= mixK2(k2);
+		}
+		if (buffered > 0) {
+			h1 ^= mixK1(k1);
+		}
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+	}
+
+	public void putByte(byte b) {
+		putBits(b & 0xffL, 1);
+	}
+
+	public void putInt(int i) {
+		if ((buffered & 3) == 0) {
+			putBits(i & 0xffffffffL, 4);
+		} else {
+			for (int shift = 0; shift < 32; shift += 8) {
+				putBits((i >>> shift) & 0xffL, 1);
+			}
+		}
+	}
+
+	public void putLong(long l) {
+		if (buffered == 0) {
+			k1 = l;
+			buffered = 8;
+			length += 8;
+		} else if (buffered == 8) {
+			k2 = l;
+			length += 8;
+			mixBlock();
+		} else {
+			for (int shift = 0; shift < 64; shift += 8) {
+				putBits((l >>> shift) & 0xffL, 1);
+			}
+		}
+	}
+
+	public void putBytes(byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		while (offset < end && buffered != 0) {
+			putBits(bytes[offset++] & 0xffL, 1);
+		}
+		for (; end - offset >= 16; offset += 16) {
+			k1 = getLittleEndianLong(bytes, offset);
+			k2 = getLittleEndianLong(bytes, offset + 8);
+			this.length += 16;
+			mixBlock();
+		}
+		while (offset < end) {
+			putBits(bytes[offset++] & 0xffL, 1);
+		}
+	}
+
+	public void putChars(CharSequence chars) {
+		for (int i = 0, n = chars.length(); i < n; i++) {
+			char c = chars.charAt(i);
+			if ((buffered & 1) == 0) {
+				putBits(c, 2);
+			} else {
+				putBits(c & 0xffL, 1);
+				putBits(c >>> 8, 1);
+			}
+		}
+	}
+
+	public void putBuffer(ByteBuffer buffer) {
+		int index = buffer.position();
+		int end = buffer.limit();
+		while (index < end && buffered != 0) {
+			putBits(buffer.get(index++) & 0xffL, 1);
+		}
+		boolean swap = buffer.order() == ByteOrder.BIG_ENDIAN;
+		for (; end - index >= 16; index += 16) {
+			k1 = buffer.getLong(index);
+			k2 = buffer.getLong(index + 8);
+			if (swap) {
+				k1 = Long.reverseBytes(k1);
+				k2 = Long.reverseBytes(k2);
+			}
+			length += 16;
+			mixBlock();
+		}
+		while (index < end) {
+			putBits(buffer.get(index++) & 0xffL, 1);
+		}
+	}
+
+	/**
+	 * Puts a value of the specified number of bytes, which must not straddle
+	 * the two halves of the block.
+	 */
+	private void putBits(long value, int bytes) {
+		if (buffered < 8) {
+			k1 |= value << (buffered << 3);
+		} else {
+			k2 |= value << ((buffered - 8) << 3);
+		}
+		length += bytes;
+		buffered += bytes;
+		if (buffered == 16) {
+			mixBlock();
+		}
+	}
+
+	private void mixBlock() {
+		h1 ^= mixK1(k1);
+		h1 = Long.rotateLeft(h1, 27);
+		h1 += h2;
+		h1 = h1 * 5 + 0x52dce729;
+		h2 ^= mixK2(k2);
+		h2 = Long.rotateLeft(h2, 31);
+		h2 += h1;
+		h2 = h2 * 5 + 0x38495ab5;
+		k1 = k2 = 0;
+		buffered = 0;
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static long getLittleEndianLong(byte[] bytes, int offset) {
+		long l = 0;
+		for (int i = 7; i >= 0; i--) {
+			l = (l << 8) | (bytes[offset + i] & 0xffL);
+		}
+		return l;
+	}
+}
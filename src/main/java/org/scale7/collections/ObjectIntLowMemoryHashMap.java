@@ -0,0 +1,341 @@
+package org.scale7.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * A memory-efficient hash map from objects to primitive <code>int</code>
+ * values. The table is open addressed in exactly the same way as
+ * {@link LowMemoryHashMap}, but the values are held in an <code>int[]</code>
+ * so that neither {@link #put(Object, int)} nor
+ * {@link #getOrDefault(Object, int)} box their values. Since there is no
+ * <code>null</code> with which to signal a missing key, the caller supplies the
+ * value that should be returned when a key is not present.
+ *
+ * @param <K>
+ *            the key type
+ */
+@SuppressWarnings("serial")
+public class ObjectIntLowMemoryHashMap<K> implements Serializable {
+
+	/**
+	 * Backing store for all the keys; transient due to custom serialization.
+	 * Default access to avoid synthetic accessors from inner classes.
+	 */
+	transient Object[] keys;
+
+	/**
+	 * Number of pairs in this map; transient due to custom serialization.
+	 * Default access to avoid synthetic accessors from inner classes.
+	 */
+	transient int size = 0;
+
+	/**
+	 * Backing store for all the values; transient due to custom serialization.
+	 * Default access to avoid synthetic accessors from inner classes.
+	 */
+	transient int[] values;
+
+	public ObjectIntLowMemoryHashMap() {
+		initTable(LowMemoryHashing.INITIAL_TABLE_SIZE);
+	}
+
+	/**
+	 * Constructs a map that can hold the specified number of entries without
+	 * rehashing.
+	 * @param expectedSize The number of entries the map is expected to hold
+	 */
+	public ObjectIntLowMemoryHashMap(int expectedSize) {
+		initTable(LowMemoryHashing.capacityFor(expectedSize));
+	}
+
+	/**
+	 * Adds to the value mapped to a key, mapping the key to the delta if it is
+	 * absent. The key is located only once, and the table grows only if a new
+	 * mapping is made.
+	 * @param key The key
+	 * @param delta The amount to add
+	 * @return The new value mapped to the key
+	 */
+	public int addTo(K key, int delta) {
+		int index = findKeyOrEmpty(key);
+		if (keys[index] != null) {
+			return values[index] += delta;
+		}
+		if (!LowMemoryHashing.canHold(keys.length, size + 1)) {
+			ensureSizeFor(size + 1);
+			index = findKeyOrEmpty(key);
+		}
+		++size;
+		keys[index] = LowMemoryHashMap.maskNullKey(key);
+		values[index] = delta;
+		return delta;
+	}
+
+	public void clear() {
+		initTable(LowMemoryHashing.INITIAL_TABLE_SIZE);
+		size = 0;
+	}
+
+	public boolean containsKey(Object key) {
+		return findKey(key) >= 0;
+	}
+
+	/**
+	 * Gets the value mapped to a key without boxing.
+	 * @param key The key to look up
+	 * @param missing The value to return if the key is not present
+	 * @return The value mapped to the key, or <code>missing</code>
+	 */
+	public int getOrDefault(Object key, int missing) {
+		int index = findKey(key);
+		return (index < 0) ? missing : values[index];
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Maps a key to a value, replacing any existing mapping.
+	 * @param key The key
+	 * @param value The value
+	 * @return <code>true</code> if the key was not already present, <code>false</code> otherwise
+	 */
+	public boolean put(K key, int value) {
+		ensureSizeFor(size + 1);
+		int index = findKeyOrEmpty(key);
+		if (keys[index] == null) {
+			++size;
+			keys[index] = LowMemoryHashMap.maskNullKey(key);
+			values[index] = value;
+			return true;
+		} else {
+			values[index] = value;
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the mapping for a key.
+	 * @param key The key
+	 * @return <code>true</code> if a mapping was removed, <code>false</code> otherwise
+	 */
+	public boolean remove(Object key) {
+		int index = findKey(key);
+		if (index < 0) {
+			return false;
+		}
+		internalRemove(index);
+		return true;
+	}
+
+	/**
+	 * Removes the mapping for a key and returns the value it held.
+	 * @param key The key
+	 * @param missing The value to return if the key is not present
+	 * @return The value that was mapped to the key, or <code>missing</code>
+	 */
+	public int removeOrDefault(Object key, int missing) {
+		int index = findKey(key);
+		if (index < 0) {
+			return missing;
+		}
+		int previousValue = values[index];
+		internalRemove(index);
+		return previousValue;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		if (size == 0) {
+			return "{}";
+		}
+		StringBuilder buf = new StringBuilder(32 * size());
+		buf.append('{');
+
+		boolean needComma = false;
+		for (int i = 0; i < keys.length; ++i) {
+			Object key = keys[i];
+			if (key != null) {
+				if (needComma) {
+					buf.append(',').append(' ');
+				}
+				key = LowMemoryHashMap.unmaskNullKey(key);
+				buf.append(key == this ? "(this Map)" : key).append('=')
+						.append(values[i]);
+				needComma = true;
+			}
+		}
+		buf.append('}');
+		return buf.toString();
+	}
+
+	/**
+	 * Returns whether two keys are equal for the purposes of this map.
+	 */
+	protected boolean keyEquals(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	/**
+	 * Returns the hashCode for a key.
+	 */
+	protected int keyHashCode(Object k) {
+		return (k == null) ? 0 : k.hashCode();
+	}
+
+	/**
+	 * Ensures the map is large enough to contain the specified number of
+	 * entries.
+	 */
+	void ensureSizeFor(int expectedSize) {
+		if (LowMemoryHashing.canHold(keys.length, expectedSize)) {
+			return;
+		}
+
+		Object[] oldKeys = keys;
+		int[] oldValues = values;
+		initTable(LowMemoryHashing.capacityFor(expectedSize));
+		for (int i = 0; i < oldKeys.length; ++i) {
+			Object k = oldKeys[i];
+			if (k != null) {
+				int newIndex = getKeyIndex(LowMemoryHashMap.unmaskNullKey(k));
+				while (keys[newIndex] != null) {
+					if (++newIndex == keys.length) {
+						newIndex = 0;
+					}
+				}
+				keys[newIndex] = k;
+				values[newIndex] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the index in the key table at which a particular key resides, or
+	 * -1 if the key is not in the table.
+	 */
+	int findKey(Object k) {
+		int index = getKeyIndex(k);
+		while (true) {
+			Object existing = keys[index];
+			if (existing == null) {
+				return -1;
+			}
+			if (keyEquals(k, LowMemoryHashMap.unmaskNullKey(existing))) {
+				return index;
+			}
+			if (++index == keys.length) {
+				index = 0;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index in the key table at which a particular key resides, or
+	 * the index of an empty slot in the table where this key should be inserted
+	 * if it is not already in the table.
+	 */
+	int findKeyOrEmpty(Object k) {
+		int index = getKeyIndex(k);
+		while (true) {
+			Object existing = keys[index];
+			if (existing == null) {
+				return index;
+			}
+			if (keyEquals(k, LowMemoryHashMap.unmaskNullKey(existing))) {
+				return index;
+			}
+			if (++index == keys.length) {
+				index = 0;
+			}
+		}
+	}
+
+	/**
+	 * Removes the entry at the specified index, and performs internal
+	 * management to make sure we don't wind up with a hole in the table.
+	 */
+	void internalRemove(int index) {
+		keys[index] = null;
+		values[index] = 0;
+		--size;
+		plugHole(index);
+	}
+
+	private int getKeyIndex(Object k) {
+		return LowMemoryHashing.spread(keyHashCode(k)) & (keys.length - 1);
+	}
+
+	private void initTable(int capacity) {
+		keys = new Object[capacity];
+		values = new int[capacity];
+	}
+
+	/**
+	 * Fills the hole left by a removal in the same way as
+	 * {@link LowMemoryHashMap}, by shuffling back entries that belong before
+	 * the hole until we hit an empty slot.
+	 */
+	private void plugHole(int hole) {
+		int index = hole + 1;
+		if (index == keys.length) {
+			index = 0;
+		}
+		while (keys[index] != null) {
+			int targetIndex = getKeyIndex(LowMemoryHashMap.unmaskNullKey(keys[index]));
+			if (hole < index) {
+				if (!(hole < targetIndex && targetIndex <= index)) {
+					keys[hole] = keys[index];
+					values[hole] = values[index];
+					keys[index] = null;
+					values[index] = 0;
+					hole = index;
+				}
+			} else {
+				if (index < targetIndex && targetIndex <= hole) {
+					keys[hole] = keys[index];
+					values[hole] = values[index];
+					keys[index] = null;
+					values[index] = 0;
+					hole = index;
+				}
+			}
+			if (++index == keys.length) {
+				index = 0;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		initTable(in.readInt());
+		int items = in.readInt();
+		for (int i = 0; i < items; i++) {
+			Object key = in.readObject();
+			put((K) key, in.readInt());
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(keys.length);
+		out.writeInt(size);
+		for (int i = 0; i < keys.length; ++i) {
+			Object key = keys[i];
+			if (key != null) {
+				out.writeObject(LowMemoryHashMap.unmaskNullKey(key));
+				out.writeInt(values[i]);
+			}
+		}
+	}
+}
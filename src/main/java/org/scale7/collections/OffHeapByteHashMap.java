@@ -0,0 +1,563 @@
+package org.scale7.collections;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A hash map from binary keys to binary values that lives outside of the Java
+ * heap, so that tables holding tens of millions of small entries do not add to
+ * garbage collection pauses. The table is held either in a buffer obtained from
+ * {@link ByteBuffer#allocateDirect(int)}, or in a file mapped into memory, in
+ * which case the table survives a process restart and can be reopened
+ * immediately using {@link #open(File, int, int)}.
+ * <p>
+ * The region is laid out as a fixed header, followed by a slot array, followed
+ * by a data area. Each slot holds the spread hash of its key and the offset of
+ * the entry's record in the data area, with an offset of zero marking an empty
+ * slot. The slot array is open addressed using the same linear probing and hole
+ * plugging as {@link LowMemoryHashMap}, but because the hash of each key is
+ * stored in its slot, mismatching keys are usually rejected without comparing
+ * their bytes and keys never need to be rehashed. Records are appended to the
+ * data area as a key length, a value length, the key bytes and the value
+ * bytes. A value replaced by one of the same length is overwritten in place,
+ * otherwise the old record is left behind as garbage, which is reclaimed when
+ * the table next grows.
+ * <p>
+ * Lookups read the key directly from the <code>ByteBuffer</code> passed in,
+ * between its position and limit, and do not modify it, so that no heap
+ * objects are created while probing. This class is not thread safe.
+ */
+public class OffHeapByteHashMap implements Closeable {
+
+	/**
+	 * Identifies a file created by this class.
+	 */
+	static final int MAGIC = 0x53374F48;
+
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 32;
+	static final int SLOT_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 8;
+
+	// header field offsets
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int SLOT_COUNT_OFFSET = 8;
+	private static final int SIZE_OFFSET = 12;
+	private static final int DATA_START_OFFSET = 16;
+	private static final int DATA_END_OFFSET = 20;
+	private static final int GARBAGE_OFFSET = 24;
+
+	/**
+	 * The region holding the table.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * The mapped file, or <code>null</code> if the table is held in direct
+	 * memory.
+	 */
+	private final File file;
+
+	private RandomAccessFile randomAccessFile;
+
+	// cached copies of header fields
+	private int slotCount;
+	private int size;
+	private int dataStart;
+	private int dataEnd;
+	private int garbage;
+
+	private OffHeapByteHashMap(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Creates a table held in direct memory.
+	 * @param expectedSize			The number of entries the table should hold before it must grow
+	 * @param expectedBytesPerEntry	The expected combined length of a key and its value
+	 * @return						The new table
+	 */
+	public static OffHeapByteHashMap allocateDirect(int expectedSize, int expectedBytesPerEntry) {
+		OffHeapByteHashMap map = new OffHeapByteHashMap(null);
+		int slots = LowMemoryHashing.capacityFor(expectedSize);
+		long dataBytes = dataBytesFor(expectedSize, expectedBytesPerEntry);
+		try {
+			map.buffer = map.allocate(regionSizeFor(slots, dataBytes), null);
+		} catch (IOException e) {
+			throw new RuntimeException(e); // not reachable for direct memory
+		}
+		map.format(slots);
+		return map;
+	}
+
+	/**
+	 * Opens a table held in a memory-mapped file, creating the file if it does not exist. An
+	 * existing file is used as it stands, without rebuilding the table, in which case the size
+	 * hints are ignored. If the process stopped while the file was being replaced by a larger
+	 * table, the previous table is restored.
+	 * @param file					The file holding the table
+	 * @param expectedSize			The number of entries a new table should hold before it must grow
+	 * @param expectedBytesPerEntry	The expected combined length of a key and its value
+	 * @return						The opened table
+	 * @throws IOException			If the file cannot be mapped, or does not hold a table
+	 */
+	public static OffHeapByteHashMap open(File file, int expectedSize, int expectedBytesPerEntry)
+			throws IOException {
+		OffHeapByteHashMap map = new OffHeapByteHashMap(file);
+		File backup = backupFile(file);
+		if (!file.exists() && backup.exists() && !backup.renameTo(file))
+			throw new IOException("Could not restore " + file + " from " + backup);
+		if (file.exists() && file.length() > 0) {
+			map.randomAccessFile = new RandomAccessFile(file, "rw");
+			map.buffer = map.randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					map.randomAccessFile.length()).order(ByteOrder.BIG_ENDIAN);
+			map.load();
+		} else {
+			int slots = LowMemoryHashing.capacityFor(expectedSize);
+			long dataBytes = dataBytesFor(expectedSize, expectedBytesPerEntry);
+			map.buffer = map.allocate(regionSizeFor(slots, dataBytes), file);
+			map.format(slots);
+		}
+		return map;
+	}
+
+	public void clear() {
+		for (int i = 0; i < slotCount; i++) {
+			buffer.putLong(HEADER_SIZE + i * SLOT_SIZE, 0);
+		}
+		size = 0;
+		dataEnd = dataStart;
+		garbage = 0;
+		writeHeader();
+	}
+
+	/**
+	 * Releases the file backing a memory-mapped table after flushing it. The mapped pages are
+	 * released when the buffer is garbage collected. Tables held in direct memory need not be
+	 * closed.
+	 */
+	public void close() throws IOException {
+		if (randomAccessFile != null) {
+			force();
+			randomAccessFile.close();
+			randomAccessFile = null;
+		}
+	}
+
+	public boolean containsKey(ByteBuffer key) {
+		return findSlot(key, hash(key)) >= 0;
+	}
+
+	public boolean containsKey(byte[] key) {
+		return containsKey(ByteBuffer.wrap(key));
+	}
+
+	/**
+	 * Flushes a memory-mapped table to its file. Has no effect on tables held in direct memory.
+	 */
+	public void force() {
+		if (file != null) {
+			((MappedByteBuffer) buffer).force();
+		}
+	}
+
+	/**
+	 * Gets the value mapped to a key as a read-only view of the table. The view is only valid
+	 * until the table is next modified.
+	 * @param key	The key, between its position and limit
+	 * @return		The value, or <code>null</code> if the key is not present
+	 */
+	public ByteBuffer get(ByteBuffer key) {
+		int slot = findSlot(key, hash(key));
+		if (slot < 0) {
+			return null;
+		}
+		int record = recordAt(slot);
+		ByteBuffer value = buffer.duplicate();
+		value.position(valueOffset(record)).limit(valueOffset(record) + buffer.getInt(record + 4));
+		return value.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Copies the value mapped to a key into a buffer, without creating any objects.
+	 * @param key	The key, between its position and limit
+	 * @param dst	The buffer into which the value is copied at its position, which is advanced
+	 * @return		The length of the value, or -1 if the key is not present
+	 */
+	public int get(ByteBuffer key, ByteBuffer dst) {
+		int slot = findSlot(key, hash(key));
+		if (slot < 0) {
+			return -1;
+		}
+		int record = recordAt(slot);
+		int from = valueOffset(record);
+		int length = buffer.getInt(record + 4);
+		for (int i = 0; i < length; i++) {
+			dst.put(buffer.get(from + i));
+		}
+		return length;
+	}
+
+	/**
+	 * Gets a copy of the value mapped to a key.
+	 * @param key	The key
+	 * @return		The value, or <code>null</code> if the key is not present
+	 */
+	public byte[] get(byte[] key) {
+		ByteBuffer value = get(ByteBuffer.wrap(key));
+		if (value == null) {
+			return null;
+		}
+		byte[] result = new byte[value.remaining()];
+		value.get(result);
+		return result;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Maps a key to a value, replacing any existing mapping. Neither buffer is modified.
+	 * @param key	The key, between its position and limit
+	 * @param value	The value, between its position and limit
+	 * @return		<code>true</code> if the key was not already present, <code>false</code> otherwise
+	 */
+	public boolean put(ByteBuffer key, ByteBuffer value) {
+		int hash = hash(key);
+		int slot = findSlot(key, hash);
+		if (slot >= 0) {
+			int record = recordAt(slot);
+			if (buffer.getInt(record + 4) == value.remaining()) {
+				copyIn(value, valueOffset(record));
+				return false;
+			}
+		}
+		int recordLength = RECORD_HEADER_SIZE + key.remaining() + value.remaining();
+		boolean needsSlot = slot < 0;
+		if (!LowMemoryHashing.canHold(slotCount, size + (needsSlot ? 1 : 0))
+				|| (long) dataEnd + recordLength > buffer.capacity()) {
+			grow(needsSlot ? size + 1 : size, recordLength);
+			slot = findSlot(key, hash);
+		}
+		int record = dataEnd;
+		buffer.putInt(record, key.remaining());
+		buffer.putInt(record + 4, value.remaining());
+		copyIn(key, record + RECORD_HEADER_SIZE);
+		copyIn(value, valueOffset(record));
+		dataEnd += recordLength;
+		if (slot >= 0) {
+			garbage += recordLength(recordAt(slot));
+			buffer.putInt(HEADER_SIZE + slot * SLOT_SIZE + 4, record);
+		} else {
+			int empty = -slot - 1;
+			buffer.putInt(HEADER_SIZE + empty * SLOT_SIZE, hash);
+			buffer.putInt(HEADER_SIZE + empty * SLOT_SIZE + 4, record);
+			++size;
+		}
+		writeHeader();
+		return slot < 0;
+	}
+
+	public boolean put(byte[] key, byte[] value) {
+		return put(ByteBuffer.wrap(key), ByteBuffer.wrap(value));
+	}
+
+	/**
+	 * Removes the mapping for a key.
+	 * @param key	The key, between its position and limit
+	 * @return		<code>true</code> if a mapping was removed, <code>false</code> otherwise
+	 */
+	public boolean remove(ByteBuffer key) {
+		int slot = findSlot(key, hash(key));
+		if (slot < 0) {
+			return false;
+		}
+		garbage += recordLength(recordAt(slot));
+		buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE, 0);
+		--size;
+		plugHole(slot);
+		writeHeader();
+		return true;
+	}
+
+	public boolean remove(byte[] key) {
+		return remove(ByteBuffer.wrap(key));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes occupied by the table outside of the heap.
+	 */
+	public long regionSize() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * Returns the index of the slot holding a key, or if it is not present
+	 * <code>-(i + 1)</code> where <code>i</code> is the index of the empty
+	 * slot at which it should be inserted.
+	 */
+	int findSlot(ByteBuffer key, int hash) {
+		int mask = slotCount - 1;
+		int index = hash & mask;
+		while (true) {
+			int slotOffset = HEADER_SIZE + index * SLOT_SIZE;
+			int record = buffer.getInt(slotOffset + 4);
+			if (record == 0) {
+				return -index - 1;
+			}
+			if (buffer.getInt(slotOffset) == hash && keyEquals(record, key)) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Returns the spread hash of the bytes between a buffer's position and
+	 * limit.
+	 */
+	static int hash(ByteBuffer key) {
+		int h = 1;
+		for (int i = key.position(); i < key.limit(); i++) {
+			h = 31 * h + key.get(i);
+		}
+		return LowMemoryHashing.spread(h);
+	}
+
+	private static long dataBytesFor(int expectedSize, int expectedBytesPerEntry) {
+		return Math.max(expectedSize, 1) * (long) (RECORD_HEADER_SIZE + Math.max(expectedBytesPerEntry, 0));
+	}
+
+	private static long regionSizeFor(int slots, long dataBytes) {
+		long regionSize = HEADER_SIZE + slots * (long) SLOT_SIZE + dataBytes;
+		if (regionSize > Integer.MAX_VALUE)
+			throw new IllegalStateException("An off heap table is limited to 2GB");
+		return regionSize;
+	}
+
+	private ByteBuffer allocate(long regionSize, File target) throws IOException {
+		if (target == null) {
+			return ByteBuffer.allocateDirect((int) regionSize).order(ByteOrder.BIG_ENDIAN);
+		}
+		RandomAccessFile raf = new RandomAccessFile(target, "rw");
+		try {
+			raf.setLength(regionSize);
+			ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, regionSize);
+			randomAccessFile = raf;
+			return mapped.order(ByteOrder.BIG_ENDIAN);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	private void copyIn(ByteBuffer src, int offset) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(offset);
+		dup.put(src.duplicate());
+	}
+
+	private void format(int slots) {
+		slotCount = slots;
+		dataStart = HEADER_SIZE + slots * SLOT_SIZE;
+		buffer.putInt(MAGIC_OFFSET, MAGIC);
+		buffer.putInt(VERSION_OFFSET, VERSION);
+		buffer.putInt(SLOT_COUNT_OFFSET, slots);
+		buffer.putInt(DATA_START_OFFSET, dataStart);
+		clear();
+	}
+
+	/**
+	 * Rebuilds the table into a new region large enough for the specified
+	 * number of entries plus a new record, discarding garbage. The new region
+	 * is built apart from this table, which is switched to it only once it is
+	 * complete, so that a failure leaves the table as it was.
+	 */
+	private void grow(int expectedSize, int recordLength) {
+		int newSlots = LowMemoryHashing.canHold(slotCount, expectedSize) ? slotCount
+				: LowMemoryHashing.capacityFor(expectedSize);
+		long live = dataEnd - dataStart - garbage + (long) recordLength;
+		long newDataBytes = buffer.capacity() - dataStart;
+		while (newDataBytes < live + live / 2) {
+			newDataBytes <<= 1;
+		}
+		File target = (file == null) ? null : new File(file.getPath() + ".tmp");
+		OffHeapByteHashMap rebuilt = new OffHeapByteHashMap(file);
+		try {
+			rebuilt.buffer = rebuilt.allocate(regionSizeFor(newSlots, newDataBytes), target);
+			rebuilt.format(newSlots);
+			for (int i = 0; i < slotCount; i++) {
+				int slotOffset = HEADER_SIZE + i * SLOT_SIZE;
+				int record = buffer.getInt(slotOffset + 4);
+				if (record != 0) {
+					int hash = buffer.getInt(slotOffset);
+					int length = recordLength(record);
+					ByteBuffer src = buffer.duplicate();
+					src.position(record).limit(record + length);
+					rebuilt.copyIn(src, rebuilt.dataEnd);
+					int mask = rebuilt.slotCount - 1;
+					int index = hash & mask;
+					while (rebuilt.recordAt(index) != 0) {
+						index = (index + 1) & mask;
+					}
+					rebuilt.buffer.putInt(HEADER_SIZE + index * SLOT_SIZE, hash);
+					rebuilt.buffer.putInt(HEADER_SIZE + index * SLOT_SIZE + 4, rebuilt.dataEnd);
+					rebuilt.dataEnd += length;
+					++rebuilt.size;
+				}
+			}
+			rebuilt.writeHeader();
+			if (file != null) {
+				rebuilt.force();
+				replace(target, file);
+			}
+		} catch (IOException e) {
+			rebuilt.discard(target);
+			throw new RuntimeException(e);
+		}
+
+		RandomAccessFile oldFile = randomAccessFile;
+		buffer = rebuilt.buffer;
+		randomAccessFile = rebuilt.randomAccessFile;
+		slotCount = rebuilt.slotCount;
+		size = rebuilt.size;
+		dataStart = rebuilt.dataStart;
+		dataEnd = rebuilt.dataEnd;
+		garbage = rebuilt.garbage;
+		if (oldFile != null) {
+			try {
+				oldFile.close();
+			} catch (IOException e) {
+				// the file has already been replaced
+			}
+		}
+	}
+
+	/**
+	 * Releases and deletes the region of a table that could not be built.
+	 */
+	private void discard(File target) {
+		if (randomAccessFile != null) {
+			try {
+				randomAccessFile.close();
+			} catch (IOException e) {
+				// the file is deleted regardless
+			}
+			randomAccessFile = null;
+			target.delete();
+		}
+	}
+
+	/**
+	 * Returns the file to which a table file is moved while it is being
+	 * replaced, on platforms where a file cannot be renamed over another.
+	 */
+	private static File backupFile(File file) {
+		return new File(file.getPath() + ".old");
+	}
+
+	/**
+	 * Replaces a table file with a rebuilt one. Where the rebuilt file cannot
+	 * simply be renamed over the old one, the old file is moved aside first and
+	 * is only deleted once the rebuilt file is in its place, and is restored if
+	 * it cannot be.
+	 */
+	private static void replace(File target, File file) throws IOException {
+		if (target.renameTo(file)) {
+			return;
+		}
+		File backup = backupFile(file);
+		backup.delete();
+		if (!file.renameTo(backup))
+			throw new IOException("Could not move " + file + " aside to replace it with " + target);
+		if (!target.renameTo(file)) {
+			if (!backup.renameTo(file))
+				throw new IOException("Could not replace " + file + " with " + target
+						+ ", and the previous table remains in " + backup);
+			throw new IOException("Could not replace " + file + " with " + target);
+		}
+		backup.delete();
+	}
+
+	private boolean keyEquals(int record, ByteBuffer key) {
+		int length = buffer.getInt(record);
+		if (length != key.remaining()) {
+			return false;
+		}
+		int from = record + RECORD_HEADER_SIZE;
+		int keyFrom = key.position();
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(from + i) != key.get(keyFrom + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void load() throws IOException {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC)
+			throw new IOException("Not an off heap table file");
+		if (buffer.getInt(VERSION_OFFSET) != VERSION)
+			throw new IOException("Unsupported off heap table version " + buffer.getInt(VERSION_OFFSET));
+		slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+		size = buffer.getInt(SIZE_OFFSET);
+		dataStart = buffer.getInt(DATA_START_OFFSET);
+		dataEnd = buffer.getInt(DATA_END_OFFSET);
+		garbage = buffer.getInt(GARBAGE_OFFSET);
+	}
+
+	/**
+	 * Fills the hole left by a removal in the same way as
+	 * {@link LowMemoryHashMap}, using the hash stored in each slot.
+	 */
+	private void plugHole(int hole) {
+		int mask = slotCount - 1;
+		int index = (hole + 1) & mask;
+		while (buffer.getInt(HEADER_SIZE + index * SLOT_SIZE + 4) != 0) {
+			int targetIndex = buffer.getInt(HEADER_SIZE + index * SLOT_SIZE) & mask;
+			boolean plug;
+			if (hole < index) {
+				plug = !(hole < targetIndex && targetIndex <= index);
+			} else {
+				plug = index < targetIndex && targetIndex <= hole;
+			}
+			if (plug) {
+				buffer.putLong(HEADER_SIZE + hole * SLOT_SIZE, buffer.getLong(HEADER_SIZE + index * SLOT_SIZE));
+				buffer.putLong(HEADER_SIZE + index * SLOT_SIZE, 0);
+				hole = index;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	private int recordAt(int slot) {
+		return buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+	}
+
+	private int recordLength(int record) {
+		return RECORD_HEADER_SIZE + buffer.getInt(record) + buffer.getInt(record + 4);
+	}
+
+	private int valueOffset(int record) {
+		return record + RECORD_HEADER_SIZE + buffer.getInt(record);
+	}
+
+	private void writeHeader() {
+		buffer.putInt(SIZE_OFFSET, size);
+		buffer.putInt(DATA_END_OFFSET, dataEnd);
+		buffer.putInt(GARBAGE_OFFSET, garbage);
+	}
+}
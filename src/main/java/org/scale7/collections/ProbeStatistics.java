@@ -0,0 +1,117 @@
+package org.scale7.collections;
+
+/**
+ * The counters kept by a hash table constructed to collect statistics. A table
+ * that does not collect statistics has no instance of this class, so the only
+ * cost it pays is a check of a final field before probing.
+ */
+final class ProbeStatistics {
+
+	/**
+	 * The number of elements in the probe length histogram.
+	 */
+	static final int HISTOGRAM_BUCKETS = 32;
+
+	private final long[] probeLengths = new long[HISTOGRAM_BUCKETS];
+	private long resizeCount;
+	private long resizeTimeNanos;
+	private long plugHoleTimeNanos;
+
+	void recordProbe(int slotsExamined) {
+		++probeLengths[Math.min(slotsExamined, HISTOGRAM_BUCKETS) - 1];
+	}
+
+	void recordResize(long nanos) {
+		++resizeCount;
+		resizeTimeNanos += nanos;
+	}
+
+	void recordPlugHole(long nanos) {
+		plugHoleTimeNanos += nanos;
+	}
+
+	/**
+	 * Takes a snapshot of a table given the measurements of its occupancy. The
+	 * counters are zero if <code>statistics</code> is <code>null</code>.
+	 */
+	static HashTableStatistics snapshot(ProbeStatistics statistics, int size,
+			int capacity, int maxClusterLength, double meanDisplacement) {
+		if (statistics == null) {
+			return new HashTableStatistics(size, capacity, new long[HISTOGRAM_BUCKETS],
+					maxClusterLength, meanDisplacement, 0, 0, 0);
+		}
+		return new HashTableStatistics(size, capacity, statistics.probeLengths.clone(),
+				maxClusterLength, meanDisplacement, statistics.resizeCount,
+				statistics.resizeTimeNanos, statistics.plugHoleTimeNanos);
+	}
+
+	/**
+	 * Returns the length of the longest run of occupied slots in a table,
+	 * including a run that wraps around from the end to the start.
+	 */
+	static int maxClusterLength(Object[] table) {
+		int leading = 0;
+		while (leading < table.length && table[leading] != null) {
+			++leading;
+		}
+		if (leading == table.length) {
+			return leading;
+		}
+		int max = leading, run = 0;
+		for (int i = leading; i < table.length; ++i) {
+			if (table[i] != null) {
+				max = Math.max(max, ++run);
+			} else {
+				run = 0;
+			}
+		}
+		return Math.max(max, run + leading);
+	}
+
+	/**
+	 * An MBean that takes a new snapshot of a table for every attribute.
+	 */
+	abstract static class Live implements HashTableStatisticsMXBean {
+		abstract HashTableStatistics snapshot();
+
+		public int getSize() {
+			return snapshot().getSize();
+		}
+
+		public int getCapacity() {
+			return snapshot().getCapacity();
+		}
+
+		public long getLookups() {
+			return snapshot().getLookups();
+		}
+
+		public long[] getProbeLengthHistogram() {
+			return snapshot().getProbeLengthHistogram();
+		}
+
+		public double getMeanProbeLength() {
+			return snapshot().getMeanProbeLength();
+		}
+
+		public int getMaxClusterLength() {
+			return snapshot().getMaxClusterLength();
+		}
+
+		public double getMeanDisplacement() {
+			return snapshot().getMeanDisplacement();
+		}
+
+		public long getResizeCount() {
+			return snapshot().getResizeCount();
+		}
+
+		public long getResizeTimeNanos() {
+			return snapshot().getResizeTimeNanos();
+		}
+
+		public long getPlugHoleTimeNanos() {
+			return snapshot().getPlugHoleTimeNanos();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package org.scale7.collections;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Bloom filter that grows as elements are added, rather than degrading once
+ * more elements are added than it was sized for, as described by Almeida et
+ * al. in "Scalable Bloom Filters". It is a chain of {@link BloomFilter}s: when
+ * the newest filter has been filled to its capacity a new one is added with
+ * {@link #getGrowthFactor()} times the capacity and {@link #getTighteningRatio()}
+ * times the false positive probability of its predecessor. The probabilities
+ * form a geometric series whose sum is the target probability, so the
+ * compound probability of a false positive stays below the target however
+ * many elements are added.
+ * <p>
+ * Each element is hashed once, with {@link BloomHashScheme#MURMUR3_128}, and
+ * every filter in the chain is queried with that one hash.
+ *
+ * @param <E>
+ *            the element type
+ */
+@SuppressWarnings("serial")
+public class ScalableBloomFilter<E> implements Serializable {
+
+	public static final int DEFAULT_GROWTH_FACTOR = 2;
+
+	public static final double DEFAULT_TIGHTENING_RATIO = 0.85;
+
+	private final IFunnel<? super E> funnel;
+	private final long initialCapacity;
+	private final double falsePositiveProbability;
+	private final int growthFactor;
+	private final double tighteningRatio;
+
+	private final List<BloomFilter<E>> filters = new ArrayList<BloomFilter<E>>();
+	private long nextCapacity;
+	private double nextFalsePositiveProbability;
+
+	/**
+	 * Constructs an empty filter with the default growth factor and tightening
+	 * ratio.
+	 * @param funnel Puts the values of each element to be hashed
+	 * @param initialCapacity The number of elements the first filter in the chain holds
+	 * @param falsePositiveProbability The greatest probability of false positives
+	 */
+	public ScalableBloomFilter(IFunnel<? super E> funnel, long initialCapacity, double falsePositiveProbability) {
+		this(funnel, initialCapacity, falsePositiveProbability, DEFAULT_GROWTH_FACTOR, DEFAULT_TIGHTENING_RATIO);
+	}
+
+	/**
+	 * Constructs an empty filter.
+	 * @param funnel Puts the values of each element to be hashed
+	 * @param initialCapacity The number of elements the first filter in the chain holds
+	 * @param falsePositiveProbability The greatest probability of false positives
+	 * @param growthFactor The ratio of the capacity of each filter to that of its predecessor, at least 2
+	 * @param tighteningRatio The ratio of the false positive probability of each filter to that of its predecessor, between 0 and 1
+	 */
+	public ScalableBloomFilter(IFunnel<? super E> funnel, long initialCapacity, double falsePositiveProbability,
+			int growthFactor, double tighteningRatio) {
+		if (funnel == null) {
+			throw new NullPointerException("funnel");
+		}
+		if (initialCapacity <= 0 || growthFactor < 2 || !(tighteningRatio > 0 && tighteningRatio < 1)
+				|| !(falsePositiveProbability > 0 && falsePositiveProbability < 1)) {
+			throw new IllegalArgumentException();
+		}
+		this.funnel = funnel;
+		this.initialCapacity = initialCapacity;
+		this.falsePositiveProbability = falsePositiveProbability;
+		this.growthFactor = growthFactor;
+		this.tighteningRatio = tighteningRatio;
+		clear();
+	}
+
+	/**
+	 * Adds an element to the filter, unless it might already be present.
+	 * @param element The element
+	 * @return <code>true</code> if the element was added, <code>false</code>
+	 *         if it might already have been present
+	 */
+	public boolean add(E element) {
+		Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+		if (containsHash(h.h1, h.h2)) {
+			return false;
+		}
+		BloomFilter<E> newest = filters.get(filters.size() - 1);
+		if (newest.elementCount() >= newest.expectedElementCount()) {
+			newest = grow();
+		}
+		newest.addHash(h.h1, h.h2);
+		return true;
+	}
+
+	/**
+	 * Returns the total number of bits of the filters in the chain.
+	 */
+	public long bitSize() {
+		long bitSize = 0;
+		for (BloomFilter<E> filter : filters) {
+			bitSize += filter.bitSize();
+		}
+		return bitSize;
+	}
+
+	/**
+	 * Discards every filter but an empty first one.
+	 */
+	public void clear() {
+		filters.clear();
+		nextCapacity = initialCapacity;
+		// the probabilities of the filters sum to the target
+		nextFalsePositiveProbability = falsePositiveProbability * (1 - tighteningRatio);
+		grow();
+	}
+
+	/**
+	 * Returns whether an element might have been added to the filter.
+	 * @param element The element
+	 * @return <code>false</code> if the element has certainly not been added
+	 */
+	public boolean contains(E element) {
+		Murmur3Hash128 h = BloomHashing.hash(funnel, element);
+		return containsHash(h.h1, h.h2);
+	}
+
+	/**
+	 * Returns the number of elements added since the filter was constructed or
+	 * cleared.
+	 */
+	public long elementCount() {
+		long count = 0;
+		for (BloomFilter<E> filter : filters) {
+			count += filter.elementCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of filters in the chain.
+	 */
+	public int filterCount() {
+		return filters.size();
+	}
+
+	/**
+	 * Returns the probability of a false positive given the number of elements
+	 * in each filter of the chain, which is the probability that any of them
+	 * gives one.
+	 */
+	public double getFalsePositiveProbability() {
+		double none = 1;
+		for (BloomFilter<E> filter : filters) {
+			none *= 1 - filter.getFalsePositiveProbability();
+		}
+		return 1 - none;
+	}
+
+	public int getGrowthFactor() {
+		return growthFactor;
+	}
+
+	/**
+	 * Returns the probability of false positives that the filter stays below.
+	 */
+	public double getTargetFalsePositiveProbability() {
+		return falsePositiveProbability;
+	}
+
+	public double getTighteningRatio() {
+		return tighteningRatio;
+	}
+
+	private boolean containsHash(long h1, long h2) {
+		// the newest filter is the largest, so the likeliest to hold the element
+		for (int i = filters.size() - 1; i >= 0; i--) {
+			if (filters.get(i).containsHash(h1, h2)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private BloomFilter<E> grow() {
+		BloomFilter<E> filter = BloomFilter.create(funnel, nextCapacity, nextFalsePositiveProbability);
+		filters.add(filter);
+		nextCapacity *= growthFactor;
+		nextFalsePositiveProbability *= tighteningRatio;
+		return filter;
+	}
+}
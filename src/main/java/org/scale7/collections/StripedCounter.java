@@ -0,0 +1,44 @@
+package org.scale7.collections;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several padded cells, so that threads on different
+ * cores usually increment different cache lines. Reading the total sums every
+ * cell, so is much slower than incrementing.
+ */
+final class StripedCounter {
+
+	/**
+	 * The distance between cells, which keeps each on its own 128 byte span.
+	 */
+	private static final int STRIDE = 16;
+
+	private final AtomicLongArray cells;
+
+	private final int mask;
+
+	StripedCounter() {
+		int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime()
+				.availableProcessors() * 2 - 1)) << 1;
+		cells = new AtomicLongArray(count * STRIDE);
+		mask = count - 1;
+	}
+
+	void add(long delta) {
+		int h = LowMemoryHashing.spread(Thread.currentThread().getId());
+		cells.getAndAdd((h & mask) * STRIDE, delta);
+	}
+
+	void increment() {
+		add(1);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += STRIDE) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+}
@@ -1,8 +1,6 @@
 package org.scale7.networking.compression;
 
-import java.util.Map;
-
-import org.scale7.collections.LowMemoryHashMap;
+import org.scale7.collections.ObjectIntLowMemoryHashMap;
 
 
 /**
@@ -18,7 +16,7 @@ import org.scale7.collections.LowMemoryHashMap;
  * @param <T>	The type of value to which back references are generated
  */
 public class MruBackRefWindowCodec<T> {
-	final Map<T, Integer> valToRef;
+	final ObjectIntLowMemoryHashMap<T> valToRef;
 	int newRef=-1, headRef=-1, tailRef=-1;
 	final int window;
 	final Object[] values;
@@ -33,7 +31,7 @@ public class MruBackRefWindowCodec<T> {
 	public MruBackRefWindowCodec(int window, boolean encoder) {
 		if (window < 1)
 			throw new RuntimeException("Minimum window size is 1");
-		valToRef = encoder ? new LowMemoryHashMap<T, Integer>() : null;
+		valToRef = encoder ? new ObjectIntLowMemoryHashMap<T>() : null;
 		this.window = window;
 		values = new Object[window];
 		prevRef = new int[window];
@@ -48,8 +46,8 @@ public class MruBackRefWindowCodec<T> {
 	 * @return			A back reference to the value
 	 */
 	public int encodeRefOrValue(T value) {
-		Integer ref = valToRef.get(value);
-		if (ref != null) {
+		int ref = valToRef.getOrDefault(value, -1);
+		if (ref != -1) {
 			touchRef(ref);
 			return ref;
 		} else {
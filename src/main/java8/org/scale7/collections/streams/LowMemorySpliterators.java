@@ -0,0 +1,177 @@
+package org.scale7.collections.streams;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.scale7.collections.LowMemoryHashMap;
+import org.scale7.collections.LowMemoryHashSet;
+
+/**
+ * Spliterators and streams over {@link LowMemoryHashMap} and
+ * {@link LowMemoryHashSet}, for use on Java 8 and later. These live apart from
+ * the collections, which must remain usable on Java 6, and are built on the
+ * slot range cursors the collections provide: a spliterator covers a range of
+ * slots of the table and splits by halving it, so that a parallel stream
+ * divides the table between threads without copying it.
+ * <p>
+ * The size of the whole table is exact, but the size of a range is estimated
+ * from the fraction of the slots it covers, so split spliterators are not
+ * {@link Spliterator#SIZED}. The collection must not be modified while a
+ * spliterator over it is in use.
+ */
+public final class LowMemorySpliterators {
+
+	/**
+	 * Ranges smaller than this are not split.
+	 */
+	private static final int MIN_SPLIT_SLOTS = 1024;
+
+	private LowMemorySpliterators() {
+	}
+
+	/**
+	 * A spliterator over a range of slots.
+	 */
+	private abstract static class SlotRangeSpliterator<T, S extends SlotRangeSpliterator<T, S>>
+			implements Spliterator<T> {
+		int fromSlot;
+		final int toSlot;
+		long estimate;
+		int characteristics;
+
+		SlotRangeSpliterator(int fromSlot, int toSlot, long estimate, int characteristics) {
+			this.fromSlot = fromSlot;
+			this.toSlot = toSlot;
+			this.estimate = estimate;
+			this.characteristics = characteristics;
+		}
+
+		@Override
+		public int characteristics() {
+			return characteristics;
+		}
+
+		@Override
+		public long estimateSize() {
+			return estimate;
+		}
+
+		@Override
+		public S trySplit() {
+			if (started() || toSlot - fromSlot < MIN_SPLIT_SLOTS * 2) {
+				return null;
+			}
+			int middle = (fromSlot + toSlot) >>> 1;
+			characteristics &= ~(SIZED | SUBSIZED);
+			estimate >>>= 1;
+			S prefix = create(fromSlot, middle, estimate, characteristics);
+			fromSlot = middle;
+			return prefix;
+		}
+
+		abstract S create(int fromSlot, int toSlot, long estimate, int characteristics);
+
+		abstract boolean started();
+	}
+
+	/**
+	 * Returns a spliterator over the entries of a map.
+	 */
+	public static <K, V> Spliterator<Map.Entry<K, V>> entrySpliterator(LowMemoryHashMap<K, V> map) {
+		return new EntrySpliterator<K, V>(map, 0, map.capacity(), map.size(),
+				Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT);
+	}
+
+	/**
+	 * Returns a sequential or parallel stream of the entries of a map.
+	 */
+	public static <K, V> Stream<Map.Entry<K, V>> entryStream(LowMemoryHashMap<K, V> map, boolean parallel) {
+		return StreamSupport.stream(entrySpliterator(map), parallel);
+	}
+
+	/**
+	 * Returns a spliterator over the items of a set.
+	 */
+	public static <E> Spliterator<E> spliterator(LowMemoryHashSet<E> set) {
+		return new ItemSpliterator<E>(set, 0, set.capacity(), set.size(),
+				Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT);
+	}
+
+	/**
+	 * Returns a sequential or parallel stream of the items of a set.
+	 */
+	public static <E> Stream<E> stream(LowMemoryHashSet<E> set, boolean parallel) {
+		return StreamSupport.stream(spliterator(set), parallel);
+	}
+
+	private static final class EntrySpliterator<K, V> extends
+			SlotRangeSpliterator<Map.Entry<K, V>, EntrySpliterator<K, V>> {
+		private final LowMemoryHashMap<K, V> map;
+		private LowMemoryHashMap<K, V>.MapCursor cursor;
+
+		EntrySpliterator(LowMemoryHashMap<K, V> map, int fromSlot, int toSlot, long estimate,
+				int characteristics) {
+			super(fromSlot, toSlot, estimate, characteristics);
+			this.map = map;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+			if (cursor == null) {
+				cursor = map.cursor(fromSlot, toSlot);
+			}
+			if (!cursor.advance()) {
+				return false;
+			}
+			action.accept(new SimpleImmutableEntry<K, V>(cursor.key(), cursor.value()));
+			return true;
+		}
+
+		@Override
+		EntrySpliterator<K, V> create(int fromSlot, int toSlot, long estimate, int characteristics) {
+			return new EntrySpliterator<K, V>(map, fromSlot, toSlot, estimate, characteristics);
+		}
+
+		@Override
+		boolean started() {
+			return cursor != null;
+		}
+	}
+
+	private static final class ItemSpliterator<E> extends SlotRangeSpliterator<E, ItemSpliterator<E>> {
+		private final LowMemoryHashSet<E> set;
+		private LowMemoryHashSet<E>.SetCursor cursor;
+
+		ItemSpliterator(LowMemoryHashSet<E> set, int fromSlot, int toSlot, long estimate,
+				int characteristics) {
+			super(fromSlot, toSlot, estimate, characteristics);
+			this.set = set;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super E> action) {
+			if (cursor == null) {
+				cursor = set.cursor(fromSlot, toSlot);
+			}
+			if (!cursor.advance()) {
+				return false;
+			}
+			action.accept(cursor.item());
+			return true;
+		}
+
+		@Override
+		ItemSpliterator<E> create(int fromSlot, int toSlot, long estimate, int characteristics) {
+			return new ItemSpliterator<E>(set, fromSlot, toSlot, estimate, characteristics);
+		}
+
+		@Override
+		boolean started() {
+			return cursor != null;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package org.scale7.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.scale7.collections.BlockedBloomFilter;
+import org.scale7.collections.BloomFilter;
+import org.scale7.collections.BloomFilterWriter;
+import org.scale7.collections.BloomHashScheme;
+import org.scale7.collections.BufferBitArray;
+import org.scale7.collections.ConcurrentBloomFilter;
+import org.scale7.collections.CountingBloomFilter;
+import org.scale7.collections.Funnels;
+import org.scale7.collections.LongBitArray;
+import org.scale7.collections.MappedBloomFilter;
+import org.scale7.collections.ScalableBloomFilter;
+
+public class BloomFilterTest {
+	/**
+	 * Counts the elements of a disjoint range that the filter claims to contain.
+	 */
+	static int falsePositives(BloomFilter<Long> filter, long from, int count) {
+		int positives = 0;
+		for (long i = from; i < from + count; i++)
+			if (filter.contains(i))
+				positives++;
+		return positives;
+	}
+
+	@Test
+	public void testFunnelledHashing() throws Exception {
+		final int n = 10000;
+		BloomFilter<Long> filter = new BloomFilter<Long>(n * 10, n, Funnels.LONG);
+		assertEquals(BloomHashScheme.MURMUR3_128, filter.getHashScheme());
+		Random rnd = new Random(1);
+		long[] added = new long[n];
+		for (int i = 0; i < n; i++) {
+			added[i] = rnd.nextLong() & 0xffffffffffffL;
+			filter.add(added[i]);
+		}
+		for (long element : added)
+			assertTrue(filter.contains(element));
+		assertEquals(n, filter.count());
+		double observed = falsePositives(filter, 1L << 50, 100000) / 100000.0;
+		assertTrue(observed < filter.expectedFalsePositiveProbability() * 1.5);
+
+		BloomFilter<Long> copy = PrimitiveLowMemoryHashMapTest.roundTrip(filter);
+		assertEquals(filter, copy);
+		for (long element : added)
+			assertTrue(copy.contains(element));
+
+		// equal characters and bytes hash alike whatever holds them
+		BloomFilter<CharSequence> chars = new BloomFilter<CharSequence>(1000, 100, Funnels.CHAR_SEQUENCE);
+		chars.add("scale7");
+		assertTrue(chars.contains(new StringBuilder("scale").append(7)));
+		BloomFilter<ByteBuffer> buffers = new BloomFilter<ByteBuffer>(1000, 100, Funnels.BYTE_BUFFER);
+		byte[] bytes = "0123456789abcdefghij".getBytes("UTF-8");
+		buffers.add(ByteBuffer.wrap(bytes, 3, 17));
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).position(3);
+		assertTrue(buffers.contains(direct));
+		assertEquals(3, direct.position());
+	}
+
+	@Test
+	public void testDigestHashingCompatibility() throws Exception {
+		BloomFilter<String> filter = new BloomFilter<String>(2000, 100);
+		assertEquals(BloomHashScheme.MD5, filter.getHashScheme());
+		for (int i = 0; i < 100; i++)
+			filter.add("element" + i);
+		BloomFilter<String> restored = new BloomFilter<String>(2000, 100, filter.count(),
+				filter.getBitSet());
+		BloomFilter<String> copy = PrimitiveLowMemoryHashMapTest.roundTrip(filter);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(restored.contains("element" + i));
+			assertTrue(copy.contains("element" + i));
+		}
+		assertEquals(filter, copy);
+		assertFalse(filter.equals(new BloomFilter<String>(2000, 100, Funnels.CHAR_SEQUENCE)));
+	}
+
+	@Test
+	public void testLongBitArrays() throws Exception {
+		// spans a segment boundary
+		long bitSize = LongBitArray.SEGMENT_WORDS * 64L + 100;
+		LongBitArray array = new LongBitArray(bitSize);
+		long[] indices = { 0, 63, 64, LongBitArray.SEGMENT_WORDS * 64L - 1, LongBitArray.SEGMENT_WORDS * 64L,
+				bitSize - 1 };
+		for (long index : indices)
+			assertTrue(array.set(index));
+		assertFalse(array.set(63));
+		for (long index : indices)
+			assertTrue(array.get(index));
+		assertFalse(array.get(62));
+		assertEquals(indices.length, array.cardinality());
+		assertEquals(0x8000000000000001L, array.getWord(0));
+		array.clear(63);
+		assertFalse(array.get(63));
+
+		final int n = 5000;
+		BloomFilter<Long> heap = new BloomFilter<Long>(bitSize, bitSize / 10, Funnels.LONG);
+		BloomFilter<Long> direct = new BloomFilter<Long>(BufferBitArray.allocateDirect(bitSize), bitSize / 10, 0,
+				Funnels.LONG);
+		assertEquals(7, heap.getK());
+		assertNull(heap.getBitSet());
+		assertEquals(bitSize, heap.bitSize());
+		for (long i = 0; i < n; i++) {
+			heap.add(i * 31);
+			direct.add(i * 31);
+		}
+		assertEquals(heap, direct);
+		assertEquals(heap.hashCode(), direct.hashCode());
+		BloomFilter<Long> copy = PrimitiveLowMemoryHashMapTest.roundTrip(heap);
+		assertEquals(heap, copy);
+		assertEquals(n, copy.elementCount());
+		for (long i = 0; i < n; i++)
+			assertTrue(copy.contains(i * 31));
+		assertEquals(0, falsePositives(copy, 1L << 40, 10000));
+
+		// filters over arrays off the heap are read back onto it
+		BloomFilter<Long> directCopy = PrimitiveLowMemoryHashMapTest.roundTrip(direct);
+		assertEquals(direct, directCopy);
+		assertTrue(directCopy.getBitArray() instanceof LongBitArray);
+		for (long i = 0; i < n; i++)
+			assertTrue(directCopy.contains(i * 31));
+	}
+
+	@Test
+	public void testConcurrentAdds() throws Exception {
+		final int threads = 4;
+		final int n = 100000;
+		final ConcurrentBloomFilter<Long> filter = new ConcurrentBloomFilter<Long>(n * 10L, n, Funnels.LONG);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						// threads interleave their elements so that words are contended
+						for (long i = thread; i < n; i += threads) {
+							filter.add(i);
+							assertTrue(filter.contains(i));
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+		}
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		assertNull(failure.get());
+		assertEquals(n, filter.elementCount());
+		for (long i = 0; i < n; i++)
+			assertTrue(filter.contains(i));
+
+		// hashes in the same way as a plain filter
+		BloomFilter<Long> plain = new BloomFilter<Long>(n * 10L, n, Funnels.LONG);
+		for (long i = 0; i < n; i++)
+			plain.add(i);
+		BloomFilter<Long> copy = filter.toBloomFilter();
+		assertEquals(plain, copy);
+		assertFalse(filter.add(0L));
+		double observed = falsePositives(copy, n, 100000) / 100000.0;
+		assertTrue(observed < filter.expectedFalsePositiveProbability() * 1.5);
+
+		// a plain filter may be queried by several threads at once
+		final BloomFilter<Long> queried = plain;
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (long i = 0; i < n; i++)
+							assertTrue(queried.contains(i));
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+		}
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		assertNull(failure.get());
+	}
+
+	@Test
+	public void testCountingRemoval() throws Exception {
+		final int n = 10000;
+		CountingBloomFilter<Long> filter = new CountingBloomFilter<Long>(n * 10L, n, Funnels.LONG);
+		for (long i = 0; i < n; i++)
+			filter.add(i);
+		for (long i = 0; i < n; i += 2)
+			assertTrue(filter.remove(i));
+		assertEquals(n / 2, filter.elementCount());
+		int removedPositives = 0;
+		for (long i = 0; i < n; i++) {
+			if (i % 2 == 1)
+				assertTrue(filter.contains(i));
+			else if (filter.contains(i))
+				removedPositives++;
+		}
+		assertTrue(removedPositives < n / 2 * filter.getFalsePositiveProbability() * 2 + 5);
+		assertEquals(0, filter.overflows());
+
+		BloomFilter<Long> plain = filter.toBloomFilter();
+		for (long i = 1; i < n; i += 2)
+			assertTrue(plain.contains(i));
+		BloomFilter<Long> copy = PrimitiveLowMemoryHashMapTest.roundTrip(plain);
+		assertEquals(plain, copy);
+
+		// 2-bit counters saturate at 3 and then stay put
+		CountingBloomFilter<Long> small = new CountingBloomFilter<Long>(1000, 100, Funnels.LONG, 2);
+		for (int i = 0; i < 5; i++)
+			small.add(42L);
+		assertTrue(small.overflows() > 0);
+		assertTrue(small.saturatedCounters() > 0);
+		for (int i = 0; i < 5; i++)
+			assertTrue(small.remove(42L));
+		assertTrue(small.contains(42L));
+	}
+
+	@Test
+	public void testScalableGrowth() throws Exception {
+		BloomFilter<Long> sized = BloomFilter.create(Funnels.LONG, 10000, 0.01);
+		assertEquals(95851, sized.bitSize());
+		assertEquals(7, sized.getK());
+		assertEquals(0.01, sized.expectedFalsePositiveProbability(), 0.0005);
+
+		final int n = 100000;
+		ScalableBloomFilter<Long> filter = new ScalableBloomFilter<Long>(Funnels.LONG, 1000, 0.01);
+		int rejected = 0;
+		for (long i = 0; i < n; i++)
+			if (!filter.add(i))
+				rejected++;
+		assertTrue(filter.filterCount() >= 7);
+		assertEquals(n - rejected, filter.elementCount());
+		for (long i = 0; i < n; i++)
+			assertTrue(filter.contains(i));
+		assertTrue(filter.getFalsePositiveProbability() < 0.01);
+		int positives = 0;
+		for (long i = n; i < n + 100000; i++)
+			if (filter.contains(i))
+				positives++;
+		assertTrue(positives < 100000 * 0.01);
+
+		ScalableBloomFilter<Long> copy = PrimitiveLowMemoryHashMapTest.roundTrip(filter);
+		for (long i = 0; i < n; i++)
+			assertTrue(copy.contains(i));
+		assertFalse(copy.add(0L));
+	}
+
+	@Test
+	public void testBlockedFalsePositives() throws Exception {
+		final int n = 50000;
+		for (int blockBytes : new int[] { 8, BlockedBloomFilter.DEFAULT_BLOCK_BYTES, 512 }) {
+			BlockedBloomFilter<Long> filter = new BlockedBloomFilter<Long>(n * 10L, n, Funnels.LONG, blockBytes);
+			assertEquals(blockBytes, filter.getBlockBytes());
+			for (long i = 0; i < n; i++)
+				filter.add(i);
+			for (long i = 0; i < n; i++)
+				assertTrue(filter.contains(i));
+			double expected = filter.getFalsePositiveProbability();
+			double plain = new BloomFilter<Long>(filter.bitSize(), n, Funnels.LONG).expectedFalsePositiveProbability();
+			assertTrue(expected > plain);
+			int positives = 0;
+			for (long i = n; i < n + 200000; i++)
+				if (filter.contains(i))
+					positives++;
+			double observed = positives / 200000.0;
+			assertEquals(expected, observed, expected * 0.2);
+		}
+		BlockedBloomFilter<Long> copy = PrimitiveLowMemoryHashMapTest.roundTrip(
+				new BlockedBloomFilter<Long>(1000, 100, Funnels.LONG));
+		copy.add(7L);
+		assertTrue(copy.contains(7L));
+	}
+
+	@Test
+	public void testMappedFiles() throws Exception {
+		final int n = 20000;
+		BloomFilter<Long> filter = BloomFilter.create(Funnels.LONG, n, 0.01);
+		for (long i = 0; i < n; i++)
+			filter.add(i * 7);
+		File file = File.createTempFile("bloom", ".bf");
+		file.deleteOnExit();
+		BloomFilterWriter.write(filter, file);
+		assertEquals(BloomFilterWriter.HEADER_BYTES + (filter.bitSize() + 63) / 64 * 8, file.length());
+
+		MappedBloomFilter<Long> mapped = MappedBloomFilter.open(file, Funnels.LONG);
+		assertEquals(BloomHashScheme.MURMUR3_128, mapped.getHashScheme());
+		assertEquals(filter.bitSize(), mapped.bitSize());
+		assertEquals(filter.getK(), mapped.getK());
+		assertEquals(n, mapped.elementCount());
+		assertEquals(n, mapped.expectedElementCount());
+		mapped.load();
+		for (long i = 0; i < n; i++)
+			assertTrue(mapped.contains(i * 7));
+		for (long i = 1; i < 10000; i += 7)
+			assertEquals(filter.contains(i), mapped.contains(i));
+
+		// filters hashed with MD5 open too
+		BloomFilter<String> legacy = new BloomFilter<String>(3000, 100);
+		for (int i = 0; i < 100; i++)
+			legacy.add("element" + i);
+		BloomFilterWriter.write(legacy, file);
+		MappedBloomFilter<String> mappedLegacy = MappedBloomFilter.open(file, null);
+		assertEquals(BloomHashScheme.MD5, mappedLegacy.getHashScheme());
+		for (int i = 0; i < 100; i++)
+			assertTrue(mappedLegacy.contains("element" + i));
+
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[BloomFilterWriter.HEADER_BYTES]);
+		out.close();
+		try {
+			MappedBloomFilter.open(file, Funnels.LONG);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.scale7.core;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.scale7.collections.ConcurrentAddOnlyHashSet;
+import org.scale7.collections.ConcurrentAddOnlyLongHashSet;
+
+public class ConcurrentAddOnlyHashSetTest {
+	private static final int THREADS = 4;
+	private static final int ITEMS = 100000;
+
+	@Test
+	public void testConcurrentAdds() throws Exception {
+		final ConcurrentAddOnlyHashSet<Integer> set = new ConcurrentAddOnlyHashSet<Integer>();
+		final ConcurrentAddOnlyLongHashSet longSet = new ConcurrentAddOnlyLongHashSet();
+		final AtomicIntegerArray added = new AtomicIntegerArray(ITEMS);
+		final AtomicIntegerArray longAdded = new AtomicIntegerArray(ITEMS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] workers = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final int offset = t * ITEMS / THREADS;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						// every thread adds every item, starting at a different point
+						for (int n = 0; n < ITEMS; n++) {
+							int i = (n + offset) % ITEMS;
+							if (set.addIfAbsent(i))
+								added.incrementAndGet(i);
+							assertTrue(set.contains(i));
+							if (longSet.addIfAbsent((long) i << 32))
+								longAdded.incrementAndGet(i);
+							assertTrue(longSet.contains((long) i << 32));
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+		}
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		assertNull(failure.get());
+		for (int i = 0; i < ITEMS; i++) {
+			assertEquals(1, added.get(i));
+			assertEquals(1, longAdded.get(i));
+		}
+		assertEquals(ITEMS, set.size());
+		assertEquals(ITEMS, longSet.size());
+		assertFalse(set.contains(-1));
+		assertFalse(longSet.contains(1));
+
+		assertTrue(set.addIfAbsent(null));
+		assertFalse(set.addIfAbsent(null));
+		assertTrue(set.contains(null));
+		assertTrue(longSet.addIfAbsent(Long.MIN_VALUE));
+		assertFalse(longSet.addIfAbsent(Long.MIN_VALUE));
+		assertTrue(longSet.contains(Long.MIN_VALUE));
+		assertEquals(ITEMS + 1, longSet.size());
+	}
+}
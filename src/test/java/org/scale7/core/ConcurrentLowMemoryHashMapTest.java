@@ -0,0 +1,79 @@
+package org.scale7.core;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.scale7.collections.ConcurrentLowMemoryHashMap;
+
+public class ConcurrentLowMemoryHashMapTest {
+	@Test
+	public void testMapContract() throws Exception {
+		ConcurrentLowMemoryHashMap<String, Integer> map = new ConcurrentLowMemoryHashMap<String, Integer>(4);
+		Map<String, Integer> reference = new HashMap<String, Integer>();
+		for (int i = 0; i < 1000; i++) {
+			assertNull(map.put("k" + i, i));
+			reference.put("k" + i, i);
+		}
+		for (int i = 0; i < 1000; i += 3) {
+			assertEquals(Integer.valueOf(i), map.remove("k" + i));
+			reference.remove("k" + i);
+		}
+		assertNull(map.put(null, -1));
+		reference.put(null, -1);
+		assertEquals(reference, map);
+		assertEquals(map, reference);
+		assertEquals(Integer.valueOf(1), map.putIfAbsent("k1", 2));
+		assertTrue(map.replace("k1", 1, 5));
+		assertFalse(map.remove("k1", 1));
+		assertTrue(map.remove("k1", 5));
+		reference.remove("k1");
+		assertEquals(reference, PrimitiveLowMemoryHashMapTest.roundTrip(map));
+	}
+
+	@Test
+	public void testConcurrentReadersAndWriters() throws Exception {
+		final ConcurrentLowMemoryHashMap<Integer, Integer> map = new ConcurrentLowMemoryHashMap<Integer, Integer>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int threads = 4;
+		final int perThread = 20000;
+		Thread[] workers = new Thread[threads * 2];
+		for (int t = 0; t < threads; t++) {
+			final int base = t * perThread;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = base; i < base + perThread; i++) {
+						map.put(i, i);
+						if ((i & 1) == 0)
+							map.remove(i);
+					}
+				}
+			};
+			workers[threads + t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = base; i < base + perThread; i++) {
+							Integer value = map.get(i);
+							assertTrue(value == null || value.intValue() == i);
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+		}
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		assertNull(failure.get());
+		assertEquals(threads * perThread / 2, map.size());
+		for (int i = 0; i < threads * perThread; i++)
+			assertEquals((i & 1) == 0 ? null : Integer.valueOf(i), map.get(i));
+	}
+}
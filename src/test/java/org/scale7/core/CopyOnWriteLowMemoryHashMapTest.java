@@ -0,0 +1,114 @@
+package org.scale7.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.scale7.collections.CopyOnWriteLowMemoryHashMap;
+import org.scale7.collections.IMutation;
+
+public class CopyOnWriteLowMemoryHashMapTest {
+	@Test
+	public void testMapContract() throws Exception {
+		LowMemoryHashMapTest.exerciseMap(new CopyOnWriteLowMemoryHashMap<Integer, String>(), new Random(1));
+
+		CopyOnWriteLowMemoryHashMap<String, Integer> map = new CopyOnWriteLowMemoryHashMap<String, Integer>();
+		assertNull(map.putIfAbsent("a", 1));
+		assertEquals(Integer.valueOf(1), map.putIfAbsent("a", 2));
+		assertNull(map.replace("b", 2));
+		assertTrue(map.replace("a", 1, 3));
+		assertFalse(map.remove("a", 1));
+		assertTrue(map.remove("a", 3));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void testRemovalThroughDraftViews() throws Exception {
+		final CopyOnWriteLowMemoryHashMap<Integer, Integer> map = new CopyOnWriteLowMemoryHashMap<Integer, Integer>();
+		for (int i = 0; i < 1000; i++)
+			map.put(i, i);
+		final int[] visited = new int[1];
+		map.mutate(new IMutation<Integer, Integer>() {
+			public void apply(Map<Integer, Integer> draft) {
+				// the draft has copied its table before the view is taken
+				draft.put(-1, -1);
+				for (Iterator<Entry<Integer, Integer>> it = draft.entrySet().iterator(); it.hasNext();) {
+					it.next();
+					it.remove();
+					visited[0]++;
+				}
+			}
+		});
+		assertEquals(1001, visited[0]);
+		assertTrue(map.isEmpty());
+
+		for (int i = 0; i < 1000; i++)
+			map.put(i, i);
+		map.mutate(new IMutation<Integer, Integer>() {
+			public void apply(Map<Integer, Integer> draft) {
+				draft.remove(0);
+				draft.keySet().retainAll(Arrays.asList(1, 500, 999, 1000));
+				draft.put(2000, 0);
+			}
+		});
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		expected.put(1, 1);
+		expected.put(500, 500);
+		expected.put(999, 999);
+		expected.put(2000, 0);
+		assertEquals(expected, map);
+	}
+
+	@Test
+	public void testMutateIsAtomic() throws Exception {
+		final CopyOnWriteLowMemoryHashMap<Integer, Integer> map = new CopyOnWriteLowMemoryHashMap<Integer, Integer>();
+		map.mutate(new IMutation<Integer, Integer>() {
+			public void apply(Map<Integer, Integer> draft) {
+				for (int i = 0; i < 100; i++)
+					draft.put(i, 0);
+			}
+		});
+		assertEquals(100, map.size());
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (!done.get()) {
+						// every batch moves one unit from one key to another
+						int total = 0;
+						for (Entry<Integer, Integer> entry : map.entrySet())
+							total += entry.getValue();
+						assertEquals(0, total);
+					}
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			}
+		};
+		reader.start();
+		for (int n = 0; n < 20000; n++) {
+			final int from = n % 100;
+			final int to = (n * 7 + 3) % 100;
+			map.mutate(new IMutation<Integer, Integer>() {
+				public void apply(Map<Integer, Integer> draft) {
+					draft.put(from, draft.get(from) - 1);
+					draft.put(to, draft.get(to) + 1);
+				}
+			});
+		}
+		done.set(true);
+		reader.join();
+		assertNull(failure.get());
+	}
+}
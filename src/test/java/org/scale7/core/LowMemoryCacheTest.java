@@ -0,0 +1,161 @@
+package org.scale7.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.scale7.collections.ILoader;
+import org.scale7.collections.IWeigher;
+import org.scale7.collections.LowMemoryCache;
+
+public class LowMemoryCacheTest {
+	@Test
+	public void testLeastRecentlyUsedEviction() {
+		final int maxEntries = 100;
+		LowMemoryCache<Integer, Integer> cache = new LowMemoryCache<Integer, Integer>(maxEntries);
+		Map<Integer, Integer> reference = new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		Random rnd = new Random(1);
+		for (int i = 0; i < 50000; i++) {
+			Integer key = rnd.nextInt(300);
+			switch (rnd.nextInt(4)) {
+			case 0:
+				assertEquals(reference.remove(key), cache.remove(key));
+				break;
+			case 1:
+				assertEquals(reference.get(key), cache.get(key));
+				break;
+			default:
+				assertEquals(reference.put(key, i), cache.put(key, i));
+			}
+			assertEquals(reference.size(), cache.size());
+		}
+		for (Integer key : reference.keySet())
+			assertTrue(cache.containsKey(key));
+		assertTrue(cache.evictions() > 0);
+		assertTrue(cache.hits() > 0 && cache.misses() > 0);
+	}
+
+	@Test
+	public void testWeightAndExpiry() {
+		final long[] now = new long[] { 1000 };
+		LowMemoryCache<String, String> cache = new LowMemoryCache<String, String>(
+				Integer.MAX_VALUE, 10, new IWeigher<String, String>() {
+					public int weigh(String key, String value) {
+						return value.length();
+					}
+				}, 100) {
+			@Override
+			protected long currentTimeMillis() {
+				return now[0];
+			}
+		};
+		cache.put("a", "aaaa");
+		cache.put("b", "bbbb");
+		cache.put("c", "cc", LowMemoryCache.NO_EXPIRY);
+		assertEquals(10, cache.weight());
+		cache.get("a");
+		cache.put("d", "dd");
+		// "b" was least recently used
+		assertFalse(cache.containsKey("b"));
+		assertEquals(8, cache.weight());
+		assertEquals(1, cache.evictions());
+
+		now[0] += 60;
+		assertEquals(40, cache.getExpiryMillisecondsFromNow("a"));
+		assertEquals(-1, cache.getExpiryMillisecondsFromNow("c"));
+		now[0] += 40;
+		assertNull(cache.get("a"));
+		assertEquals(1, cache.expirations());
+		assertEquals("cc", cache.get("c"));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testOversizedValue() {
+		LowMemoryCache<String, String> cache = new LowMemoryCache<String, String>(
+				Integer.MAX_VALUE, 5, new IWeigher<String, String>() {
+					public int weigh(String key, String value) {
+						return value.length();
+					}
+				}, LowMemoryCache.NO_EXPIRY);
+		cache.put("a", "aaa");
+		cache.put("b", "bb");
+		// a value heavier than the whole cache is not cached, and evicts nothing
+		assertNull(cache.put("c", "cccccccc"));
+		assertFalse(cache.containsKey("c"));
+		assertEquals("aaa", cache.get("a"));
+		assertEquals("bb", cache.get("b"));
+		assertEquals(5, cache.weight());
+		assertEquals(0, cache.evictions());
+
+		// an oversized value replaces the previous mapping by removing it
+		assertEquals("bb", cache.put("b", "bbbbbbbb"));
+		assertFalse(cache.containsKey("b"));
+		assertEquals(1, cache.size());
+		assertEquals(3, cache.weight());
+	}
+
+	@Test
+	public void testSingleFlightLoading() throws Exception {
+		final LowMemoryCache<Integer, String> cache = new LowMemoryCache<Integer, String>(1000);
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final ILoader<Integer, String> loader = new ILoader<Integer, String>() {
+			public String load(Integer key) throws Exception {
+				loads.incrementAndGet();
+				release.await();
+				if (key < 0)
+					throw new IllegalStateException("no value");
+				return "v" + key;
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						return cache.get(7, loader);
+					}
+				}));
+			}
+			Thread.sleep(100);
+			release.countDown();
+			for (Future<String> result : results)
+				assertEquals("v7", result.get());
+			assertEquals(1, loads.get());
+			assertEquals("v7", cache.get(7));
+
+			try {
+				cache.get(-1, loader);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+			assertFalse(cache.containsKey(-1));
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,726 @@
+package org.scale7.core;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.scale7.collections.AdaptiveLowMemoryHashMap;
+import org.scale7.collections.BinaryCodecs;
+import org.scale7.collections.FrozenLowMemoryHashMap;
+import org.scale7.collections.FrozenLowMemoryHashSet;
+import org.scale7.collections.HashTableStatistics;
+import org.scale7.collections.IEntryVisitor;
+import org.scale7.collections.IKeyFunction;
+import org.scale7.collections.IMergeFunction;
+import org.scale7.collections.IncrementalLowMemoryHashMap;
+import org.scale7.collections.IRemappingFunction;
+import org.scale7.collections.IVisitor;
+import org.scale7.collections.LowMemoryHashMap;
+import org.scale7.collections.LowMemoryHashMapReader;
+import org.scale7.collections.LowMemoryHashSet;
+import org.scale7.collections.LowMemoryHashSetReader;
+
+public class LowMemoryHashMapTest {
+	@Test
+	public void testLinearProbing() throws Exception {
+		exerciseMap(new LowMemoryHashMap<Integer, String>(), new Random(1));
+		exerciseSet(new LowMemoryHashSet<Integer>(), new Random(2));
+	}
+
+	@Test
+	public void testRobinHood() throws Exception {
+		exerciseMap(new LowMemoryHashMap<Integer, String>(0, 0.9f, true), new Random(3));
+		exerciseSet(new LowMemoryHashSet<Integer>(0, 0.9f, true), new Random(4));
+	}
+
+	/**
+	 * A map of "a" to 1, "b" to 2 and null to 3, and a set of "x", "y" and
+	 * null, serialized before the layout and load factors were serialized.
+	 */
+	private static final String BASELINE_MAP = "aced0005737200276f72672e7363616c65372e636f6c6c656374696f6e732e4c6f774d656d6f7279486173684d6170faa856617bb43d7903000078707708000000040000000370737200116a6176612e6c616e672e496e746567657212e2a0a4f781873802000149000576616c7565787200106a6176612e6c616e672e4e756d62657286ac951d0b94e08b020000787000000003740001617371007e000200000001740001627371007e00020000000278";
+	private static final String BASELINE_SET = "aced0005737200276f72672e7363616c65372e636f6c6c656374696f6e732e4c6f774d656d6f7279486173685365748ec24a28a188dad403000078707708000000040000000370740001787400017978";
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testSerializedFormCompatibility() throws Exception {
+		LowMemoryHashMap<String, Integer> map = (LowMemoryHashMap<String, Integer>) deserialize(BASELINE_MAP);
+		Map<String, Integer> expectedMap = new HashMap<String, Integer>();
+		expectedMap.put("a", 1);
+		expectedMap.put("b", 2);
+		expectedMap.put(null, 3);
+		assertEquals(expectedMap, map);
+		assertEquals(LowMemoryHashMap.DEFAULT_LOAD_FACTOR, map.loadFactor(), 0);
+		assertEquals(map.loadFactor() / 8, map.shrinkLoadFactor(), 0);
+		LowMemoryHashSet<String> set = (LowMemoryHashSet<String>) deserialize(BASELINE_SET);
+		assertEquals(new HashSet<String>(Arrays.asList("x", "y", null)), set);
+
+		// maps with default settings are still written in the same form
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(map);
+		out.close();
+		assertEquals(BASELINE_MAP.length() / 2, bytes.size());
+
+		LowMemoryHashMap<Integer, String> tuned = new LowMemoryHashMap<Integer, String>(0, 0.6f, true);
+		tuned.setShrinkLoadFactor(0.1f);
+		for (int i = 0; i < 100; i++)
+			tuned.put(i, "v" + i);
+		LowMemoryHashMap<Integer, String> copy = PrimitiveLowMemoryHashMapTest.roundTrip(tuned);
+		assertEquals(tuned, copy);
+		assertEquals(0.6f, copy.loadFactor(), 0);
+		assertEquals(0.1f, copy.shrinkLoadFactor(), 0);
+	}
+
+	private static Object deserialize(String hex) throws Exception {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+	}
+
+	@Test
+	public void testCursorAndVisitors() {
+		LowMemoryHashMap<Integer, Integer> map = new LowMemoryHashMap<Integer, Integer>();
+		for (int i = 0; i < 1000; i++)
+			map.put(i * 64, i);
+		final long[] sums = new long[3];
+		map.forEachEntry(new IEntryVisitor<Integer, Integer>() {
+			public void visit(Integer key, Integer value) {
+				sums[0] += key / 64 - value;
+			}
+		});
+		map.forEachValue(new IVisitor<Integer>() {
+			public void visit(Integer value) {
+				sums[1] += value;
+			}
+		});
+		assertEquals(0, sums[0]);
+		assertEquals(999 * 1000 / 2, sums[1]);
+
+		LowMemoryHashMap<Integer, Integer>.MapCursor cursor = map.cursor();
+		int visited = 0;
+		while (cursor.advance()) {
+			visited++;
+			if (cursor.value() % 2 == 0)
+				cursor.remove();
+			else
+				cursor.setValue(-cursor.value());
+		}
+		assertEquals(1000, visited);
+		assertEquals(500, map.size());
+		cursor.reset();
+		while (cursor.advance()) {
+			assertTrue(cursor.value() < 0);
+			assertEquals(cursor.key().intValue(), -cursor.value() * 64);
+		}
+
+		LowMemoryHashSet<Integer> set = new LowMemoryHashSet<Integer>(map.keySet());
+		set.forEachItem(new IVisitor<Integer>() {
+			public void visit(Integer item) {
+				sums[2] += item;
+			}
+		});
+		assertEquals(500 * 500 * 64, sums[2]);
+
+		// a cursor created once sweeps the whole table after it grows or shrinks
+		LowMemoryHashMap<Integer, Integer> grown = new LowMemoryHashMap<Integer, Integer>();
+		LowMemoryHashMap<Integer, Integer>.MapCursor reused = grown.cursor();
+		LowMemoryHashSet<Integer> grownSet = new LowMemoryHashSet<Integer>();
+		LowMemoryHashSet<Integer>.SetCursor reusedSet = grownSet.cursor();
+		for (int i = 0; i < 100; i++) {
+			grown.put(i, i);
+			grownSet.add(i);
+		}
+		assertEquals(100, countEntries(reused));
+		assertEquals(100, countItems(reusedSet));
+		for (int i = 0; i < 99; i++) {
+			grown.remove(i);
+			grownSet.remove(i);
+		}
+		reused.reset();
+		reusedSet.reset();
+		assertEquals(1, countEntries(reused));
+		assertEquals(1, countItems(reusedSet));
+	}
+
+	private static int countEntries(LowMemoryHashMap<Integer, Integer>.MapCursor cursor) {
+		int count = 0;
+		while (cursor.advance())
+			count++;
+		return count;
+	}
+
+	private static int countItems(LowMemoryHashSet<Integer>.SetCursor cursor) {
+		int count = 0;
+		while (cursor.advance())
+			count++;
+		return count;
+	}
+
+	@Test
+	public void testBinaryFormat() throws Exception {
+		LowMemoryHashMap<String, Integer> map = new LowMemoryHashMap<String, Integer>(0, 0.8f, true);
+		for (int i = 0; i < 3000; i++)
+			map.put(i % 100 == 0 ? null : "key" + i, i % 7 == 0 ? null : Integer.valueOf(-i));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		map.writeBinary(new DataOutputStream(bytes), BinaryCodecs.nullable(BinaryCodecs.STRING),
+				BinaryCodecs.nullable(BinaryCodecs.VAR_INTEGER));
+		byte[] payload = bytes.toByteArray();
+
+		assertEquals(map, LowMemoryHashMap.readBinary(new DataInputStream(new ByteArrayInputStream(payload)),
+				BinaryCodecs.nullable(BinaryCodecs.STRING), BinaryCodecs.nullable(BinaryCodecs.VAR_INTEGER)));
+
+		LowMemoryHashMapReader<String, Integer> reader = new LowMemoryHashMapReader<String, Integer>(
+				BinaryCodecs.nullable(BinaryCodecs.STRING), BinaryCodecs.nullable(BinaryCodecs.VAR_INTEGER));
+		for (int offset = 0; offset < payload.length; offset += 7)
+			reader.feed(ByteBuffer.wrap(payload, offset, Math.min(7, payload.length - offset)));
+		assertEquals(map, reader.getMap());
+
+		reader = new LowMemoryHashMapReader<String, Integer>(
+				BinaryCodecs.nullable(BinaryCodecs.STRING), BinaryCodecs.nullable(BinaryCodecs.VAR_INTEGER));
+		assertTrue(reader.read(Channels.newChannel(new ByteArrayInputStream(payload))));
+		assertEquals(map, reader.getMap());
+
+		// bytes following the map are left in the chunk
+		byte[] trailer = { 1, 2, 3, 4, 5 };
+		ByteBuffer chunk = ByteBuffer.allocate(payload.length + trailer.length);
+		chunk.put(payload).put(trailer).flip();
+		reader = new LowMemoryHashMapReader<String, Integer>(
+				BinaryCodecs.nullable(BinaryCodecs.STRING), BinaryCodecs.nullable(BinaryCodecs.VAR_INTEGER));
+		assertTrue(reader.feed(chunk));
+		assertEquals(map, reader.getMap());
+		assertEquals(ByteBuffer.wrap(trailer), chunk);
+		assertTrue(reader.feed(chunk));
+		assertEquals(trailer.length, chunk.remaining());
+
+		LowMemoryHashSet<String> set = new LowMemoryHashSet<String>();
+		for (int i = 0; i < 1000; i++)
+			set.add("item" + i);
+		bytes.reset();
+		set.writeBinary(new DataOutputStream(bytes), BinaryCodecs.STRING);
+		assertEquals(set, LowMemoryHashSet.readBinary(
+				new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), BinaryCodecs.STRING));
+
+		payload = bytes.toByteArray();
+		LowMemoryHashSetReader<String> setReader = new LowMemoryHashSetReader<String>(BinaryCodecs.STRING);
+		for (int offset = 0; offset < payload.length; offset += 5) {
+			assertFalse(setReader.isComplete());
+			setReader.feed(ByteBuffer.wrap(payload, offset, Math.min(5, payload.length - offset)));
+		}
+		assertEquals(set, setReader.getSet());
+
+		setReader = new LowMemoryHashSetReader<String>(BinaryCodecs.STRING);
+		assertTrue(setReader.read(Channels.newChannel(new ByteArrayInputStream(payload))));
+		assertEquals(set, setReader.getSet());
+
+		// a negative length prefix is rejected as corrupt
+		byte[] corrupt = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F };
+		try {
+			BinaryCodecs.BYTE_ARRAY.read(new DataInputStream(new ByteArrayInputStream(corrupt)));
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			BinaryCodecs.STRING.read(new DataInputStream(new ByteArrayInputStream(corrupt)));
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testBulkLoad() {
+		Random rnd = new Random(5);
+		int n = 100000;
+		Integer[] keys = new Integer[n];
+		String[] values = new String[n];
+		Map<Integer, String> reference = new HashMap<Integer, String>();
+		for (int i = 0; i < n; i++) {
+			keys[i] = rnd.nextInt(50) == 0 ? null : Integer.valueOf(rnd.nextInt(n / 2) * 64);
+			values[i] = Integer.toString(i);
+			reference.put(keys[i], values[i]);
+		}
+		assertEquals(reference, LowMemoryHashMap.bulkLoad(keys, values));
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			LowMemoryHashMap<Integer, String> map = new LowMemoryHashMap<Integer, String>();
+			map.bulkLoad(keys, values, executor, 3);
+			assertEquals(reference, map);
+			map.remove(keys[0]);
+			assertEquals(reference.size() - 1, map.size());
+
+			map = new LowMemoryHashMap<Integer, String>(0, 0.9f, true);
+			map.bulkLoad(keys, values, executor, 3);
+			assertEquals(reference, map);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testShrinking() {
+		LowMemoryHashMap<Integer, Integer> map = new LowMemoryHashMap<Integer, Integer>();
+		for (int i = 0; i < 10000; i++)
+			map.put(i, i);
+		assertEquals(16384, map.capacity());
+		long peak = map.estimatedRetainedBytes();
+		for (int i = 0; i < 9950; i++)
+			map.remove(i);
+		assertEquals(256, map.capacity());
+		assertTrue(map.estimatedRetainedBytes() * 16 < peak);
+		for (int i = 9950; i < 10000; i++)
+			assertEquals(Integer.valueOf(i), map.get(i));
+
+		// hysteresis: oscillating around the threshold does not rehash
+		int capacity = map.capacity();
+		for (int i = 0; i < 100; i++) {
+			map.put(-1, -1);
+			map.remove(-1);
+		}
+		assertEquals(capacity, map.capacity());
+
+		LowMemoryHashSet<Integer> set = new LowMemoryHashSet<Integer>(0, 0.5f, true);
+		set.setShrinkLoadFactor(0);
+		for (int i = 0; i < 1000; i++)
+			set.add(i);
+		for (int i = 0; i < 990; i++)
+			set.remove(i);
+		assertEquals(2048, set.capacity());
+		set.trimToSize();
+		assertEquals(32, set.capacity());
+		assertEquals(0.5f, set.loadFactor(), 0);
+		for (int i = 990; i < 1000; i++)
+			assertTrue(set.contains(i));
+	}
+
+	@Test
+	public void testParallelForEach() {
+		LowMemoryHashMap<Integer, Integer> map = new LowMemoryHashMap<Integer, Integer>();
+		LowMemoryHashSet<Integer> set = new LowMemoryHashSet<Integer>();
+		for (int i = 0; i < 50000; i++) {
+			map.put(i, i);
+			set.add(i);
+		}
+		final AtomicLong mapSum = new AtomicLong();
+		map.parallelForEach(new IEntryVisitor<Integer, Integer>() {
+			public void visit(Integer key, Integer value) {
+				mapSum.addAndGet(key + value);
+			}
+		}, 4);
+		assertEquals(2L * 49999 * 50000 / 2, mapSum.get());
+		final AtomicLong setSum = new AtomicLong();
+		set.parallelForEach(new IVisitor<Integer>() {
+			public void visit(Integer item) {
+				setSum.addAndGet(item);
+			}
+		}, 4);
+		assertEquals(49999L * 50000 / 2, setSum.get());
+
+		// cursors over adjacent ranges together cover every entry once
+		int middle = map.capacity() / 3;
+		long keySum = 0;
+		LowMemoryHashMap<Integer, Integer>.MapCursor first = map.cursor(0, middle);
+		while (first.advance())
+			keySum += first.key();
+		LowMemoryHashMap<Integer, Integer>.MapCursor second = map.cursor(middle, map.capacity());
+		while (second.advance())
+			keySum += second.key();
+		assertEquals(49999L * 50000 / 2, keySum);
+		long itemSum = 0;
+		LowMemoryHashSet<Integer>.SetCursor items = set.cursor(middle, set.capacity());
+		while (items.advance())
+			itemSum += items.item();
+		items = set.cursor(0, middle);
+		while (items.advance())
+			itemSum += items.item();
+		assertEquals(49999L * 50000 / 2, itemSum);
+	}
+
+	@Test
+	public void testStatistics() throws Exception {
+		LowMemoryHashMap<Integer, Integer> map = new LowMemoryHashMap<Integer, Integer>(0, 0.75f, false, true);
+		for (int i = 0; i < 1000; i++)
+			map.put(i, i);
+		for (int i = 0; i < 1000; i++)
+			map.get(i);
+		for (int i = 0; i < 100; i++)
+			map.remove(i);
+		HashTableStatistics stats = map.statistics();
+		assertEquals(900, stats.getSize());
+		assertEquals(map.capacity(), stats.getCapacity());
+		assertEquals(2100, stats.getLookups());
+		assertTrue(stats.getResizeCount() > 0);
+		assertTrue(stats.getMeanProbeLength() >= 1);
+		assertTrue(stats.getMaxClusterLength() >= 1);
+
+		// every key shares a hash code, so the table degenerates into one cluster
+		LowMemoryHashSet<Object> set = new LowMemoryHashSet<Object>(0, 0.75f, true, true);
+		Object[] items = new Object[100];
+		for (int i = 0; i < items.length; i++) {
+			final int id = i;
+			items[i] = new Object() {
+				@Override
+				public int hashCode() {
+					return 42;
+				}
+
+				@Override
+				public String toString() {
+					return "item" + id;
+				}
+			};
+			set.add(items[i]);
+		}
+		for (Object item : items)
+			assertTrue(set.contains(item));
+		stats = set.statistics();
+		assertEquals(100, stats.getMaxClusterLength());
+		assertEquals(99 / 2.0, stats.getMeanDisplacement(), 0.001);
+		assertTrue(stats.getProbeLengthHistogram()[stats.getProbeLengthHistogram().length - 1] > 0);
+
+		// the occupancy of a table without counters is still measured
+		stats = new LowMemoryHashSet<Integer>(Arrays.asList(1, 2, 3)).statistics();
+		assertEquals(0, stats.getLookups());
+		assertEquals(3, stats.getSize());
+
+		// polling from another thread while the tables grow and shrink must not fail
+		pollWhileResizing(new LowMemoryHashMap<Integer, Integer>(0, 0.75f, false, true));
+		pollWhileResizing(new LowMemoryHashMap<Integer, Integer>(0, 0.75f, true, true));
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("org.scale7:type=LowMemoryHashMap,name=test");
+		server.registerMBean(map.statisticsMBean(), name);
+		try {
+			map.get(1);
+			assertEquals(900, server.getAttribute(name, "Size"));
+			assertEquals(2101L, server.getAttribute(name, "Lookups"));
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+
+	private static void pollWhileResizing(final LowMemoryHashMap<Integer, Integer> map) throws Exception {
+		final AtomicLong polls = new AtomicLong();
+		final Throwable[] failure = new Throwable[1];
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread poller = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (!done.get() || polls.get() == 0) {
+						map.statisticsMBean().getMeanDisplacement();
+						polls.incrementAndGet();
+					}
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			}
+		};
+		poller.start();
+		for (int round = 0; round < 50; round++) {
+			for (int i = 0; i < 2000; i++)
+				map.put(i, i);
+			for (int i = 0; i < 2000; i++)
+				map.remove(i);
+		}
+		done.set(true);
+		poller.join();
+		assertNull(failure[0]);
+	}
+
+	@Test
+	public void testAdaptiveSmallMap() throws Exception {
+		exerciseMap(new AdaptiveLowMemoryHashMap<Integer, String>(), new Random(5));
+
+		AdaptiveLowMemoryHashMap<Integer, String> map = new AdaptiveLowMemoryHashMap<Integer, String>();
+		Map<Integer, String> reference = new HashMap<Integer, String>();
+		Random rnd = new Random(6);
+		boolean promoted = false, demoted = false;
+		for (int i = 0; i < 20000; i++) {
+			// few enough keys that the map keeps crossing the threshold
+			Integer key = rnd.nextInt(20) == 0 ? null : Integer.valueOf(rnd.nextInt(12));
+			boolean wasPromoted = map.isPromoted();
+			if (rnd.nextInt(2) == 0) {
+				assertEquals(reference.remove(key), map.remove(key));
+			} else {
+				String value = Integer.toString(i);
+				assertEquals(reference.put(key, value), map.put(key, value));
+			}
+			promoted |= !wasPromoted && map.isPromoted();
+			demoted |= wasPromoted && !map.isPromoted();
+			assertEquals(reference.size(), map.size());
+			assertEquals(reference, map);
+		}
+		assertTrue(promoted && demoted);
+		assertEquals(reference, PrimitiveLowMemoryHashMapTest.roundTrip(map));
+
+		// maps pruned through their views are demoted too
+		map.clear();
+		for (int i = 0; i < 20; i++)
+			map.put(i, "v" + i);
+		assertTrue(map.isPromoted());
+		assertTrue(map.keySet().retainAll(Arrays.asList(3, 7, 11, 15)));
+		assertFalse(map.isPromoted());
+		assertEquals(4, map.size());
+		for (int i = 0; i < 20; i++)
+			assertEquals(i % 4 == 3 && i < 16, map.containsKey(i));
+
+		for (int i = 0; i < 20; i++)
+			map.put(i, "v" + i);
+		assertTrue(map.isPromoted());
+		assertTrue(map.keySet().retainAll(new HashSet<Integer>()));
+		assertFalse(map.isPromoted());
+		assertTrue(map.isEmpty());
+
+		for (int i = 0; i < 20; i++)
+			map.put(i, "v" + i);
+		int visited = 0;
+		for (Iterator<Map.Entry<Integer, String>> it = map.entrySet().iterator(); it.hasNext();) {
+			it.next();
+			it.remove();
+			visited++;
+		}
+		assertEquals(20, visited);
+		assertFalse(map.isPromoted());
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void testCompoundOperations() throws Exception {
+		exerciseCompoundOperations(new LowMemoryHashMap<Integer, Integer>(), new Random(7));
+		exerciseCompoundOperations(new LowMemoryHashMap<Integer, Integer>(0, 0.9f, true), new Random(8));
+		exerciseCompoundOperations(new LowMemoryHashMap<Integer, Integer>(0, 0.9f, true, true), new Random(10));
+
+		// every key shares a hash code, so each insertion compares the key with
+		// every key already present, and must do so only once
+		final int[] comparisons = new int[1];
+		LowMemoryHashMap<Object, Integer> map = new LowMemoryHashMap<Object, Integer>(100, 0.75f, true);
+		for (int i = 0; i < 50; i++) {
+			Object key = new Object() {
+				@Override
+				public int hashCode() {
+					return 42;
+				}
+
+				@Override
+				public boolean equals(Object o) {
+					++comparisons[0];
+					return this == o;
+				}
+			};
+			assertEquals(Integer.valueOf(i), map.getOrPut(key, i));
+		}
+		assertEquals(49 * 50 / 2, comparisons[0]);
+	}
+
+	@Test
+	public void testIncrementalResize() throws Exception {
+		exerciseMap(new IncrementalLowMemoryHashMap<Integer, String>(), new Random(9));
+
+		IncrementalLowMemoryHashMap<Integer, Integer> map = new IncrementalLowMemoryHashMap<Integer, Integer>();
+		int resizes = 0;
+		for (int i = 0; i < 100000; i++) {
+			boolean wasResizing = map.isResizing();
+			map.put(i, i);
+			if (!wasResizing && map.isResizing())
+				resizes++;
+			// lookups must find entries in whichever table holds them
+			if (i % 7 == 0)
+				assertEquals(Integer.valueOf(i / 2), map.get(i / 2));
+			if (i % 11 == 0)
+				assertEquals(Integer.valueOf(i / 3), map.remove(i / 3));
+			if (i % 11 == 0)
+				map.put(i / 3, i / 3);
+		}
+		assertTrue(resizes > 10);
+		assertEquals(100000, map.size());
+		// each operation migrates a bounded number of slots
+		while (!map.isResizing())
+			map.put(map.size(), map.size());
+		map.get(0);
+		assertTrue(map.isResizing());
+		int count = 0;
+		for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+			assertEquals(entry.getKey(), entry.getValue());
+			count++;
+		}
+		assertFalse(map.isResizing());
+		assertEquals(map.size(), count);
+	}
+
+	@Test
+	public void testFreeze() throws Exception {
+		LowMemoryHashMap<String, Integer> map = new LowMemoryHashMap<String, Integer>();
+		for (int i = 0; i < 200000; i++)
+			map.put("key" + i, i);
+		// "Aa" and "BB" share a hash code
+		map.put("Aa", -1);
+		map.put("BB", -2);
+		map.put(null, null);
+		FrozenLowMemoryHashMap<String, Integer> frozen = map.freeze();
+		assertEquals(map, frozen);
+		assertEquals(frozen, map);
+		for (int i = 0; i < 200000; i++)
+			assertEquals(Integer.valueOf(i), frozen.get("key" + i));
+		assertEquals(Integer.valueOf(-2), frozen.get("BB"));
+		assertTrue(frozen.containsKey(null));
+		assertFalse(frozen.containsKey("missing"));
+		assertNull(frozen.get("C#"));
+		try {
+			frozen.put("key0", 1);
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+		assertEquals(map, PrimitiveLowMemoryHashMapTest.roundTrip(frozen));
+		assertTrue(new LowMemoryHashMap<String, Integer>().freeze().isEmpty());
+
+		LowMemoryHashSet<String> set = new LowMemoryHashSet<String>(map.keySet());
+		FrozenLowMemoryHashSet<String> frozenSet = set.freeze();
+		assertEquals(set, frozenSet);
+		assertTrue(frozenSet.contains("Aa"));
+		assertFalse(frozenSet.contains("C#"));
+		assertEquals(frozenSet, PrimitiveLowMemoryHashMapTest.roundTrip(frozenSet));
+	}
+
+	static void exerciseMap(Map<Integer, String> map, Random rnd) throws Exception {
+		Map<Integer, String> reference = new HashMap<Integer, String>();
+		for (int i = 0; i < 20000; i++) {
+			// a poor hash distribution produces long clusters
+			Integer key = rnd.nextInt(20) == 0 ? null : Integer.valueOf(rnd.nextInt(400) * 64);
+			if (rnd.nextInt(3) == 0) {
+				assertEquals(reference.remove(key), map.remove(key));
+			} else {
+				String value = Integer.toString(i);
+				assertEquals(reference.put(key, value), map.put(key, value));
+			}
+			assertEquals(reference.size(), map.size());
+		}
+		assertEquals(reference, map);
+		for (Iterator<Map.Entry<Integer, String>> it = map.entrySet().iterator(); it.hasNext();) {
+			Integer key = it.next().getKey();
+			if (key != null && key % 3 == 0) {
+				it.remove();
+				reference.remove(key);
+			}
+		}
+		assertEquals(reference, map);
+		assertEquals(reference, PrimitiveLowMemoryHashMapTest.roundTrip(map));
+	}
+
+	static void exerciseCompoundOperations(LowMemoryHashMap<Integer, Integer> map, Random rnd) {
+		Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+		IKeyFunction<Integer, Integer> square = new IKeyFunction<Integer, Integer>() {
+			public Integer apply(Integer key) {
+				return (key == null || key % 5 == 0) ? null : Integer.valueOf(key * key);
+			}
+		};
+		IRemappingFunction<Integer, Integer> increment = new IRemappingFunction<Integer, Integer>() {
+			public Integer apply(Integer key, Integer value) {
+				if (value == null)
+					return 1;
+				return (value >= 3) ? null : Integer.valueOf(value + 1);
+			}
+		};
+		IMergeFunction<Integer> sum = new IMergeFunction<Integer>() {
+			public Integer apply(Integer oldValue, Integer value) {
+				int total = oldValue + value;
+				return (total > 100) ? null : Integer.valueOf(total);
+			}
+		};
+		for (int i = 0; i < 20000; i++) {
+			Integer key = rnd.nextInt(20) == 0 ? null : Integer.valueOf(rnd.nextInt(400) * 64);
+			Integer value = rnd.nextInt(10) == 0 ? null : Integer.valueOf(rnd.nextInt(50));
+			switch (rnd.nextInt(6)) {
+			case 0: {
+				Integer expected = reference.get(key);
+				if (expected == null) {
+					expected = square.apply(key);
+					if (expected != null)
+						reference.put(key, expected);
+				}
+				assertEquals(expected, map.getOrCompute(key, square));
+				break;
+			}
+			case 1: {
+				Integer expected = increment.apply(key, reference.get(key));
+				if (expected == null)
+					reference.remove(key);
+				else
+					reference.put(key, expected);
+				assertEquals(expected, map.computeValue(key, increment));
+				break;
+			}
+			case 2: {
+				if (value == null)
+					break;
+				Integer old = reference.get(key);
+				Integer expected = (old == null) ? value : sum.apply(old, value);
+				if (expected == null)
+					reference.remove(key);
+				else
+					reference.put(key, expected);
+				assertEquals(expected, map.mergeValue(key, value, sum));
+				break;
+			}
+			case 3: {
+				Integer old = reference.get(key);
+				if (old == null)
+					reference.put(key, value);
+				assertEquals(old, map.putIfAbsent(key, value));
+				break;
+			}
+			case 4: {
+				if (!reference.containsKey(key))
+					reference.put(key, value);
+				assertEquals(reference.get(key), map.getOrPut(key, value));
+				break;
+			}
+			default:
+				assertEquals(reference.remove(key), map.remove(key));
+			}
+			assertEquals(reference.size(), map.size());
+		}
+		assertEquals(reference, map);
+	}
+
+	static void exerciseSet(Set<Integer> set, Random rnd) throws Exception {
+		Set<Integer> reference = new HashSet<Integer>();
+		for (int i = 0; i < 20000; i++) {
+			Integer item = Integer.valueOf(rnd.nextInt(400) * 64);
+			if (rnd.nextInt(3) == 0) {
+				assertEquals(reference.remove(item), set.remove(item));
+			} else {
+				assertEquals(reference.add(item), set.add(item));
+			}
+			assertEquals(reference.size(), set.size());
+		}
+		assertEquals(reference, set);
+		assertEquals(reference, PrimitiveLowMemoryHashMapTest.roundTrip(set));
+	}
+}
@@ -0,0 +1,110 @@
+package org.scale7.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.scale7.collections.OffHeapByteHashMap;
+
+public class OffHeapByteHashMapTest {
+	@Test
+	public void testDirect() {
+		OffHeapByteHashMap map = OffHeapByteHashMap.allocateDirect(4, 8);
+		Map<String, byte[]> reference = exercise(map, new Random(1));
+		verify(map, reference);
+	}
+
+	@Test
+	public void testMappedReopen() throws Exception {
+		File file = File.createTempFile("offheap", ".tbl");
+		file.delete();
+		try {
+			OffHeapByteHashMap map = OffHeapByteHashMap.open(file, 4, 8);
+			Map<String, byte[]> reference = exercise(map, new Random(2));
+			map.close();
+
+			OffHeapByteHashMap reopened = OffHeapByteHashMap.open(file, 0, 0);
+			verify(reopened, reference);
+			reopened.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testFailedGrowth() throws Exception {
+		File file = File.createTempFile("offheap", ".tbl");
+		file.delete();
+		// a directory in the way of the rebuilt file makes growing fail
+		File target = new File(file.getPath() + ".tmp");
+		try {
+			OffHeapByteHashMap map = OffHeapByteHashMap.open(file, 4, 8);
+			Map<String, byte[]> reference = new HashMap<String, byte[]>();
+			assertTrue(target.mkdir());
+			int i = 0;
+			try {
+				for (;; i++) {
+					byte[] value = new byte[] { (byte) i };
+					map.put(("key" + i).getBytes(), value);
+					reference.put("key" + i, value);
+				}
+			} catch (RuntimeException e) {
+				// expected
+			}
+			assertTrue(i > 0);
+			verify(map, reference);
+			assertTrue(file.exists());
+
+			assertTrue(target.delete());
+			for (; i < 1000; i++) {
+				byte[] value = new byte[] { (byte) i };
+				map.put(("key" + i).getBytes(), value);
+				reference.put("key" + i, value);
+			}
+			map.close();
+			assertFalse(target.exists());
+
+			OffHeapByteHashMap reopened = OffHeapByteHashMap.open(file, 0, 0);
+			verify(reopened, reference);
+			reopened.close();
+		} finally {
+			target.delete();
+			file.delete();
+		}
+	}
+
+	private static Map<String, byte[]> exercise(OffHeapByteHashMap map, Random rnd) {
+		Map<String, byte[]> reference = new HashMap<String, byte[]>();
+		for (int i = 0; i < 5000; i++) {
+			String key = "key" + rnd.nextInt(1000);
+			if (rnd.nextInt(4) == 0) {
+				assertEquals(reference.remove(key) != null, map.remove(key.getBytes()));
+			} else {
+				byte[] value = new byte[rnd.nextInt(20)];
+				rnd.nextBytes(value);
+				assertEquals(!reference.containsKey(key), map.put(key.getBytes(), value));
+				reference.put(key, value);
+			}
+			assertEquals(reference.size(), map.size());
+		}
+		return reference;
+	}
+
+	private static void verify(OffHeapByteHashMap map, Map<String, byte[]> reference) {
+		assertEquals(reference.size(), map.size());
+		ByteBuffer dst = ByteBuffer.allocate(64);
+		for (int i = 0; i < 1000; i++) {
+			String key = "key" + i;
+			byte[] expected = reference.get(key);
+			assertTrue(Arrays.equals(expected, map.get(key.getBytes())));
+			dst.clear();
+			assertEquals(expected == null ? -1 : expected.length, map.get(ByteBuffer.wrap(key.getBytes()), dst));
+		}
+	}
+}
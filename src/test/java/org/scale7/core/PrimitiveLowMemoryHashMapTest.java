@@ -0,0 +1,154 @@
+package org.scale7.core;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.scale7.collections.IntIntLowMemoryHashMap;
+import org.scale7.collections.LongLongLowMemoryHashMap;
+import org.scale7.collections.LongObjectLowMemoryHashMap;
+import org.scale7.collections.ObjectIntLowMemoryHashMap;
+
+public class PrimitiveLowMemoryHashMapTest {
+	@Test
+	public void testObjectInt() throws Exception {
+		Random rnd = new Random(1);
+		ObjectIntLowMemoryHashMap<String> map = new ObjectIntLowMemoryHashMap<String>();
+		Map<String, Integer> reference = new HashMap<String, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			String key = rnd.nextInt(10) == 0 ? null : Integer.toString(rnd.nextInt(500));
+			int value = rnd.nextInt();
+			if (rnd.nextInt(3) == 0) {
+				assertEquals(reference.containsKey(key), map.remove(key));
+				reference.remove(key);
+			} else {
+				assertEquals(!reference.containsKey(key), map.put(key, value));
+				reference.put(key, value);
+			}
+			assertEquals(reference.size(), map.size());
+		}
+		for (int i = 0; i < 500; i++) {
+			String key = Integer.toString(i);
+			Integer expected = reference.get(key);
+			assertEquals(expected == null ? -1 : expected.intValue(), map.getOrDefault(key, -1));
+		}
+		ObjectIntLowMemoryHashMap<String> copy = roundTrip(map);
+		assertEquals(map.size(), copy.size());
+		for (String key : reference.keySet())
+			assertEquals(map.getOrDefault(key, -1), copy.getOrDefault(key, -1));
+	}
+
+	@Test
+	public void testIntInt() throws Exception {
+		Random rnd = new Random(2);
+		IntIntLowMemoryHashMap map = new IntIntLowMemoryHashMap();
+		Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(500) - 250;
+			int value = rnd.nextInt();
+			if (rnd.nextInt(3) == 0) {
+				Integer expected = reference.remove(key);
+				assertEquals(expected == null ? 7 : expected.intValue(), map.removeOrDefault(key, 7));
+			} else {
+				assertEquals(!reference.containsKey(key), map.put(key, value));
+				reference.put(key, value);
+			}
+			assertEquals(reference.size(), map.size());
+		}
+		for (int key = -250; key < 250; key++) {
+			Integer expected = reference.get(key);
+			assertEquals(expected != null, map.containsKey(key));
+			assertEquals(expected == null ? 7 : expected.intValue(), map.getOrDefault(key, 7));
+		}
+		IntIntLowMemoryHashMap copy = roundTrip(map);
+		for (int key : reference.keySet())
+			assertEquals(map.getOrDefault(key, 7), copy.getOrDefault(key, 7));
+	}
+
+	@Test
+	public void testLongLong() throws Exception {
+		Random rnd = new Random(3);
+		LongLongLowMemoryHashMap map = new LongLongLowMemoryHashMap();
+		Map<Long, Long> reference = new HashMap<Long, Long>();
+		for (int i = 0; i < 20000; i++) {
+			long key = (rnd.nextInt(500) - 250) * 0x100000000L;
+			long value = rnd.nextLong();
+			if (rnd.nextInt(3) == 0) {
+				assertEquals(reference.remove(key) != null, map.remove(key));
+			} else {
+				assertEquals(!reference.containsKey(key), map.put(key, value));
+				reference.put(key, value);
+			}
+			assertEquals(reference.size(), map.size());
+		}
+		LongLongLowMemoryHashMap copy = roundTrip(map);
+		assertEquals(map.size(), copy.size());
+		for (Map.Entry<Long, Long> entry : reference.entrySet())
+			assertEquals(entry.getValue().longValue(), copy.getOrDefault(entry.getKey(), -1L));
+	}
+
+	@Test
+	public void testAddTo() throws Exception {
+		Random rnd = new Random(5);
+		ObjectIntLowMemoryHashMap<Integer> objectInt = new ObjectIntLowMemoryHashMap<Integer>();
+		IntIntLowMemoryHashMap intInt = new IntIntLowMemoryHashMap();
+		LongLongLowMemoryHashMap longLong = new LongLongLowMemoryHashMap();
+		Map<Integer, Long> reference = new HashMap<Integer, Long>();
+		for (int i = 0; i < 20000; i++) {
+			int key = (rnd.nextInt(500) - 250) * 64;
+			int delta = rnd.nextInt(10) - 3;
+			Long previous = reference.get(key);
+			long expected = ((previous == null) ? 0 : previous) + delta;
+			reference.put(key, expected);
+			assertEquals(expected, objectInt.addTo(key, delta));
+			assertEquals(expected, intInt.addTo(key, delta));
+			assertEquals(expected, longLong.addTo(key, delta));
+		}
+		assertEquals(reference.size(), objectInt.size());
+		assertEquals(reference.size(), intInt.size());
+		assertEquals(reference.size(), longLong.size());
+		for (Map.Entry<Integer, Long> entry : reference.entrySet()) {
+			assertEquals(entry.getValue().longValue(), objectInt.getOrDefault(entry.getKey(), -1));
+			assertEquals(entry.getValue().longValue(), intInt.getOrDefault(entry.getKey(), -1));
+			assertEquals(entry.getValue().longValue(), longLong.getOrDefault(entry.getKey(), -1));
+		}
+	}
+
+	@Test
+	public void testLongObject() throws Exception {
+		Random rnd = new Random(4);
+		LongObjectLowMemoryHashMap<String> map = new LongObjectLowMemoryHashMap<String>();
+		Map<Long, String> reference = new HashMap<Long, String>();
+		for (int i = 0; i < 20000; i++) {
+			long key = rnd.nextInt(500) - 250;
+			String value = Long.toString(rnd.nextLong());
+			if (rnd.nextInt(3) == 0) {
+				assertEquals(reference.remove(key), map.remove(key));
+			} else {
+				assertEquals(reference.put(key, value), map.put(key, value));
+			}
+			assertEquals(reference.size(), map.size());
+		}
+		LongObjectLowMemoryHashMap<String> copy = roundTrip(map);
+		for (long key = -250; key < 250; key++) {
+			assertEquals(reference.get(key), map.get(key));
+			assertEquals(reference.get(key), copy.get(key));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T roundTrip(T object) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return (T) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+	}
+}
@@ -0,0 +1,78 @@
+package org.scale7.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.scale7.collections.IntLowMemoryHashSet;
+import org.scale7.collections.LongLowMemoryHashSet;
+
+public class PrimitiveLowMemoryHashSetTest {
+	@Test
+	public void testInt() throws Exception {
+		Random rnd = new Random(1);
+		IntLowMemoryHashSet set = new IntLowMemoryHashSet();
+		Set<Integer> reference = new HashSet<Integer>();
+		for (int i = 0; i < 20000; i++) {
+			// a poor hash distribution produces long clusters
+			int item = (rnd.nextInt(500) - 250) * 64;
+			if (rnd.nextInt(3) == 0) {
+				assertEquals(reference.remove(item), set.remove(item));
+			} else {
+				assertEquals(reference.add(item), set.add(item));
+			}
+			assertEquals(reference.size(), set.size());
+		}
+		for (int i = -250; i < 250; i++)
+			assertEquals(reference.contains(i * 64), set.contains(i * 64));
+		int[] items = set.toArray();
+		assertEquals(reference.size(), items.length);
+		for (int item : items)
+			assertTrue(reference.contains(item));
+		IntLowMemoryHashSet copy = PrimitiveLowMemoryHashMapTest.roundTrip(set);
+		assertTrue(Arrays.equals(sorted(items), sorted(copy.toArray())));
+	}
+
+	@Test
+	public void testLong() throws Exception {
+		Random rnd = new Random(2);
+		LongLowMemoryHashSet set = new LongLowMemoryHashSet();
+		Set<Long> reference = new HashSet<Long>();
+		long[] batch = new long[1000];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = (long) (rnd.nextInt(500) - 250) << 32;
+			reference.add(batch[i]);
+		}
+		assertTrue(set.addAll(batch));
+		assertFalse(set.addAll(batch));
+		for (int i = 0; i < 20000; i++) {
+			long item = (long) (rnd.nextInt(500) - 250) << 32;
+			if (rnd.nextInt(3) == 0) {
+				assertEquals(reference.remove(item), set.remove(item));
+			} else {
+				assertEquals(reference.add(item), set.add(item));
+			}
+			assertEquals(reference.size(), set.size());
+		}
+		long[] items = set.toArray();
+		assertEquals(reference.size(), items.length);
+		for (long item : items)
+			assertTrue(set.contains(item) && reference.contains(item));
+		LongLowMemoryHashSet copy = PrimitiveLowMemoryHashMapTest.roundTrip(set);
+		assertTrue(Arrays.equals(sorted(items), sorted(copy.toArray())));
+	}
+
+	private static int[] sorted(int[] items) {
+		Arrays.sort(items);
+		return items;
+	}
+
+	private static long[] sorted(long[] items) {
+		Arrays.sort(items);
+		return items;
+	}
+}
@@ -0,0 +1,33 @@
+package org.scale7.core.java8;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.scale7.collections.LowMemoryHashMap;
+
+/**
+ * Calls {@link LowMemoryHashMap} with lambdas, which must resolve without
+ * ambiguity between its own compound operations and the default methods of
+ * {@link java.util.Map}.
+ */
+public class LowMemoryHashMapLambdaTest {
+
+	@Test
+	public void testCompoundOperations() {
+		LowMemoryHashMap<String, Integer> map = new LowMemoryHashMap<String, Integer>();
+
+		assertEquals(Integer.valueOf(1), map.getOrCompute("a", k -> 1));
+		assertEquals(Integer.valueOf(1), map.getOrCompute("a", k -> 2));
+		assertEquals(Integer.valueOf(2), map.computeValue("a", (k, v) -> v + 1));
+		assertNull(map.computeValue("a", (k, v) -> null));
+		assertFalse(map.containsKey("a"));
+		assertEquals(Integer.valueOf(3), map.mergeValue("b", 3, (a, b) -> a + b));
+		assertEquals(Integer.valueOf(7), map.mergeValue("b", 4, (a, b) -> a + b));
+
+		// the default methods of Map remain callable
+		assertEquals(Integer.valueOf(5), map.computeIfAbsent("c", k -> 5));
+		assertEquals(Integer.valueOf(6), map.compute("c", (k, v) -> v + 1));
+		assertEquals(Integer.valueOf(8), map.merge("c", 2, Integer::sum));
+		assertEquals(2, map.size());
+	}
+}
@@ -0,0 +1,162 @@
+package org.scale7.core.java8;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.scale7.collections.LowMemoryHashMap;
+import org.scale7.collections.LowMemoryHashSet;
+import org.scale7.collections.streams.LowMemorySpliterators;
+
+/**
+ * Checks that the spliterators and streams over {@link LowMemoryHashMap} and
+ * {@link LowMemoryHashSet} see every entry exactly once, sequentially and in
+ * parallel, including over tables with slots left empty by removals.
+ */
+public class LowMemorySpliteratorsTest {
+
+	@Test
+	public void testMapStreams() {
+		LowMemoryHashMap<Integer, Integer> map = new LowMemoryHashMap<Integer, Integer>();
+		for (int i = 0; i < 20000; i++)
+			map.put(i, i * 2);
+		checkMapStreams(map);
+
+		// leave holes in the table
+		for (int i = 0; i < 20000; i += 3)
+			map.remove(i);
+		checkMapStreams(map);
+	}
+
+	@Test
+	public void testSetStreams() {
+		LowMemoryHashSet<Integer> set = new LowMemoryHashSet<Integer>();
+		for (int i = 0; i < 20000; i++)
+			set.add(i);
+		checkSetStreams(set);
+
+		for (int i = 0; i < 20000; i += 3)
+			set.remove(i);
+		checkSetStreams(set);
+	}
+
+	@Test
+	public void testSplit() {
+		LowMemoryHashMap<Integer, Integer> map = new LowMemoryHashMap<Integer, Integer>();
+		for (int i = 0; i < 5000; i++)
+			map.put(i, i);
+		int capacity = map.capacity();
+		assertTrue(capacity >= 4096);
+
+		Spliterator<Map.Entry<Integer, Integer>> suffix = LowMemorySpliterators.entrySpliterator(map);
+		int sized = Spliterator.SIZED | Spliterator.SUBSIZED;
+		assertEquals(sized | Spliterator.DISTINCT, suffix.characteristics());
+		assertEquals(5000, suffix.estimateSize());
+		assertEquals(5000, suffix.getExactSizeIfKnown());
+
+		Spliterator<Map.Entry<Integer, Integer>> prefix = suffix.trySplit();
+		assertNotNull(prefix);
+		assertEquals(Spliterator.DISTINCT, prefix.characteristics());
+		assertEquals(Spliterator.DISTINCT, suffix.characteristics());
+		assertEquals(2500, prefix.estimateSize());
+		assertEquals(2500, suffix.estimateSize());
+		assertEquals(-1, suffix.getExactSizeIfKnown());
+
+		// the halves together cover every entry exactly once
+		Set<Integer> keys = new HashSet<Integer>();
+		int[] count = new int[1];
+		prefix.forEachRemaining(e -> { keys.add(e.getKey()); count[0]++; });
+		suffix.forEachRemaining(e -> { keys.add(e.getKey()); count[0]++; });
+		assertEquals(5000, count[0]);
+		assertEquals(map.keySet(), keys);
+
+		// a started spliterator is not split
+		Spliterator<Map.Entry<Integer, Integer>> started = LowMemorySpliterators.entrySpliterator(map);
+		assertTrue(started.tryAdvance(e -> { }));
+		assertNull(started.trySplit());
+
+		// ranges of fewer than twice MIN_SPLIT_SLOTS (1024) slots are not split
+		Spliterator<Map.Entry<Integer, Integer>> range = LowMemorySpliterators.entrySpliterator(map);
+		int splits = 0;
+		while (range.trySplit() != null)
+			splits++;
+		assertEquals(Integer.numberOfTrailingZeros(capacity / 1024), splits);
+
+		LowMemoryHashMap<Integer, Integer> small = new LowMemoryHashMap<Integer, Integer>();
+		for (int i = 0; i < 100; i++)
+			small.put(i, i);
+		assertTrue(small.capacity() < 2048);
+		Spliterator<Map.Entry<Integer, Integer>> unsplit = LowMemorySpliterators.entrySpliterator(small);
+		assertNull(unsplit.trySplit());
+		assertEquals(sized | Spliterator.DISTINCT, unsplit.characteristics());
+		assertEquals(100, unsplit.estimateSize());
+	}
+
+	@Test
+	public void testSetSplit() {
+		LowMemoryHashSet<Integer> set = new LowMemoryHashSet<Integer>();
+		for (int i = 0; i < 5000; i++)
+			set.add(i);
+
+		Spliterator<Integer> suffix = LowMemorySpliterators.spliterator(set);
+		assertEquals(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT, suffix.characteristics());
+		assertEquals(5000, suffix.estimateSize());
+
+		Spliterator<Integer> prefix = suffix.trySplit();
+		assertNotNull(prefix);
+		assertFalse(prefix.hasCharacteristics(Spliterator.SIZED));
+		assertFalse(suffix.hasCharacteristics(Spliterator.SUBSIZED));
+		assertEquals(2500, prefix.estimateSize());
+
+		Set<Integer> items = new HashSet<Integer>();
+		prefix.forEachRemaining(items::add);
+		suffix.forEachRemaining(items::add);
+		assertEquals(set, items);
+	}
+
+	private static void checkMapStreams(LowMemoryHashMap<Integer, Integer> map) {
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		long keySum = 0;
+		for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+			expected.put(entry.getKey(), entry.getValue());
+			keySum += entry.getKey();
+		}
+
+		for (boolean parallel : new boolean[] { false, true }) {
+			List<Map.Entry<Integer, Integer>> entries = LowMemorySpliterators.entryStream(map, parallel)
+					.collect(Collectors.toList());
+			assertEquals(map.size(), entries.size());
+			Map<Integer, Integer> seen = new HashMap<Integer, Integer>();
+			for (Map.Entry<Integer, Integer> entry : entries)
+				assertNull(seen.put(entry.getKey(), entry.getValue()));
+			assertEquals(expected, seen);
+			assertEquals(keySum, LowMemorySpliterators.entryStream(map, parallel)
+					.mapToLong(Map.Entry::getKey).sum());
+			assertEquals(map.size(), LowMemorySpliterators.entryStream(map, parallel).count());
+		}
+	}
+
+	private static void checkSetStreams(LowMemoryHashSet<Integer> set) {
+		Set<Integer> expected = new HashSet<Integer>();
+		long sum = 0;
+		for (Integer item : set) {
+			expected.add(item);
+			sum += item;
+		}
+
+		for (boolean parallel : new boolean[] { false, true }) {
+			List<Integer> items = LowMemorySpliterators.stream(set, parallel).collect(Collectors.toList());
+			assertEquals(set.size(), items.size());
+			assertEquals(expected, new HashSet<Integer>(items));
+			assertEquals(sum, LowMemorySpliterators.stream(set, parallel).mapToLong(Integer::longValue).sum());
+			assertEquals(set.size(), LowMemorySpliterators.stream(set, parallel).count());
+		}
+	}
+}